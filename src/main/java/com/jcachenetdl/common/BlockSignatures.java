@@ -0,0 +1,64 @@
+package com.jcachenetdl.common;
+
+import java.io.Serializable;
+
+/**
+ * The signatures of a file's fixed-size blocks, sent by a node that holds the file so a
+ * peer can describe another version of it as a delta against these blocks.
+ * <p>
+ * Block {@code i} covers the bytes from {@code i * blockSize}; the last block may be shorter.
+ * Each block has a weak rolling checksum, cheap to compare at every offset, and a strong
+ * checksum, the first 8 bytes of its SHA-256 digest, that confirms a weak match.
+ */
+public class BlockSignatures implements Serializable {
+    private final String fileHash;
+    private final int blockSize;
+    private final long fileSize;
+    private final int[] weak;
+    private final long[] strong;
+
+    public BlockSignatures(String fileHash, int blockSize, long fileSize, int[] weak, long[] strong) {
+        if (weak.length != strong.length) {
+            throw new IllegalArgumentException("Expected as many strong as weak checksums");
+        }
+        this.fileHash = fileHash;
+        this.blockSize = blockSize;
+        this.fileSize = fileSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    public int getWeak(int block) {
+        return weak[block];
+    }
+
+    public long getStrong(int block) {
+        return strong[block];
+    }
+
+    /**
+     * Gets the length of a block.
+     *
+     * @param block The block index
+     * @return The length, which is the block size except for the last block
+     */
+    public int getBlockLength(int block) {
+        return (int) Math.min(blockSize, fileSize - (long) block * blockSize);
+    }
+}
@@ -1,7 +1,6 @@
 package com.jcachenetdl.common;
 
 import java.io.Serializable;
-import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -10,12 +9,17 @@ import java.util.Objects;
 public class CacheItem implements Serializable {
     private String fileHash;
     private int chunkId;
-    private byte[] data;
+    private PagedChunk data;
     private long timestamp;
     private String ownerPeerId;
     private int totalChunks;
+    private transient ChunkKey key;
 
     public CacheItem(String fileHash, int chunkId, byte[] data, String ownerPeerId, int totalChunks) {
+        this(fileHash, chunkId, PagedChunk.wrap(data), ownerPeerId, totalChunks);
+    }
+
+    public CacheItem(String fileHash, int chunkId, PagedChunk data, String ownerPeerId, int totalChunks) {
         this.fileHash = fileHash;
         this.chunkId = chunkId;
         this.data = data;
@@ -40,14 +44,29 @@ public class CacheItem implements Serializable {
         this.chunkId = chunkId;
     }
 
-    public byte[] getData() {
+    public PagedChunk getChunk() {
         return data;
     }
 
-    public void setData(byte[] data) {
+    public void setChunk(PagedChunk data) {
         this.data = data;
     }
 
+    /**
+     * Gets the chunk data as one contiguous array.
+     *
+     * @return A copy of the chunk data
+     * @deprecated Materializes the whole chunk in a single allocation; use {@link #getChunk()}.
+     */
+    @Deprecated
+    public byte[] getData() {
+        return data != null ? data.toByteArray() : null;
+    }
+
+    public int getDataSize() {
+        return data != null ? data.length() : 0;
+    }
+
     public long getTimestamp() {
         return timestamp;
     }
@@ -72,6 +91,22 @@ public class CacheItem implements Serializable {
         this.totalChunks = totalChunks;
     }
 
+    /**
+     * Gets the compact key of this chunk.
+     * 
+     * @return The chunk key
+     */
+    public ChunkKey getKey() {
+        if (key == null) {
+            key = ChunkKey.of(fileHash, chunkId);
+        }
+        return key;
+    }
+
+    public void setKey(ChunkKey key) {
+        this.key = key;
+    }
+
     public String getFileIdentifier() {
         return fileHash + "_" + chunkId;
     }
@@ -95,7 +130,7 @@ public class CacheItem implements Serializable {
         return "CacheItem{" +
                 "fileHash='" + fileHash + '\'' +
                 ", chunkId=" + chunkId +
-                ", dataSize=" + (data != null ? data.length : 0) +
+                ", dataSize=" + getDataSize() +
                 ", timestamp=" + timestamp +
                 ", ownerPeerId='" + ownerPeerId + '\'' +
                 ", totalChunks=" + totalChunks +
@@ -0,0 +1,157 @@
+package com.jcachenetdl.common;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.Serializable;
+
+/**
+ * Compact identifier of a file chunk: the 32 raw bytes of the file's SHA-256 hash,
+ * held as four longs, plus the chunk ID.
+ * Replaces the {@code fileHash + "_" + chunkId} string keys (about 100 bytes each).
+ */
+public final class ChunkKey implements Serializable {
+    public static final int HASH_HEX_LENGTH = 64;
+
+    private final long h0;
+    private final long h1;
+    private final long h2;
+    private final long h3;
+    private final int chunkId;
+
+    public ChunkKey(long h0, long h1, long h2, long h3, int chunkId) {
+        this.h0 = h0;
+        this.h1 = h1;
+        this.h2 = h2;
+        this.h3 = h3;
+        this.chunkId = chunkId;
+    }
+
+    /**
+     * Creates a key from a hex file hash and a chunk ID.
+     *
+     * @param fileHash The 64-character hex SHA-256 file hash
+     * @param chunkId The chunk ID
+     * @return The chunk key
+     * @throws IllegalArgumentException If the file hash is not a valid SHA-256 hex string
+     */
+    public static ChunkKey of(String fileHash, int chunkId) {
+        if (!isValidHash(fileHash)) {
+            throw new IllegalArgumentException("Invalid file hash: " + fileHash);
+        }
+        return new ChunkKey(parseWord(fileHash, 0), parseWord(fileHash, 1),
+                parseWord(fileHash, 2), parseWord(fileHash, 3), chunkId);
+    }
+
+    /**
+     * Checks if a string is a 64-character hex SHA-256 hash.
+     *
+     * @param fileHash The string to check
+     * @return True if the string is a valid hash
+     */
+    public static boolean isValidHash(String fileHash) {
+        if (fileHash == null || fileHash.length() != HASH_HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HASH_HEX_LENGTH; i++) {
+            if (Character.digit(fileHash.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses one 64-bit word of a hex hash without allocating.
+     * The caller must have validated the hash with {@link #isValidHash(String)}.
+     *
+     * @param fileHash The hex hash
+     * @param word The word index (0-3)
+     * @return The word value
+     */
+    public static long parseWord(String fileHash, int word) {
+        long value = 0;
+        int start = word * 16;
+        for (int i = start; i < start + 16; i++) {
+            value = (value << 4) | Character.digit(fileHash.charAt(i), 16);
+        }
+        return value;
+    }
+
+    /**
+     * Mixes the key fields into a well-distributed hash code.
+     *
+     * @param h0 The first hash word
+     * @param chunkId The chunk ID
+     * @return The hash code
+     */
+    public static int hash(long h0, int chunkId) {
+        // The hash words are already uniform; only the chunk ID needs spreading
+        long h = h0 + chunkId * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    public long getWord(int index) {
+        switch (index) {
+            case 0: return h0;
+            case 1: return h1;
+            case 2: return h2;
+            case 3: return h3;
+            default: throw new IndexOutOfBoundsException("Hash word index: " + index);
+        }
+    }
+
+    public int getChunkId() {
+        return chunkId;
+    }
+
+    /**
+     * Gets the file hash as a hex string. Allocates; use for logging and file names only.
+     *
+     * @return The hex file hash
+     */
+    public String getFileHash() {
+        byte[] bytes = new byte[32];
+        for (int word = 0; word < 4; word++) {
+            long value = getWord(word);
+            for (int i = 7; i >= 0; i--) {
+                bytes[word * 8 + i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+        return Hex.encodeHexString(bytes);
+    }
+
+    /**
+     * Checks if this key matches the given fields.
+     *
+     * @param h0 The first hash word
+     * @param h1 The second hash word
+     * @param h2 The third hash word
+     * @param h3 The fourth hash word
+     * @param chunkId The chunk ID
+     * @return True if all fields are equal
+     */
+    public boolean matches(long h0, long h1, long h2, long h3, int chunkId) {
+        return this.chunkId == chunkId && this.h0 == h0 && this.h1 == h1 && this.h2 == h2 && this.h3 == h3;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ChunkKey other = (ChunkKey) o;
+        return other.matches(h0, h1, h2, h3, chunkId);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash(h0, chunkId);
+    }
+
+    @Override
+    public String toString() {
+        return getFileHash() + "_" + chunkId;
+    }
+}
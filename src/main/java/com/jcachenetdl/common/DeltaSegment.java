@@ -0,0 +1,65 @@
+package com.jcachenetdl.common;
+
+import java.io.Serializable;
+
+/**
+ * One piece of a file described as a delta against a base file: either a run of bytes
+ * copied from the base, or literal bytes the base doesn't have. Applying a delta's segments
+ * in order writes the file from start to end.
+ */
+public class DeltaSegment implements Serializable {
+    private final long baseOffset; // -1 for literal bytes
+    private final long length;
+    private final byte[] literal; // null for a copy
+
+    private DeltaSegment(long baseOffset, long length, byte[] literal) {
+        this.baseOffset = baseOffset;
+        this.length = length;
+        this.literal = literal;
+    }
+
+    /**
+     * Creates a segment copied from the base file.
+     *
+     * @param baseOffset The offset of the bytes in the base file
+     * @param length The number of bytes
+     * @return The segment
+     */
+    public static DeltaSegment copy(long baseOffset, long length) {
+        if (baseOffset < 0 || length <= 0) {
+            throw new IllegalArgumentException("Invalid copy: offset=" + baseOffset + ", length=" + length);
+        }
+        return new DeltaSegment(baseOffset, length, null);
+    }
+
+    /**
+     * Creates a segment of literal bytes.
+     *
+     * @param data The bytes, which the segment keeps without copying
+     * @return The segment
+     */
+    public static DeltaSegment literal(byte[] data) {
+        return new DeltaSegment(-1, data.length, data);
+    }
+
+    public boolean isCopy() {
+        return literal == null;
+    }
+
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public byte[] getLiteral() {
+        return literal;
+    }
+
+    @Override
+    public String toString() {
+        return isCopy() ? "COPY " + baseOffset + "+" + length : "LITERAL " + length;
+    }
+}
@@ -0,0 +1,229 @@
+package com.jcachenetdl.common;
+
+import com.jcachenetdl.util.HashUtil;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes how a file is split into chunks: the chunk count, the file size and the
+ * SHA-256 digest of each chunk, so chunks can be checked one by one as they arrive.
+ * <p>
+ * An erasure-coded file also has parity fragments: each stripe of {@code dataShards}
+ * consecutive chunks is extended with {@code parityShards} Reed-Solomon parity fragments,
+ * and any {@code dataShards} fragments of a stripe reconstruct its chunks. Fragments are
+ * addressed like chunks: IDs below {@code totalChunks} are the data chunks, and parity
+ * fragment {@code j} of stripe {@code s} has ID {@code totalChunks + s * parityShards + j}.
+ * The last stripe may hold fewer chunks; its missing ones count as zeros. A parity fragment
+ * is as long as the first chunk of its stripe, and the digests list every fragment.
+ */
+public class FileManifest implements Serializable {
+    private String fileHash;
+    private int totalChunks;
+    private long fileSize; // -1 if not known yet
+    private ArrayList<String> chunkDigests; // null if not known
+    private int dataShards; // 0 if not erasure-coded
+    private int parityShards;
+
+    public FileManifest(String fileHash, int totalChunks, long fileSize) {
+        this(fileHash, totalChunks, fileSize, null);
+    }
+
+    public FileManifest(String fileHash, int totalChunks, long fileSize, List<String> chunkDigests) {
+        this(fileHash, totalChunks, fileSize, chunkDigests, 0, 0);
+    }
+
+    public FileManifest(String fileHash, int totalChunks, long fileSize, List<String> chunkDigests,
+                        int dataShards, int parityShards) {
+        this.fileHash = fileHash;
+        this.totalChunks = totalChunks;
+        this.fileSize = fileSize;
+        setChunkDigests(chunkDigests);
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public void setFileHash(String fileHash) {
+        this.fileHash = fileHash;
+    }
+
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    public void setTotalChunks(int totalChunks) {
+        this.totalChunks = totalChunks;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public List<String> getChunkDigests() {
+        return chunkDigests;
+    }
+
+    public void setChunkDigests(List<String> chunkDigests) {
+        this.chunkDigests = chunkDigests != null ? new ArrayList<>(chunkDigests) : null;
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    /**
+     * Checks if the file is erasure-coded, i.e. has parity fragments.
+     *
+     * @return True if erasure-coded
+     */
+    public boolean isErasureCoded() {
+        return dataShards > 0 && parityShards > 0;
+    }
+
+    /**
+     * Gets the number of fragments: the chunks, plus the parity fragments if erasure-coded.
+     *
+     * @return The fragment count
+     */
+    public int getFragmentCount() {
+        return isErasureCoded() ? totalChunks + getStripeCount() * parityShards : totalChunks;
+    }
+
+    /**
+     * Gets the number of stripes. Without erasure coding every chunk is a stripe of its own.
+     *
+     * @return The stripe count
+     */
+    public int getStripeCount() {
+        return isErasureCoded() ? (totalChunks + dataShards - 1) / dataShards : totalChunks;
+    }
+
+    /**
+     * Gets the stripe a fragment belongs to.
+     *
+     * @param fragmentId The chunk or parity fragment ID
+     * @return The stripe index
+     */
+    public int getStripe(int fragmentId) {
+        if (!isErasureCoded()) {
+            return fragmentId;
+        }
+        return fragmentId < totalChunks ? fragmentId / dataShards : (fragmentId - totalChunks) / parityShards;
+    }
+
+    /**
+     * Gets the number of chunks in a stripe, which is also how many of its fragments are
+     * needed to reconstruct it.
+     *
+     * @param stripe The stripe index
+     * @return The chunk count of the stripe
+     */
+    public int getStripeChunks(int stripe) {
+        return isErasureCoded() ? Math.min(dataShards, totalChunks - stripe * dataShards) : 1;
+    }
+
+    /**
+     * Gets the fragments of a stripe: its chunks, then its parity fragments.
+     *
+     * @param stripe The stripe index
+     * @return The fragment IDs
+     */
+    public int[] getStripeFragments(int stripe) {
+        if (!isErasureCoded()) {
+            return new int[] {stripe};
+        }
+        int chunks = getStripeChunks(stripe);
+        int[] fragments = new int[chunks + parityShards];
+        for (int i = 0; i < chunks; i++) {
+            fragments[i] = stripe * dataShards + i;
+        }
+        for (int j = 0; j < parityShards; j++) {
+            fragments[chunks + j] = totalChunks + stripe * parityShards + j;
+        }
+        return fragments;
+    }
+
+    /**
+     * Checks if a fragment is a parity fragment rather than a chunk of the file.
+     *
+     * @param fragmentId The fragment ID
+     * @return True if parity
+     */
+    public boolean isParity(int fragmentId) {
+        return fragmentId >= totalChunks;
+    }
+
+    /**
+     * Gets the length of a fragment.
+     *
+     * @param fragmentId The chunk or parity fragment ID
+     * @param chunkSize The size of a full chunk
+     * @return The length in bytes, or -1 if it depends on the unknown file size
+     */
+    public int getFragmentLength(int fragmentId, int chunkSize) {
+        int chunkId = isParity(fragmentId) ? getStripe(fragmentId) * dataShards : fragmentId;
+        if (chunkId < totalChunks - 1) {
+            return chunkSize;
+        }
+        return fileSize >= 0 ? (int) (fileSize - (long) chunkId * chunkSize) : -1;
+    }
+
+    /**
+     * Checks if the manifest is complete: the file size and every fragment digest are known.
+     *
+     * @return True if complete
+     */
+    public boolean isComplete() {
+        return fileSize >= 0 && chunkDigests != null && chunkDigests.size() == getFragmentCount();
+    }
+
+    /**
+     * Checks a chunk or parity fragment against what the manifest knows about it. Every
+     * chunk but the last is full size; the last one's length follows from the file size, if
+     * known. A parity fragment is as long as the first chunk of its stripe. The digest is
+     * compared if known.
+     *
+     * @param chunkId The chunk or parity fragment ID
+     * @param data The chunk data
+     * @param chunkSize The size of a full chunk
+     * @return True if the chunk matches
+     */
+    public boolean verifyChunk(int chunkId, PagedChunk data, int chunkSize) {
+        if (chunkId < 0 || chunkId >= getFragmentCount()) {
+            return false;
+        }
+
+        int length = data.length();
+        int expected = getFragmentLength(chunkId, chunkSize);
+        if (expected >= 0 ? length != expected : length < 1 || length > chunkSize) {
+            return false;
+        }
+
+        String digest = chunkDigests != null && chunkId < chunkDigests.size() ? chunkDigests.get(chunkId) : null;
+        return digest == null || digest.equals(HashUtil.sha256(data));
+    }
+
+    @Override
+    public String toString() {
+        return "FileManifest{" +
+                "fileHash='" + fileHash + '\'' +
+                ", totalChunks=" + totalChunks +
+                ", fileSize=" + fileSize +
+                ", chunkDigests=" + (chunkDigests != null ? chunkDigests.size() : 0) +
+                (isErasureCoded() ? ", dataShards=" + dataShards + ", parityShards=" + parityShards : "") +
+                '}';
+    }
+}
@@ -0,0 +1,136 @@
+package com.jcachenetdl.common;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Index of the small files bundled into a pack.
+ * Offsets are relative to the start of the pack's data section.
+ */
+public class PackIndex implements Serializable {
+    private List<Entry> entries;
+
+    public PackIndex() {
+        this.entries = new ArrayList<>();
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    public void addEntry(Entry entry) {
+        this.entries.add(entry);
+    }
+
+    /**
+     * Finds an entry by name.
+     *
+     * @param name The member name
+     * @return The entry, or null if not found
+     */
+    public Entry getEntry(String name) {
+        for (Entry entry : entries) {
+            if (entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the total size of all packed files.
+     *
+     * @return The data section size in bytes
+     */
+    public long getDataSize() {
+        long size = 0;
+        for (Entry entry : entries) {
+            size += entry.getLength();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "PackIndex{" +
+                "entries=" + entries.size() +
+                ", dataSize=" + getDataSize() +
+                '}';
+    }
+
+    /**
+     * A file stored inside a pack.
+     */
+    public static class Entry implements Serializable {
+        private String name;
+        private String fileHash;
+        private long offset;
+        private long length;
+
+        public Entry(String name, String fileHash, long offset, long length) {
+            this.name = name;
+            this.fileHash = fileHash;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getFileHash() {
+            return fileHash;
+        }
+
+        public void setFileHash(String fileHash) {
+            this.fileHash = fileHash;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public void setOffset(long offset) {
+            this.offset = offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public void setLength(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Entry entry = (Entry) o;
+            return offset == entry.offset &&
+                   length == entry.length &&
+                   Objects.equals(name, entry.name) &&
+                   Objects.equals(fileHash, entry.fileHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, fileHash, offset, length);
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + length + " bytes @ " + offset + ")";
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.jcachenetdl.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Chunk payload stored as a sequence of fixed-size pages.
+ * No single backing array is larger than {@link #PAGE_SIZE}, so a 1MB chunk never
+ * becomes a humongous allocation in G1, either in the cache or on the wire.
+ */
+public final class PagedChunk implements Serializable {
+    public static final int PAGE_SIZE = 64 * 1024; // 64KB
+
+    private static final byte[][] NO_PAGES = new byte[0][];
+
+    private final byte[][] pages;
+    private final int length;
+
+    private PagedChunk(byte[][] pages, int length) {
+        this.pages = pages;
+        this.length = length;
+    }
+
+    /**
+     * Creates a paged copy of a byte array.
+     *
+     * @param data The data to copy
+     * @return The paged chunk
+     */
+    public static PagedChunk wrap(byte[] data) {
+        return copyOf(data, 0, data.length);
+    }
+
+    /**
+     * Creates a paged copy of a region of a byte array.
+     *
+     * @param data The source array
+     * @param offset The start offset in the source array
+     * @param length The number of bytes to copy
+     * @return The paged chunk
+     */
+    public static PagedChunk copyOf(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException("Invalid region: offset=" + offset + ", length=" + length);
+        }
+
+        int pageCount = (length + PAGE_SIZE - 1) / PAGE_SIZE;
+        byte[][] pages = pageCount == 0 ? NO_PAGES : new byte[pageCount][];
+        for (int i = 0; i < pageCount; i++) {
+            int start = offset + i * PAGE_SIZE;
+            int end = Math.min(start + PAGE_SIZE, offset + length);
+            pages[i] = Arrays.copyOfRange(data, start, end);
+        }
+        return new PagedChunk(pages, length);
+    }
+
+    /**
+     * Reads a chunk from a stream, page by page, until the stream ends.
+     *
+     * @param in The stream to read from
+     * @return The paged chunk
+     * @throws IOException If there's an error reading the stream
+     */
+    public static PagedChunk readFrom(InputStream in) throws IOException {
+        return readFrom(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads at most {@code maxLength} bytes from a stream into a paged chunk.
+     *
+     * @param in The stream to read from
+     * @param maxLength The maximum number of bytes to read
+     * @return The paged chunk (shorter than maxLength if the stream ended first)
+     * @throws IOException If there's an error reading the stream
+     */
+    public static PagedChunk readFrom(InputStream in, int maxLength) throws IOException {
+        List<byte[]> pages = new ArrayList<>();
+        int total = 0;
+
+        while (total < maxLength) {
+            int want = Math.min(PAGE_SIZE, maxLength - total);
+            byte[] page = new byte[want];
+            int filled = in.readNBytes(page, 0, want);
+            if (filled == 0) {
+                break;
+            }
+            pages.add(filled == want ? page : Arrays.copyOf(page, filled));
+            total += filled;
+            if (filled < want) {
+                break;
+            }
+        }
+
+        return new PagedChunk(pages.toArray(NO_PAGES), total);
+    }
+
+    /**
+     * Reads a region of a file into a paged chunk, page by page.
+     *
+     * @param channel The channel to read from
+     * @param position The file position of the first byte
+     * @param length The number of bytes to read
+     * @return The paged chunk
+     * @throws IOException If there's an error reading the file, or it ends before the region does
+     */
+    public static PagedChunk readFrom(FileChannel channel, long position, int length) throws IOException {
+        int pageCount = (length + PAGE_SIZE - 1) / PAGE_SIZE;
+        byte[][] pages = pageCount == 0 ? NO_PAGES : new byte[pageCount][];
+        for (int i = 0; i < pageCount; i++) {
+            pages[i] = new byte[Math.min(PAGE_SIZE, length - i * PAGE_SIZE)];
+            ByteBuffer buffer = ByteBuffer.wrap(pages[i]);
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("File ends before the " + length + " bytes at " + position);
+                }
+                position += read;
+            }
+        }
+        return new PagedChunk(pages, length);
+    }
+
+    /**
+     * Gets the chunk length in bytes.
+     *
+     * @return The length
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Gets the number of pages backing this chunk.
+     *
+     * @return The page count
+     */
+    public int getPageCount() {
+        return pages.length;
+    }
+
+    /**
+     * Gets a backing page. The returned array must not be modified.
+     *
+     * @param index The page index
+     * @return The page
+     */
+    public byte[] getPage(int index) {
+        return pages[index];
+    }
+
+    /**
+     * Copies a region of this chunk into a byte array.
+     *
+     * @param srcOffset The offset within this chunk
+     * @param dst The destination array
+     * @param dstOffset The offset in the destination array
+     * @param len The number of bytes to copy
+     */
+    public void copyTo(int srcOffset, byte[] dst, int dstOffset, int len) {
+        if (srcOffset < 0 || len < 0 || srcOffset + len > length) {
+            throw new IndexOutOfBoundsException("Invalid region: offset=" + srcOffset + ", length=" + len);
+        }
+
+        while (len > 0) {
+            int pageIndex = srcOffset / PAGE_SIZE;
+            int pageOffset = srcOffset % PAGE_SIZE;
+            int n = Math.min(len, pages[pageIndex].length - pageOffset);
+            System.arraycopy(pages[pageIndex], pageOffset, dst, dstOffset, n);
+            srcOffset += n;
+            dstOffset += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Gets a region of the chunk. Pages of a region that starts at a page boundary are
+     * shared with this chunk rather than copied, except for a partial last page.
+     *
+     * @param offset The start of the region
+     * @param len The length of the region
+     * @return The region
+     */
+    public PagedChunk slice(int offset, int len) {
+        if (offset < 0 || len < 0 || offset + len > length) {
+            throw new IndexOutOfBoundsException("Invalid region: offset=" + offset + ", length=" + len);
+        }
+        if (offset == 0 && len == length) {
+            return this;
+        }
+
+        int pageCount = (len + PAGE_SIZE - 1) / PAGE_SIZE;
+        byte[][] slicePages = pageCount == 0 ? NO_PAGES : new byte[pageCount][];
+        for (int i = 0; i < pageCount; i++) {
+            int start = offset + i * PAGE_SIZE;
+            int n = Math.min(PAGE_SIZE, len - i * PAGE_SIZE);
+            if (start % PAGE_SIZE == 0 && pages[start / PAGE_SIZE].length == n) {
+                slicePages[i] = pages[start / PAGE_SIZE]; // Pages are never modified, so they can be shared
+            } else {
+                slicePages[i] = new byte[n];
+                copyTo(start, slicePages[i], 0, n);
+            }
+        }
+        return new PagedChunk(slicePages, len);
+    }
+
+    /**
+     * Joins chunks into one. If every part but the last is a whole number of pages, e.g.
+     * the page-aligned pieces of a chunk, their pages are shared rather than copied.
+     *
+     * @param parts The chunks, in order
+     * @return The joined chunk
+     */
+    public static PagedChunk concat(List<PagedChunk> parts) {
+        int total = 0;
+        boolean aligned = true;
+        for (int i = 0; i < parts.size(); i++) {
+            total += parts.get(i).length;
+            aligned &= i == parts.size() - 1 || parts.get(i).length % PAGE_SIZE == 0;
+        }
+
+        if (aligned) {
+            List<byte[]> pages = new ArrayList<>();
+            for (PagedChunk part : parts) {
+                pages.addAll(Arrays.asList(part.pages));
+            }
+            return new PagedChunk(pages.toArray(NO_PAGES), total);
+        }
+
+        int pageCount = (total + PAGE_SIZE - 1) / PAGE_SIZE;
+        byte[][] pages = new byte[pageCount][];
+        for (int i = 0; i < pageCount; i++) {
+            pages[i] = new byte[Math.min(PAGE_SIZE, total - i * PAGE_SIZE)];
+        }
+        int position = 0;
+        for (PagedChunk part : parts) {
+            int done = 0;
+            while (done < part.length) {
+                int pageOffset = position % PAGE_SIZE;
+                int n = Math.min(part.length - done, PAGE_SIZE - pageOffset);
+                part.copyTo(done, pages[position / PAGE_SIZE], pageOffset, n);
+                done += n;
+                position += n;
+            }
+        }
+        return new PagedChunk(pages, total);
+    }
+
+    /**
+     * Writes the chunk to a stream.
+     *
+     * @param out The stream to write to
+     * @throws IOException If there's an error writing the data
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        for (byte[] page : pages) {
+            out.write(page);
+        }
+    }
+
+    /**
+     * Writes the chunk to a file channel at the given position.
+     *
+     * @param channel The channel to write to
+     * @param position The file position of the first byte
+     * @throws IOException If there's an error writing the data
+     */
+    public void writeTo(FileChannel channel, long position) throws IOException {
+        for (byte[] page : pages) {
+            ByteBuffer buffer = ByteBuffer.wrap(page);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Copies the chunk into a single contiguous array.
+     * Only use this for small chunks; large chunks should be consumed page by page.
+     *
+     * @return The chunk data
+     */
+    public byte[] toByteArray() {
+        byte[] data = new byte[length];
+        copyTo(0, data, 0, length);
+        return data;
+    }
+
+    /**
+     * Creates a stream over the chunk data.
+     *
+     * @return The input stream
+     */
+    public InputStream newInputStream() {
+        return new InputStream() {
+            private int position;
+
+            @Override
+            public int read() {
+                if (position >= length) {
+                    return -1;
+                }
+                byte b = pages[position / PAGE_SIZE][position % PAGE_SIZE];
+                position++;
+                return b & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position >= length) {
+                    return -1;
+                }
+                int n = Math.min(len, length - position);
+                copyTo(position, b, off, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return length - position;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "PagedChunk{length=" + length + ", pages=" + pages.length + '}';
+    }
+}
@@ -1,18 +1,34 @@
 package com.jcachenetdl.common;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
  * Represents information about a peer node in the network.
  */
 public class PeerInfo implements Serializable {
+    // Weight of the newest sample in the moving averages
+    private static final double EWMA_ALPHA = 0.2;
+    // Number of recent round-trip times kept for percentiles
+    private static final int RTT_SAMPLES = 32;
+    
     private String id;
     private String host;
     private int port;
     private long lastSeen;
     private boolean active;
     
+    // Local performance statistics; not shared with other nodes
+    private transient double rttMs;
+    private transient double throughput;
+    private transient double failureRate;
+    private transient int consecutiveFailures;
+    private transient long samples;
+    private transient long[] recentRtts;
+    private transient int recentRttCount;
+    private transient int recentRttNext;
+    
     public PeerInfo(String id, String host, int port) {
         this.id = id;
         this.host = host;
@@ -66,6 +82,129 @@ public class PeerInfo implements Serializable {
         this.lastSeen = System.currentTimeMillis();
     }
     
+    /**
+     * Records a successful request to this peer.
+     * 
+     * @param rttMs The round-trip time of the request in milliseconds
+     * @param bytes The number of payload bytes received
+     */
+    public void recordSuccess(long rttMs, long bytes) {
+        recordSuccess(rttMs, bytes, rttMs);
+    }
+    
+    /**
+     * Records a successful request to this peer whose response was streamed, e.g. a batch of chunks.
+     * 
+     * @param rttMs The time until the first response arrived, in milliseconds
+     * @param bytes The number of payload bytes received
+     * @param transferMs The time until the last response arrived, in milliseconds
+     */
+    public synchronized void recordSuccess(long rttMs, long bytes, long transferMs) {
+        double requestThroughput = bytes * 1000.0 / Math.max(1, transferMs);
+        if (samples == 0) {
+            this.rttMs = rttMs;
+            this.throughput = requestThroughput;
+        } else {
+            this.rttMs += EWMA_ALPHA * (rttMs - this.rttMs);
+            this.throughput += EWMA_ALPHA * (requestThroughput - this.throughput);
+        }
+        this.failureRate *= 1 - EWMA_ALPHA;
+        this.consecutiveFailures = 0;
+        this.samples++;
+        
+        if (recentRtts == null) {
+            recentRtts = new long[RTT_SAMPLES];
+        }
+        recentRtts[recentRttNext] = rttMs;
+        recentRttNext = (recentRttNext + 1) % RTT_SAMPLES;
+        recentRttCount = Math.min(recentRttCount + 1, RTT_SAMPLES);
+    }
+    
+    /**
+     * Records a failed request to this peer.
+     * 
+     * @return The number of consecutive failures, including this one
+     */
+    public synchronized int recordFailure() {
+        this.failureRate += EWMA_ALPHA * (1 - failureRate);
+        this.samples++;
+        return ++consecutiveFailures;
+    }
+    
+    /**
+     * Clears the consecutive failure count after the peer was reached again.
+     */
+    public synchronized void clearFailures() {
+        this.consecutiveFailures = 0;
+    }
+    
+    /**
+     * Gets the moving average round-trip time of requests to this peer.
+     * 
+     * @return The round-trip time in milliseconds, or 0 if there's no successful request yet
+     */
+    public synchronized double getRttMs() {
+        return rttMs;
+    }
+    
+    /**
+     * Gets a percentile of the recent round-trip times of requests to this peer.
+     * 
+     * @param percentile The percentile, between 0 and 1
+     * @return The round-trip time in milliseconds, or -1 if there's no successful request yet
+     */
+    public synchronized long getRttPercentile(double percentile) {
+        int count = recentRttCount;
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(recentRtts, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+    
+    /**
+     * Gets the moving average throughput of requests to this peer.
+     * 
+     * @return The throughput in bytes per second, or 0 if there's no successful request yet
+     */
+    public synchronized double getThroughput() {
+        return throughput;
+    }
+    
+    /**
+     * Gets the moving average failure rate of requests to this peer.
+     * 
+     * @return The failure rate between 0 and 1
+     */
+    public synchronized double getFailureRate() {
+        return failureRate;
+    }
+    
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+    
+    /**
+     * Checks if any request to this peer has been measured.
+     * 
+     * @return True if the peer has performance statistics
+     */
+    public synchronized boolean hasStatistics() {
+        return samples > 0;
+    }
+    
+    /**
+     * Gets the peer's score as a source: its throughput weighted by its success rate,
+     * i.e. the bytes per second a request can be expected to deliver.
+     * 
+     * @return The score, or 0 if nothing is known about the peer
+     */
+    public synchronized double getScore() {
+        return throughput * (1 - failureRate);
+    }
+    
     public String getAddress() {
         return host + ":" + port;
     }
@@ -50,6 +50,11 @@ public class ConfigurationManager {
         configCache.put("network.interface", "0.0.0.0");
         configCache.put("network.max.connections", "100");
         configCache.put("network.timeout.seconds", "30");
+        configCache.put("network.peer.max.failures", "3"); // Consecutive failures before a peer is marked inactive
+        configCache.put("dht.enabled", "true"); // Locate file providers through the DHT, not just direct peers
+        configCache.put("dht.k", "20"); // Bucket size and replication of provider records
+        configCache.put("dht.alpha", "3"); // Parallel queries per lookup round
+        configCache.put("dht.provider.ttl.ms", "3600000"); // Provider records expire after an hour unless republished
         
         // Cache defaults
         configCache.put("cache.dir", "cache");
@@ -57,6 +62,45 @@ public class ConfigurationManager {
         configCache.put("cache.chunk.size.kb", "1024"); // 1MB chunk size
         configCache.put("cache.cleanup.interval.minutes", "60");
         configCache.put("cache.max.age.hours", "24");
+        configCache.put("cache.memory.max.mb", "256"); // Upper bound of the in-memory chunk tier
+        configCache.put("cache.memory.min.mb", "16"); // Lower bound under heap pressure
+        configCache.put("cache.memory.heap.target", "0.70"); // Old generation occupancy to stay below
+        configCache.put("cache.pack.max.file.kb", "256"); // Files up to this size are bundled into packs
+        configCache.put("cache.pack.target.size.mb", "64");
+        configCache.put("cache.erasure.enabled", "false"); // Add Reed-Solomon parity to uploads and place one fragment per peer
+        configCache.put("cache.erasure.data.shards", "4"); // Chunks per stripe
+        configCache.put("cache.erasure.parity.shards", "2"); // Parity fragments per stripe, i.e. peers a stripe survives losing
+        configCache.put("cache.placement.enabled", "true"); // Push uploaded chunks to their home peers and rebalance on membership changes
+        configCache.put("cache.placement.replicas", "3"); // Home peers per chunk
+        configCache.put("cache.placement.virtual.nodes", "64"); // Points per peer on the consistent-hash ring
+        configCache.put("cache.placement.rebalance.delay.ms", "5000"); // How long membership changes are collected before chunks move
+        configCache.put("cache.replication.enabled", "true"); // Push extra copies of hot chunks to more peers
+        configCache.put("cache.replication.interval.ms", "10000"); // How often demand is measured and hot chunks replicated
+        configCache.put("cache.replication.hits.per.replica", "50"); // Demand score that earns a chunk one extra copy
+        configCache.put("cache.replication.max.replicas", "8"); // Most copies of a chunk, home peers included
+        configCache.put("cache.replication.max.pushes", "32"); // Most extra copies pushed per interval
+        
+        // Download defaults
+        configCache.put("fetch.pipeline.depth", "8"); // Chunk requests in flight per peer before its limit adapts
+        configCache.put("fetch.pipeline.min.depth", "1"); // Lowest adaptive limit of chunk requests in flight per peer
+        configCache.put("fetch.pipeline.max.depth", "64"); // Highest adaptive limit of chunk requests in flight per peer
+        configCache.put("fetch.batch.max.chunks", "8"); // Chunks per batch request; 1 disables batching
+        configCache.put("fetch.piece.kb", "256"); // Smallest piece an overdue chunk is split into across peers; 0 disables
+        configCache.put("fetch.request.timeout.ms", "30000"); // Deadline of a chunk request; peers drop requests past it
+        configCache.put("fetch.peer.max.failures", "3"); // Consecutive failures before a peer is dropped from a download
+        configCache.put("fetch.peer.exploration", "0.1"); // Chance of trying a peer regardless of its score
+        configCache.put("fetch.hedge.percentile", "0.95"); // Peer RTT percentile after which an endgame request is hedged
+        configCache.put("fetch.hedge.default.delay.ms", "2000");
+        configCache.put("fetch.hedge.min.delay.ms", "50");
+        configCache.put("fetch.hedge.max.requests", "2"); // Concurrent requests per chunk; 1 disables hedging
+        configCache.put("fetch.bitfield.timeout.ms", "2000"); // Wait for peers to list their chunks before downloading
+        configCache.put("fetch.stream.enabled", "true"); // Write fetched chunks straight into the output file
+        configCache.put("fetch.stream.cache.chunks", "true"); // Also cache streamed chunks so they can be served to peers
+        configCache.put("fetch.playback.window.chunks", "8"); // Chunks ahead of a reader's position that are fetched first
+        configCache.put("fetch.resume.interval.ms", "30000"); // How often unfinished downloads are retried
+        configCache.put("delta.enabled", "true"); // Fetch new versions of a cached file as a delta against it
+        configCache.put("delta.block.size.kb", "8"); // Block size of the base signatures; smaller finds more matches but sends more signatures
+        configCache.put("delta.max.literal.ratio", "0.5"); // Share of a file's bytes a delta may send before it is fetched in full instead
         
         // Ledger defaults
         configCache.put("ledger.dir", "ledger/blocks");
@@ -71,6 +115,7 @@ public class ConfigurationManager {
         // Performance tuning
         configCache.put("performance.thread.pool.size", "10");
         configCache.put("performance.io.buffer.size.kb", "64");
+        configCache.put("performance.virtual.threads", "true"); // Run blocking work on virtual threads when the JDK has them
         
         // Metrics
         configCache.put("metrics.enabled", "true");
@@ -185,6 +230,22 @@ public class ConfigurationManager {
         }
     }
     
+    /**
+     * Gets a decimal configuration value.
+     * 
+     * @param key The configuration key
+     * @param defaultValue The default value
+     * @return The configuration value
+     */
+    public double getDouble(String key, double defaultValue) {
+        try {
+            return Double.parseDouble(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid decimal value for key: {}", key);
+            return defaultValue;
+        }
+    }
+    
     /**
      * Gets a boolean configuration value.
      * 
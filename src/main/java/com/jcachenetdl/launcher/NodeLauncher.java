@@ -1,12 +1,15 @@
 package com.jcachenetdl.launcher;
 
+import com.jcachenetdl.common.PackIndex;
 import com.jcachenetdl.common.PeerInfo;
 import com.jcachenetdl.ledger.DistributedLedger;
 import com.jcachenetdl.network.NetworkManager;
 import com.jcachenetdl.network.PeerDiscovery;
 import com.jcachenetdl.network.PeerHandler;
 import com.jcachenetdl.node.CacheEngine;
+import com.jcachenetdl.node.DownloadState;
 import com.jcachenetdl.node.FileServer;
+import com.jcachenetdl.node.MemoryPressureController;
 import com.jcachenetdl.util.LogUtil;
 
 import java.io.BufferedReader;
@@ -17,6 +20,7 @@ import java.net.InetAddress;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -34,6 +38,7 @@ public class NodeLauncher {
     private CacheEngine cacheEngine;
     private PeerHandler peerHandler;
     private FileServer fileServer;
+    private MemoryPressureController memoryController;
     
     /**
      * Initializes the node with a specific port.
@@ -52,6 +57,8 @@ public class NodeLauncher {
         // Create components
         this.ledger = new DistributedLedger(peerId);
         this.cacheEngine = new CacheEngine(peerId, ledger);
+        this.memoryController = new MemoryPressureController(cacheEngine);
+        memoryController.start();
         this.peerDiscovery = new PeerDiscovery(peerId);
         
         // Get hostname and IP for the network manager
@@ -131,6 +138,30 @@ public class NodeLauncher {
                     fetchFile(args);
                     break;
                     
+                case "fetchdelta":
+                    fetchDelta(args);
+                    break;
+                    
+                case "uploaddir":
+                    uploadDirectory(args);
+                    break;
+                    
+                case "fetchpack":
+                    fetchPack(args);
+                    break;
+                    
+                case "downloads":
+                    listDownloads();
+                    break;
+                    
+                case "resume":
+                    resumeDownloads();
+                    break;
+                    
+                case "cancel":
+                    cancelDownload(args);
+                    break;
+                    
                 case "stats":
                     showStats();
                     break;
@@ -169,6 +200,12 @@ public class NodeLauncher {
         System.out.println("  addpeer <host:port>      - Add a peer manually");
         System.out.println("  upload <filepath>        - Upload a file to the network");
         System.out.println("  fetch <filehash> [path]  - Fetch a file from the network");
+        System.out.println("  fetchdelta <hash> <base> [path] - Fetch a new version of a cached file as a delta");
+        System.out.println("  uploaddir <dirpath>      - Upload a directory, packing small files");
+        System.out.println("  fetchpack <hash> <dir>   - Fetch a pack and extract it");
+        System.out.println("  downloads                - Show progress of unfinished downloads");
+        System.out.println("  resume                   - Resume unfinished downloads");
+        System.out.println("  cancel <filehash>        - Cancel a running download; it can be resumed");
         System.out.println("  stats                    - Show node statistics");
         System.out.println("  peers                    - List connected peers");
         System.out.println("  ledger                   - Show ledger information");
@@ -228,6 +265,61 @@ public class NodeLauncher {
         System.out.println("Upload time: " + (endTime - startTime) + " ms");
     }
     
+    /**
+     * Uploads a directory to the network, bundling small files into packs.
+     * 
+     * @param args The directory path arguments
+     * @throws Exception If there's an error uploading the directory
+     */
+    private void uploadDirectory(String args) throws Exception {
+        if (args.isEmpty()) {
+            System.out.println("Please specify a directory path");
+            return;
+        }
+        
+        File directory = new File(args);
+        if (!directory.isDirectory()) {
+            System.out.println("Directory not found: " + args);
+            return;
+        }
+        
+        System.out.println("Uploading directory: " + directory.getName());
+        long startTime = System.currentTimeMillis();
+        Map<String, String> uploaded = fileServer.uploadDirectory(directory);
+        long endTime = System.currentTimeMillis();
+        
+        System.out.println("Directory uploaded successfully");
+        for (Map.Entry<String, String> entry : uploaded.entrySet()) {
+            System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+        System.out.println("Upload time: " + (endTime - startTime) + " ms");
+    }
+    
+    /**
+     * Fetches a pack from the network and extracts it.
+     * 
+     * @param args The pack hash and output directory arguments
+     * @throws Exception If there's an error fetching the pack
+     */
+    private void fetchPack(String args) throws Exception {
+        String[] parts = args.split("\\s+", 2);
+        if (parts.length < 2) {
+            System.out.println("Usage: fetchpack <hash> <dir>");
+            return;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        PackIndex index = fileServer.fetchPack(parts[0], new File(parts[1]));
+        long endTime = System.currentTimeMillis();
+        
+        if (index != null) {
+            System.out.println("Extracted " + index.getEntries().size() + " files to " + parts[1]);
+            System.out.println("Fetch time: " + (endTime - startTime) + " ms");
+        } else {
+            System.out.println("Failed to fetch pack");
+        }
+    }
+    
     /**
      * Fetches a file from the network.
      * 
@@ -243,7 +335,36 @@ public class NodeLauncher {
         
         String fileHash = parts[0];
         String outputPath = parts.length > 1 ? parts[1] : "downloaded_" + fileHash.substring(0, 8) + ".file";
+        fetchFile(fileHash, outputPath, null);
+    }
+    
+    /**
+     * Fetches a new version of a cached file as a delta against it.
+     * 
+     * @param args The file hash, base file hash and optional output path arguments
+     * @throws Exception If there's an error fetching the file
+     */
+    private void fetchDelta(String args) throws Exception {
+        String[] parts = args.split("\\s+", 3);
+        if (parts.length < 2) {
+            System.out.println("Usage: fetchdelta <filehash> <basehash> [path]");
+            return;
+        }
         
+        String fileHash = parts[0];
+        String outputPath = parts.length > 2 ? parts[2] : "downloaded_" + fileHash.substring(0, 8) + ".file";
+        fetchFile(fileHash, outputPath, parts[1]);
+    }
+    
+    /**
+     * Fetches a file from the network, printing its info and the outcome.
+     * 
+     * @param fileHash The file hash
+     * @param outputPath The output path
+     * @param baseHash The hash of a cached file to fetch a delta against, or null
+     * @throws Exception If there's an error fetching the file
+     */
+    private void fetchFile(String fileHash, String outputPath, String baseHash) throws Exception {
         // Get file info
         Map<String, Object> fileInfo = fileServer.getFileInfo(fileHash);
         if (fileInfo == null) {
@@ -253,10 +374,15 @@ public class NodeLauncher {
         
         System.out.println("Fetching file: " + fileHash);
         System.out.println("Total chunks: " + fileInfo.get("totalChunks"));
-        System.out.println("Estimated size: " + formatSize((long) fileInfo.get("estimatedSize")));
+        long fileSize = (long) fileInfo.get("fileSize");
+        if (fileSize >= 0) {
+            System.out.println("Size: " + formatSize(fileSize));
+        } else {
+            System.out.println("Estimated size: " + formatSize((long) fileInfo.get("estimatedSize")));
+        }
         
         long startTime = System.currentTimeMillis();
-        boolean success = fileServer.fetchFile(fileHash, new File(outputPath));
+        boolean success = fileServer.fetchFile(fileHash, new File(outputPath), baseHash);
         long endTime = System.currentTimeMillis();
         
         if (success) {
@@ -268,6 +394,46 @@ public class NodeLauncher {
         }
     }
     
+    /**
+     * Lists running and saved unfinished downloads.
+     */
+    private void listDownloads() {
+        List<DownloadState> downloads = fileServer.getDownloads();
+        if (downloads.isEmpty()) {
+            System.out.println("No unfinished downloads");
+            return;
+        }
+        
+        System.out.println("Unfinished downloads:");
+        for (DownloadState state : downloads) {
+            System.out.println(String.format(" - %s -> %s: %.1f%% of %d chunks",
+                    state.getFileHash(), state.getDestination(), state.getProgress() * 100,
+                    state.getManifest().getTotalChunks()));
+        }
+    }
+    
+    /**
+     * Resumes unfinished downloads in the background.
+     */
+    private void resumeDownloads() {
+        int resumed = fileServer.resumeDownloads();
+        System.out.println("Resumed " + resumed + " downloads; use 'downloads' to follow their progress");
+    }
+    
+    /**
+     * Cancels the running downloads of a file.
+     * 
+     * @param fileHash The hash of the file
+     */
+    private void cancelDownload(String fileHash) {
+        if (fileHash.isEmpty()) {
+            System.out.println("Please specify a file hash");
+            return;
+        }
+        int cancelled = fileServer.cancelDownload(fileHash);
+        System.out.println(cancelled > 0 ? "Cancelled download of " + fileHash : "No running download of " + fileHash);
+    }
+    
     /**
      * Shows node statistics.
      */
@@ -286,8 +452,12 @@ public class NodeLauncher {
     private void listPeers() {
         System.out.println("Known peers:");
         for (PeerInfo peer : peerDiscovery.getAllPeers()) {
+            String stats = peer.hasStatistics()
+                    ? String.format(" rtt=%.0fms throughput=%.0fKB/s failures=%.0f%%",
+                            peer.getRttMs(), peer.getThroughput() / 1024, peer.getFailureRate() * 100)
+                    : "";
             System.out.println(" - " + peer.getId() + " at " + peer.getHost() + ":" + peer.getPort() + 
-                             (peer.isActive() ? " (active)" : " (inactive)"));
+                             (peer.isActive() ? " (active)" : " (inactive)") + stats);
         }
     }
     
@@ -349,6 +519,10 @@ public class NodeLauncher {
             peerDiscovery.shutdown();
         }
         
+        if (memoryController != null) {
+            memoryController.stop();
+        }
+        
         System.out.println("Node shutdown complete");
     }
     
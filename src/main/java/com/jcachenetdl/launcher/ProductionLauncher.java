@@ -11,6 +11,7 @@ import com.jcachenetdl.network.PeerDiscovery;
 import com.jcachenetdl.network.PeerHandler;
 import com.jcachenetdl.node.CacheEngine;
 import com.jcachenetdl.node.FileServer;
+import com.jcachenetdl.node.MemoryPressureController;
 import com.jcachenetdl.security.SecurityManager;
 import com.jcachenetdl.util.LogUtil;
 
@@ -44,6 +45,7 @@ public class ProductionLauncher {
     private CacheEngine cacheEngine;
     private PeerHandler peerHandler;
     private FileServer fileServer;
+    private MemoryPressureController memoryController;
     private SecurityManager securityManager;
     private RestApiServer apiServer;
     
@@ -95,6 +97,8 @@ public class ProductionLauncher {
         // Create components
         this.ledger = new DistributedLedger(peerId);
         this.cacheEngine = new CacheEngine(peerId, ledger);
+        this.memoryController = new MemoryPressureController(cacheEngine);
+        memoryController.start();
         this.peerDiscovery = new PeerDiscovery(peerId);
         this.networkManager = new NettyNetworkManager(peerId, hostname, networkPort, peerDiscovery);
         
@@ -135,6 +139,9 @@ public class ProductionLauncher {
         // Initialize metrics
         initializeMetrics();
         
+        // Resume downloads interrupted by the last shutdown once peers are known
+        startDownloadResumer();
+        
         logger.info("Node initialized with ID: {} listening on port {}", peerId, networkPort);
         if (securityManager != null) {
             logger.info("Security public key: {}", securityManager.getPublicKeyEncoded().substring(0, 20) + "...");
@@ -173,6 +180,29 @@ public class ProductionLauncher {
         metricsThread.start();
     }
     
+    /**
+     * Starts a thread that periodically resumes unfinished downloads. Resuming is a no-op
+     * while no peers are active or a download is already running.
+     */
+    private void startDownloadResumer() {
+        long intervalMs = config.getInt("fetch.resume.interval.ms", 30000);
+        Thread resumeThread = new Thread(() -> {
+            while (running.get()) {
+                try {
+                    Thread.sleep(intervalMs);
+                    fileServer.resumeDownloads();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    logger.error("Error resuming downloads", e);
+                }
+            }
+        });
+        resumeThread.setDaemon(true);
+        resumeThread.start();
+    }
+    
     /**
      * Starts the node in background mode (without CLI).
      */
@@ -377,6 +407,10 @@ public class ProductionLauncher {
             peerDiscovery.shutdown();
         }
         
+        if (memoryController != null) {
+            memoryController.stop();
+        }
+        
         // Final metrics report
         if (metrics != null) {
             metrics.shutdown();
@@ -0,0 +1,42 @@
+package com.jcachenetdl.network;
+
+import com.jcachenetdl.common.CacheItem;
+import com.jcachenetdl.common.PeerInfo;
+
+/**
+ * Fetches the chunks of a file from peers. Implemented by {@link PeerHandler}.
+ */
+public interface ChunkSource {
+    /**
+     * Requests a file chunk from a peer.
+     *
+     * @param peer The peer to request from
+     * @param fileHash The hash of the file
+     * @param chunkId The chunk ID
+     * @return The cache item, or null if the request failed
+     */
+    CacheItem requestFileChunk(PeerInfo peer, String fileHash, int chunkId);
+
+    /**
+     * Requests a piece of a file chunk from a peer.
+     *
+     * @param peer The peer to request from
+     * @param fileHash The hash of the file
+     * @param chunkId The chunk ID
+     * @param offset The offset of the piece in the chunk
+     * @param length The length of the piece
+     * @return The piece, or null if the request failed
+     */
+    PeerHandler.ChunkPiece requestChunkPiece(PeerInfo peer, String fileHash, int chunkId, int offset, int length);
+
+    /**
+     * Requests several chunks of a file from a peer over one connection.
+     *
+     * @param peer The peer to request from
+     * @param fileHash The hash of the file
+     * @param chunkIds The chunk IDs
+     * @param consumer Receives each chunk, or null for a chunk the peer doesn't have
+     * @return True if the peer ended the batch, false if the transfer broke off or was stopped
+     */
+    boolean requestFileChunks(PeerInfo peer, String fileHash, int[] chunkIds, PeerHandler.ChunkConsumer consumer);
+}
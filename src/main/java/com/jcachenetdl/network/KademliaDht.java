@@ -0,0 +1,424 @@
+package com.jcachenetdl.network;
+
+import com.jcachenetdl.common.PeerInfo;
+import com.jcachenetdl.config.ConfigurationManager;
+import com.jcachenetdl.util.ExecutorFactory;
+import com.jcachenetdl.util.LogUtil;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kademlia-style distributed hash table for locating content. Each node keeps a
+ * {@link RoutingTable} of O(log N) contacts and stores provider records for the keys
+ * closest to its ID; a node holding a file announces itself as a provider to the
+ * {@code k} nodes closest to the file hash. Lookups walk towards the key, asking
+ * {@code alpha} of the closest known nodes at a time, so finding the nodes or the
+ * providers of a key costs O(log N) messages instead of contacting every peer.
+ * <p>
+ * Messages: FIND_NODE is answered by the closest contacts the node knows (NODES);
+ * FIND_PROVIDERS also returns the providers the node stores for the key (PROVIDERS);
+ * ADD_PROVIDER stores the sender as a provider. Every DHT message carries the sender's
+ * address, so the receiver learns about it.
+ */
+public class KademliaDht {
+    private final String peerId;
+    private final NetworkManager networkManager;
+    private final PeerDiscovery peerDiscovery;
+    private final RoutingTable routingTable;
+    private final int k;
+    private final int alpha;
+    private final long providerTtlMs;
+    private final Map<String, Map<String, ProviderRecord>> providers; // Key -> provider peer ID -> record
+    private final Set<String> provided; // Keys this node announces
+    private final ExecutorService lookupExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final Logger logger;
+
+    public KademliaDht(String peerId, NetworkManager networkManager, PeerDiscovery peerDiscovery) {
+        this.peerId = peerId;
+        this.networkManager = networkManager;
+        this.peerDiscovery = peerDiscovery;
+        ConfigurationManager config = ConfigurationManager.getInstance();
+        this.k = config.getInt("dht.k", 20);
+        this.alpha = Math.max(1, config.getInt("dht.alpha", 3));
+        this.providerTtlMs = config.getLong("dht.provider.ttl.ms", 60 * 60 * 1000);
+        this.routingTable = new RoutingTable(peerId, k);
+        this.providers = new ConcurrentHashMap<>();
+        this.provided = ConcurrentHashMap.newKeySet();
+        this.lookupExecutor = ExecutorFactory.newBlockingExecutor("dht-lookup", alpha);
+        this.scheduler = Executors.newScheduledThreadPool(1, runnable -> {
+            Thread thread = new Thread(runnable, "dht-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.logger = LogUtil.getLogger(KademliaDht.class);
+
+        registerMessageHandlers();
+
+        // Directly known peers are contacts too
+        for (PeerInfo peer : peerDiscovery.getActivePeers()) {
+            routingTable.update(peer);
+        }
+        peerDiscovery.addMembershipListener(new PeerDiscovery.MembershipListener() {
+            @Override
+            public void peerJoined(PeerInfo peer) {
+                routingTable.update(peer);
+            }
+
+            @Override
+            public void peerLeft(PeerInfo peer) {
+                routingTable.remove(peer.getId());
+            }
+        });
+
+        // Providers are republished before their records expire
+        long republishMs = config.getLong("dht.republish.interval.ms", providerTtlMs / 2);
+        scheduler.scheduleAtFixedRate(this::republish, republishMs, republishMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers handlers for the DHT message types.
+     */
+    private void registerMessageHandlers() {
+        // FIND_NODE handler
+        networkManager.registerMessageHandler(MessageType.FIND_NODE.getValue(), message -> {
+            learnSender(message);
+            byte[] target = RoutingTable.keyId((String) message.getPayloadValue("target"));
+
+            Message response = createMessage(MessageType.NODES);
+            response.addPayload("nodes", toMaps(closestExcept(target, message.getFrom())));
+            return response;
+        });
+
+        // FIND_PROVIDERS handler
+        networkManager.registerMessageHandler(MessageType.FIND_PROVIDERS.getValue(), message -> {
+            learnSender(message);
+            String key = (String) message.getPayloadValue("key");
+
+            Message response = createMessage(MessageType.PROVIDERS);
+            response.addPayload("key", key);
+            response.addPayload("providers", toMaps(getLocalProviders(key)));
+            response.addPayload("nodes", toMaps(closestExcept(RoutingTable.keyId(key), message.getFrom())));
+            return response;
+        });
+
+        // ADD_PROVIDER handler
+        networkManager.registerMessageHandler(MessageType.ADD_PROVIDER.getValue(), message -> {
+            PeerInfo sender = learnSender(message);
+            String key = (String) message.getPayloadValue("key");
+            if (sender != null && key != null) {
+                storeProvider(key, sender);
+                logger.debug("Stored provider {} of {}", sender.getId(), key);
+            }
+            return null;  // No response needed
+        });
+    }
+
+    /**
+     * Fills the routing table by looking up our own ID, which makes the nodes close to us
+     * learn about us too. Called after joining the network.
+     */
+    public void bootstrap() {
+        List<PeerInfo> found = lookup(routingTable.getLocalId(), null, 0).nodes;
+        logger.info("DHT bootstrap found {} nodes, routing table has {} contacts", found.size(), routingTable.size());
+    }
+
+    /**
+     * Finds the nodes closest to a key.
+     *
+     * @param key The key, e.g. a file hash
+     * @return Up to {@code k} nodes, closest first
+     */
+    public List<PeerInfo> findNode(String key) {
+        return lookup(RoutingTable.keyId(key), null, 0).nodes;
+    }
+
+    /**
+     * Finds the peers that provide a key. The lookup stops once enough providers are known.
+     *
+     * @param key The key, e.g. a file hash
+     * @param max The number of providers wanted
+     * @return Up to {@code max} providers, never this node
+     */
+    public List<PeerInfo> findProviders(String key, int max) {
+        Map<String, PeerInfo> found = new LinkedHashMap<>();
+        for (PeerInfo provider : getLocalProviders(key)) {
+            found.put(provider.getId(), provider);
+        }
+        found.remove(peerId);
+        if (found.size() < max) {
+            found.putAll(lookup(RoutingTable.keyId(key), key, max - found.size()).providers);
+        }
+
+        List<PeerInfo> result = new ArrayList<>(found.values());
+        return result.size() > max ? new ArrayList<>(result.subList(0, max)) : result;
+    }
+
+    /**
+     * Announces this node as a provider of a key to the nodes closest to it, and keeps
+     * announcing it periodically. Runs in the background.
+     *
+     * @param key The key, e.g. the hash of a file this node holds
+     */
+    public void provide(String key) {
+        if (provided.add(key)) {
+            scheduler.execute(() -> announce(key));
+        }
+    }
+
+    /**
+     * Stops announcing a key. Existing records expire on their own.
+     *
+     * @param key The key
+     */
+    public void unprovide(String key) {
+        provided.remove(key);
+    }
+
+    private void announce(String key) {
+        List<PeerInfo> closest = lookup(RoutingTable.keyId(key), null, 0).nodes;
+        Message message = createMessage(MessageType.ADD_PROVIDER);
+        message.addPayload("key", key);
+        for (PeerInfo node : closest) {
+            networkManager.sendOneWay(node, message);
+        }
+        logger.debug("Announced {} to {} nodes", key, closest.size());
+    }
+
+    private void republish() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Map<String, ProviderRecord> records : providers.values()) {
+                records.values().removeIf(record -> record.expiresAt < now);
+            }
+            providers.values().removeIf(Map::isEmpty);
+
+            for (String key : provided) {
+                announce(key);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error republishing providers", e);
+        }
+    }
+
+    /**
+     * Walks towards a target ID: repeatedly asks the {@code alpha} closest nodes not asked yet
+     * for nodes closer to the target, until the {@code k} closest known nodes have all answered.
+     * With a key, also collects the providers the nodes return and stops once enough are known.
+     *
+     * @param target The target ID
+     * @param key The key to find providers of, or null to find nodes only
+     * @param wantedProviders The number of providers that ends the lookup early
+     * @return The closest nodes that answered and the providers found
+     */
+    private LookupResult lookup(byte[] target, String key, int wantedProviders) {
+        TreeSet<PeerInfo> candidates = new TreeSet<>(RoutingTable.byDistanceTo(target)
+                .thenComparing(PeerInfo::getId));
+        candidates.addAll(routingTable.closest(target, k));
+        Set<String> queried = new HashSet<>();
+        TreeSet<PeerInfo> answered = new TreeSet<>(candidates.comparator());
+        LookupResult result = new LookupResult();
+
+        while (true) {
+            List<PeerInfo> round = new ArrayList<>(alpha);
+            int rank = 0;
+            for (PeerInfo candidate : candidates) {
+                if (rank++ >= k || round.size() >= alpha) {
+                    break;
+                }
+                if (queried.add(candidate.getId())) {
+                    round.add(candidate);
+                }
+            }
+            if (round.isEmpty()) {
+                break;
+            }
+
+            List<CompletableFuture<Message>> responses = new ArrayList<>(round.size());
+            for (PeerInfo node : round) {
+                responses.add(CompletableFuture.supplyAsync(() -> query(node, target, key), lookupExecutor));
+            }
+            for (int i = 0; i < round.size(); i++) {
+                PeerInfo node = round.get(i);
+                Message response = responses.get(i).join();
+                if (response == null) {
+                    candidates.remove(node);
+                    continue;
+                }
+
+                answered.add(node);
+                routingTable.update(node);
+                for (PeerInfo closer : fromMaps(response.getPayloadValue("nodes"))) {
+                    if (!closer.getId().equals(peerId) && !queried.contains(closer.getId())) {
+                        candidates.add(closer);
+                    }
+                }
+                if (key != null) {
+                    for (PeerInfo provider : fromMaps(response.getPayloadValue("providers"))) {
+                        if (!provider.getId().equals(peerId)) {
+                            result.providers.putIfAbsent(provider.getId(), provider);
+                        }
+                    }
+                }
+            }
+            if (key != null && result.providers.size() >= wantedProviders) {
+                break;
+            }
+        }
+
+        for (PeerInfo node : answered) {
+            if (result.nodes.size() >= k) {
+                break;
+            }
+            result.nodes.add(node);
+        }
+        return result;
+    }
+
+    private Message query(PeerInfo node, byte[] target, String key) {
+        Message request;
+        if (key != null) {
+            request = createMessage(MessageType.FIND_PROVIDERS);
+            request.addPayload("key", key);
+        } else {
+            request = createMessage(MessageType.FIND_NODE);
+            request.addPayload("target", Hex.encodeHexString(target));
+        }
+
+        Message response = networkManager.sendMessage(node, request);
+        String expected = key != null ? MessageType.PROVIDERS.getValue() : MessageType.NODES.getValue();
+        if (response != null && !response.getType().equals(expected)) {
+            logger.warn("Unexpected response type for DHT lookup: {}", response.getType());
+            return null;
+        }
+        return response;
+    }
+
+    /**
+     * Creates a DHT message carrying our address.
+     */
+    private Message createMessage(MessageType type) {
+        Message message = networkManager.createMessage(type);
+        message.addPayload("host", networkManager.getHost());
+        message.addPayload("port", networkManager.getPort());
+        return message;
+    }
+
+    /**
+     * Adds the sender of a DHT message to the routing table.
+     *
+     * @return The sender, or null if the message lacks its address
+     */
+    private PeerInfo learnSender(Message message) {
+        String host = (String) message.getPayloadValue("host");
+        Object port = message.getPayloadValue("port");
+        if (message.getFrom() == null || message.getFrom().equals(peerId) || host == null || !(port instanceof Number)) {
+            return null;
+        }
+
+        PeerInfo known = peerDiscovery.getPeer(message.getFrom());
+        PeerInfo sender = known != null ? known : new PeerInfo(message.getFrom(), host, ((Number) port).intValue());
+        routingTable.update(sender);
+        return sender;
+    }
+
+    private List<PeerInfo> closestExcept(byte[] target, String excludedPeerId) {
+        List<PeerInfo> closest = routingTable.closest(target, k + 1);
+        closest.removeIf(peer -> peer.getId().equals(excludedPeerId));
+        return closest.size() > k ? closest.subList(0, k) : closest;
+    }
+
+    private void storeProvider(String key, PeerInfo provider) {
+        providers.computeIfAbsent(key, ignored -> new ConcurrentHashMap<>())
+                .put(provider.getId(), new ProviderRecord(provider, System.currentTimeMillis() + providerTtlMs));
+    }
+
+    private List<PeerInfo> getLocalProviders(String key) {
+        List<PeerInfo> result = new ArrayList<>();
+        if (provided.contains(key)) {
+            result.add(new PeerInfo(peerId, networkManager.getHost(), networkManager.getPort()));
+        }
+        Map<String, ProviderRecord> records = providers.get(key);
+        if (records != null) {
+            long now = System.currentTimeMillis();
+            for (ProviderRecord record : records.values()) {
+                if (record.expiresAt >= now) {
+                    result.add(record.provider);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<Map<String, Object>> toMaps(List<PeerInfo> peers) {
+        List<Map<String, Object>> maps = new ArrayList<>(peers.size());
+        for (PeerInfo peer : peers) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("id", peer.getId());
+            map.put("host", peer.getHost());
+            map.put("port", peer.getPort());
+            maps.add(map);
+        }
+        return maps;
+    }
+
+    private List<PeerInfo> fromMaps(Object payload) {
+        List<PeerInfo> peers = new ArrayList<>();
+        if (payload instanceof List) {
+            for (Map<String, Object> map : (List<Map<String, Object>>) payload) {
+                String id = (String) map.get("id");
+                PeerInfo known = peerDiscovery.getPeer(id);
+                peers.add(known != null ? known
+                        : new PeerInfo(id, (String) map.get("host"), ((Number) map.get("port")).intValue()));
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * Gets the number of contacts in the routing table.
+     *
+     * @return The contact count
+     */
+    public int getRoutingTableSize() {
+        return routingTable.size();
+    }
+
+    /**
+     * Stops the DHT's background work.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        lookupExecutor.shutdownNow();
+    }
+
+    private static class ProviderRecord {
+        final PeerInfo provider;
+        final long expiresAt;
+
+        ProviderRecord(PeerInfo provider, long expiresAt) {
+            this.provider = provider;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class LookupResult {
+        final List<PeerInfo> nodes = new ArrayList<>();
+        final Map<String, PeerInfo> providers = new LinkedHashMap<>();
+    }
+}
@@ -1,5 +1,7 @@
 package com.jcachenetdl.network;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
@@ -7,11 +9,20 @@ import java.util.Objects;
 
 /**
  * Represents a message exchanged between peers in the network.
+ * <p>
+ * A request may carry a timeout: how long its sender waits for the (first) response. The
+ * sender's deadline is kept as local time; what is left of it when the message is
+ * serialized is what goes on the wire, and the receiver counts that down from when the
+ * message arrived, so time spent queued at the sender counts and the peers' clocks needn't
+ * agree. Only the time in transit is not counted. A receiver drops a request whose deadline
+ * passed before it got to it, as nobody waits for the answer.
  */
 public class Message implements Serializable {
     private String type;
     private String from;
     private Map<String, Object> payload;
+    private long timeoutMs; // 0 for none; on the wire, what was left of it when sent
+    private transient long deadline; // Local time the timeout runs out, 0 for none
     
     public Message(String type, String from) {
         this.type = type;
@@ -51,6 +62,60 @@ public class Message implements Serializable {
         return this.payload.get(key);
     }
     
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+    
+    /**
+     * Sets how long the sender waits for a response, starting now.
+     * 
+     * @param timeoutMs The timeout, or 0 for none
+     */
+    public void setTimeout(long timeoutMs) {
+        this.timeoutMs = Math.max(0, timeoutMs);
+        markReceived();
+    }
+    
+    /**
+     * Starts the timeout on the receiving side. Called by the network manager when the
+     * message arrives.
+     */
+    public void markReceived() {
+        this.deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : 0;
+    }
+    
+    /**
+     * Writes the message with what is left of its timeout, rather than the timeout it
+     * started with.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("type", type);
+        fields.put("from", from);
+        fields.put("payload", payload);
+        // An expired request still says so, rather than going out without a timeout
+        fields.put("timeoutMs", deadline > 0 ? Math.max(1, getRemainingMs()) : timeoutMs);
+        out.writeFields();
+    }
+    
+    /**
+     * Gets the time left until the deadline.
+     * 
+     * @return The milliseconds left, at most 0 once expired, or {@code Long.MAX_VALUE} without a timeout
+     */
+    public long getRemainingMs() {
+        return deadline > 0 ? deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+    }
+    
+    /**
+     * Checks whether the deadline has passed, i.e. the sender no longer waits for a response.
+     * 
+     * @return True if expired
+     */
+    public boolean isExpired() {
+        return getRemainingMs() <= 0;
+    }
+    
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
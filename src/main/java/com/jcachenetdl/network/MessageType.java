@@ -8,12 +8,29 @@ public enum MessageType {
     JOIN_RESPONSE("JOIN_RESPONSE"),     // Response to a JOIN message
     FILE_REQUEST("FILE_REQUEST"),       // Peer asks for a file chunk
     FILE_RESPONSE("FILE_RESPONSE"),     // Serves the requested chunk
+    FILE_BATCH_REQUEST("FILE_BATCH_REQUEST"), // Peer asks for several chunks, answered by a FILE_RESPONSE each
+    FILE_BATCH_END("FILE_BATCH_END"),   // Ends the responses to a FILE_BATCH_REQUEST
     LEDGER_SYNC("LEDGER_SYNC"),         // Peer requests to sync ledger blocks
     LEDGER_SYNC_RESPONSE("LEDGER_SYNC_RESPONSE"), // Response to a LEDGER_SYNC message
     LEDGER_ENTRY("LEDGER_ENTRY"),       // Propagate a new ledger entry
     PEER_LIST("PEER_LIST"),             // Share list of known peers
     PING("PING"),                       // Check if a peer is alive
-    PONG("PONG");                       // Response to a PING message
+    PONG("PONG"),                       // Response to a PING message
+    BITFIELD_REQUEST("BITFIELD_REQUEST"), // Peer asks which chunks of a file we hold
+    BITFIELD("BITFIELD"),               // The chunks of a file a peer holds
+    HAVE("HAVE"),                       // Peer announces a chunk it has just cached
+    FILE_INFO_REQUEST("FILE_INFO_REQUEST"), // Peer asks for a file's manifest
+    FILE_INFO("FILE_INFO"),             // A file's manifest and the chunks of it a peer holds
+    CHUNK_PUSH("CHUNK_PUSH"),           // Hands a chunk to one of its home peers
+    CHUNK_PUSH_ACK("CHUNK_PUSH_ACK"),   // Response to a CHUNK_PUSH message
+    FIND_NODE("FIND_NODE"),             // DHT: asks for the contacts closest to an ID
+    NODES("NODES"),                     // DHT: response to a FIND_NODE message
+    FIND_PROVIDERS("FIND_PROVIDERS"),   // DHT: asks for the providers of a key
+    PROVIDERS("PROVIDERS"),             // DHT: response to a FIND_PROVIDERS message
+    ADD_PROVIDER("ADD_PROVIDER"),       // DHT: announces the sender as a provider of a key
+    DELTA_REQUEST("DELTA_REQUEST"),     // Peer asks for a file as a delta against the block signatures of a base
+    DELTA("DELTA"),                     // Segments of a delta, in file order
+    DELTA_END("DELTA_END");             // Ends the responses to a DELTA_REQUEST
     
     private final String value;
     
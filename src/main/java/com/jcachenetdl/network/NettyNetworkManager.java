@@ -1,12 +1,15 @@
 package com.jcachenetdl.network;
 
 import com.jcachenetdl.common.PeerInfo;
+import com.jcachenetdl.util.ExecutorFactory;
 import com.jcachenetdl.util.LogUtil;
 import com.jcachenetdl.util.SerializationUtil;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -37,10 +40,12 @@ public class NettyNetworkManager extends NetworkManager {
     private final int port;
     private final PeerDiscovery peerDiscovery;
     private final Map<String, MessageHandler> messageHandlers;
+    private final Map<String, StreamHandler> streamHandlers;
     private final Logger logger;
     
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    private ExecutorService streamExecutor; // Stream handlers block on writes, so they can't run on the event loop
     private Channel serverChannel;
     private final AtomicBoolean running;
     
@@ -82,6 +87,7 @@ public class NettyNetworkManager extends NetworkManager {
         this.port = port;
         this.peerDiscovery = peerDiscovery;
         this.messageHandlers = new ConcurrentHashMap<>();
+        this.streamHandlers = new ConcurrentHashMap<>();
         this.logger = LogUtil.getLogger(NettyNetworkManager.class);
         this.running = new AtomicBoolean(false);
     }
@@ -99,6 +105,7 @@ public class NettyNetworkManager extends NetworkManager {
         
         bossGroup = new NioEventLoopGroup(1);
         workerGroup = new NioEventLoopGroup();
+        streamExecutor = ExecutorFactory.newBlockingExecutor("stream", 0);
         
         ServerBootstrap bootstrap = new ServerBootstrap();
         bootstrap.group(bossGroup, workerGroup)
@@ -157,6 +164,10 @@ public class NettyNetworkManager extends NetworkManager {
             bossGroup.shutdownGracefully();
         }
         
+        if (streamExecutor != null) {
+            streamExecutor.shutdownNow();
+        }
+        
         logger.info("Netty network manager stopped");
     }
     
@@ -171,6 +182,17 @@ public class NettyNetworkManager extends NetworkManager {
         messageHandlers.put(messageType, handler);
     }
     
+    /**
+     * Registers a handler for requests that are answered by a stream of messages.
+     * 
+     * @param messageType The type of message to handle
+     * @param handler The handler to register
+     */
+    @Override
+    public void registerStreamHandler(String messageType, StreamHandler handler) {
+        streamHandlers.put(messageType, handler);
+    }
+    
     /**
      * Sends a message to a peer.
      * 
@@ -217,7 +239,7 @@ public class NettyNetworkManager extends NetworkManager {
                 ChannelFuture future = bootstrap.connect(peer.getHost(), peer.getPort()).sync();
                 
                 // Wait for the response or timeout
-                Message response = responseFuture.get(30, TimeUnit.SECONDS);
+                Message response = responseFuture.get(getResponseTimeoutMs(message), TimeUnit.MILLISECONDS);
                 
                 // Close the connection
                 future.channel().close().sync();
@@ -231,11 +253,158 @@ public class NettyNetworkManager extends NetworkManager {
             }
         } catch (Exception e) {
             logger.error("Error sending message to peer {}: {}", peer, e.getMessage());
-            peerDiscovery.markPeerInactive(peer.getId());
+            peerDiscovery.recordPeerFailure(peer);
             return null;
         }
     }
     
+    /**
+     * Sends a request that is answered by a stream of messages on the same connection.
+     * 
+     * @param peer The peer to send the request to
+     * @param message The request
+     * @param listener Receives each response message until it returns false
+     * @return True if the listener saw the whole stream, false if the connection failed first
+     */
+    @Override
+    public boolean sendStreamRequest(PeerInfo peer, Message message, FrameListener listener) {
+        if (!running.get()) {
+            logger.warn("Attempted to send message while network manager is stopped");
+            return false;
+        }
+        
+        message.setFrom(peerId);
+        
+        try {
+            // Frames are queued by the event loop and handed to the listener on this thread
+            final BlockingQueue<Message> frames = new LinkedBlockingQueue<>();
+            final Message closed = new Message("", null);
+            
+            EventLoopGroup group = new NioEventLoopGroup(1);
+            try {
+                Bootstrap bootstrap = new Bootstrap();
+                bootstrap.group(group)
+                        .channel(NioSocketChannel.class)
+                        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
+                        .handler(new ChannelInitializer<SocketChannel>() {
+                            @Override
+                            protected void initChannel(SocketChannel ch) {
+                                ch.pipeline().addLast(
+                                        // Timeout handlers
+                                        new ReadTimeoutHandler(30),
+                                        new WriteTimeoutHandler(30),
+                                        // Message decoder
+                                        new MessageDecoder(),
+                                        // Message encoder
+                                        new MessageEncoder(),
+                                        // Client handler queueing each frame
+                                        new SimpleChannelInboundHandler<Message>() {
+                                            @Override
+                                            public void channelActive(ChannelHandlerContext ctx) {
+                                                ctx.writeAndFlush(message);
+                                            }
+                                            
+                                            @Override
+                                            protected void channelRead0(ChannelHandlerContext ctx, Message frame) {
+                                                frames.add(frame);
+                                            }
+                                            
+                                            @Override
+                                            public void channelInactive(ChannelHandlerContext ctx) {
+                                                frames.add(closed);
+                                            }
+                                            
+                                            @Override
+                                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                                ctx.close();
+                                            }
+                                        }
+                                );
+                            }
+                        });
+                
+                ChannelFuture future = bootstrap.connect(peer.getHost(), peer.getPort()).sync();
+                try {
+                    long waitMs = getResponseTimeoutMs(message);
+                    while (true) {
+                        Message frame = frames.poll(waitMs, TimeUnit.MILLISECONDS);
+                        waitMs = DEFAULT_RESPONSE_TIMEOUT_MS; // The timeout covers the first frame
+                        if (frame == null || frame == closed) {
+                            throw new IOException(frame == null ? "Timed out waiting for response" : "Connection closed");
+                        }
+                        if (!listener.onFrame(frame)) {
+                            break;
+                        }
+                    }
+                } finally {
+                    future.channel().close().sync();
+                }
+                
+                peerDiscovery.markPeerActive(peer.getId());
+                return true;
+            } finally {
+                group.shutdownGracefully();
+            }
+        } catch (Exception e) {
+            logger.error("Error streaming {} from peer {}: {}", message.getType(), peer, e.getMessage());
+            peerDiscovery.recordPeerFailure(peer);
+            return false;
+        }
+    }
+    
+    /**
+     * Sends a message to a peer in the background without waiting for a response.
+     * 
+     * @param peer The peer to send the message to
+     * @param message The message to send
+     */
+    @Override
+    public void sendOneWay(PeerInfo peer, Message message) {
+        if (!running.get()) {
+            logger.warn("Attempted to send message while network manager is stopped");
+            return;
+        }
+        
+        message.setFrom(peerId);
+        
+        workerGroup.execute(() -> {
+            try {
+                EventLoopGroup group = new NioEventLoopGroup();
+                try {
+                    Bootstrap bootstrap = new Bootstrap();
+                    bootstrap.group(group)
+                            .channel(NioSocketChannel.class)
+                            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
+                            .handler(new ChannelInitializer<SocketChannel>() {
+                                @Override
+                                protected void initChannel(SocketChannel ch) {
+                                    ch.pipeline().addLast(
+                                            // Message encoder
+                                            new MessageEncoder(),
+                                            // Client handler for one-way messages (no response expected)
+                                            new ChannelInboundHandlerAdapter() {
+                                                @Override
+                                                public void channelActive(ChannelHandlerContext ctx) {
+                                                    ctx.writeAndFlush(message).addListener(ChannelFutureListener.CLOSE);
+                                                }
+                                            }
+                                    );
+                                }
+                            });
+                    
+                    // Connect and send
+                    bootstrap.connect(peer.getHost(), peer.getPort()).sync()
+                            .channel().closeFuture().sync();
+                } finally {
+                    group.shutdownGracefully();
+                }
+            } catch (Exception e) {
+                logger.error("Error sending {} to peer {}: {}", message.getType(), peer, e.getMessage());
+                peerDiscovery.recordPeerFailure(peer);
+            }
+        });
+    }
+    
     /**
      * Broadcasts a message to all active peers.
      * 
@@ -248,46 +417,10 @@ public class NettyNetworkManager extends NetworkManager {
             return;
         }
         
-        message.setFrom(peerId);
         List<PeerInfo> activePeers = peerDiscovery.getActivePeers();
         
         for (PeerInfo peer : activePeers) {
-            workerGroup.execute(() -> {
-                try {
-                    EventLoopGroup group = new NioEventLoopGroup();
-                    try {
-                        Bootstrap bootstrap = new Bootstrap();
-                        bootstrap.group(group)
-                                .channel(NioSocketChannel.class)
-                                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
-                                .handler(new ChannelInitializer<SocketChannel>() {
-                                    @Override
-                                    protected void initChannel(SocketChannel ch) {
-                                        ch.pipeline().addLast(
-                                                // Message encoder
-                                                new MessageEncoder(),
-                                                // Client handler for broadcast (no response expected)
-                                                new ChannelInboundHandlerAdapter() {
-                                                    @Override
-                                                    public void channelActive(ChannelHandlerContext ctx) {
-                                                        ctx.writeAndFlush(message).addListener(ChannelFutureListener.CLOSE);
-                                                    }
-                                                }
-                                        );
-                                    }
-                                });
-                        
-                        // Connect and send
-                        bootstrap.connect(peer.getHost(), peer.getPort()).sync()
-                                .channel().closeFuture().sync();
-                    } finally {
-                        group.shutdownGracefully();
-                    }
-                } catch (Exception e) {
-                    logger.error("Error broadcasting message to peer {}: {}", peer, e.getMessage());
-                    peerDiscovery.markPeerInactive(peer.getId());
-                }
-            });
+            sendOneWay(peer, message);
         }
         
         logger.debug("Broadcasted message type {} to {} peers", message.getType(), activePeers.size());
@@ -366,6 +499,21 @@ public class NettyNetworkManager extends NetworkManager {
                 peerDiscovery.markPeerActive(message.getFrom());
             }
             
+            message.markReceived();
+            
+            StreamHandler streamHandler = streamHandlers.get(message.getType());
+            if (streamHandler != null) {
+                streamExecutor.execute(() -> {
+                    if (!dropExpired(ctx, message)) {
+                        handleStream(ctx, message, streamHandler);
+                    }
+                });
+                return;
+            }
+            if (dropExpired(ctx, message)) {
+                return;
+            }
+            
             // Process the message
             MessageHandler handler = messageHandlers.get(message.getType());
             if (handler != null) {
@@ -383,6 +531,38 @@ public class NettyNetworkManager extends NetworkManager {
             }
         }
         
+        /**
+         * Drops a request whose sender no longer waits for the response, closing its connection.
+         * 
+         * @return True if the request was dropped
+         */
+        private boolean dropExpired(ChannelHandlerContext ctx, Message message) {
+            if (!message.isExpired()) {
+                return false;
+            }
+            logger.debug("Dropping {} from {}: {} ms past its deadline",
+                    message.getType(), message.getFrom(), -message.getRemainingMs());
+            ctx.close();
+            return true;
+        }
+        
+        /**
+         * Runs a stream handler, writing one frame at a time so a slow reader holds back the handler.
+         */
+        private void handleStream(ChannelHandlerContext ctx, Message message, StreamHandler handler) {
+            try {
+                handler.handleMessage(message, whileAwaited(message, frame -> {
+                    ChannelFuture written = ctx.writeAndFlush(frame).awaitUninterruptibly();
+                    if (!written.isSuccess()) {
+                        throw new IOException("Could not send " + frame.getType(), written.cause());
+                    }
+                }));
+            } catch (Exception e) {
+                logger.error("Error streaming response to message: {}", message, e);
+                ctx.close();
+            }
+        }
+        
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
             logger.error("Server exception", cause);
@@ -421,13 +601,20 @@ public class NettyNetworkManager extends NetworkManager {
     
     /**
      * Encoder to convert Message objects to bytes for network transmission.
+     * Serializes straight into the (pooled, direct) output buffer so large chunk
+     * payloads are never copied into one contiguous heap array.
      */
     private class MessageEncoder extends MessageToByteEncoder<Message> {
         @Override
         protected void encode(ChannelHandlerContext ctx, Message message, ByteBuf out) throws Exception {
-            byte[] data = SerializationUtil.serialize(message);
-            out.writeInt(data.length);
-            out.writeBytes(data);
+            int lengthIndex = out.writerIndex();
+            out.writeInt(0); // Length placeholder
+            
+            try (ByteBufOutputStream bbos = new ByteBufOutputStream(out)) {
+                SerializationUtil.serialize(message, bbos);
+            }
+            
+            out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
         }
     }
     
@@ -454,12 +641,11 @@ public class NettyNetworkManager extends NetworkManager {
                 return;
             }
             
-            // Read the data
-            byte[] data = new byte[length];
-            in.readBytes(data);
-            
-            // Deserialize the message
-            Message message = SerializationUtil.deserialize(data);
+            // Deserialize the message straight from the buffer, without a heap copy of the frame
+            Message message;
+            try (ByteBufInputStream bbis = new ByteBufInputStream(in.readRetainedSlice(length), true)) {
+                message = SerializationUtil.deserialize(bbis);
+            }
             
             // Add the message to the output list for next handler
             out.add(message);
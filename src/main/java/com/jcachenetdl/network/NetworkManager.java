@@ -1,6 +1,8 @@
 package com.jcachenetdl.network;
 
 import com.jcachenetdl.common.PeerInfo;
+import com.jcachenetdl.config.ConfigurationManager;
+import com.jcachenetdl.util.ExecutorFactory;
 import com.jcachenetdl.util.LogUtil;
 import com.jcachenetdl.util.SerializationUtil;
 import org.slf4j.Logger;
@@ -15,13 +17,15 @@ import java.util.concurrent.*;
  * Manages the network communication between peers.
  */
 public class NetworkManager {
+    protected static final long DEFAULT_RESPONSE_TIMEOUT_MS = 30000; // For messages without a timeout of their own
+    
     private final String peerId;
     private final String host;
     private final int port;
     private final PeerDiscovery peerDiscovery;
     private final ConcurrentMap<String, MessageHandler> messageHandlers;
+    private final ConcurrentMap<String, StreamHandler> streamHandlers;
     private final ExecutorService connectionExecutor;
-    private final ExecutorService messageExecutor;
     private ServerSocket serverSocket;
     private boolean running;
     private final Logger logger;
@@ -32,8 +36,10 @@ public class NetworkManager {
         this.port = port;
         this.peerDiscovery = peerDiscovery;
         this.messageHandlers = new ConcurrentHashMap<>();
-        this.connectionExecutor = Executors.newFixedThreadPool(10);
-        this.messageExecutor = Executors.newFixedThreadPool(20);
+        this.streamHandlers = new ConcurrentHashMap<>();
+        // One task per connection; with virtual threads the pool size doesn't apply
+        this.connectionExecutor = ExecutorFactory.newBlockingExecutor("connection",
+                ConfigurationManager.getInstance().getInt("network.max.connections", 100));
         this.logger = LogUtil.getLogger(NetworkManager.class);
     }
     
@@ -75,9 +81,8 @@ public class NetworkManager {
             logger.error("Error closing server socket", e);
         }
         
-        // Shutdown executors
+        // Shutdown executor
         connectionExecutor.shutdownNow();
-        messageExecutor.shutdownNow();
         
         logger.info("Network manager stopped");
     }
@@ -100,7 +105,8 @@ public class NetworkManager {
     }
     
     /**
-     * Handles an incoming connection.
+     * Handles an incoming connection. The message is processed on the connection's own
+     * thread, so the response is written before the socket is closed.
      * 
      * @param socket The socket of the incoming connection
      */
@@ -111,20 +117,36 @@ public class NetworkManager {
         ) {
             // Read the message
             Message message = (Message) in.readObject();
+            message.markReceived();
+            if (message.isExpired()) {
+                logger.debug("Dropping {} from {}: {} ms past its deadline",
+                        message.getType(), message.getFrom(), -message.getRemainingMs());
+                return;
+            }
             
-            // Process the message in a separate thread
-            messageExecutor.submit(() -> {
-                try {
-                    Message response = processMessage(message);
-                    if (response != null) {
-                        // Send response
-                        out.writeObject(response);
+            try {
+                StreamHandler streamHandler = streamHandlers.get(message.getType());
+                if (streamHandler != null) {
+                    logger.debug("Received stream request: {}", message);
+                    markSenderActive(message);
+                    streamHandler.handleMessage(message, whileAwaited(message, frame -> {
+                        out.writeObject(frame);
                         out.flush();
-                    }
-                } catch (Exception e) {
-                    logger.error("Error processing message: {}", message, e);
+                        // Forget written frames, so their chunk data can be garbage collected
+                        out.reset();
+                    }));
+                    return;
                 }
-            });
+                
+                Message response = processMessage(message);
+                if (response != null) {
+                    // Send response
+                    out.writeObject(response);
+                    out.flush();
+                }
+            } catch (Exception e) {
+                logger.error("Error processing message: {}", message, e);
+            }
         } catch (Exception e) {
             logger.error("Error handling connection from {}", socket.getInetAddress(), e);
         } finally {
@@ -144,11 +166,7 @@ public class NetworkManager {
      */
     private Message processMessage(Message message) {
         logger.debug("Received message: {}", message);
-        
-        // Update peer's last seen timestamp
-        if (message.getFrom() != null && !message.getFrom().equals(peerId)) {
-            peerDiscovery.markPeerActive(message.getFrom());
-        }
+        markSenderActive(message);
         
         // Find handler for the message type
         MessageHandler handler = messageHandlers.get(message.getType());
@@ -160,6 +178,27 @@ public class NetworkManager {
         }
     }
     
+    /**
+     * Updates the sender's last seen timestamp.
+     * 
+     * @param message The received message
+     */
+    private void markSenderActive(Message message) {
+        if (message.getFrom() != null && !message.getFrom().equals(peerId)) {
+            peerDiscovery.markPeerActive(message.getFrom());
+        }
+    }
+    
+    /**
+     * Registers a handler for requests that are answered by a stream of messages.
+     * 
+     * @param messageType The type of message to handle
+     * @param handler The handler to register
+     */
+    public void registerStreamHandler(String messageType, StreamHandler handler) {
+        streamHandlers.put(messageType, handler);
+    }
+    
     /**
      * Registers a message handler.
      * 
@@ -191,6 +230,7 @@ public class NetworkManager {
             
             // Check if we expect a response
             if (expectsResponse(message.getType())) {
+                socket.setSoTimeout(toSoTimeout(getResponseTimeoutMs(message)));
                 // Read response
                 return (Message) in.readObject();
             }
@@ -198,39 +238,125 @@ public class NetworkManager {
             return null;
         } catch (Exception e) {
             logger.error("Error sending message to peer {}: {}", peer, e.getMessage());
-            peerDiscovery.markPeerInactive(peer.getId());
+            peerDiscovery.recordPeerFailure(peer);
             return null;
         }
     }
     
+    /**
+     * Sends a request that is answered by a stream of messages on the same connection.
+     * 
+     * @param peer The peer to send the request to
+     * @param message The request
+     * @param listener Receives each response message until it returns false
+     * @return True if the listener saw the whole stream, false if the connection failed first
+     */
+    public boolean sendStreamRequest(PeerInfo peer, Message message, FrameListener listener) {
+        message.setFrom(peerId);
+        
+        try (
+            Socket socket = new Socket(peer.getHost(), peer.getPort());
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream())
+        ) {
+            out.writeObject(message);
+            out.flush();
+            
+            // The request's timeout covers the first frame, the default each frame after it
+            socket.setSoTimeout(toSoTimeout(getResponseTimeoutMs(message)));
+            if (!listener.onFrame((Message) in.readObject())) {
+                return true;
+            }
+            socket.setSoTimeout(toSoTimeout(DEFAULT_RESPONSE_TIMEOUT_MS));
+            while (listener.onFrame((Message) in.readObject())) {
+                // Keep reading until the listener has seen the end of the stream
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error("Error streaming {} from peer {}: {}", message.getType(), peer, e.getMessage());
+            peerDiscovery.recordPeerFailure(peer);
+            return false;
+        }
+    }
+    
+    /**
+     * Sends a message to a peer in the background without waiting for a response.
+     * 
+     * @param peer The peer to send the message to
+     * @param message The message to send
+     */
+    public void sendOneWay(PeerInfo peer, Message message) {
+        message.setFrom(peerId);
+        
+        connectionExecutor.submit(() -> {
+            try (
+                Socket socket = new Socket(peer.getHost(), peer.getPort());
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())
+            ) {
+                // Send message
+                out.writeObject(message);
+                out.flush();
+            } catch (Exception e) {
+                logger.error("Error sending {} to peer {}: {}", message.getType(), peer, e.getMessage());
+                peerDiscovery.recordPeerFailure(peer);
+            }
+        });
+    }
+    
     /**
      * Broadcasts a message to all active peers.
      * 
      * @param message The message to broadcast
      */
     public void broadcastMessage(Message message) {
-        message.setFrom(peerId);
         List<PeerInfo> activePeers = peerDiscovery.getActivePeers();
         
         for (PeerInfo peer : activePeers) {
-            connectionExecutor.submit(() -> {
-                try (
-                    Socket socket = new Socket(peer.getHost(), peer.getPort());
-                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())
-                ) {
-                    // Send message
-                    out.writeObject(message);
-                    out.flush();
-                } catch (Exception e) {
-                    logger.error("Error broadcasting message to peer {}: {}", peer, e.getMessage());
-                    peerDiscovery.markPeerInactive(peer.getId());
-                }
-            });
+            sendOneWay(peer, message);
         }
         
         logger.debug("Broadcasted message type {} to {} peers", message.getType(), activePeers.size());
     }
     
+    /**
+     * Gets how long to wait for the (first) response to a message: what is left of its own
+     * timeout, or the default if it has none.
+     * 
+     * @param message The message sent
+     * @return The time to wait in milliseconds
+     */
+    protected static long getResponseTimeoutMs(Message message) {
+        return message.getTimeoutMs() > 0 ? Math.max(1, message.getRemainingMs()) : DEFAULT_RESPONSE_TIMEOUT_MS;
+    }
+    
+    /**
+     * Wraps the responses to a streamed request so none is sent once the requester has
+     * stopped waiting: the first must go out before the request's deadline, and each later
+     * one within {@link #DEFAULT_RESPONSE_TIMEOUT_MS} of the one before, as the requester
+     * waits that long for each frame after the first.
+     * 
+     * @param request The streamed request
+     * @param responses The stream the frames are written to
+     * @return A stream that fails with an IOException once the requester has given up
+     */
+    protected static ResponseStream whileAwaited(Message request, ResponseStream responses) {
+        long[] lastSent = {0};
+        return frame -> {
+            boolean abandoned = lastSent[0] == 0
+                    ? request.isExpired()
+                    : System.currentTimeMillis() - lastSent[0] > DEFAULT_RESPONSE_TIMEOUT_MS;
+            if (abandoned) {
+                throw new IOException("Requester of " + request.getType() + " stopped waiting");
+            }
+            responses.send(frame);
+            lastSent[0] = System.currentTimeMillis();
+        };
+    }
+    
+    private static int toSoTimeout(long timeoutMs) {
+        return (int) Math.min(Integer.MAX_VALUE, timeoutMs);
+    }
+    
     /**
      * Checks if a message type expects a response.
      * 
@@ -241,7 +367,12 @@ public class NetworkManager {
         return messageType.equals(MessageType.JOIN.getValue()) ||
                messageType.equals(MessageType.FILE_REQUEST.getValue()) ||
                messageType.equals(MessageType.LEDGER_SYNC.getValue()) ||
-               messageType.equals(MessageType.PING.getValue());
+               messageType.equals(MessageType.PING.getValue()) ||
+               messageType.equals(MessageType.BITFIELD_REQUEST.getValue()) ||
+               messageType.equals(MessageType.FILE_INFO_REQUEST.getValue()) ||
+               messageType.equals(MessageType.CHUNK_PUSH.getValue()) ||
+               messageType.equals(MessageType.FIND_NODE.getValue()) ||
+               messageType.equals(MessageType.FIND_PROVIDERS.getValue());
     }
     
     /**
@@ -284,4 +415,44 @@ public class NetworkManager {
          */
         Message handleMessage(Message message);
     }
+    
+    /**
+     * Interface for handlers of requests answered by a stream of messages.
+     */
+    public interface StreamHandler {
+        /**
+         * Handles a request, sending any number of response messages.
+         * 
+         * @param message The request
+         * @param responses The stream to send responses to
+         * @throws IOException If a response can't be sent
+         */
+        void handleMessage(Message message, ResponseStream responses) throws IOException;
+    }
+    
+    /**
+     * The responses to a streamed request, sent in order on the request's connection.
+     */
+    public interface ResponseStream {
+        /**
+         * Sends a response message, blocking until it is written.
+         * 
+         * @param frame The message to send
+         * @throws IOException If the message can't be sent
+         */
+        void send(Message frame) throws IOException;
+    }
+    
+    /**
+     * Receives the responses to a streamed request.
+     */
+    public interface FrameListener {
+        /**
+         * Called for each response message.
+         * 
+         * @param frame The message
+         * @return True to keep reading, false once the stream is complete
+         */
+        boolean onFrame(Message frame);
+    }
 }
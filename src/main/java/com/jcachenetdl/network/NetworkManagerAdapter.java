@@ -102,6 +102,20 @@ public class NetworkManagerAdapter {
         }
     }
     
+    /**
+     * Registers a handler for requests that are answered by a stream of messages.
+     * 
+     * @param messageType The type of message to handle
+     * @param handler The handler to register
+     */
+    public void registerStreamHandler(String messageType, NetworkManager.StreamHandler handler) {
+        if (useNetty) {
+            nettyNetworkManager.registerStreamHandler(messageType, handler);
+        } else {
+            standardNetworkManager.registerStreamHandler(messageType, handler);
+        }
+    }
+    
     /**
      * Sends a message to a peer.
      * 
@@ -114,6 +128,33 @@ public class NetworkManagerAdapter {
                          standardNetworkManager.sendMessage(peer, message);
     }
     
+    /**
+     * Sends a request that is answered by a stream of messages on the same connection.
+     * 
+     * @param peer The peer to send the request to
+     * @param message The request
+     * @param listener Receives each response message until it returns false
+     * @return True if the listener saw the whole stream
+     */
+    public boolean sendStreamRequest(PeerInfo peer, Message message, NetworkManager.FrameListener listener) {
+        return useNetty ? nettyNetworkManager.sendStreamRequest(peer, message, listener) :
+                         standardNetworkManager.sendStreamRequest(peer, message, listener);
+    }
+    
+    /**
+     * Sends a message to a peer without waiting for a response.
+     * 
+     * @param peer The peer to send the message to
+     * @param message The message to send
+     */
+    public void sendOneWay(PeerInfo peer, Message message) {
+        if (useNetty) {
+            nettyNetworkManager.sendOneWay(peer, message);
+        } else {
+            standardNetworkManager.sendOneWay(peer, message);
+        }
+    }
+    
     /**
      * Broadcasts a message to all active peers.
      * 
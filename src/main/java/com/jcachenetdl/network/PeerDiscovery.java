@@ -1,6 +1,7 @@
 package com.jcachenetdl.network;
 
 import com.jcachenetdl.common.PeerInfo;
+import com.jcachenetdl.config.ConfigurationManager;
 import com.jcachenetdl.util.LogUtil;
 import org.slf4j.Logger;
 
@@ -15,6 +16,8 @@ public class PeerDiscovery {
     private final String peerId;
     private final Map<String, PeerInfo> peers;
     private final ScheduledExecutorService scheduler;
+    private final int maxPeerFailures;
+    private final List<MembershipListener> membershipListeners;
     private final Logger logger;
     
     // Time intervals in milliseconds
@@ -25,6 +28,8 @@ public class PeerDiscovery {
         this.peerId = peerId;
         this.peers = new ConcurrentHashMap<>();
         this.scheduler = Executors.newScheduledThreadPool(1);
+        this.maxPeerFailures = ConfigurationManager.getInstance().getInt("network.peer.max.failures", 3);
+        this.membershipListeners = new CopyOnWriteArrayList<>();
         this.logger = LogUtil.getLogger(PeerDiscovery.class);
         
         // Schedule regular cleanup of inactive peers
@@ -44,8 +49,8 @@ public class PeerDiscovery {
             return false;
         }
         
-        boolean isNewPeer = !peers.containsKey(peer.getId());
-        peers.put(peer.getId(), peer);
+        PeerInfo previous = peers.put(peer.getId(), peer);
+        boolean isNewPeer = previous == null;
         
         if (isNewPeer) {
             logger.info("Added new peer: {}", peer);
@@ -55,6 +60,9 @@ public class PeerDiscovery {
             peers.get(peer.getId()).updateLastSeen();
         }
         
+        if (peer.isActive() && (previous == null || !previous.isActive())) {
+            fireJoined(peer);
+        }
         return isNewPeer;
     }
     
@@ -78,6 +86,9 @@ public class PeerDiscovery {
         PeerInfo removedPeer = peers.remove(peerId);
         if (removedPeer != null) {
             logger.info("Removed peer: {}", removedPeer);
+            if (removedPeer.isActive()) {
+                fireLeft(removedPeer);
+            }
             return true;
         }
         return false;
@@ -103,6 +114,27 @@ public class PeerDiscovery {
         return new ArrayList<>(peers.values());
     }
     
+    /**
+     * Gets the active peers ordered best source first by their performance score.
+     * Peers without statistics come first so they get measured, and with probability
+     * {@code explorationRate} a random peer is moved to the front, so a peer that was
+     * slow once gets another chance to show it has recovered.
+     * 
+     * @param explorationRate The probability of moving a random peer to the front
+     * @return The ordered list of active peers
+     */
+    public List<PeerInfo> getActivePeersByScore(double explorationRate) {
+        List<PeerInfo> activePeers = getActivePeers();
+        activePeers.sort(Comparator.comparing((PeerInfo p) -> p.hasStatistics())
+                .thenComparing(Comparator.comparingDouble(PeerInfo::getScore).reversed()));
+        
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (activePeers.size() > 1 && random.nextDouble() < explorationRate) {
+            activePeers.add(0, activePeers.remove(random.nextInt(1, activePeers.size())));
+        }
+        return activePeers;
+    }
+    
     /**
      * Marks a peer as active and updates its last seen timestamp.
      * 
@@ -111,8 +143,29 @@ public class PeerDiscovery {
     public void markPeerActive(String peerId) {
         PeerInfo peer = peers.get(peerId);
         if (peer != null) {
+            boolean wasActive = peer.isActive();
             peer.setActive(true);
             peer.updateLastSeen();
+            peer.clearFailures();
+            if (!wasActive) {
+                fireJoined(peer);
+            }
+        }
+    }
+    
+    /**
+     * Records a failed request to a peer. The peer is marked inactive only after
+     * {@code network.peer.max.failures} consecutive failures, so one timeout doesn't
+     * remove an otherwise healthy peer.
+     * 
+     * @param peer The peer
+     */
+    public void recordPeerFailure(PeerInfo peer) {
+        PeerInfo known = peers.getOrDefault(peer.getId(), peer);
+        int failures = known.recordFailure();
+        if (failures >= maxPeerFailures && known.isActive()) {
+            logger.warn("Peer {} failed {} consecutive requests", known.getId(), failures);
+            markPeerInactive(known.getId());
         }
     }
     
@@ -124,8 +177,33 @@ public class PeerDiscovery {
     public void markPeerInactive(String peerId) {
         PeerInfo peer = peers.get(peerId);
         if (peer != null) {
+            boolean wasActive = peer.isActive();
             peer.setActive(false);
             logger.info("Marked peer as inactive: {}", peer);
+            if (wasActive) {
+                fireLeft(peer);
+            }
+        }
+    }
+    
+    /**
+     * Registers a listener for peers becoming active or going away.
+     * 
+     * @param listener The listener
+     */
+    public void addMembershipListener(MembershipListener listener) {
+        membershipListeners.add(listener);
+    }
+    
+    private void fireJoined(PeerInfo peer) {
+        for (MembershipListener listener : membershipListeners) {
+            listener.peerJoined(peer);
+        }
+    }
+    
+    private void fireLeft(PeerInfo peer) {
+        for (MembershipListener listener : membershipListeners) {
+            listener.peerLeft(peer);
         }
     }
     
@@ -169,4 +247,24 @@ public class PeerDiscovery {
         scheduler.shutdownNow();
         logger.info("Peer discovery service shutdown");
     }
+    
+    /**
+     * Listens for changes to the set of active peers. Called on the thread that noticed the
+     * change, so listeners should hand any slow work off.
+     */
+    public interface MembershipListener {
+        /**
+         * Called when a peer is added or becomes active again.
+         * 
+         * @param peer The peer
+         */
+        void peerJoined(PeerInfo peer);
+        
+        /**
+         * Called when an active peer is removed or marked inactive.
+         * 
+         * @param peer The peer
+         */
+        void peerLeft(PeerInfo peer);
+    }
 }
@@ -1,31 +1,57 @@
 package com.jcachenetdl.network;
 
+import com.jcachenetdl.common.BlockSignatures;
 import com.jcachenetdl.common.CacheItem;
+import com.jcachenetdl.common.DeltaSegment;
+import com.jcachenetdl.common.FileManifest;
 import com.jcachenetdl.common.LedgerEntry;
+import com.jcachenetdl.common.PagedChunk;
 import com.jcachenetdl.common.PeerInfo;
+import com.jcachenetdl.config.ConfigurationManager;
 import com.jcachenetdl.ledger.DistributedLedger;
 import com.jcachenetdl.node.CacheEngine;
+import com.jcachenetdl.util.DeltaCodec;
+import com.jcachenetdl.util.ExecutorFactory;
 import com.jcachenetdl.util.LogUtil;
+import com.jcachenetdl.util.SingleFlight;
 import org.slf4j.Logger;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handles interactions with peers in the network.
  */
-public class PeerHandler {
+public class PeerHandler implements ChunkSource {
+    private static final long INTEREST_TTL_MS = 10 * 60 * 1000; // How long a peer is sent HAVEs after asking for a file
+    private static final int DELTA_FRAME_SEGMENTS = 1024; // Most segments per DELTA frame
+    private static final int MAX_PENDING_PUSHES = 64; // Pushed chunks held while their manifest is looked up
+    
     private final String peerId;
     private final PeerDiscovery peerDiscovery;
     private final NetworkManager networkManager;
     private final DistributedLedger ledger;
     private final CacheEngine cacheEngine;
     private final ExecutorService executor;
+    private final KademliaDht dht;
+    private final Map<String, Map<String, Long>> interestedPeers; // File hash -> peer ID -> last request time
+    private final Map<String, List<HaveListener>> haveListeners; // File hash -> listeners
+    private final double deltaMaxLiteralRatio;
+    private final long requestTimeoutMs;
+    private final int batchMaxChunks;
+    private final SingleFlight<String, FileManifest> manifestLookups;
+    private final AtomicInteger pendingPushes;
+    private volatile PlacementCheck placementCheck; // Null until set: pushes are refused
     private final Logger logger;
     
     public PeerHandler(String peerId, PeerDiscovery peerDiscovery, NetworkManager networkManager, 
@@ -35,11 +61,23 @@ public class PeerHandler {
         this.networkManager = networkManager;
         this.ledger = ledger;
         this.cacheEngine = cacheEngine;
-        this.executor = Executors.newFixedThreadPool(10);
+        this.executor = ExecutorFactory.newBlockingExecutor("peer-handler",
+                ConfigurationManager.getInstance().getInt("performance.thread.pool.size", 10));
+        this.interestedPeers = new ConcurrentHashMap<>();
+        this.haveListeners = new ConcurrentHashMap<>();
+        this.deltaMaxLiteralRatio = ConfigurationManager.getInstance().getDouble("delta.max.literal.ratio", 0.5);
+        this.requestTimeoutMs = ConfigurationManager.getInstance().getLong("fetch.request.timeout.ms", 30000);
+        this.batchMaxChunks = Math.max(1, ConfigurationManager.getInstance().getInt("fetch.batch.max.chunks", 8));
+        this.manifestLookups = new SingleFlight<>();
+        this.pendingPushes = new AtomicInteger();
+        this.dht = new KademliaDht(peerId, networkManager, peerDiscovery);
         this.logger = LogUtil.getLogger(PeerHandler.class);
         
         // Register message handlers
         registerMessageHandlers();
+        
+        // Tell peers fetching a file about each chunk of it we newly cache
+        cacheEngine.addChunkListener(this::announceChunk);
     }
     
     /**
@@ -89,30 +127,133 @@ public class PeerHandler {
             return null;  // No response needed
         });
         
-        // FILE_REQUEST handler
+        // FILE_REQUEST handler: the whole chunk, or a piece of it if an offset is given
         networkManager.registerMessageHandler(MessageType.FILE_REQUEST.getValue(), message -> {
             String fileHash = (String) message.getPayloadValue("fileHash");
             int chunkId = ((Number) message.getPayloadValue("chunkId")).intValue();
+            recordInterest(message.getFrom(), fileHash);
+            
+            Number offset = (Number) message.getPayloadValue("offset");
+            if (offset != null) {
+                int length = ((Number) message.getPayloadValue("length")).intValue();
+                return createPieceResponse(fileHash, chunkId, offset.intValue(), length);
+            }
+            return createChunkResponse(fileHash, chunkId);
+        });
+        
+        // FILE_BATCH_REQUEST handler: one FILE_RESPONSE per chunk, then FILE_BATCH_END.
+        // At most batchMaxChunks chunks are answered, and only IDs the file can have
+        networkManager.registerStreamHandler(MessageType.FILE_BATCH_REQUEST.getValue(), (message, responses) -> {
+            String fileHash = (String) message.getPayloadValue("fileHash");
+            recordInterest(message.getFrom(), fileHash);
+            FileManifest manifest = cacheEngine.getManifest(fileHash);
+            int fragmentCount = manifest != null ? manifest.getFragmentCount() : Integer.MAX_VALUE;
+            
+            int answered = 0;
+            int served = 0;
+            int[] chunkIds = (int[]) message.getPayloadValue("chunkIds");
+            if (chunkIds != null) {
+                for (int i = 0; i < chunkIds.length && answered < batchMaxChunks; i++) {
+                    if (chunkIds[i] < 0 || chunkIds[i] >= fragmentCount) {
+                        continue;
+                    }
+                    served += sendChunkResponse(responses, fileHash, chunkIds[i]);
+                    answered++;
+                }
+            } else {
+                int fromChunk = Math.max(0, ((Number) message.getPayloadValue("fromChunk")).intValue());
+                long toChunk = Math.min(((Number) message.getPayloadValue("toChunk")).longValue(),
+                        Math.min(fragmentCount, (long) fromChunk + batchMaxChunks));
+                for (int chunkId = fromChunk; chunkId < toChunk; chunkId++) {
+                    served += sendChunkResponse(responses, fileHash, chunkId);
+                    answered++;
+                }
+            }
+            
+            Message end = networkManager.createMessage(MessageType.FILE_BATCH_END);
+            end.addPayload("fileHash", fileHash);
+            end.addPayload("served", served);
+            responses.send(end);
+            logger.debug("Served {} of {} chunks of {} in one batch", served, answered, fileHash);
+        });
+        
+        // DELTA_REQUEST handler: DELTA frames with the file's segments against the requester's base, then DELTA_END
+        networkManager.registerStreamHandler(MessageType.DELTA_REQUEST.getValue(), this::streamDelta);
+        
+        // BITFIELD_REQUEST handler
+        networkManager.registerMessageHandler(MessageType.BITFIELD_REQUEST.getValue(), message -> {
+            String fileHash = (String) message.getPayloadValue("fileHash");
+            recordInterest(message.getFrom(), fileHash);
+            
+            FileManifest manifest = cacheEngine.getManifest(fileHash);
+            BitSet chunks = cacheEngine.getCachedChunks(fileHash);
+            
+            Message response = networkManager.createMessage(MessageType.BITFIELD);
+            response.addPayload("fileHash", fileHash);
+            response.addPayload("totalChunks", manifest != null ? manifest.getTotalChunks() : 0);
+            response.addPayload("bitfield", chunks.toByteArray());
+            logger.debug("Sending bitfield of {}: {} chunks", fileHash, chunks.cardinality());
+            
+            return response;
+        });
+        
+        // FILE_INFO_REQUEST handler
+        networkManager.registerMessageHandler(MessageType.FILE_INFO_REQUEST.getValue(), message -> {
+            String fileHash = (String) message.getPayloadValue("fileHash");
+            recordInterest(message.getFrom(), fileHash);
+            
+            FileManifest manifest = cacheEngine.getManifest(fileHash);
+            Message response = networkManager.createMessage(MessageType.FILE_INFO);
+            response.addPayload("fileHash", fileHash);
+            response.addPayload("found", manifest != null);
+            if (manifest != null) {
+                response.addPayload("manifest", manifest);
+                response.addPayload("bitfield", cacheEngine.getCachedChunks(fileHash).toByteArray());
+            }
+            
+            return response;
+        });
+        
+        // CHUNK_PUSH handler: another peer hands us a chunk we are a home peer of
+        networkManager.registerMessageHandler(MessageType.CHUNK_PUSH.getValue(), message -> {
+            String fileHash = (String) message.getPayloadValue("fileHash");
+            int chunkId = ((Number) message.getPayloadValue("chunkId")).intValue();
             
-            Message response = networkManager.createMessage(MessageType.FILE_RESPONSE);
+            Message response = networkManager.createMessage(MessageType.CHUNK_PUSH_ACK);
             response.addPayload("fileHash", fileHash);
             response.addPayload("chunkId", chunkId);
+            if (cacheEngine.hasCacheItem(fileHash, chunkId)) {
+                response.addPayload("stored", true);
+                return response;
+            }
             
-            CacheItem item = cacheEngine.getCacheItem(fileHash, chunkId);
-            if (item != null) {
-                response.addPayload("success", true);
-                response.addPayload("data", item.getData());
-                response.addPayload("totalChunks", item.getTotalChunks());
-                logger.debug("Serving file chunk: {}, {}", fileHash, chunkId);
+            PagedChunk data = toPagedChunk(message.getPayloadValue("data"));
+            FileManifest manifest = cacheEngine.getManifest(fileHash);
+            if (isVerifiable(manifest)) {
+                response.addPayload("stored", storePushedChunk(message.getFrom(), manifest, chunkId, data));
             } else {
-                response.addPayload("success", false);
-                response.addPayload("error", "Chunk not found");
-                logger.debug("Requested chunk not found: {}, {}", fileHash, chunkId);
+                // Look the manifest up first; the pusher is told the chunk is on its way
+                response.addPayload("stored", false);
+                response.addPayload("pending", storeAfterManifestLookup(message.getFrom(), fileHash, chunkId, data));
             }
-            
             return response;
         });
         
+        // HAVE handler
+        networkManager.registerMessageHandler(MessageType.HAVE.getValue(), message -> {
+            String fileHash = (String) message.getPayloadValue("fileHash");
+            int chunkId = ((Number) message.getPayloadValue("chunkId")).intValue();
+            
+            List<HaveListener> listeners = haveListeners.get(fileHash);
+            if (listeners != null) {
+                for (HaveListener listener : listeners) {
+                    listener.peerHas(message.getFrom(), chunkId);
+                }
+            }
+            
+            return null;  // No response needed
+        });
+        
         // LEDGER_SYNC handler
         networkManager.registerMessageHandler(MessageType.LEDGER_SYNC.getValue(), message -> {
             String lastBlockHash = (String) message.getPayloadValue("lastBlockHash");
@@ -256,6 +397,7 @@ public class PeerHandler {
                     
                     // The bootstrap peer should also send us a peer list and sync the ledger
                     logger.info("Successfully joined the network through peer: {}", bootstrapPeer);
+                    executor.submit(dht::bootstrap);
                     return true;
                 }
             }
@@ -268,6 +410,19 @@ public class PeerHandler {
         }
     }
     
+    /**
+     * Creates a request for file data. It carries a deadline, so the peer drops it if it
+     * can't get to it before we stop waiting for the answer.
+     * 
+     * @param type The message type
+     * @return The request
+     */
+    private Message createFetchRequest(MessageType type) {
+        Message request = networkManager.createMessage(type);
+        request.setTimeout(requestTimeoutMs);
+        return request;
+    }
+    
     /**
      * Requests a file chunk from a peer.
      * 
@@ -276,33 +431,591 @@ public class PeerHandler {
      * @param chunkId The chunk ID
      * @return The cache item, or null if the request failed
      */
+    @Override
     public CacheItem requestFileChunk(PeerInfo peer, String fileHash, int chunkId) {
-        Message request = networkManager.createMessage(MessageType.FILE_REQUEST);
+        Message request = createFetchRequest(MessageType.FILE_REQUEST);
         request.addPayload("fileHash", fileHash);
         request.addPayload("chunkId", chunkId);
         
+        long start = System.currentTimeMillis();
         Message response = networkManager.sendMessage(peer, request);
+        long rtt = System.currentTimeMillis() - start;
         
         if (response != null && response.getType().equals(MessageType.FILE_RESPONSE.getValue())) {
             boolean success = (Boolean) response.getPayloadValue("success");
             
             if (success) {
-                byte[] data = (byte[]) response.getPayloadValue("data");
+                PagedChunk data = toPagedChunk(response.getPayloadValue("data"));
                 int totalChunks = ((Number) response.getPayloadValue("totalChunks")).intValue();
                 
+                peer.recordSuccess(rtt, data.length());
                 return new CacheItem(fileHash, chunkId, data, response.getFrom(), totalChunks);
             } else {
+                // A miss says nothing about the peer's speed or health
                 String error = (String) response.getPayloadValue("error");
                 logger.error("File chunk request failed: {}", error);
             }
+        } else if (response != null) {
+            logger.error("Unexpected response type for file chunk request: {}", response.getType());
+            peerDiscovery.recordPeerFailure(peer);
         } else {
+            // Transport failures are recorded by the network manager
             logger.error("No valid response received for file chunk request");
-            peerDiscovery.markPeerInactive(peer.getId());
         }
         
         return null;
     }
     
+    /**
+     * Creates the FILE_RESPONSE for a chunk: its data if cached, otherwise a miss.
+     * 
+     * @param fileHash The hash of the file
+     * @param chunkId The chunk ID
+     * @return The response
+     */
+    private Message createChunkResponse(String fileHash, int chunkId) {
+        Message response = networkManager.createMessage(MessageType.FILE_RESPONSE);
+        response.addPayload("fileHash", fileHash);
+        response.addPayload("chunkId", chunkId);
+        
+        CacheItem item = cacheEngine.getCacheItem(fileHash, chunkId);
+        if (item != null) {
+            response.addPayload("success", true);
+            response.addPayload("data", item.getChunk());
+            response.addPayload("totalChunks", item.getTotalChunks());
+            logger.debug("Serving file chunk: {}, {}", fileHash, chunkId);
+        } else {
+            response.addPayload("success", false);
+            response.addPayload("error", "Chunk not found");
+            logger.debug("Requested chunk not found: {}, {}", fileHash, chunkId);
+        }
+        
+        return response;
+    }
+    
+    /**
+     * Sends the FILE_RESPONSE for one chunk of a batch.
+     * 
+     * @return 1 if the chunk was served, 0 if not found
+     */
+    private int sendChunkResponse(NetworkManager.ResponseStream responses, String fileHash, int chunkId)
+            throws IOException {
+        Message response = createChunkResponse(fileHash, chunkId);
+        responses.send(response);
+        return Boolean.TRUE.equals(response.getPayloadValue("success")) ? 1 : 0;
+    }
+    
+    /**
+     * Creates the FILE_RESPONSE for a piece of a chunk: the piece's data and the chunk's
+     * length if the chunk is cached, otherwise a miss.
+     * 
+     * @param fileHash The hash of the file
+     * @param chunkId The chunk ID
+     * @param offset The offset of the piece in the chunk
+     * @param length The length of the piece; it is cut short at the end of the chunk
+     * @return The response
+     */
+    private Message createPieceResponse(String fileHash, int chunkId, int offset, int length) {
+        Message response = networkManager.createMessage(MessageType.FILE_RESPONSE);
+        response.addPayload("fileHash", fileHash);
+        response.addPayload("chunkId", chunkId);
+        
+        CacheItem item = cacheEngine.getCacheItem(fileHash, chunkId);
+        int chunkLength = item != null ? item.getChunk().length() : 0;
+        if (item != null && offset >= 0 && offset < chunkLength && length > 0) {
+            response.addPayload("success", true);
+            response.addPayload("offset", offset);
+            response.addPayload("data", item.getChunk().slice(offset, Math.min(length, chunkLength - offset)));
+            response.addPayload("chunkLength", chunkLength);
+            response.addPayload("totalChunks", item.getTotalChunks());
+            logger.debug("Serving piece of file chunk: {}, {} at {}", fileHash, chunkId, offset);
+        } else {
+            response.addPayload("success", false);
+            response.addPayload("error", item != null ? "Invalid piece" : "Chunk not found");
+            logger.debug("Requested piece not available: {}, {} at {}", fileHash, chunkId, offset);
+        }
+        
+        return response;
+    }
+    
+    /**
+     * Requests a piece of a file chunk from a peer, so the pieces of one chunk can come from
+     * several peers at once. A peer that predates piece requests sends the whole chunk, from
+     * which the piece is cut.
+     * 
+     * @param peer The peer to request from
+     * @param fileHash The hash of the file
+     * @param chunkId The chunk ID
+     * @param offset The offset of the piece in the chunk
+     * @param length The length of the piece
+     * @return The piece, or null if the request failed
+     */
+    @Override
+    public ChunkPiece requestChunkPiece(PeerInfo peer, String fileHash, int chunkId, int offset, int length) {
+        Message request = createFetchRequest(MessageType.FILE_REQUEST);
+        request.addPayload("fileHash", fileHash);
+        request.addPayload("chunkId", chunkId);
+        request.addPayload("offset", offset);
+        request.addPayload("length", length);
+        
+        long start = System.currentTimeMillis();
+        Message response = networkManager.sendMessage(peer, request);
+        long rtt = System.currentTimeMillis() - start;
+        
+        if (response != null && response.getType().equals(MessageType.FILE_RESPONSE.getValue())) {
+            if (!Boolean.TRUE.equals(response.getPayloadValue("success"))) {
+                // A miss says nothing about the peer's speed or health
+                logger.debug("Chunk piece request failed: {}", response.getPayloadValue("error"));
+                return null;
+            }
+            PagedChunk data = toPagedChunk(response.getPayloadValue("data"));
+            int totalChunks = ((Number) response.getPayloadValue("totalChunks")).intValue();
+            peer.recordSuccess(rtt, data.length());
+            
+            if (response.getPayloadValue("offset") == null) {
+                // The whole chunk
+                if (offset >= data.length()) {
+                    return null;
+                }
+                return new ChunkPiece(offset, data.slice(offset, Math.min(length, data.length() - offset)),
+                        data.length(), totalChunks);
+            }
+            int chunkLength = ((Number) response.getPayloadValue("chunkLength")).intValue();
+            return new ChunkPiece(offset, data, chunkLength, totalChunks);
+        } else if (response != null) {
+            logger.error("Unexpected response type for chunk piece request: {}", response.getType());
+            peerDiscovery.recordPeerFailure(peer);
+        }
+        // Transport failures are recorded by the network manager
+        return null;
+    }
+    
+    /**
+     * Requests several chunks of a file from a peer over one connection. Each chunk is
+     * passed to the consumer as soon as it arrives.
+     * 
+     * @param peer The peer to request from
+     * @param fileHash The hash of the file
+     * @param chunkIds The chunk IDs
+     * @param consumer Receives each chunk, or null for a chunk the peer doesn't have; it may
+     *                 stop the transfer, e.g. because the download was cancelled
+     * @return True if the peer ended the batch, false if the transfer broke off or was stopped.
+     *         A peer answers at most its {@code fetch.batch.max.chunks} chunks of a batch, so
+     *         the chunks it ended the batch without answering are worth requesting again
+     */
+    @Override
+    public boolean requestFileChunks(PeerInfo peer, String fileHash, int[] chunkIds, ChunkConsumer consumer) {
+        Message request = createFetchRequest(MessageType.FILE_BATCH_REQUEST);
+        request.addPayload("fileHash", fileHash);
+        request.addPayload("chunkIds", chunkIds);
+        
+        long start = System.currentTimeMillis();
+        long[] firstResponseMs = {-1};
+        long[] bytes = {0};
+        boolean[] stopped = {false};
+        
+        boolean complete = networkManager.sendStreamRequest(peer, request, frame -> {
+            if (frame.getType().equals(MessageType.FILE_BATCH_END.getValue())) {
+                return false;
+            }
+            if (!frame.getType().equals(MessageType.FILE_RESPONSE.getValue())) {
+                logger.error("Unexpected response type in chunk batch: {}", frame.getType());
+                return false;
+            }
+            
+            if (firstResponseMs[0] < 0) {
+                firstResponseMs[0] = System.currentTimeMillis() - start;
+            }
+            int chunkId = ((Number) frame.getPayloadValue("chunkId")).intValue();
+            CacheItem item = null;
+            if (Boolean.TRUE.equals(frame.getPayloadValue("success"))) {
+                PagedChunk data = toPagedChunk(frame.getPayloadValue("data"));
+                int totalChunks = ((Number) frame.getPayloadValue("totalChunks")).intValue();
+                item = new CacheItem(fileHash, chunkId, data, frame.getFrom(), totalChunks);
+                bytes[0] += data.length();
+            }
+            stopped[0] = !consumer.accept(chunkId, item);
+            return !stopped[0];
+        });
+        
+        if (bytes[0] > 0) {
+            peer.recordSuccess(firstResponseMs[0], bytes[0], System.currentTimeMillis() - start);
+        }
+        return complete && !stopped[0];
+    }
+    
+    /**
+     * Answers a DELTA_REQUEST: encodes the requested file against the requester's base and
+     * streams the segments, a frame at a time. Gives up once the literal bytes exceed the
+     * configured share of the file, as fetching the chunks from every peer is faster then.
+     */
+    private void streamDelta(Message message, NetworkManager.ResponseStream responses) throws IOException {
+        String fileHash = (String) message.getPayloadValue("fileHash");
+        BlockSignatures base = (BlockSignatures) message.getPayloadValue("signatures");
+        recordInterest(message.getFrom(), fileHash);
+        
+        Message end = networkManager.createMessage(MessageType.DELTA_END);
+        end.addPayload("fileHash", fileHash);
+        InputStream in = base != null ? cacheEngine.openFile(fileHash) : null;
+        if (in == null) {
+            end.addPayload("complete", false);
+            end.addPayload("error", "File not cached");
+            responses.send(end);
+            return;
+        }
+        
+        FileManifest manifest = cacheEngine.getManifest(fileHash);
+        long maxLiteralBytes = manifest != null && manifest.getFileSize() >= 0
+                ? (long) (deltaMaxLiteralRatio * manifest.getFileSize()) : Long.MAX_VALUE;
+        List<DeltaSegment> pending = new ArrayList<>();
+        long[] pendingBytes = {0};
+        long[] literalBytes = {0};
+        
+        boolean complete;
+        try {
+            complete = DeltaCodec.encode(in, base, segment -> {
+                if (!segment.isCopy()) {
+                    literalBytes[0] += segment.getLength();
+                    pendingBytes[0] += segment.getLength();
+                    if (literalBytes[0] > maxLiteralBytes) {
+                        return false;
+                    }
+                }
+                pending.add(segment);
+                if (pendingBytes[0] >= CacheEngine.MAX_CHUNK_SIZE || pending.size() >= DELTA_FRAME_SEGMENTS) {
+                    responses.send(createDeltaFrame(fileHash, pending));
+                    pending.clear();
+                    pendingBytes[0] = 0;
+                }
+                return true;
+            });
+        } finally {
+            in.close();
+        }
+        
+        if (complete && !pending.isEmpty()) {
+            responses.send(createDeltaFrame(fileHash, pending));
+        }
+        end.addPayload("complete", complete);
+        if (!complete) {
+            end.addPayload("error", "Delta too large");
+        }
+        responses.send(end);
+        logger.debug("Sent {} of {} against {}: {} literal bytes", complete ? "delta" : "partial delta",
+                fileHash, base.getFileHash(), literalBytes[0]);
+    }
+    
+    private Message createDeltaFrame(String fileHash, List<DeltaSegment> segments) {
+        Message frame = networkManager.createMessage(MessageType.DELTA);
+        frame.addPayload("fileHash", fileHash);
+        frame.addPayload("segments", new ArrayList<>(segments));
+        return frame;
+    }
+    
+    /**
+     * Asks a peer for a file as a delta against a base file we hold. Each segment is passed
+     * to the consumer as soon as it arrives, in file order.
+     * 
+     * @param peer The peer to ask
+     * @param fileHash The hash of the file
+     * @param base The signatures of the base file's blocks
+     * @param consumer Receives the segments; if it fails, the transfer is abandoned
+     * @return True if the peer sent the whole delta, false if it doesn't have the file, found
+     *         the delta too large, or the transfer broke off
+     */
+    public boolean requestDelta(PeerInfo peer, String fileHash, BlockSignatures base, DeltaCodec.SegmentConsumer consumer) {
+        Message request = createFetchRequest(MessageType.DELTA_REQUEST);
+        request.addPayload("fileHash", fileHash);
+        request.addPayload("signatures", base);
+        
+        long start = System.currentTimeMillis();
+        long[] firstResponseMs = {-1};
+        long[] bytes = {0};
+        boolean[] complete = {false};
+        
+        boolean answered = networkManager.sendStreamRequest(peer, request, frame -> {
+            if (firstResponseMs[0] < 0) {
+                firstResponseMs[0] = System.currentTimeMillis() - start;
+            }
+            if (frame.getType().equals(MessageType.DELTA_END.getValue())) {
+                complete[0] = Boolean.TRUE.equals(frame.getPayloadValue("complete"));
+                if (!complete[0]) {
+                    logger.debug("Peer {} sent no delta of {}: {}", peer.getId(), fileHash, frame.getPayloadValue("error"));
+                }
+                return false;
+            }
+            if (!frame.getType().equals(MessageType.DELTA.getValue())) {
+                logger.error("Unexpected response type in delta: {}", frame.getType());
+                return false;
+            }
+            
+            try {
+                for (DeltaSegment segment : (List<DeltaSegment>) frame.getPayloadValue("segments")) {
+                    if (!segment.isCopy()) {
+                        bytes[0] += segment.getLength();
+                    }
+                    if (!consumer.accept(segment)) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                logger.error("Error applying delta of {} from peer {}: {}", fileHash, peer.getId(), e.getMessage());
+                return false;
+            }
+        });
+        
+        if (bytes[0] > 0) {
+            peer.recordSuccess(firstResponseMs[0], bytes[0], System.currentTimeMillis() - start);
+        }
+        return answered && complete[0];
+    }
+    
+    /**
+     * Asks a peer which chunks of a file it holds. The peer then sends us a HAVE for each
+     * chunk of the file it caches over the next few minutes.
+     * 
+     * @param peer The peer to ask
+     * @param fileHash The hash of the file
+     * @return A bitmap of the chunk IDs the peer holds, or null if the peer didn't answer
+     */
+    public BitSet requestBitfield(PeerInfo peer, String fileHash) {
+        Message request = createFetchRequest(MessageType.BITFIELD_REQUEST);
+        request.addPayload("fileHash", fileHash);
+        
+        Message response = networkManager.sendMessage(peer, request);
+        if (response != null && response.getType().equals(MessageType.BITFIELD.getValue())) {
+            return BitSet.valueOf((byte[]) response.getPayloadValue("bitfield"));
+        } else if (response != null) {
+            logger.warn("Unexpected response type for bitfield request: {}", response.getType());
+        }
+        return null;
+    }
+    
+    /**
+     * Asks a peer for a file's manifest and the chunks of the file it holds. Like
+     * {@link #requestBitfield}, this makes the peer send us HAVEs for the file.
+     * 
+     * @param peer The peer to ask
+     * @param fileHash The hash of the file
+     * @return The file info, with no manifest and no chunks if the peer doesn't know the file,
+     *         or null if the peer didn't answer
+     */
+    public FileInfo requestFileInfo(PeerInfo peer, String fileHash) {
+        Message request = createFetchRequest(MessageType.FILE_INFO_REQUEST);
+        request.addPayload("fileHash", fileHash);
+        
+        Message response = networkManager.sendMessage(peer, request);
+        if (response != null && response.getType().equals(MessageType.FILE_INFO.getValue())) {
+            FileManifest manifest = (FileManifest) response.getPayloadValue("manifest");
+            if (Boolean.TRUE.equals(response.getPayloadValue("found")) && manifest != null
+                    && fileHash.equals(manifest.getFileHash())) {
+                return new FileInfo(manifest, BitSet.valueOf((byte[]) response.getPayloadValue("bitfield")));
+            }
+            return new FileInfo(null, new BitSet());
+        } else if (response != null) {
+            logger.warn("Unexpected response type for file info request: {}", response.getType());
+        }
+        return null;
+    }
+    
+    /**
+     * Stores a chunk pushed to us, provided we are one of its home peers and it matches the
+     * file's manifest.
+     * 
+     * @return True if the chunk was stored
+     */
+    private boolean storePushedChunk(String from, FileManifest manifest, int chunkId, PagedChunk data) {
+        String fileHash = manifest.getFileHash();
+        PlacementCheck check = placementCheck;
+        if (check == null || !check.isHome(fileHash, chunkId)) {
+            logger.warn("Rejected pushed chunk {} of {} from {}: not one of its home peers", chunkId, fileHash, from);
+            return false;
+        }
+        if (!manifest.verifyChunk(chunkId, data, CacheEngine.MAX_CHUNK_SIZE)) {
+            logger.warn("Rejected pushed chunk {} of {} from {}: doesn't match the manifest", chunkId, fileHash, from);
+            return false;
+        }
+        boolean stored = cacheEngine.putCacheItem(fileHash, chunkId, data, manifest.getTotalChunks());
+        logger.debug("Stored pushed chunk {} of {} from {}", chunkId, fileHash, from);
+        return stored;
+    }
+    
+    /**
+     * Stores a pushed chunk in the background once the file's manifest has been looked up,
+     * unless too many pushed chunks are waiting already.
+     * 
+     * @return True if the chunk will be stored if it checks out
+     */
+    private boolean storeAfterManifestLookup(String from, String fileHash, int chunkId, PagedChunk data) {
+        if (pendingPushes.incrementAndGet() > MAX_PENDING_PUSHES) {
+            pendingPushes.decrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    FileManifest manifest = fetchPushManifest(from, fileHash);
+                    if (manifest != null) {
+                        storePushedChunk(from, manifest, chunkId, data);
+                    }
+                } finally {
+                    pendingPushes.decrementAndGet();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingPushes.decrementAndGet();
+            return false;
+        }
+    }
+    
+    /**
+     * Looks up the manifest of a file pushed to us with a FILE_INFO request, the way a
+     * download does, so pushed chunks are only ever checked against a manifest the push
+     * itself didn't carry. Concurrent pushes of one file share the lookup.
+     * 
+     * @return The manifest, now recorded in the cache, or null if no manifest with chunk digests was found
+     */
+    private FileManifest fetchPushManifest(String from, String fileHash) {
+        return manifestLookups.execute(fileHash, () -> {
+            FileManifest known = cacheEngine.getManifest(fileHash);
+            if (isVerifiable(known)) {
+                return known;
+            }
+            PeerInfo peer = peerDiscovery.getPeer(from);
+            FileInfo info = peer != null ? requestFileInfo(peer, fileHash) : null;
+            if (info == null || !isVerifiable(info.getManifest())) {
+                logger.debug("No verifiable manifest of pushed file {} from {}", fileHash, from);
+                return null;
+            }
+            cacheEngine.putManifest(info.getManifest());
+            FileManifest recorded = cacheEngine.getManifest(fileHash);
+            return isVerifiable(recorded) ? recorded : null;
+        });
+    }
+    
+    private static boolean isVerifiable(FileManifest manifest) {
+        return manifest != null && manifest.getChunkDigests() != null;
+    }
+    
+    /**
+     * Hands a cached chunk to a peer, e.g. because the peer has become one of the chunk's
+     * home peers. Blocks until the peer has answered. The peer only takes the chunk if it
+     * is one of the chunk's home peers and the chunk matches the file's manifest, which
+     * the peer looks up with a FILE_INFO request if it doesn't know it yet.
+     * 
+     * @param peer The peer to push to
+     * @param item The chunk
+     * @return True if the peer now holds the chunk, or will once it has the manifest
+     */
+    public boolean pushChunk(PeerInfo peer, CacheItem item) {
+        Message message = networkManager.createMessage(MessageType.CHUNK_PUSH);
+        message.addPayload("fileHash", item.getFileHash());
+        message.addPayload("chunkId", item.getChunkId());
+        message.addPayload("data", item.getChunk());
+        
+        Message response = networkManager.sendMessage(peer, message);
+        if (response != null && response.getType().equals(MessageType.CHUNK_PUSH_ACK.getValue())) {
+            return Boolean.TRUE.equals(response.getPayloadValue("stored"))
+                    || Boolean.TRUE.equals(response.getPayloadValue("pending"));
+        } else if (response != null) {
+            logger.warn("Unexpected response type for chunk push: {}", response.getType());
+        }
+        return false;
+    }
+    
+    /**
+     * Sets what decides which pushed chunks are accepted. Until set, every push is refused.
+     * 
+     * @param check The placement check
+     */
+    public void setPlacementCheck(PlacementCheck check) {
+        this.placementCheck = check;
+    }
+    
+    /**
+     * Gets the DHT used to locate content beyond the directly known peers.
+     * 
+     * @return The DHT
+     */
+    public KademliaDht getDht() {
+        return dht;
+    }
+    
+    /**
+     * Registers a listener for HAVE announcements about a file.
+     * 
+     * @param fileHash The hash of the file
+     * @param listener The listener
+     */
+    public void addHaveListener(String fileHash, HaveListener listener) {
+        haveListeners.computeIfAbsent(fileHash, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+    
+    /**
+     * Removes a listener registered with {@link #addHaveListener}.
+     * 
+     * @param fileHash The hash of the file
+     * @param listener The listener
+     */
+    public void removeHaveListener(String fileHash, HaveListener listener) {
+        haveListeners.computeIfPresent(fileHash, (k, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+    
+    /**
+     * Remembers that a peer is fetching a file, so it is told about chunks we cache later.
+     */
+    private void recordInterest(String remotePeerId, String fileHash) {
+        if (remotePeerId != null && !remotePeerId.equals(peerId)) {
+            interestedPeers.computeIfAbsent(fileHash, k -> new ConcurrentHashMap<>())
+                    .put(remotePeerId, System.currentTimeMillis());
+        }
+    }
+    
+    /**
+     * Sends a HAVE for a newly cached chunk to the peers recently interested in its file.
+     */
+    private void announceChunk(String fileHash, int chunkId, int totalChunks) {
+        Map<String, Long> interested = interestedPeers.get(fileHash);
+        if (interested == null) {
+            return;
+        }
+        
+        long expired = System.currentTimeMillis() - INTEREST_TTL_MS;
+        interested.values().removeIf(requestedAt -> requestedAt < expired);
+        if (interested.isEmpty()) {
+            interestedPeers.remove(fileHash, interested);
+            return;
+        }
+        
+        for (String id : interested.keySet()) {
+            PeerInfo peer = peerDiscovery.getPeer(id);
+            if (peer != null && peer.isActive()) {
+                Message have = networkManager.createMessage(MessageType.HAVE);
+                have.addPayload("fileHash", fileHash);
+                have.addPayload("chunkId", chunkId);
+                networkManager.sendOneWay(peer, have);
+            }
+        }
+    }
+    
+    /**
+     * Converts a chunk payload to its paged form. Older nodes send chunks as a plain byte array.
+     * 
+     * @param payload The payload value
+     * @return The paged chunk
+     */
+    private PagedChunk toPagedChunk(Object payload) {
+        if (payload instanceof byte[]) {
+            return PagedChunk.wrap((byte[]) payload);
+        }
+        return (PagedChunk) payload;
+    }
+    
     /**
      * Checks if a peer is alive.
      * 
@@ -320,7 +1033,110 @@ public class PeerHandler {
      * Stops the peer handler.
      */
     public void shutdown() {
+        dht.shutdown();
         executor.shutdownNow();
         logger.info("Peer handler shutdown");
     }
+    
+    /**
+     * Receives the chunks of a batch request.
+     */
+    public interface ChunkConsumer {
+        /**
+         * Called for each chunk of the batch, in the order the peer answers.
+         * 
+         * @param chunkId The chunk ID
+         * @param item The chunk, or null if the peer doesn't have it
+         * @return True to go on receiving, false to abandon the rest of the batch
+         */
+        boolean accept(int chunkId, CacheItem item);
+    }
+    
+    /**
+     * Decides which chunks this node is a home peer of, and so accepts when pushed.
+     */
+    public interface PlacementCheck {
+        /**
+         * Checks if this node is one of a chunk's home peers, or one of the peers that take
+         * extra copies of it.
+         * 
+         * @param fileHash The hash of the file
+         * @param chunkId The chunk ID
+         * @return True if the chunk may be pushed here
+         */
+        boolean isHome(String fileHash, int chunkId);
+    }
+    
+    /**
+     * Listens for HAVE announcements about a file.
+     */
+    public interface HaveListener {
+        /**
+         * Called when a peer announces it has cached a chunk of the file.
+         * 
+         * @param remotePeerId The ID of the announcing peer
+         * @param chunkId The chunk ID
+         */
+        void peerHas(String remotePeerId, int chunkId);
+    }
+    
+    /**
+     * A piece of a chunk, as received from a peer.
+     */
+    public static class ChunkPiece {
+        private final int offset;
+        private final PagedChunk data;
+        private final int chunkLength;
+        private final int totalChunks;
+        
+        public ChunkPiece(int offset, PagedChunk data, int chunkLength, int totalChunks) {
+            this.offset = offset;
+            this.data = data;
+            this.chunkLength = chunkLength;
+            this.totalChunks = totalChunks;
+        }
+        
+        public int getOffset() {
+            return offset;
+        }
+        
+        public PagedChunk getData() {
+            return data;
+        }
+        
+        /**
+         * Gets the length of the whole chunk the piece is part of.
+         * 
+         * @return The chunk length in bytes
+         */
+        public int getChunkLength() {
+            return chunkLength;
+        }
+        
+        public int getTotalChunks() {
+            return totalChunks;
+        }
+    }
+    
+    /**
+     * What a peer told us about a file in answer to a FILE_INFO_REQUEST. The manifest is
+     * null if the peer doesn't know the file.
+     */
+    public static class FileInfo {
+        private final FileManifest manifest;
+        private final BitSet chunks;
+        
+        public FileInfo(FileManifest manifest, BitSet chunks) {
+            this.manifest = manifest;
+            this.chunks = chunks;
+        }
+        
+        public FileManifest getManifest() {
+            return manifest;
+        }
+        
+        public BitSet getChunks() {
+            return chunks;
+        }
+    }
 }
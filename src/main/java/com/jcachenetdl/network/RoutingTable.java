@@ -0,0 +1,198 @@
+package com.jcachenetdl.network;
+
+import com.jcachenetdl.common.ChunkKey;
+import com.jcachenetdl.common.PeerInfo;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Kademlia routing table: contacts sorted into k-buckets by the XOR distance between their
+ * ID and ours. Bucket {@code i} holds up to {@code k} contacts whose ID shares exactly
+ * {@code i} leading bits with ours, so the table knows many nodes close to us and a few far
+ * away, O(k log N) contacts in a swarm of N nodes.
+ * <p>
+ * Node IDs are the SHA-256 of the peer ID; keys are file or chunk hashes, which already are
+ * SHA-256 digests.
+ */
+public class RoutingTable {
+    public static final int ID_BITS = 256;
+
+    private final byte[] localId;
+    private final int k;
+
+    // Guarded by this; least recently seen first
+    private final List<Deque<PeerInfo>> buckets;
+
+    public RoutingTable(String localPeerId, int k) {
+        this.localId = nodeId(localPeerId);
+        this.k = Math.max(1, k);
+        this.buckets = new ArrayList<>(ID_BITS);
+        for (int i = 0; i < ID_BITS; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Records that a contact was seen. A known contact moves to the tail of its bucket. A new
+     * one is added if its bucket has room, or replaces the least recently seen contact if that
+     * one is inactive; otherwise it is dropped, since long-lived contacts are the likeliest to
+     * stay around.
+     *
+     * @param peer The contact
+     * @return True if the contact is in the table afterwards
+     */
+    public synchronized boolean update(PeerInfo peer) {
+        byte[] id = nodeId(peer.getId());
+        int index = bucketIndex(id);
+        if (index < 0) {
+            return false;  // Ourselves
+        }
+
+        Deque<PeerInfo> bucket = buckets.get(index);
+        removeFrom(bucket, peer.getId());
+        if (bucket.size() >= k) {
+            if (bucket.peekFirst().isActive()) {
+                return false;
+            }
+            bucket.pollFirst();
+        }
+        bucket.addLast(peer);
+        return true;
+    }
+
+    /**
+     * Removes a contact.
+     *
+     * @param peerId The contact's peer ID
+     * @return True if the contact was in the table
+     */
+    public synchronized boolean remove(String peerId) {
+        int index = bucketIndex(nodeId(peerId));
+        return index >= 0 && removeFrom(buckets.get(index), peerId);
+    }
+
+    private static boolean removeFrom(Deque<PeerInfo> bucket, String peerId) {
+        for (Iterator<PeerInfo> it = bucket.iterator(); it.hasNext(); ) {
+            if (it.next().getId().equals(peerId)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the contacts closest to a target ID by XOR distance.
+     *
+     * @param target The target ID
+     * @param count The maximum number of contacts
+     * @return The contacts, closest first
+     */
+    public synchronized List<PeerInfo> closest(byte[] target, int count) {
+        List<PeerInfo> contacts = new ArrayList<>();
+        for (Deque<PeerInfo> bucket : buckets) {
+            contacts.addAll(bucket);
+        }
+        contacts.sort(byDistanceTo(target));
+        return contacts.size() > count ? new ArrayList<>(contacts.subList(0, count)) : contacts;
+    }
+
+    /**
+     * Gets the number of contacts in the table.
+     *
+     * @return The contact count
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (Deque<PeerInfo> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    public byte[] getLocalId() {
+        return localId.clone();
+    }
+
+    /**
+     * Gets the bucket a node ID falls into: the length of the prefix it shares with ours.
+     *
+     * @return The bucket index, or -1 for our own ID
+     */
+    private int bucketIndex(byte[] id) {
+        for (int i = 0; i < localId.length; i++) {
+            int xor = (localId[i] ^ id[i]) & 0xff;
+            if (xor != 0) {
+                return i * 8 + Integer.numberOfLeadingZeros(xor) - 24;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Orders peers by the XOR distance of their node ID to a target, closest first.
+     *
+     * @param target The target ID
+     * @return The comparator
+     */
+    public static Comparator<PeerInfo> byDistanceTo(byte[] target) {
+        return (a, b) -> compareDistance(target, nodeId(a.getId()), nodeId(b.getId()));
+    }
+
+    /**
+     * Compares the XOR distances of two IDs to a target.
+     *
+     * @return Negative if {@code a} is closer, positive if {@code b} is, 0 if they are equal
+     */
+    public static int compareDistance(byte[] target, byte[] a, byte[] b) {
+        for (int i = 0; i < target.length; i++) {
+            int da = (target[i] ^ a[i]) & 0xff;
+            int db = (target[i] ^ b[i]) & 0xff;
+            if (da != db) {
+                return Integer.compare(da, db);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the node ID of a peer: the SHA-256 of its peer ID.
+     *
+     * @param peerId The peer ID
+     * @return The 32-byte node ID
+     */
+    public static byte[] nodeId(String peerId) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(peerId.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error generating SHA-256 hash", e);
+        }
+    }
+
+    /**
+     * Gets the ID of a content key. A file hash is its own ID; any other key is hashed.
+     *
+     * @param key The key
+     * @return The 32-byte key ID
+     */
+    public static byte[] keyId(String key) {
+        if (ChunkKey.isValidHash(key)) {
+            try {
+                return Hex.decodeHex(key.toCharArray());
+            } catch (DecoderException e) {
+                // Not reached: the key was checked to be hex
+            }
+        }
+        return nodeId(key);
+    }
+}
@@ -1,10 +1,17 @@
 package com.jcachenetdl.node;
 
 import com.jcachenetdl.common.CacheItem;
+import com.jcachenetdl.common.ChunkKey;
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.common.PagedChunk;
+import com.jcachenetdl.config.ConfigurationManager;
 import com.jcachenetdl.ledger.ActionType;
 import com.jcachenetdl.ledger.DistributedLedger;
 import com.jcachenetdl.util.HashUtil;
 import com.jcachenetdl.util.LogUtil;
+import com.jcachenetdl.util.ReedSolomon;
+import com.jcachenetdl.util.SerializationUtil;
+import com.jcachenetdl.util.SingleFlight;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 
@@ -12,31 +19,75 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 /**
  * Manages the file cache operations.
  */
-public class CacheEngine {
+public class CacheEngine implements MemoryPressureController.MemoryTier {
     private static final String CACHE_DIR = "cache";
-    private static final int MAX_CHUNK_SIZE = 1024 * 1024; // 1MB
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024; // 1MB
+    
+    // Refetch cost estimates (milliseconds) used by the eviction policy
+    private static final double ORIGIN_REFETCH_COST_MS = 60_000; // No other known holder
+    private static final double DEFAULT_REFETCH_COST_MS = 1_000; // Holders unknown (e.g. loaded from disk)
+    private static final double MIN_REFETCH_COST_MS = 1;
     
     private final String peerId;
     private final DistributedLedger ledger;
-    private final Map<String, CacheItem> cache; // In-memory cache (fileHash_chunkId -> CacheItem)
+    private final ChunkIndex<CacheItem> cache; // All cached chunks; data is null when spilled to disk
+    private final Map<String, FileManifest> manifests; // Chunk count and size of each cached file
+    private final Map<String, CachedFile> files; // Files with cached chunks; dropped with their last chunk
+    private final Map<String, Integer> pinnedFiles; // Pin count per file, guarded by itself
+    private final List<ChunkListener> chunkListeners;
+    private final List<HitListener> hitListeners;
+    private final List<RemovalListener> removalListeners;
+    private final List<ManifestListener> manifestListeners;
+    private final SingleFlight<ChunkKey, CacheItem> diskLoads;
+    private final GdsfEvictionPolicy<ChunkKey> evictionPolicy; // Disk tier: evicting means refetching from the network
+    private final GdsfEvictionPolicy<ChunkKey> memoryPolicy; // Memory tier: evicting means reloading from disk
+    private final long maxCacheBytes;
+    private volatile long memoryLimitBytes;
+    private final int erasureDataShards; // 0 if uploads aren't erasure-coded
+    private final int erasureParityShards;
     private final Logger logger;
     private final Map<String, String> simpleCache = new ConcurrentHashMap<>();
 
     public CacheEngine(String peerId, DistributedLedger ledger) {
         this.peerId = peerId;
         this.ledger = ledger;
-        this.cache = new ConcurrentHashMap<>();
+        this.cache = new ChunkIndex<>();
+        this.manifests = new ConcurrentHashMap<>();
+        this.files = new ConcurrentHashMap<>();
+        this.pinnedFiles = new HashMap<>();
+        this.chunkListeners = new CopyOnWriteArrayList<>();
+        this.hitListeners = new CopyOnWriteArrayList<>();
+        this.removalListeners = new CopyOnWriteArrayList<>();
+        this.manifestListeners = new CopyOnWriteArrayList<>();
+        this.diskLoads = new SingleFlight<>();
+        this.evictionPolicy = new GdsfEvictionPolicy<>();
+        this.memoryPolicy = new GdsfEvictionPolicy<>();
+        ConfigurationManager config = ConfigurationManager.getInstance();
+        this.maxCacheBytes = config.getLong("cache.max.size.mb", 1024) * 1024 * 1024;
+        this.memoryLimitBytes = config.getLong("cache.memory.max.mb", 256) * 1024 * 1024;
+        boolean erasure = config.getBoolean("cache.erasure.enabled", false);
+        this.erasureDataShards = erasure ? config.getInt("cache.erasure.data.shards", 4) : 0;
+        this.erasureParityShards = erasure ? config.getInt("cache.erasure.parity.shards", 2) : 0;
         this.logger = LogUtil.getLogger(CacheEngine.class);
         
         // Ensure cache directory exists
@@ -54,10 +105,11 @@ public class CacheEngine {
     }
     
     /**
-     * Loads cached items from disk.
+     * Indexes cached items on disk. Chunk data is loaded lazily on first access.
      */
     private void loadCacheFromDisk() {
         File cacheDir = new File(CACHE_DIR);
+        loadManifests(cacheDir);
         File[] cacheFiles = cacheDir.listFiles((dir, name) -> name.endsWith(".zip"));
         
         if (cacheFiles != null) {
@@ -69,32 +121,306 @@ public class CacheEngine {
                         String fileHash = parts[0];
                         int chunkId = Integer.parseInt(parts[1]);
                         
-                        // Load the file content
-                        byte[] compressedData = Files.readAllBytes(file.toPath());
-                        byte[] data = unzipData(compressedData);
+                        // Only read the stored size; the data stays on disk until requested
+                        long size = readStoredSize(file);
+                        
+                        // Caches written before manifests existed don't know the total chunks
+                        FileManifest manifest = manifests.get(fileHash);
+                        int totalChunks = manifest != null ? manifest.getTotalChunks() : 1;
                         
-                        // Create cache item (we don't know the total chunks here, will be updated later)
-                        CacheItem item = new CacheItem(fileHash, chunkId, data, peerId, 1);
-                        cache.put(getCacheKey(fileHash, chunkId), item);
-                        logger.debug("Loaded cache item from disk: {}_{}", fileHash, chunkId);
+                        CacheItem item = newCacheItem(fileHash, chunkId, null, totalChunks);
+                        ChunkKey cacheKey = item.getKey();
+                        if (cache.put(cacheKey, item) != null) {
+                            releaseFile(fileHash);
+                        }
+                        evictionPolicy.recordInsert(cacheKey, size, DEFAULT_REFETCH_COST_MS);
+                        logger.debug("Indexed cache item from disk: {}_{}", fileHash, chunkId);
                     }
                 } catch (Exception e) {
                     logger.error("Error loading cache item: {}", file.getName(), e);
                 }
             }
-            logger.info("Loaded {} cache items from disk", cache.size());
+            logger.info("Indexed {} cache items from disk", cache.size());
+            evictIfNeeded();
+        }
+        
+        // Drop manifests of files without any cached chunk
+        for (String fileHash : manifests.keySet()) {
+            if (!files.containsKey(fileHash)) {
+                manifests.remove(fileHash);
+                manifestFile(fileHash).delete();
+            }
+        }
+    }
+    
+    /**
+     * Loads the per-file manifests that record each cached file's chunk count.
+     * 
+     * @param cacheDir The cache directory
+     */
+    private void loadManifests(File cacheDir) {
+        File[] manifestFiles = cacheDir.listFiles((dir, name) -> name.endsWith(MANIFEST_SUFFIX));
+        if (manifestFiles == null) {
+            return;
+        }
+        for (File file : manifestFiles) {
+            try {
+                FileManifest manifest = SerializationUtil.deserializeFromFile(file, FileManifest.class);
+                manifests.put(manifest.getFileHash(), manifest);
+            } catch (Exception e) {
+                logger.error("Error loading manifest: {}", file.getName(), e);
+            }
         }
     }
     
     /**
-     * Gets a cache item key.
+     * Records a file's manifest the first time one of its chunks is cached, and again once
+     * the last chunk reveals the file size.
      * 
      * @param fileHash The file hash
      * @param chunkId The chunk ID
-     * @return The cache key
+     * @param totalChunks The total number of chunks
+     * @param length The chunk length
+     * @throws IOException If the manifest can't be saved
+     */
+    private void recordManifest(String fileHash, int chunkId, int totalChunks, int length) throws IOException {
+        boolean last = chunkId == totalChunks - 1;
+        FileManifest manifest = manifests.get(fileHash);
+        if (manifest != null && (manifest.getFileSize() >= 0 || !last)) {
+            return;
+        }
+        
+        synchronized (manifests) {
+            manifest = manifests.get(fileHash);
+            if (manifest != null && (manifest.getFileSize() >= 0 || !last)) {
+                return;
+            }
+            long fileSize = last ? (long) chunkId * MAX_CHUNK_SIZE + length : -1;
+            manifest = manifest != null
+                    ? new FileManifest(fileHash, totalChunks, fileSize, manifest.getChunkDigests(),
+                            manifest.getDataShards(), manifest.getParityShards())
+                    : new FileManifest(fileHash, totalChunks, fileSize);
+            SerializationUtil.serializeToFile(manifest, manifestFile(fileHash));
+            manifests.put(fileHash, manifest);
+        }
+    }
+    
+    /**
+     * Records a manifest learned from a peer or computed from the whole file, keeping
+     * whatever the recorded manifest already knows.
+     * 
+     * @param manifest The manifest
+     * @return True if the recorded manifest changed
      */
-    private String getCacheKey(String fileHash, int chunkId) {
-        return fileHash + "_" + chunkId;
+    public boolean putManifest(FileManifest manifest) {
+        String fileHash = manifest.getFileHash();
+        FileManifest previous;
+        FileManifest merged;
+        synchronized (manifests) {
+            FileManifest current = manifests.get(fileHash);
+            if (current != null && current.getTotalChunks() != manifest.getTotalChunks()) {
+                logger.warn("Ignoring manifest of {} with {} chunks, {} recorded",
+                        fileHash, manifest.getTotalChunks(), current.getTotalChunks());
+                return false;
+            }
+            if (current != null && current.isErasureCoded() && manifest.isErasureCoded()
+                    && (current.getDataShards() != manifest.getDataShards()
+                        || current.getParityShards() != manifest.getParityShards())) {
+                logger.warn("Ignoring manifest of {} with a different erasure coding", fileHash);
+                return false;
+            }
+            
+            // Digests and erasure coding come as a pair: the digests list the parity fragments too
+            FileManifest coded = current != null && (current.isErasureCoded() || !manifest.isErasureCoded())
+                    ? current : manifest;
+            long fileSize = current != null && current.getFileSize() >= 0 ? current.getFileSize() : manifest.getFileSize();
+            List<String> chunkDigests = coded.getChunkDigests() != null ? coded.getChunkDigests()
+                    : coded == current ? manifest.getChunkDigests() : null;
+            if (chunkDigests != null && chunkDigests.size() != coded.getFragmentCount()) {
+                chunkDigests = null;
+            }
+            if (current != null && current.getFileSize() == fileSize && current.getChunkDigests() == chunkDigests
+                    && current == coded) {
+                return false;
+            }
+            
+            merged = new FileManifest(fileHash, manifest.getTotalChunks(), fileSize, chunkDigests,
+                    coded.getDataShards(), coded.getParityShards());
+            try {
+                SerializationUtil.serializeToFile(merged, manifestFile(fileHash));
+            } catch (IOException e) {
+                logger.error("Error saving manifest of {}", fileHash, e);
+            }
+            manifests.put(fileHash, merged);
+            previous = current;
+        }
+        
+        for (ManifestListener listener : manifestListeners) {
+            try {
+                listener.manifestChanged(previous, merged);
+            } catch (Exception e) {
+                logger.warn("Manifest listener failed for {}", fileHash, e);
+            }
+        }
+        return true;
+    }
+    
+    private File manifestFile(String fileHash) {
+        return new File(CACHE_DIR, fileHash + MANIFEST_SUFFIX);
+    }
+    
+    /**
+     * Gets the manifest of a cached file.
+     * 
+     * @param fileHash The file hash
+     * @return The manifest, or null if no chunk of the file has been cached
+     */
+    public FileManifest getManifest(String fileHash) {
+        return manifests.get(fileHash);
+    }
+    
+    /**
+     * Gets the hashes of the files with a recorded manifest, i.e. with chunks in the cache.
+     * 
+     * @return The file hashes
+     */
+    public Set<String> getCachedFiles() {
+        return new HashSet<>(manifests.keySet());
+    }
+    
+    /**
+     * Gets the chunks of a file that are cached, in memory or on disk, including the parity
+     * fragments of an erasure-coded file.
+     * 
+     * @param fileHash The file hash
+     * @return A bitmap of the cached chunk IDs, empty if none are cached
+     */
+    public BitSet getCachedChunks(String fileHash) {
+        FileManifest manifest = manifests.get(fileHash);
+        BitSet chunks = new BitSet();
+        if (manifest != null) {
+            for (int chunkId = 0; chunkId < manifest.getFragmentCount(); chunkId++) {
+                if (cache.get(fileHash, chunkId) != null) {
+                    chunks.set(chunkId);
+                }
+            }
+        }
+        return chunks;
+    }
+    
+    /**
+     * Registers a listener that is told about every chunk newly added to or removed from the cache.
+     * 
+     * @param listener The listener
+     */
+    public void addChunkListener(ChunkListener listener) {
+        chunkListeners.add(listener);
+    }
+    
+    /**
+     * Registers a listener that is told about every cache hit.
+     * 
+     * @param listener The listener
+     */
+    public void addHitListener(HitListener listener) {
+        hitListeners.add(listener);
+    }
+    
+    /**
+     * Registers a listener that is told when the last cached chunk of a file is removed.
+     * 
+     * @param listener The listener
+     */
+    public void addRemovalListener(RemovalListener listener) {
+        removalListeners.add(listener);
+    }
+    
+    /**
+     * Registers a listener that is told when a manifest learned from a peer or computed from
+     * the whole file changes the recorded one.
+     * 
+     * @param listener The listener
+     */
+    public void addManifestListener(ManifestListener listener) {
+        manifestListeners.add(listener);
+    }
+    
+    /**
+     * Counts a chunk of a file about to be added. Counting before the add keeps the count
+     * from reaching zero while another chunk of the file is being added.
+     * 
+     * @return The file's interned hash, shared by all its cache entries
+     */
+    private String retainFile(String fileHash) {
+        return files.compute(fileHash, (hash, file) -> {
+            if (file == null) {
+                return new CachedFile(hash);
+            }
+            file.chunks++;
+            return file;
+        }).fileHash;
+    }
+    
+    /**
+     * Uncounts a chunk of a file that was removed, or wasn't added after all, and tells the
+     * removal listeners if it was the file's last one.
+     */
+    private void releaseFile(String fileHash) {
+        if (files.computeIfPresent(fileHash, (hash, file) -> --file.chunks > 0 ? file : null) != null) {
+            return;
+        }
+        logger.debug("Last cached chunk of {} removed", fileHash);
+        for (RemovalListener listener : removalListeners) {
+            try {
+                listener.fileRemoved(fileHash);
+            } catch (Exception e) {
+                logger.warn("Removal listener failed for {}", fileHash, e);
+            }
+        }
+    }
+    
+    /**
+     * Uncounts a chunk that was removed from the cache, telling the chunk listeners and,
+     * if it was its file's last one, the removal listeners.
+     */
+    private void chunkRemoved(CacheItem item) {
+        for (ChunkListener listener : chunkListeners) {
+            try {
+                listener.chunkRemoved(item.getFileHash(), item.getChunkId());
+            } catch (Exception e) {
+                logger.warn("Chunk listener failed for {}", item.getKey(), e);
+            }
+        }
+        releaseFile(item.getFileHash());
+    }
+    
+    private void notifyChunkCached(String fileHash, int chunkId, int totalChunks) {
+        for (ChunkListener listener : chunkListeners) {
+            try {
+                listener.chunkCached(fileHash, chunkId, totalChunks);
+            } catch (Exception e) {
+                logger.warn("Chunk listener failed for {}_{}", fileHash, chunkId, e);
+            }
+        }
+    }
+    
+    /**
+     * Creates a cache entry with an interned file hash and a compact key, counting it for
+     * its file (see {@link #retainFile}). The caller releases the count if the entry isn't
+     * added after all.
+     * 
+     * @param fileHash The file hash
+     * @param chunkId The chunk ID
+     * @param data The chunk data, or null for a spilled entry
+     * @param totalChunks The total number of chunks
+     * @return The cache entry
+     * @throws IllegalArgumentException If the file hash is not a valid SHA-256 hex string
+     */
+    private CacheItem newCacheItem(String fileHash, int chunkId, PagedChunk data, int totalChunks) {
+        ChunkKey key = ChunkKey.of(fileHash, chunkId);
+        CacheItem item = new CacheItem(retainFile(fileHash), chunkId, data, peerId, totalChunks);
+        item.setKey(key);
+        return item;
     }
     
     /**
@@ -107,23 +433,73 @@ public class CacheEngine {
      * @return True if the operation was successful
      */
     public boolean putCacheItem(String fileHash, int chunkId, byte[] data, int totalChunks) {
+        return putCacheItem(fileHash, chunkId, PagedChunk.wrap(data), totalChunks);
+    }
+    
+    /**
+     * Puts a paged file chunk into the cache.
+     * The chunk is treated as originating here, i.e. no other peer is known to hold it.
+     * 
+     * @param fileHash The file hash
+     * @param chunkId The chunk ID
+     * @param data The chunk data
+     * @param totalChunks The total number of chunks
+     * @return True if the operation was successful
+     */
+    public boolean putCacheItem(String fileHash, int chunkId, PagedChunk data, int totalChunks) {
+        return putCacheItem(fileHash, chunkId, data, totalChunks, 0, 0);
+    }
+    
+    /**
+     * Puts a file chunk fetched from the network into the cache.
+     * The fetch latency and holder count drive the cost-aware eviction policy.
+     * 
+     * @param fileHash The file hash
+     * @param chunkId The chunk ID
+     * @param data The chunk data
+     * @param totalChunks The total number of chunks
+     * @param fetchLatencyMs The observed time to fetch the chunk
+     * @param holderCount The number of peers known to hold the chunk (0 if none)
+     * @return True if the operation was successful
+     */
+    public boolean putCacheItem(String fileHash, int chunkId, PagedChunk data, int totalChunks,
+                                long fetchLatencyMs, int holderCount) {
         try {
             // Create cache item
-            CacheItem item = new CacheItem(fileHash, chunkId, data, peerId, totalChunks);
-            String cacheKey = getCacheKey(fileHash, chunkId);
+            CacheItem item = newCacheItem(fileHash, chunkId, data, totalChunks);
+            ChunkKey cacheKey = item.getKey();
             
             // Store in memory
-            cache.put(cacheKey, item);
+            boolean added = cache.put(cacheKey, item) == null;
+            if (!added) {
+                releaseFile(fileHash);
+            }
             
             // Save to disk
+            recordManifest(fileHash, chunkId, totalChunks, data.length());
             saveCacheItemToDisk(item);
             
+            // Track for eviction and make room if needed
+            evictionPolicy.recordInsert(cacheKey, data.length(), estimateRefetchCost(fetchLatencyMs, holderCount));
+            synchronized (pinnedFiles) {
+                if (pinnedFiles.containsKey(fileHash)) {
+                    evictionPolicy.pin(cacheKey);
+                }
+            }
+            memoryPolicy.recordInsert(cacheKey, data.length(), data.length());
+            evictIfNeeded();
+            spillIfNeeded();
+            
             // Log to ledger
             ledger.addAction(ledger.createAction(ActionType.CACHE_PUT, fileHash, chunkId));
             
             logger.debug("Added cache item: {}_{}", fileHash, chunkId);
             LogUtil.logCachePut(fileHash, chunkId);
             
+            if (added) {
+                notifyChunkCached(fileHash, chunkId, totalChunks);
+            }
+            
             return true;
         } catch (Exception e) {
             logger.error("Error putting cache item: {}_{}", fileHash, chunkId, e);
@@ -132,26 +508,254 @@ public class CacheEngine {
     }
     
     /**
-     * Gets a file chunk from the cache.
+     * Gets a file chunk from the cache to serve it, counting a cache hit. Reads that don't
+     * serve the chunk to a peer should use {@link #peekCacheItem} instead.
      * 
      * @param fileHash The file hash
      * @param chunkId The chunk ID
      * @return The cache item, or null if not found
      */
     public CacheItem getCacheItem(String fileHash, int chunkId) {
-        String cacheKey = getCacheKey(fileHash, chunkId);
-        CacheItem item = cache.get(cacheKey);
+        CacheItem item = peekCacheItem(fileHash, chunkId);
         
         if (item != null) {
+            memoryPolicy.recordAccess(item.getKey());
+            evictionPolicy.recordAccess(item.getKey());
+            
             // Log to ledger
             ledger.addAction(ledger.createAction(ActionType.CACHE_HIT, fileHash, chunkId));
             logger.debug("Cache hit: {}_{}", fileHash, chunkId);
             LogUtil.logCacheHit(fileHash, chunkId);
+            for (HitListener listener : hitListeners) {
+                listener.chunkHit(item.getKey());
+            }
         }
         
         return item;
     }
     
+    /**
+     * Gets a file chunk from the cache without counting a hit or refreshing its recency,
+     * for the node's own reads such as rebuilding a file or pushing a chunk to its homes.
+     * 
+     * @param fileHash The file hash
+     * @param chunkId The chunk ID
+     * @return The cache item, or null if not found
+     */
+    public CacheItem peekCacheItem(String fileHash, int chunkId) {
+        // Allocation-free lookup; the stored item carries its own key
+        CacheItem item = cache.get(fileHash, chunkId);
+        
+        if (item != null && item.getChunk() == null) {
+            // Concurrent readers of the same spilled chunk share one disk load
+            CacheItem spilled = item;
+            item = diskLoads.execute(spilled.getKey(), () -> loadSpilledItem(spilled));
+        }
+        return item;
+    }
+    
+    /**
+     * Checks if a chunk is cached, in memory or on disk, without loading it or counting a hit.
+     * 
+     * @param fileHash The file hash
+     * @param chunkId The chunk ID
+     * @return True if the chunk is cached
+     */
+    public boolean hasCacheItem(String fileHash, int chunkId) {
+        return cache.get(fileHash, chunkId) != null;
+    }
+    
+    /**
+     * Keeps a file's cached chunks, and those cached while it is pinned, from being evicted,
+     * e.g. while a download collects them to rebuild the file. Pins nest; each needs an
+     * {@link #unpinFile}. The cache may outgrow its limit while pinned chunks fill it.
+     * 
+     * @param fileHash The file hash
+     */
+    public void pinFile(String fileHash) {
+        synchronized (pinnedFiles) {
+            if (pinnedFiles.merge(fileHash, 1, Integer::sum) == 1) {
+                forEachCachedChunk(fileHash, evictionPolicy::pin);
+            }
+        }
+    }
+    
+    /**
+     * Releases a pin taken by {@link #pinFile}, making the file's chunks evictable once no
+     * pin is left.
+     * 
+     * @param fileHash The file hash
+     */
+    public void unpinFile(String fileHash) {
+        synchronized (pinnedFiles) {
+            if (pinnedFiles.computeIfPresent(fileHash, (hash, pins) -> pins > 1 ? pins - 1 : null) != null) {
+                return;
+            }
+            forEachCachedChunk(fileHash, evictionPolicy::unpin);
+        }
+        evictIfNeeded();
+    }
+    
+    private void forEachCachedChunk(String fileHash, Consumer<ChunkKey> action) {
+        BitSet chunks = getCachedChunks(fileHash);
+        for (int chunkId = chunks.nextSetBit(0); chunkId >= 0; chunkId = chunks.nextSetBit(chunkId + 1)) {
+            action.accept(ChunkKey.of(fileHash, chunkId));
+        }
+    }
+    
+    /**
+     * Estimates the expected time to fetch a chunk again after evicting it.
+     * More holders make a fast refetch more likely; without any holder the chunk
+     * cannot be refetched at all.
+     * 
+     * @param fetchLatencyMs The observed fetch latency
+     * @param holderCount The number of peers known to hold the chunk
+     * @return The estimated refetch cost in milliseconds
+     */
+    private double estimateRefetchCost(long fetchLatencyMs, int holderCount) {
+        if (holderCount <= 0) {
+            return ORIGIN_REFETCH_COST_MS;
+        }
+        return Math.max(MIN_REFETCH_COST_MS, (double) fetchLatencyMs / holderCount);
+    }
+    
+    /**
+     * Evicts the chunks with the lowest expected refetch value until the cache fits its size limit.
+     */
+    private void evictIfNeeded() {
+        int evicted = 0;
+        while (evictionPolicy.getTotalSize() > maxCacheBytes) {
+            ChunkKey cacheKey = evictionPolicy.evict();
+            if (cacheKey == null) {
+                break;
+            }
+            
+            CacheItem item = cache.remove(cacheKey);
+            memoryPolicy.remove(cacheKey);
+            if (item != null) {
+                deleteCacheFile(item.getFileHash(), item.getChunkId());
+                logger.debug("Evicted cache item: {}", cacheKey);
+                chunkRemoved(item);
+                evicted++;
+            }
+        }
+        
+        if (evicted > 0) {
+            logger.info("Evicted {} cache items to stay within {} bytes", evicted, maxCacheBytes);
+        }
+    }
+    
+    /**
+     * Reloads a spilled chunk from disk and promotes it back into the memory tier.
+     * 
+     * @param spilled The cache entry without data
+     * @return The cache item with data, or null if the chunk could not be loaded
+     */
+    private CacheItem loadSpilledItem(CacheItem spilled) {
+        ChunkKey cacheKey = spilled.getKey();
+        File file = new File(CACHE_DIR, spilled.getFileHash() + "_" + spilled.getChunkId() + ".zip");
+        PagedChunk data;
+        try {
+            data = readCompressedChunk(file);
+        } catch (IOException e) {
+            logger.error("Error loading cache item from disk: {}", cacheKey, e);
+            if (cache.remove(cacheKey, spilled)) {
+                chunkRemoved(spilled);
+            }
+            evictionPolicy.remove(cacheKey);
+            return null;
+        }
+        
+        CacheItem loaded = copyWithData(spilled, data);
+        if (!cache.replace(cacheKey, spilled, loaded)) {
+            // Raced with another load or a put; use whatever is current
+            CacheItem current = cache.get(cacheKey);
+            return current != null && current.getChunk() != null ? current : loaded;
+        }
+        
+        memoryPolicy.recordInsert(cacheKey, data.length(), data.length());
+        spillIfNeeded();
+        return loaded;
+    }
+    
+    /**
+     * Drops chunk data from memory until the memory tier fits its limit.
+     * Spilled chunks stay on disk and are reloaded on access.
+     */
+    private void spillIfNeeded() {
+        while (memoryPolicy.getTotalSize() > memoryLimitBytes) {
+            ChunkKey cacheKey = memoryPolicy.evict();
+            if (cacheKey == null) {
+                break;
+            }
+            
+            CacheItem item = cache.get(cacheKey);
+            if (item != null && item.getChunk() != null) {
+                cache.replace(cacheKey, item, copyWithData(item, null));
+            }
+        }
+    }
+    
+    /**
+     * Creates a copy of a cache entry with different data.
+     * Entries are replaced rather than mutated, so callers holding an item keep its data.
+     * 
+     * @param item The cache entry
+     * @param data The new data, or null for a spilled entry
+     * @return The copy
+     */
+    private CacheItem copyWithData(CacheItem item, PagedChunk data) {
+        CacheItem copy = new CacheItem(item.getFileHash(), item.getChunkId(), data,
+                item.getOwnerPeerId(), item.getTotalChunks());
+        copy.setTimestamp(item.getTimestamp());
+        copy.setKey(item.getKey());
+        return copy;
+    }
+    
+    /**
+     * Sets the byte limit of the memory tier, spilling chunks to disk if it shrank.
+     * 
+     * @param limitBytes The new limit in bytes
+     */
+    @Override
+    public void setMemoryLimit(long limitBytes) {
+        this.memoryLimitBytes = Math.max(0, limitBytes);
+        spillIfNeeded();
+    }
+    
+    /**
+     * Gets the byte limit of the memory tier.
+     * 
+     * @return The limit in bytes
+     */
+    @Override
+    public long getMemoryLimit() {
+        return memoryLimitBytes;
+    }
+    
+    /**
+     * Gets the number of chunk bytes currently held in memory.
+     * 
+     * @return The memory tier usage in bytes
+     */
+    @Override
+    public long getMemoryUsage() {
+        return memoryPolicy.getTotalSize();
+    }
+    
+    /**
+     * Deletes the on-disk copy of a chunk.
+     * 
+     * @param fileHash The file hash
+     * @param chunkId The chunk ID
+     */
+    private void deleteCacheFile(String fileHash, int chunkId) {
+        File file = new File(CACHE_DIR, fileHash + "_" + chunkId + ".zip");
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+    
     /**
      * Saves a cache item to disk.
      * 
@@ -162,90 +766,171 @@ public class CacheEngine {
         String fileName = item.getFileHash() + "_" + item.getChunkId() + ".zip";
         File file = new File(CACHE_DIR, fileName);
         
-        // Compress the data
-        byte[] compressedData = zipData(item.getData());
-        
-        // Write to disk
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(compressedData);
+        // Compress the pages straight into the file, without a contiguous copy of the chunk
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            ZipEntry entry = new ZipEntry("data");
+            entry.setSize(item.getDataSize());
+            zos.putNextEntry(entry);
+            item.getChunk().writeTo(zos);
+            zos.closeEntry();
         }
     }
     
     /**
-     * Compresses data using ZIP.
+     * Reads and decompresses a chunk saved by {@link #saveCacheItemToDisk(CacheItem)}.
      * 
-     * @param data The data to compress
-     * @return The compressed data
-     * @throws IOException If there's an error compressing the data
+     * @param file The compressed chunk file
+     * @return The chunk data
+     * @throws IOException If there's an error reading the file
      */
-    private byte[] zipData(byte[] data) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
-            ZipEntry entry = new ZipEntry("data");
-            entry.setSize(data.length);
-            zos.putNextEntry(entry);
-            zos.write(data);
-            zos.closeEntry();
+    private PagedChunk readCompressedChunk(File file) throws IOException {
+        try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            ZipEntry entry = zis.getNextEntry();
+            if (entry == null) {
+                throw new IOException("Empty cache file: " + file.getName());
+            }
+            return PagedChunk.readFrom(zis);
         }
-        return baos.toByteArray();
     }
     
     /**
-     * Decompresses data using ZIP.
+     * Reads the uncompressed size of a stored chunk from the zip directory, without inflating it.
      * 
-     * @param compressedData The compressed data
-     * @return The decompressed data
-     * @throws IOException If there's an error decompressing the data
+     * @param file The compressed chunk file
+     * @return The chunk size in bytes
+     * @throws IOException If there's an error reading the file
      */
-    private byte[] unzipData(byte[] compressedData) throws IOException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(compressedData);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        
-        try (ZipInputStream zis = new ZipInputStream(bais)) {
-            ZipEntry entry = zis.getNextEntry();
-            if (entry != null) {
-                byte[] buffer = new byte[1024];
-                int len;
-                while ((len = zis.read(buffer)) > 0) {
-                    baos.write(buffer, 0, len);
-                }
+    private long readStoredSize(File file) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file)) {
+            ZipEntry entry = zipFile.getEntry("data");
+            if (entry == null || entry.getSize() < 0) {
+                throw new IOException("Invalid cache file: " + file.getName());
             }
+            return entry.getSize();
         }
-        
-        return baos.toByteArray();
     }
     
     /**
-     * Splits a file into chunks and caches them.
+     * Splits a file into chunks and caches them. If erasure coding is enabled, the parity
+     * fragments of each stripe are computed and cached too (see {@link FileManifest}).
      * 
      * @param file The file to split and cache
      * @return The file hash of the cached file
      * @throws IOException If there's an error processing the file
      */
     public String cacheFile(File file) throws IOException {
+        return cacheFile(file, null);
+    }
+    
+    /**
+     * Splits a file into chunks and caches them, telling a listener about each chunk cached.
+     * See {@link #cacheFile(File)}.
+     * 
+     * @param file The file to split and cache
+     * @param listener Told about each of the file's chunks once cached, or null
+     * @return The file hash of the cached file
+     * @throws IOException If there's an error processing the file
+     */
+    public String cacheFile(File file, TransferListener listener) throws IOException {
         // Calculate file hash
         String fileHash = HashUtil.sha256File(file);
         
-        // Read the file
-        byte[] fileData = Files.readAllBytes(file.toPath());
-        int totalSize = fileData.length;
+        long totalSize = file.length();
         
         // Calculate number of chunks
-        int numChunks = (int) Math.ceil((double) totalSize / MAX_CHUNK_SIZE);
+        int numChunks = (int) ((totalSize + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+        TransferTracker tracker = new TransferTracker(fileHash, numChunks, totalSize, 0);
+        tracker.addListener(listener);
         
-        // Split into chunks and cache
-        for (int i = 0; i < numChunks; i++) {
-            int start = i * MAX_CHUNK_SIZE;
-            int end = Math.min(start + MAX_CHUNK_SIZE, totalSize);
-            byte[] chunkData = Arrays.copyOfRange(fileData, start, end);
-            
-            putCacheItem(fileHash, i, chunkData, numChunks);
+        ReedSolomon codec = erasureParityShards > 0 && numChunks > 0
+                ? new ReedSolomon(erasureDataShards, erasureParityShards) : null;
+        
+        // Stream the file into paged chunks and cache them, a stripe at a time if erasure-coded
+        List<String> chunkDigests = new ArrayList<>(numChunks);
+        List<String> parityDigests = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            int stripeSize = codec != null ? erasureDataShards : 1;
+            for (int first = 0; first < numChunks; first += stripeSize) {
+                int count = Math.min(stripeSize, numChunks - first);
+                PagedChunk[] stripe = new PagedChunk[count];
+                for (int i = 0; i < count; i++) {
+                    stripe[i] = PagedChunk.readFrom(in, MAX_CHUNK_SIZE);
+                    chunkDigests.add(HashUtil.sha256(stripe[i]));
+                    putCacheItem(fileHash, first + i, stripe[i], numChunks);
+                    tracker.chunkDone(stripe[i].length(), true);
+                }
+                if (codec != null) {
+                    int stripeIndex = first / erasureDataShards;
+                    PagedChunk[] parity = encodeParity(codec, stripe);
+                    for (int j = 0; j < parity.length; j++) {
+                        parityDigests.add(HashUtil.sha256(parity[j]));
+                        putCacheItem(fileHash, numChunks + stripeIndex * erasureParityShards + j, parity[j], numChunks);
+                    }
+                }
+            }
         }
         
-        logger.info("File cached: {}, size: {}, chunks: {}", fileHash, totalSize, numChunks);
+        // Publish the full manifest, so peers can verify each chunk they fetch
+        if (numChunks > 0) {
+            chunkDigests.addAll(parityDigests); // Parity fragment IDs follow the chunk IDs
+            putManifest(codec != null
+                    ? new FileManifest(fileHash, numChunks, totalSize, chunkDigests, erasureDataShards, erasureParityShards)
+                    : new FileManifest(fileHash, numChunks, totalSize, chunkDigests));
+        }
+        
+        logger.info("File cached: {}, size: {}, chunks: {}, parity fragments: {}",
+                fileHash, totalSize, numChunks, parityDigests.size());
         return fileHash;
     }
     
+    /**
+     * Computes the parity fragments of a stripe. Chunks shorter than the first one, and the
+     * chunks missing from a short last stripe, count as zeros.
+     * <p>
+     * The code works byte offset by byte offset, so the stripe is encoded a page at a time:
+     * no shard buffer is ever chunk-sized, which in G1 would be a humongous allocation.
+     */
+    private static PagedChunk[] encodeParity(ReedSolomon codec, PagedChunk[] stripe) {
+        int length = stripe[0].length();
+        byte[][] shards = new byte[codec.getTotalShards()][Math.min(length, PagedChunk.PAGE_SIZE)];
+        List<List<PagedChunk>> pages = new ArrayList<>(codec.getParityShards());
+        for (int j = 0; j < codec.getParityShards(); j++) {
+            pages.add(new ArrayList<>());
+        }
+        for (int offset = 0; offset < length; offset += PagedChunk.PAGE_SIZE) {
+            int pageLength = Math.min(PagedChunk.PAGE_SIZE, length - offset);
+            for (int i = 0; i < stripe.length; i++) {
+                copyPage(stripe[i], offset, shards[i], pageLength);
+            }
+            codec.encodeParity(shards, pageLength);
+            for (int j = 0; j < pages.size(); j++) {
+                pages.get(j).add(PagedChunk.copyOf(shards[codec.getDataShards() + j], 0, pageLength));
+            }
+        }
+        
+        PagedChunk[] parity = new PagedChunk[codec.getParityShards()];
+        for (int j = 0; j < parity.length; j++) {
+            parity[j] = PagedChunk.concat(pages.get(j));
+        }
+        return parity;
+    }
+    
+    /**
+     * Copies a page of a chunk into a shard buffer, padding with zeros past the chunk's end.
+     *
+     * @param chunk The chunk
+     * @param offset The offset of the page in the chunk
+     * @param shard The shard buffer
+     * @param length The number of bytes to fill in the shard buffer
+     */
+    static void copyPage(PagedChunk chunk, int offset, byte[] shard, int length) {
+        int copied = Math.max(0, Math.min(length, chunk.length() - offset));
+        if (copied > 0) {
+            chunk.copyTo(offset, shard, 0, copied);
+        }
+        Arrays.fill(shard, copied, length, (byte) 0);
+    }
+    
     /**
      * Recreates a complete file from cached chunks.
      * 
@@ -255,14 +940,8 @@ public class CacheEngine {
      * @throws IOException If there's an error recreating the file
      */
     public boolean recreateFile(String fileHash, File outputFile) throws IOException {
-        // Find any chunk to get total chunks info
-        CacheItem anyChunk = null;
-        for (CacheItem item : cache.values()) {
-            if (item.getFileHash().equals(fileHash)) {
-                anyChunk = item;
-                break;
-            }
-        }
+        // Every chunk is needed, so chunk 0 is as good as any for the total chunks info
+        CacheItem anyChunk = cache.get(fileHash, 0);
         
         if (anyChunk == null) {
             logger.error("No chunks found for file: {}", fileHash);
@@ -273,17 +952,20 @@ public class CacheEngine {
         
         // Check if we have all chunks
         for (int i = 0; i < totalChunks; i++) {
-            if (getCacheItem(fileHash, i) == null) {
+            if (!hasCacheItem(fileHash, i)) {
                 logger.error("Missing chunk {} of {} for file: {}", i, totalChunks, fileHash);
                 return false;
             }
         }
         
         // Recreate the file
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
+        try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(outputFile))) {
             for (int i = 0; i < totalChunks; i++) {
-                CacheItem chunk = getCacheItem(fileHash, i);
-                fos.write(chunk.getData());
+                CacheItem chunk = peekCacheItem(fileHash, i);
+                if (chunk == null) {
+                    throw new IOException("Chunk " + i + " of file " + fileHash + " is no longer cached");
+                }
+                chunk.getChunk().writeTo(fos);
                 
                 // Log to ledger
                 ledger.addAction(ledger.createAction(ActionType.CACHE_GET, fileHash, i));
@@ -294,7 +976,55 @@ public class CacheEngine {
         logger.info("File recreated: {} with {} chunks", fileHash, totalChunks);
         return true;
     }
-    
+
+    /**
+     * Opens a cached file for reading from start to end. Chunks are loaded one at a time as
+     * the stream reaches them, so the file is never held in memory as a whole.
+     *
+     * @param fileHash The file hash
+     * @return The stream, or null if not every chunk of the file is cached
+     */
+    public InputStream openFile(String fileHash) {
+        CacheItem anyChunk = cache.get(fileHash, 0);
+        if (anyChunk == null) {
+            return null;
+        }
+        int totalChunks = anyChunk.getTotalChunks();
+        for (int i = 0; i < totalChunks; i++) {
+            if (!hasCacheItem(fileHash, i)) {
+                return null;
+            }
+        }
+
+        return new InputStream() {
+            private int nextChunk = 0;
+            private InputStream current = InputStream.nullInputStream();
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int read;
+                while ((read = current.read(b, off, len)) < 0 && nextChunk < totalChunks) {
+                    CacheItem item = peekCacheItem(fileHash, nextChunk);
+                    if (item == null) {
+                        throw new IOException("Chunk " + nextChunk + " of file " + fileHash + " is no longer cached");
+                    }
+                    current = item.getChunk().newInputStream();
+                    nextChunk++;
+                }
+                return read;
+            }
+        };
+    }
+
     /**
      * Gets the cache size (number of chunks).
      * 
@@ -314,19 +1044,19 @@ public class CacheEngine {
         int removed = 0;
         long now = System.currentTimeMillis();
         
-        for (Map.Entry<String, CacheItem> entry : cache.entrySet()) {
-            CacheItem item = entry.getValue();
+        for (CacheItem item : cache.values()) {
             if (now - item.getTimestamp() > maxAgeMs) {
-                String cacheKey = entry.getKey();
-                cache.remove(cacheKey);
+                ChunkKey cacheKey = item.getKey();
+                if (!cache.remove(cacheKey, item)) {
+                    continue;  // Replaced or removed meanwhile
+                }
+                evictionPolicy.remove(cacheKey);
+                memoryPolicy.remove(cacheKey);
                 
                 // Remove from disk
-                String fileName = item.getFileHash() + "_" + item.getChunkId() + ".zip";
-                File file = new File(CACHE_DIR, fileName);
-                if (file.exists()) {
-                    file.delete();
-                }
+                deleteCacheFile(item.getFileHash(), item.getChunkId());
                 
+                chunkRemoved(item);
                 removed++;
             }
         }
@@ -356,4 +1086,83 @@ public class CacheEngine {
     public Map<String, String> listItems() {
         return new HashMap<>(simpleCache);
     }
+
+    /**
+     * A file with chunks in the cache. Costs about 60 bytes of map entry per file, on top of
+     * its hash string (about 100 bytes), which all its cache entries share.
+     */
+    private static class CachedFile {
+        final String fileHash;
+        int chunks = 1; // Never below the number of cached chunks; guarded by the map
+        
+        CachedFile(String fileHash) {
+            this.fileHash = fileHash;
+        }
+    }
+    
+    /**
+     * Listens for chunks added to and removed from the cache.
+     */
+    public interface ChunkListener {
+        /**
+         * Called after a chunk that wasn't cached before has been added. Runs on the
+         * thread that added the chunk, so implementations should return quickly.
+         * 
+         * @param fileHash The file hash
+         * @param chunkId The chunk ID
+         * @param totalChunks The total number of chunks of the file
+         */
+        void chunkCached(String fileHash, int chunkId, int totalChunks);
+        
+        /**
+         * Called after a cached chunk was evicted or cleaned. Runs on the thread that
+         * removed the chunk, so implementations should return quickly.
+         * 
+         * @param fileHash The file hash
+         * @param chunkId The chunk ID
+         */
+        default void chunkRemoved(String fileHash, int chunkId) {
+        }
+    }
+    
+    /**
+     * Listens for files leaving the cache.
+     */
+    public interface RemovalListener {
+        /**
+         * Called after the last cached chunk of a file was evicted or cleaned. Runs on the
+         * thread that removed the chunk, so implementations should return quickly.
+         * 
+         * @param fileHash The file hash
+         */
+        void fileRemoved(String fileHash);
+    }
+    
+    /**
+     * Listens for changes to the recorded manifests.
+     */
+    public interface ManifestListener {
+        /**
+         * Called after {@link #putManifest} changed a file's recorded manifest, e.g. adding
+         * the erasure coding of a file whose chunks are already cached. Runs on the thread
+         * that recorded the manifest, so implementations should return quickly.
+         * 
+         * @param previous The previously recorded manifest, or null if there was none
+         * @param current The manifest now recorded
+         */
+        void manifestChanged(FileManifest previous, FileManifest current);
+    }
+    
+    /**
+     * Listens for cache hits.
+     */
+    public interface HitListener {
+        /**
+         * Called for every chunk served through {@link #getCacheItem}. Runs on the reading
+         * thread, so implementations should return quickly.
+         * 
+         * @param key The key of the chunk
+         */
+        void chunkHit(ChunkKey key);
+    }
 }
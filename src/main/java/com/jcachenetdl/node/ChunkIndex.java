@@ -0,0 +1,287 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.ChunkKey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Open-addressing hash index from chunk keys to values.
+ * <p>
+ * Keys are stored inline as primitives (four hash words and the chunk ID in parallel
+ * arrays), so an entry costs about 44 bytes of table space and no key objects, and a
+ * lookup by hex file hash parses the hash in place without allocating.
+ * Uses linear probing with backward-shift deletion.
+ *
+ * @param <V> The value type
+ */
+public class ChunkIndex<V> {
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.6;
+
+    private long[] words;      // 4 hash words per slot
+    private int[] chunkIds;
+    private Object[] values;   // null marks an empty slot
+    private int size;
+    private int mask;
+    private final ReadWriteLock lock;
+
+    public ChunkIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ChunkIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        allocate(capacity);
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Looks up a value by hex file hash and chunk ID, without allocating.
+     *
+     * @param fileHash The hex file hash
+     * @param chunkId The chunk ID
+     * @return The value, or null if not found or the hash is malformed
+     */
+    public V get(String fileHash, int chunkId) {
+        if (!ChunkKey.isValidHash(fileHash)) {
+            return null;
+        }
+        return get(ChunkKey.parseWord(fileHash, 0), ChunkKey.parseWord(fileHash, 1),
+                ChunkKey.parseWord(fileHash, 2), ChunkKey.parseWord(fileHash, 3), chunkId);
+    }
+
+    /**
+     * Looks up a value by key.
+     *
+     * @param key The chunk key
+     * @return The value, or null if not found
+     */
+    public V get(ChunkKey key) {
+        return get(key.getWord(0), key.getWord(1), key.getWord(2), key.getWord(3), key.getChunkId());
+    }
+
+    @SuppressWarnings("unchecked")
+    private V get(long h0, long h1, long h2, long h3, int chunkId) {
+        lock.readLock().lock();
+        try {
+            int slot = find(h0, h1, h2, h3, chunkId);
+            return slot >= 0 ? (V) values[slot] : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Associates a value with a key.
+     *
+     * @param key The chunk key
+     * @param value The value (not null)
+     * @return The previous value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(ChunkKey key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported");
+        }
+
+        lock.writeLock().lock();
+        try {
+            long h0 = key.getWord(0), h1 = key.getWord(1), h2 = key.getWord(2), h3 = key.getWord(3);
+            int slot = find(h0, h1, h2, h3, key.getChunkId());
+            if (slot >= 0) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+
+            if (size + 1 > values.length * MAX_LOAD) {
+                resize(values.length << 1);
+                slot = find(h0, h1, h2, h3, key.getChunkId());
+            }
+
+            store(-(slot + 1), h0, h1, h2, h3, key.getChunkId(), value);
+            size++;
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the value of a key only if it is currently mapped to the expected value.
+     *
+     * @param key The chunk key
+     * @param expected The expected current value (compared by identity)
+     * @param value The new value (not null)
+     * @return True if the value was replaced
+     */
+    public boolean replace(ChunkKey key, V expected, V value) {
+        lock.writeLock().lock();
+        try {
+            int slot = find(key.getWord(0), key.getWord(1), key.getWord(2), key.getWord(3), key.getChunkId());
+            if (slot < 0 || values[slot] != expected) {
+                return false;
+            }
+            values[slot] = value;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key The chunk key
+     * @return The removed value, or null if the key was not present
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(ChunkKey key) {
+        lock.writeLock().lock();
+        try {
+            int slot = find(key.getWord(0), key.getWord(1), key.getWord(2), key.getWord(3), key.getChunkId());
+            if (slot < 0) {
+                return null;
+            }
+            V previous = (V) values[slot];
+            delete(slot);
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a key only if it is currently mapped to the expected value.
+     *
+     * @param key The chunk key
+     * @param expected The expected current value (compared by identity)
+     * @return True if the key was removed
+     */
+    public boolean remove(ChunkKey key, V expected) {
+        lock.writeLock().lock();
+        try {
+            int slot = find(key.getWord(0), key.getWord(1), key.getWord(2), key.getWord(3), key.getChunkId());
+            if (slot < 0 || values[slot] != expected) {
+                return false;
+            }
+            delete(slot);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return The entry count
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets a snapshot of all values.
+     *
+     * @return The values
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        lock.readLock().lock();
+        try {
+            List<V> result = new ArrayList<>(size);
+            for (Object value : values) {
+                if (value != null) {
+                    result.add((V) value);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the slot of a key.
+     *
+     * @return The slot index if found, otherwise {@code -(emptySlot + 1)}
+     */
+    private int find(long h0, long h1, long h2, long h3, int chunkId) {
+        int slot = ChunkKey.hash(h0, chunkId) & mask;
+        while (values[slot] != null) {
+            int base = slot << 2;
+            if (chunkIds[slot] == chunkId && words[base] == h0 && words[base + 1] == h1
+                    && words[base + 2] == h2 && words[base + 3] == h3) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -(slot + 1);
+    }
+
+    private void store(int slot, long h0, long h1, long h2, long h3, int chunkId, Object value) {
+        int base = slot << 2;
+        words[base] = h0;
+        words[base + 1] = h1;
+        words[base + 2] = h2;
+        words[base + 3] = h3;
+        chunkIds[slot] = chunkId;
+        values[slot] = value;
+    }
+
+    /**
+     * Deletes a slot and shifts later entries of the same probe run back,
+     * so lookups never stop early at a hole.
+     */
+    private void delete(int slot) {
+        values[slot] = null;
+        size--;
+
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (values[next] != null) {
+            int home = ChunkKey.hash(words[next << 2], chunkIds[next]) & mask;
+            // Move the entry if its home slot is not cyclically within (hole, next]
+            boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stays) {
+                int from = next << 2;
+                store(hole, words[from], words[from + 1], words[from + 2], words[from + 3], chunkIds[next], values[next]);
+                values[next] = null;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldWords = words;
+        int[] oldChunkIds = chunkIds;
+        Object[] oldValues = values;
+
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int base = i << 2;
+                int slot = find(oldWords[base], oldWords[base + 1], oldWords[base + 2], oldWords[base + 3], oldChunkIds[i]);
+                store(-(slot + 1), oldWords[base], oldWords[base + 1], oldWords[base + 2], oldWords[base + 3],
+                        oldChunkIds[i], oldValues[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.words = new long[capacity << 2];
+        this.chunkIds = new int[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+}
@@ -0,0 +1,372 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.CacheItem;
+import com.jcachenetdl.common.ChunkKey;
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.common.PeerInfo;
+import com.jcachenetdl.config.ConfigurationManager;
+import com.jcachenetdl.network.PeerDiscovery;
+import com.jcachenetdl.network.PeerHandler;
+import com.jcachenetdl.util.ConsistentHashRing;
+import com.jcachenetdl.util.LogUtil;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assigns each chunk a set of home peers with a consistent-hash ring over this node and the
+ * active peers, so a chunk can be looked up at the peers responsible for it instead of by
+ * asking every peer in turn.
+ * <p>
+ * Uploaded chunks are pushed to their home peers. When peers join or leave, only the
+ * chunks whose home set changed are moved: each such chunk is pushed to its new homes by the
+ * first of its previous homes that is still around, so it is sent once rather than by every
+ * holder. Membership changes are collected for a short delay before chunks move, so a peer
+ * that drops out and comes back moves nothing. The cached chunks are indexed by their place
+ * on the ring (see {@link PlacementIndex}), so a rebalance only looks at the chunks in the
+ * ring ranges that changed.
+ * Pushes run one at a time on a background thread.
+ * <p>
+ * A fragment of an erasure-coded file (see {@link FileManifest}) has a single home instead,
+ * since its stripe's parity already covers the loss of a peer: the fragments of a stripe
+ * take consecutive peers from the stripe's place on the ring, so they land on different
+ * peers as long as there are enough.
+ */
+public class ChunkPlacement implements PeerDiscovery.MembershipListener, CacheEngine.ChunkListener,
+        CacheEngine.ManifestListener {
+    private final String peerId;
+    private final CacheEngine cacheEngine;
+    private final PeerDiscovery peerDiscovery;
+    private final PeerHandler peerHandler;
+    private final boolean enabled;
+    private final int replicas;
+    private final int maxReplicas;
+    private final long rebalanceDelayMs;
+    private final PlacementIndex index;
+    private final ScheduledExecutorService executor;
+    private final Logger logger;
+
+    // Guarded by this
+    private final ConsistentHashRing ring;
+    private ConsistentHashRing placedRing; // The ring before the changes awaiting a rebalance, else null
+
+    public ChunkPlacement(String peerId, CacheEngine cacheEngine, PeerDiscovery peerDiscovery,
+                          PeerHandler peerHandler) {
+        this.peerId = peerId;
+        this.cacheEngine = cacheEngine;
+        this.peerDiscovery = peerDiscovery;
+        this.peerHandler = peerHandler;
+        ConfigurationManager config = ConfigurationManager.getInstance();
+        this.enabled = config.getBoolean("cache.placement.enabled", true);
+        this.replicas = Math.max(1, config.getInt("cache.placement.replicas", 3));
+        this.maxReplicas = config.getInt("cache.replication.max.replicas", 8);
+        this.rebalanceDelayMs = config.getLong("cache.placement.rebalance.delay.ms", 5000);
+        this.ring = new ConsistentHashRing(config.getInt("cache.placement.virtual.nodes", 64));
+        this.index = new PlacementIndex(replicas, cacheEngine::getManifest);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "placement");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.logger = LogUtil.getLogger(ChunkPlacement.class);
+
+        ring.addNode(peerId);
+        peerHandler.setPlacementCheck(this::isHome);
+        peerDiscovery.addMembershipListener(this);
+        for (PeerInfo peer : peerDiscovery.getActivePeers()) {
+            ring.addNode(peer.getId());
+        }
+
+        if (enabled) {
+            // Listen first so no chunk cached meanwhile is missed; indexing twice is harmless
+            cacheEngine.addChunkListener(this);
+            cacheEngine.addManifestListener(this);
+            for (String fileHash : cacheEngine.getCachedFiles()) {
+                BitSet held = cacheEngine.getCachedChunks(fileHash);
+                for (int chunkId = held.nextSetBit(0); chunkId >= 0; chunkId = held.nextSetBit(chunkId + 1)) {
+                    index.add(fileHash, chunkId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the IDs of a chunk's home peers, primary first. May include this node.
+     *
+     * @param fileHash The file hash
+     * @param chunkId The chunk ID
+     * @return The home peer IDs
+     */
+    public synchronized List<String> getHomes(String fileHash, int chunkId) {
+        FileManifest manifest = cacheEngine.getManifest(fileHash);
+        return homes(ring, manifest, fileHash, chunkId, replicasOf(manifest));
+    }
+
+    /**
+     * Gets the first {@code count} peers of a chunk's place on the ring: its home peers,
+     * followed by the peers next in line, e.g. for extra copies of a popular chunk.
+     *
+     * @param fileHash The file hash
+     * @param chunkId The chunk ID
+     * @param count The number of peers wanted
+     * @return The peer IDs, closest first. May include this node
+     */
+    public synchronized List<String> getHomes(String fileHash, int chunkId, int count) {
+        return homes(ring, cacheEngine.getManifest(fileHash), fileHash, chunkId, count);
+    }
+
+    /**
+     * Checks if this node may be pushed a chunk: it is one of the chunk's home peers, or one
+     * of the peers after them that take extra copies of a hot chunk.
+     *
+     * @param fileHash The file hash
+     * @param chunkId The chunk ID
+     * @return True if this node is among them
+     */
+    public boolean isHome(String fileHash, int chunkId) {
+        return getHomes(fileHash, chunkId, Math.max(getReplicas(fileHash), maxReplicas)).contains(peerId);
+    }
+
+    /**
+     * Gets the number of home peers per chunk of a file.
+     *
+     * @param fileHash The file hash
+     * @return The replication factor: 1 for an erasure-coded file
+     */
+    public int getReplicas(String fileHash) {
+        return replicasOf(cacheEngine.getManifest(fileHash));
+    }
+
+    private int replicasOf(FileManifest manifest) {
+        return manifest != null && manifest.isErasureCoded() ? 1 : replicas;
+    }
+
+    /**
+     * Gets the first {@code count} peers of a chunk's place on a ring.
+     */
+    static List<String> homes(ConsistentHashRing ring, FileManifest manifest, String fileHash,
+                                      int chunkId, int count) {
+        if (manifest == null || !manifest.isErasureCoded() || chunkId >= manifest.getFragmentCount()) {
+            return ring.getNodes(PlacementIndex.placementKey(manifest, fileHash, chunkId), count);
+        }
+
+        int stripe = manifest.getStripe(chunkId);
+        int[] fragments = manifest.getStripeFragments(stripe);
+        int position = 0;
+        while (fragments[position] != chunkId) {
+            position++;
+        }
+        List<String> nodes = ring.getNodes(PlacementIndex.placementKey(manifest, fileHash, chunkId),
+                fragments.length + count - 1);
+        List<String> homes = new ArrayList<>(Math.min(count, nodes.size()));
+        for (int i = 0; i < count && i < nodes.size(); i++) {
+            homes.add(nodes.get((position + i) % nodes.size()));
+        }
+        return homes;
+    }
+
+    @Override
+    public void chunkCached(String fileHash, int chunkId, int totalChunks) {
+        index.add(fileHash, chunkId);
+    }
+
+    @Override
+    public void chunkRemoved(String fileHash, int chunkId) {
+        index.remove(fileHash, chunkId);
+    }
+
+    @Override
+    public void manifestChanged(FileManifest previous, FileManifest current) {
+        index.reindex(current.getFileHash(), previous, cacheEngine.getCachedChunks(current.getFileHash()));
+    }
+
+    /**
+     * Pushes a cached chunk to the given peers now, on the caller's thread.
+     *
+     * @param fileHash The file hash
+     * @param chunkId The chunk ID
+     * @param peerIds The peers to push to; this node and unknown or inactive peers are skipped
+     * @return The number of peers that stored the chunk
+     */
+    public int pushNow(String fileHash, int chunkId, List<String> peerIds) {
+        return push(fileHash, chunkId, peerIds);
+    }
+
+    /**
+     * Orders peers for a chunk lookup: the chunk's active home peers first, primary first,
+     * then the other peers in their given order.
+     *
+     * @param fileHash The file hash
+     * @param chunkId The chunk ID
+     * @param peers The peers to order
+     * @return The ordered peers
+     */
+    public List<PeerInfo> orderForLookup(String fileHash, int chunkId, List<PeerInfo> peers) {
+        Set<PeerInfo> ordered = new LinkedHashSet<>(peers.size());
+        for (String home : getHomes(fileHash, chunkId)) {
+            for (PeerInfo peer : peers) {
+                if (peer.getId().equals(home)) {
+                    ordered.add(peer);
+                }
+            }
+        }
+        ordered.addAll(peers);
+        return new ArrayList<>(ordered);
+    }
+
+    /**
+     * Pushes the cached chunks of a file to their home peers in the background.
+     *
+     * @param fileHash The file hash
+     */
+    public void placeFile(String fileHash) {
+        if (!enabled) {
+            return;
+        }
+        submit(() -> {
+            ConsistentHashRing current;
+            synchronized (this) {
+                current = ring.copy();
+            }
+            int pushed = 0;
+            FileManifest manifest = cacheEngine.getManifest(fileHash);
+            BitSet held = cacheEngine.getCachedChunks(fileHash);
+            for (int chunkId = held.nextSetBit(0); chunkId >= 0; chunkId = held.nextSetBit(chunkId + 1)) {
+                pushed += push(fileHash, chunkId, homes(current, manifest, fileHash, chunkId, replicasOf(manifest)));
+            }
+            logger.info("Placed {} chunk copies of {} on their home peers", pushed, fileHash);
+        });
+    }
+
+    @Override
+    public void peerJoined(PeerInfo peer) {
+        changeMembership(peer.getId(), true);
+    }
+
+    @Override
+    public void peerLeft(PeerInfo peer) {
+        changeMembership(peer.getId(), false);
+    }
+
+    /**
+     * Applies a membership change to the ring and schedules a rebalance, unless one is
+     * already waiting: that one then covers this change too.
+     */
+    private void changeMembership(String nodeId, boolean joined) {
+        synchronized (this) {
+            ConsistentHashRing before = placedRing == null ? ring.copy() : null;
+            if (!(joined ? ring.addNode(nodeId) : ring.removeNode(nodeId)) || !enabled || before == null) {
+                return;
+            }
+            placedRing = before;
+        }
+        try {
+            executor.schedule(this::rebalance, rebalanceDelayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Chunk placement is shut down");
+        }
+    }
+
+    /**
+     * Moves the cached chunks whose home set changed since the last rebalance to their new homes.
+     */
+    private void rebalance() {
+        ConsistentHashRing before;
+        ConsistentHashRing after;
+        synchronized (this) {
+            before = placedRing;
+            after = ring.copy();
+            placedRing = null;
+        }
+
+        List<ChunkKey> candidates = index.chunksIn(after.changedRanges(before, index.getDepth()));
+        int moved = 0;
+        int pushed = 0;
+        for (ChunkKey candidate : candidates) {
+            String fileHash = candidate.getFileHash();
+            int chunkId = candidate.getChunkId();
+            if (!cacheEngine.hasCacheItem(fileHash, chunkId)) {
+                // Removed before it was indexed, so its removal found nothing to remove
+                index.remove(fileHash, chunkId);
+                continue;
+            }
+            FileManifest manifest = cacheEngine.getManifest(fileHash);
+            int count = replicasOf(manifest);
+            List<String> oldHomes = homes(before, manifest, fileHash, chunkId, count);
+            List<String> newHomes = homes(after, manifest, fileHash, chunkId, count);
+            if (oldHomes.equals(newHomes)) {
+                continue;
+            }
+
+            // The first previous home still on the ring sends the chunk; if none is, every holder does
+            String sender = null;
+            for (String home : oldHomes) {
+                if (after.containsNode(home)) {
+                    sender = home;
+                    break;
+                }
+            }
+            if (sender != null && !sender.equals(peerId)) {
+                continue;
+            }
+
+            List<String> gained = new ArrayList<>(newHomes);
+            gained.removeAll(oldHomes);
+            moved++;
+            pushed += push(fileHash, chunkId, gained);
+        }
+        if (moved > 0) {
+            logger.info("Rebalanced {} of {} chunks in moved ring ranges to new home peers ({} copies sent)",
+                    moved, candidates.size(), pushed);
+        }
+    }
+
+    /**
+     * Pushes a cached chunk to the given peers, skipping this node and unknown or inactive peers.
+     *
+     * @return The number of peers that stored the chunk
+     */
+    private int push(String fileHash, int chunkId, List<String> homes) {
+        CacheItem item = null;
+        int stored = 0;
+        for (String home : homes) {
+            PeerInfo peer = home.equals(peerId) ? null : peerDiscovery.getPeer(home);
+            if (peer == null || !peer.isActive()) {
+                continue;
+            }
+            if (item == null) {
+                item = cacheEngine.peekCacheItem(fileHash, chunkId);
+                if (item == null) {
+                    return stored;  // Evicted meanwhile
+                }
+            }
+            if (peerHandler.pushChunk(peer, item)) {
+                stored++;
+            }
+        }
+        return stored;
+    }
+
+    private void submit(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Chunk placement is shut down");
+        }
+    }
+
+    /**
+     * Stops moving chunks.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
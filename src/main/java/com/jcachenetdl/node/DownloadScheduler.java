@@ -0,0 +1,1235 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.CacheItem;
+import com.jcachenetdl.common.ChunkKey;
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.common.PagedChunk;
+import com.jcachenetdl.common.PeerInfo;
+import com.jcachenetdl.network.ChunkSource;
+import com.jcachenetdl.network.PeerHandler;
+import com.jcachenetdl.network.PeerHandler.ChunkPiece;
+import com.jcachenetdl.util.ConcurrencyLimit;
+import com.jcachenetdl.util.LogUtil;
+import com.jcachenetdl.util.SingleFlight;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Schedules the chunk requests of one file download across all peers and hands the fetched
+ * chunks to a {@link ChunkSink}: the cache (see {@link #cacheSink}) or straight into the
+ * output file (see {@link StreamingDownload}).
+ * <p>
+ * Every peer is kept busy with as many requests as its {@link ConcurrencyLimit} allows, each
+ * for the rarest missing chunk it may hold. Requests that become overdue are hedged with other
+ * peers. The scheduler works on the fragments of the file's {@link FileManifest}, so an
+ * erasure-coded file is done once every stripe can be rebuilt (see {@link ErasureSink}).
+ * Without erasure coding every chunk is a stripe of its own.
+ */
+public class DownloadScheduler {
+    private final String fileHash;
+    private final FileManifest manifest;
+    private final int totalChunks;
+    private final int fragmentCount;
+    private final ChunkSource chunkSource;
+    private final ChunkSink sink;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final int maxPeerFailures;
+    private final HedgePolicy hedgePolicy;
+    private final SingleFlight<ChunkKey, CacheItem> fetchFlights;
+    private final int batchSize;
+    private final int pieceSize;
+    private final CompletableFuture<Boolean> completion;
+    private final Logger logger;
+
+    // Guarded by this
+    private final List<PeerState> peers;
+    private final BitSet completed; // Fragments the sink has
+    private final Map<Integer, List<Request>> outstanding;
+    private final int[] availability; // Peers that may still supply each fragment
+    private final int[] tiebreak; // Random rank among fragments of equal availability
+    private final TreeSet<Integer> pickable; // Fragments some peer may supply that are neither done nor requested, rarest first
+    private final BitSet stripesDone; // Stripes whose chunks the sink all has
+    private final int[] stripePresent; // Fragments of each stripe the sink has
+    private final int[] stripeRequested; // Fragments of each stripe with a request outstanding
+    private final BitSet openStripes; // Stripes with fewer fragments present or requested than they need
+    private final Random random;
+    private int remaining; // Stripes not done
+    private int completedChunks;
+    private int openStripeCount;
+    private int requestsInFlight;
+    private int hedgedRequests;
+    private int priorityStart; // Chunks [priorityStart, priorityEnd) go first
+    private int priorityEnd;
+    private boolean cancelled; // Set once the download ends, or when it is cancelled
+    private boolean started;
+    private boolean finished;
+    private ScheduledFuture<?> hedgeTimer;
+    private long hedgeTimerAt;
+
+    public DownloadScheduler(FileManifest manifest, List<PeerInfo> peers,
+                             ChunkSource chunkSource, ChunkSink sink, ExecutorService executor,
+                             ScheduledExecutorService timer,
+                             Function<PeerInfo, ConcurrencyLimit> peerLimits, int maxPeerFailures,
+                             HedgePolicy hedgePolicy, SingleFlight<ChunkKey, CacheItem> fetchFlights,
+                             int batchSize, int pieceSize) {
+        this(manifest, peers, chunkSource, sink, executor, timer, peerLimits, maxPeerFailures, hedgePolicy,
+                fetchFlights, batchSize, pieceSize, new Random());
+    }
+
+    /**
+     * Creates a scheduler that breaks ties between equally rare fragments with the given random source.
+     */
+    DownloadScheduler(FileManifest manifest, List<PeerInfo> peers,
+                      ChunkSource chunkSource, ChunkSink sink, ExecutorService executor,
+                      ScheduledExecutorService timer,
+                      Function<PeerInfo, ConcurrencyLimit> peerLimits, int maxPeerFailures,
+                      HedgePolicy hedgePolicy, SingleFlight<ChunkKey, CacheItem> fetchFlights,
+                      int batchSize, int pieceSize, Random random) {
+        this.fileHash = manifest.getFileHash();
+        this.manifest = manifest;
+        this.totalChunks = manifest.getTotalChunks();
+        this.fragmentCount = manifest.getFragmentCount();
+        this.chunkSource = chunkSource;
+        this.sink = sink;
+        this.executor = executor;
+        this.timer = timer;
+        this.maxPeerFailures = Math.max(1, maxPeerFailures);
+        this.hedgePolicy = hedgePolicy;
+        this.fetchFlights = fetchFlights;
+        this.batchSize = batchSize;
+        this.pieceSize = pieceSize;
+        this.logger = LogUtil.getLogger(DownloadScheduler.class);
+
+        this.peers = new ArrayList<>(peers.size());
+        for (PeerInfo peer : peers) {
+            this.peers.add(new PeerState(peer, fragmentCount, peerLimits.apply(peer)));
+        }
+        this.completed = new BitSet(fragmentCount);
+        this.outstanding = new HashMap<>();
+        this.availability = new int[fragmentCount];
+        this.tiebreak = new int[fragmentCount];
+        this.pickable = new TreeSet<>(Comparator.<Integer>comparingInt(id -> manifest.isParity(id) ? 1 : 0)
+                .thenComparingInt(id -> availability[id])
+                .thenComparingInt(id -> tiebreak[id])
+                .thenComparingInt(id -> id)); // Random ranks may collide, and the set keeps one of equals
+        int stripeCount = manifest.getStripeCount();
+        this.stripesDone = new BitSet(stripeCount);
+        this.stripePresent = new int[stripeCount];
+        this.stripeRequested = new int[stripeCount];
+        this.openStripes = new BitSet(stripeCount);
+        this.random = random;
+        this.completion = new CompletableFuture<>();
+
+        // Fragments the sink already has (e.g. chunk 0, or from an earlier attempt) need no request
+        for (int chunkId = 0; chunkId < fragmentCount; chunkId++) {
+            availability[chunkId] = peers.size();
+            tiebreak[chunkId] = random.nextInt();
+            if (sink.hasChunk(chunkId)) {
+                completed.set(chunkId);
+                stripePresent[manifest.getStripe(chunkId)]++;
+            }
+        }
+        for (int stripe = 0; stripe < stripeCount; stripe++) {
+            if (isStripeComplete(stripe)) {
+                stripesDone.set(stripe);
+                completedChunks += manifest.getStripeChunks(stripe);
+            } else {
+                remaining++;
+            }
+            refreshStripe(stripe);
+        }
+        for (int chunkId = 0; chunkId < fragmentCount; chunkId++) {
+            refreshPickable(chunkId);
+        }
+    }
+
+    /**
+     * Starts the download. It runs until the sink has every chunk or no peer can supply a
+     * missing chunk, without a thread of its own: each finished request and each hedge
+     * timer sends what requests are due next.
+     *
+     * @return Completes with true once all chunks were fetched, false if the download failed
+     *         or was cancelled
+     */
+    public synchronized CompletableFuture<Boolean> start() {
+        if (!started) {
+            started = true;
+            logger.info("Downloading {} of {} chunks of {} from {} peers",
+                    totalChunks - completedChunks, totalChunks, fileHash, peers.size());
+            advance();
+        }
+        return completion;
+    }
+
+    /**
+     * Cancels the download: it completes with false and no more requests go out.
+     * May be called before the download starts.
+     * <p>
+     * Once the download ends, whether done, failed or cancelled, the requests still queued
+     * never go out and running batches stop at their next chunk. Requests already on the wire
+     * can't be recalled; they carry a deadline, past which the peer drops them unanswered.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        advance();
+    }
+
+    /**
+     * Moves the download on after anything that may change what to request: sends the
+     * requests that are due, arms the timer for the next overdue request, and ends the
+     * download once it is done or can't go on.
+     */
+    private void advance() {
+        if (!started || finished) {
+            return;
+        }
+        if (remaining == 0) {
+            if (hedgedRequests > 0) {
+                logger.debug("Download of {} sent {} hedged requests", fileHash, hedgedRequests);
+            }
+            finish(true);
+            return;
+        }
+        if (cancelled) {
+            logger.info("Download of {} cancelled at {} of {} chunks", fileHash, completedChunks, totalChunks);
+            finish(false);
+            return;
+        }
+
+        long nextHedgeMs;
+        try {
+            dispatch();
+            nextHedgeMs = isEndgame() ? hedge(false) : hasPriority() ? hedge(true) : 0;
+        } catch (RejectedExecutionException e) {
+            logger.warn("Download of {} stopped: executor shut down", fileHash);
+            finish(false);
+            return;
+        }
+        if (requestsInFlight == 0) {
+            logger.error("No peer can supply chunk {} of file {}", firstMissingChunk(), fileHash);
+            finish(false);
+            return;
+        }
+        if (nextHedgeMs > 0) {
+            armHedgeTimer(System.currentTimeMillis() + nextHedgeMs);
+        }
+    }
+
+    /**
+     * Makes sure the download is advanced at the given time, unless it already will be by then.
+     */
+    private void armHedgeTimer(long at) {
+        if (hedgeTimer != null && !hedgeTimer.isDone() && hedgeTimerAt <= at) {
+            return;
+        }
+        if (hedgeTimer != null) {
+            hedgeTimer.cancel(false);
+        }
+        hedgeTimerAt = at;
+        try {
+            hedgeTimer = timer.schedule(this::onHedgeTimer, Math.max(1, at - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            hedgeTimer = null; // Shutting down; finished requests still advance the download
+        }
+    }
+
+    private synchronized void onHedgeTimer() {
+        advance();
+    }
+
+    /**
+     * Ends the download. The completion runs on the executor, so its callbacks don't run
+     * under this scheduler's monitor.
+     */
+    private void finish(boolean success) {
+        finished = true;
+        cancelled = true;
+        if (hedgeTimer != null) {
+            hedgeTimer.cancel(false);
+        }
+        try {
+            executor.execute(() -> completion.complete(success));
+        } catch (RejectedExecutionException e) {
+            completion.complete(success);
+        }
+    }
+
+    /**
+     * Records the chunks a peer holds, as listed in its bitfield, so it is only asked for those.
+     * Chunks the peer has announced with a HAVE in the meantime stay available.
+     *
+     * @param peer The peer
+     * @param held The IDs of the chunks the peer holds
+     */
+    public synchronized void setPeerChunks(PeerInfo peer, BitSet held) {
+        PeerState state = findPeer(peer.getId());
+        if (state == null) {
+            return;
+        }
+        state.held.clear();
+        state.held.or(held);
+        for (int chunkId = held.nextClearBit(0); chunkId < fragmentCount; chunkId = held.nextClearBit(chunkId + 1)) {
+            if (!state.announced.get(chunkId)) {
+                markLacking(state, chunkId);
+            }
+        }
+    }
+
+    /**
+     * Records that a peer has just cached a chunk, making it a candidate for that chunk again.
+     *
+     * @param peerId The ID of the peer
+     * @param chunkId The chunk ID
+     */
+    public synchronized void recordHave(String peerId, int chunkId) {
+        PeerState state = findPeer(peerId);
+        if (state == null || state.dropped || chunkId < 0 || chunkId >= fragmentCount) {
+            return;
+        }
+        state.announced.set(chunkId);
+        if (state.lacks.get(chunkId)) {
+            state.lacks.clear(chunkId);
+            setAvailability(chunkId, availability[chunkId] + 1);
+            advance();
+        }
+    }
+
+    /**
+     * Gives a range of chunks priority over the rest of the file, replacing the previous
+     * range, e.g. the window ahead of a media player's read position.
+     * <p>
+     * The stripes in the range are requested in file order before anything else, and their
+     * overdue requests are hedged without waiting for endgame mode. Chunks beyond the range
+     * are fetched rarest first with what capacity is left, and every peer keeps a slot free
+     * for the range, so a chunk entering it never waits for a whole pipeline of other chunks.
+     *
+     * @param fromChunk The first chunk of the range
+     * @param chunkCount The number of chunks in the range
+     */
+    public synchronized void prioritize(int fromChunk, int chunkCount) {
+        priorityStart = Math.max(0, fromChunk);
+        priorityEnd = (int) Math.min(totalChunks, (long) priorityStart + Math.max(0, chunkCount));
+        advance();
+    }
+
+    private boolean hasPriority() {
+        return priorityStart < priorityEnd
+                && stripesDone.nextClearBit(manifest.getStripe(priorityStart)) <= manifest.getStripe(priorityEnd - 1);
+    }
+
+    private boolean isPrioritized(int chunkId) {
+        int stripe = manifest.getStripe(chunkId);
+        return priorityStart < priorityEnd
+                && stripe >= manifest.getStripe(priorityStart) && stripe <= manifest.getStripe(priorityEnd - 1);
+    }
+
+    private PeerState findPeer(String peerId) {
+        for (PeerState state : peers) {
+            if (state.peer.getId().equals(peerId)) {
+                return state;
+            }
+        }
+        return null;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    /**
+     * Gets the number of chunks the sink has, counting the chunks of complete stripes only.
+     *
+     * @return The completed chunk count
+     */
+    public synchronized int getCompletedChunks() {
+        return completedChunks;
+    }
+
+    /**
+     * Gets the number of chunks the sink still needs.
+     *
+     * @return The missing chunk count
+     */
+    public synchronized int getRemainingChunks() {
+        return totalChunks - completedChunks;
+    }
+
+    /**
+     * Checks if the sink has every chunk of a stripe, fetched or rebuilt from its fragments.
+     */
+    private boolean isStripeComplete(int stripe) {
+        int first = manifest.getStripeFragments(stripe)[0];
+        for (int chunkId = first; chunkId < first + manifest.getStripeChunks(stripe); chunkId++) {
+            if (!completed.get(chunkId) && (!manifest.isErasureCoded() || !sink.hasChunk(chunkId))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a fragment is no longer needed: the sink has it, or its whole stripe.
+     */
+    private boolean isDone(int chunkId) {
+        return completed.get(chunkId) || stripesDone.get(manifest.getStripe(chunkId));
+    }
+
+    /**
+     * Updates whether a stripe still needs more fragments requested than it has.
+     */
+    private void refreshStripe(int stripe) {
+        boolean open = !stripesDone.get(stripe)
+                && stripePresent[stripe] + stripeRequested[stripe] < manifest.getStripeChunks(stripe);
+        if (open != openStripes.get(stripe)) {
+            openStripes.set(stripe, open);
+            openStripeCount += open ? 1 : -1;
+        }
+    }
+
+    private int firstMissingChunk() {
+        int stripe = stripesDone.nextClearBit(0);
+        int first = manifest.getStripeFragments(stripe)[0];
+        return completed.nextClearBit(first);
+    }
+
+    /**
+     * Fills the free request slots of every usable peer.
+     * <p>
+     * A peer's slots are what the other downloads from it leave of its {@link ConcurrencyLimit},
+     * and at least one, so a download can't be starved. The limit is shared by every download
+     * from the peer and fed the latency of each request: it grows while latencies stay flat
+     * and shrinks when they inflate or requests time out, so a fast peer is kept busy while a
+     * slow one isn't buried in requests it can only queue.
+     * <p>
+     * The requests assigned to a peer in one round go out as batches of up to {@code batchSize}
+     * chunks, each answered as a stream on a single connection. To keep batches from shrinking
+     * to one chunk, a peer's pipeline is only refilled once half of it is free.
+     */
+    private void dispatch() {
+        for (PeerState state : peers) {
+            int othersInFlight = state.limit.getInFlight() - state.inFlight;
+            state.depth = Math.max(1, state.limit.getLimit() - othersInFlight);
+        }
+
+        // A batching peer is refilled once half its pipeline is free, so its requests go out in batches
+        List<PeerState> refill = new ArrayList<>(peers.size());
+        for (PeerState state : peers) {
+            int free = state.depth - state.inFlight;
+            if (!isBatching(state) || state.inFlight == 0 || free >= Math.max(1, state.depth / 2)) {
+                refill.add(state);
+            }
+        }
+
+        Map<PeerState, List<Request>> assignments = new LinkedHashMap<>();
+        boolean assigned = true;
+        // Round-robin one request per peer per pass, so early peers don't take every chunk
+        while (assigned) {
+            assigned = false;
+            for (PeerState state : refill) {
+                if (!hasFreeSlot(state)) {
+                    continue;
+                }
+                int chunkId = pickChunk(state);
+                if (chunkId < 0) {
+                    continue;
+                }
+                assignments.computeIfAbsent(state, k -> new ArrayList<>()).add(register(state, chunkId));
+                assigned = true;
+            }
+        }
+
+        for (Map.Entry<PeerState, List<Request>> entry : assignments.entrySet()) {
+            List<Request> requests = entry.getValue();
+            if (requests.size() > 1 && isBatching(entry.getKey())) {
+                for (int i = 0; i < requests.size(); i += batchSize) {
+                    List<Request> batch = requests.subList(i, Math.min(requests.size(), i + batchSize));
+                    executor.execute(() -> fetchBatch(entry.getKey(), batch));
+                }
+            } else {
+                for (Request request : requests) {
+                    executor.execute(() -> fetch(request));
+                }
+            }
+        }
+    }
+
+    private boolean isBatching(PeerState state) {
+        return batchSize > 1 && state.batching;
+    }
+
+    /**
+     * Checks if the download is in endgame mode: every stripe that isn't done has enough
+     * fragment requests outstanding, so free slots go to hedging overdue requests.
+     */
+    private boolean isEndgame() {
+        return remaining > 0 && openStripeCount == 0;
+    }
+
+    /**
+     * Sends hedged requests for chunks whose requests are overdue, i.e. outstanding longer than
+     * the serving peer's usual round trip (see {@link HedgePolicy}). The first response wins
+     * and the other requests for the chunk are cancelled. An overdue fragment of an
+     * erasure-coded file is hedged with another fragment of its stripe, so the stripe completes
+     * with whichever fragments arrive first; a large chunk is split into pieces for several
+     * peers; otherwise one more peer is asked for the whole chunk.
+     *
+     * @param priorityOnly Whether to only hedge the requests of the prioritized chunks
+     * @return Milliseconds until the next request becomes overdue, or 0 if none can be hedged
+     */
+    private long hedge(boolean priorityOnly) {
+        long now = System.currentTimeMillis();
+        long nextDue = Long.MAX_VALUE;
+
+        // A snapshot, since hedging with another fragment adds to the map
+        for (Map.Entry<Integer, List<Request>> entry : new ArrayList<>(outstanding.entrySet())) {
+            List<Request> requests = entry.getValue();
+            if (requests.isEmpty() || requests.size() >= hedgePolicy.getMaxRequestsPerChunk()
+                    || priorityOnly && !isPrioritized(entry.getKey())) {
+                continue;
+            }
+
+            // The newest request decides; each hedge gets its own full delay
+            Request newest = requests.get(requests.size() - 1);
+            long due = newest.startTime + hedgePolicy.getDelayMs(newest.state.peer);
+            if (due > now) {
+                nextDue = Math.min(nextDue, due);
+                continue;
+            }
+
+            if (hedgeWithOtherFragment(entry.getKey(), newest) || hedgeWithPieces(entry.getKey(), requests, newest)) {
+                continue;
+            }
+            PeerState hedgePeer = pickHedgePeer(entry.getKey(), requests);
+            if (hedgePeer != null) {
+                logger.debug("Hedging chunk {} of {}: {} overdue, also asking {}",
+                        entry.getKey(), fileHash, newest.state.peer, hedgePeer.peer);
+                hedgedRequests++;
+                send(hedgePeer, entry.getKey());
+            }
+        }
+        return nextDue == Long.MAX_VALUE ? 0 : Math.max(1, nextDue - now);
+    }
+
+    /**
+     * Hedges an overdue request of an erasure-coded file by requesting another fragment of
+     * its stripe, unless the stripe already has its share of extra requests.
+     *
+     * @return True if another fragment was requested, or the stripe needs no more requests
+     */
+    private boolean hedgeWithOtherFragment(int chunkId, Request overdue) {
+        if (!manifest.isErasureCoded()) {
+            return false;
+        }
+        int stripe = manifest.getStripe(chunkId);
+        int extra = stripePresent[stripe] + stripeRequested[stripe] - manifest.getStripeChunks(stripe);
+        if (extra >= hedgePolicy.getMaxRequestsPerChunk() - 1) {
+            return true;
+        }
+
+        for (int fragment : manifest.getStripeFragments(stripe)) {
+            if (completed.get(fragment) || outstanding.containsKey(fragment)) {
+                continue;
+            }
+            PeerState hedgePeer = pickHedgePeer(fragment, Collections.emptyList());
+            if (hedgePeer != null) {
+                logger.debug("Hedging chunk {} of {}: {} overdue, asking {} for fragment {}",
+                        chunkId, fileHash, overdue.state.peer, hedgePeer.peer, fragment);
+                hedgedRequests++;
+                send(hedgePeer, fragment);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hedges an overdue request by splitting its chunk into pieces and asking a different peer
+     * for each, provided at least two peers are free to take a piece, so a single slow source
+     * can't hold up a large chunk. Pieces are whole pages, so joining them shares the pages
+     * rather than copying them. The joined chunk is verified and stored whole; if a piece
+     * fails, the others are abandoned and the original request carries on.
+     *
+     * @return True if the pieces were requested
+     */
+    private boolean hedgeWithPieces(int chunkId, List<Request> requests, Request overdue) {
+        int chunkLength = manifest.getFragmentLength(chunkId, CacheEngine.MAX_CHUNK_SIZE);
+        if (pieceSize <= 0 || chunkLength < 2 * pieceSize) {
+            return false; // Unknown length, or too short to be worth splitting
+        }
+
+        List<PeerState> candidates = new ArrayList<>();
+        for (PeerState state : peers) {
+            if (hasFreeSlot(state) && !state.lacks.get(chunkId) && !isRequesting(requests, state)) {
+                candidates.add(state);
+            }
+        }
+        if (candidates.size() < 2) {
+            return false;
+        }
+        candidates.sort((a, b) -> Double.compare(b.peer.getScore(), a.peer.getScore()));
+
+        int pieceLength = Math.max(pieceSize, (chunkLength + candidates.size() - 1) / candidates.size());
+        pieceLength = (pieceLength + PagedChunk.PAGE_SIZE - 1) / PagedChunk.PAGE_SIZE * PagedChunk.PAGE_SIZE;
+        int pieceCount = (chunkLength + pieceLength - 1) / pieceLength;
+        if (pieceCount < 2) {
+            return false;
+        }
+
+        logger.debug("Hedging chunk {} of {}: {} overdue, asking {} peers for pieces of {} bytes",
+                chunkId, fileHash, overdue.state.peer, pieceCount, pieceLength);
+        hedgedRequests++;
+        PieceAssembly assembly = new PieceAssembly(chunkLength, pieceLength, pieceCount);
+        for (int i = 0; i < pieceCount; i++) {
+            Request request = register(candidates.get(i), chunkId);
+            request.assembly = assembly;
+            request.pieceOffset = i * pieceLength;
+            request.pieceLength = Math.min(pieceLength, chunkLength - request.pieceOffset);
+            assembly.requests.add(request);
+            executor.execute(() -> fetchPiece(request));
+        }
+        return true;
+    }
+
+    /**
+     * Picks the best-scoring peer with a free slot that may hold a chunk and isn't already asked for it.
+     */
+    private PeerState pickHedgePeer(int chunkId, List<Request> requests) {
+        PeerState best = null;
+        for (PeerState state : peers) {
+            if (!hasFreeSlot(state) || state.lacks.get(chunkId) || isRequesting(requests, state)) {
+                continue;
+            }
+            if (best == null || state.peer.getScore() > best.peer.getScore()) {
+                best = state;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isRequesting(List<Request> requests, PeerState state) {
+        for (Request request : requests) {
+            if (request.state == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasFreeSlot(PeerState state) {
+        return !state.dropped && state.inFlight < state.depth;
+    }
+
+    private void send(PeerState state, int chunkId) {
+        Request request = register(state, chunkId);
+        executor.execute(() -> fetch(request));
+    }
+
+    private Request register(PeerState state, int chunkId) {
+        List<Request> requests = outstanding.computeIfAbsent(chunkId, k -> new ArrayList<>(2));
+        Request request = new Request(state, chunkId, !requests.isEmpty());
+        if (requests.isEmpty()) {
+            int stripe = manifest.getStripe(chunkId);
+            stripeRequested[stripe]++;
+            refreshStripe(stripe);
+            pickable.remove(chunkId);
+        }
+        requests.add(request);
+        request.inFlightAtStart = state.limit.acquire();
+        state.inFlight++;
+        requestsInFlight++;
+        return request;
+    }
+
+    /**
+     * Picks the rarest fragment a peer may hold that is neither cached nor requested, i.e. the
+     * one the fewest remaining peers may still supply, from a stripe that needs more requests:
+     * only as many fragments of a stripe are requested as it has chunks. Chunks go before
+     * parity fragments, which only cost decoding; ties are broken randomly so peers spread
+     * over the file. Prioritized chunks go before all others, in file
+     * order; while there are any, the peer's last free slot is kept for them.
+     * <p>
+     * The pickable fragments are kept ordered, so this only walks past the fragments the
+     * peer lacks and those of stripes that have enough requests.
+     *
+     * @param state The peer
+     * @return The fragment ID, or -1 if there's nothing to request from the peer
+     */
+    private int pickChunk(PeerState state) {
+        if (hasPriority()) {
+            int prioritized = pickPrioritized(state);
+            if (prioritized >= 0 || state.depth > 1 && state.inFlight >= state.depth - 1) {
+                return prioritized;
+            }
+        }
+
+        for (int chunkId : pickable) {
+            if (!state.lacks.get(chunkId) && openStripes.get(manifest.getStripe(chunkId))) {
+                return chunkId;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Picks the first fragment of the prioritized stripes a peer may hold that is neither
+     * cached nor requested.
+     */
+    private int pickPrioritized(PeerState state) {
+        int lastStripe = manifest.getStripe(priorityEnd - 1);
+        for (int stripe = manifest.getStripe(priorityStart); stripe <= lastStripe; stripe++) {
+            if (!openStripes.get(stripe)) {
+                continue;
+            }
+            for (int fragment : manifest.getStripeFragments(stripe)) {
+                if (!completed.get(fragment) && !outstanding.containsKey(fragment) && !state.lacks.get(fragment)) {
+                    return fragment;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Requests one chunk from a peer and caches it. Runs on the executor.
+     * <p>
+     * A chunk's first request joins any fetch of that chunk already running for another
+     * download (see {@code fetchFlights}), so concurrent downloads of one file fetch each
+     * chunk once. Hedged requests never join, since they exist to duplicate a slow fetch.
+     */
+    private void fetch(Request request) {
+        PeerState state = request.state;
+        int chunkId = request.chunkId;
+        boolean stored = false;
+        try {
+            if (isSettled(request)) {
+                return; // Cancelled before it started
+            }
+
+            CacheItem chunk = request.hedge
+                    ? chunkSource.requestFileChunk(state.peer, fileHash, chunkId)
+                    : fetchFlights.execute(ChunkKey.of(fileHash, chunkId), () -> {
+                        request.sent = true;
+                        return chunkSource.requestFileChunk(state.peer, fileHash, chunkId);
+                    });
+            if (chunk == null && !request.sent && !request.hedge) {
+                // Joined another download's fetch, which failed; that says nothing about this peer
+                request.sent = true;
+                chunk = chunkSource.requestFileChunk(state.peer, fileHash, chunkId);
+            }
+            stored = store(request, chunk);
+        } catch (Exception e) {
+            logger.error("Error fetching chunk {} from {}", chunkId, state.peer, e);
+        } finally {
+            complete(request, stored);
+        }
+    }
+
+    /**
+     * Requests one piece of a chunk from a peer. The request that completes the chunk's
+     * pieces joins them and stores the chunk. Runs on the executor.
+     */
+    private void fetchPiece(Request request) {
+        PeerState state = request.state;
+        boolean stored = false;
+        try {
+            if (isSettled(request)) {
+                return; // Cancelled before it started
+            }
+
+            ChunkPiece piece = chunkSource.requestChunkPiece(state.peer, fileHash, request.chunkId,
+                    request.pieceOffset, request.pieceLength);
+            if (piece == null || piece.getData().length() != request.pieceLength
+                    || piece.getChunkLength() != request.assembly.chunkLength) {
+                return;
+            }
+            request.pieceReceived = true;
+            PagedChunk chunk = request.assembly.add(request.pieceOffset, piece.getData());
+            if (chunk != null) {
+                stored = store(request, new CacheItem(fileHash, request.chunkId, chunk,
+                        state.peer.getId(), piece.getTotalChunks()));
+            }
+        } catch (Exception e) {
+            logger.error("Error fetching piece of chunk {} from {}", request.chunkId, state.peer, e);
+        } finally {
+            complete(request, stored);
+        }
+    }
+
+    /**
+     * Requests several chunks from one peer over one connection. Runs on the executor.
+     * Chunks another download is already fetching join that fetch instead. If the peer
+     * answers nothing, e.g. because it predates batch requests, its chunks are requested
+     * one by one and the peer isn't sent batches again.
+     */
+    private void fetchBatch(PeerState state, List<Request> batch) {
+        Map<Integer, Request> pending = new LinkedHashMap<>();
+        for (Request request : batch) {
+            if (isSettled(request)) {
+                complete(request, false); // Cancelled before it started
+            } else if (fetchFlights.isRunning(ChunkKey.of(fileHash, request.chunkId))) {
+                fetch(request);
+            } else {
+                pending.put(request.chunkId, request);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        for (Request request : pending.values()) {
+            request.batched = true;
+        }
+        int[] chunkIds = pending.keySet().stream().mapToInt(Integer::intValue).toArray();
+        boolean answered;
+        try {
+            answered = chunkSource.requestFileChunks(state.peer, fileHash, chunkIds, (chunkId, chunk) -> {
+                Request request = pending.remove(chunkId);
+                if (request == null) {
+                    return !isCancelled();
+                }
+                boolean stored = false;
+                try {
+                    stored = store(request, chunk);
+                } catch (Exception e) {
+                    logger.error("Error storing chunk {} from {}", chunkId, state.peer, e);
+                } finally {
+                    complete(request, stored);
+                }
+                return !isCancelled();
+            });
+        } catch (Exception e) {
+            logger.error("Error fetching {} chunks from {}", chunkIds.length, state.peer, e);
+            answered = false;
+        }
+
+        if (!answered && pending.size() == chunkIds.length && !isCancelled()) {
+            synchronized (this) {
+                state.batching = false;
+            }
+            logger.debug("Peer {} answered no batch request; falling back to single requests", state.peer);
+            for (Request request : pending.values()) {
+                fetch(request);
+            }
+            return;
+        }
+        for (Request request : pending.values()) {
+            if (answered && !isCancelled()) {
+                fetch(request); // Left out of a batch the peer cut short, e.g. for its own batch limit
+            } else {
+                complete(request, false);
+            }
+        }
+    }
+
+    /**
+     * Hands a fetched chunk to the sink, unless another request for it already won.
+     *
+     * @return True if the sink stored the chunk
+     */
+    private boolean store(Request request, CacheItem chunk) throws IOException {
+        PeerState state = request.state;
+        int chunkId = request.chunkId;
+        if (chunk == null) {
+            return false;
+        }
+        if (chunk.getTotalChunks() != totalChunks) {
+            logger.warn("Peer {} reported {} chunks for {}, expected {}",
+                    state.peer, chunk.getTotalChunks(), fileHash, totalChunks);
+            return false;
+        }
+
+        long latency = System.currentTimeMillis() - request.startTime;
+        int holderCount;
+        synchronized (this) {
+            if (cancelled || request.cancelled || isDone(chunkId)) {
+                return false; // Another request for this chunk won, or the download ended
+            }
+            holderCount = countHolders(chunkId, state);
+        }
+        boolean stored = sink.accept(chunkId, chunk.getChunk(), latency, holderCount);
+        logger.debug("Fetched chunk {} from {} in {} ms", chunkId, state.peer, latency);
+        return stored;
+    }
+
+    /**
+     * Counts the peers known to hold a chunk: the peer that sent it, and those whose
+     * bitfield or HAVE listed it. Unlike the availability, peers that haven't sent their
+     * bitfield don't count.
+     */
+    private int countHolders(int chunkId, PeerState source) {
+        int holders = 0;
+        for (PeerState state : peers) {
+            if (state == source
+                    || !state.dropped && (state.held.get(chunkId) || state.announced.get(chunkId))) {
+                holders++;
+            }
+        }
+        return holders;
+    }
+
+    private synchronized boolean isSettled(Request request) {
+        return cancelled || request.cancelled || isDone(request.chunkId);
+    }
+
+    private synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Settles a finished request. A peer that failed to return a chunk is recorded as lacking
+     * it, and after repeated consecutive failures, or once it is marked inactive, it is dropped
+     * from the download.
+     */
+    private synchronized void complete(Request request, boolean success) {
+        PeerState state = request.state;
+        int chunkId = request.chunkId;
+        state.inFlight--;
+        requestsInFlight--;
+        removeOutstanding(request);
+        releaseLimit(request, success);
+
+        if (request.assembly != null && !success && !request.pieceReceived) {
+            abandonPieces(request.assembly);
+        }
+
+        if (request.cancelled) {
+            // Lost a hedge race; says nothing about the peer
+        } else if (success) {
+            if (!completed.get(chunkId)) {
+                completed.set(chunkId);
+                recordFragment(chunkId);
+            }
+            state.failures = 0;
+            cancelOutstanding(chunkId);
+        } else if (request.pieceReceived) {
+            state.failures = 0; // Returned its piece; the chunk is up to the other pieces
+        } else if (!isDone(chunkId)) {
+            markLacking(state, chunkId);
+            state.failures++;
+            if (!state.dropped && !cancelled && (state.failures >= maxPeerFailures || !state.peer.isActive())) {
+                drop(state);
+            }
+        }
+        advance();
+    }
+
+    /**
+     * Returns a request's slot to its peer's limit, with the request's latency if it went to
+     * the peer. A failure only counts against the limit if the peer couldn't be reached, as
+     * a miss says nothing about its load.
+     */
+    private void releaseLimit(Request request, boolean success) {
+        if (cancelled || (!request.sent && !request.batched && !request.hedge)) {
+            request.state.limit.release(); // Abandoned, or joined another download's fetch
+            return;
+        }
+        boolean overloaded = !success && !request.cancelled && request.state.peer.getConsecutiveFailures() > 0;
+        request.state.limit.release(System.currentTimeMillis() - request.startTime, request.inFlightAtStart, overloaded);
+    }
+
+    /**
+     * Counts a fragment the sink stored towards its stripe. Once the stripe is done, the
+     * requests for its other fragments are cancelled.
+     */
+    private void recordFragment(int chunkId) {
+        int stripe = manifest.getStripe(chunkId);
+        stripePresent[stripe]++;
+        pickable.remove(chunkId);
+        if (!stripesDone.get(stripe) && isStripeComplete(stripe)) {
+            stripesDone.set(stripe);
+            remaining--;
+            completedChunks += manifest.getStripeChunks(stripe);
+            if (manifest.isErasureCoded()) {
+                for (int fragment : manifest.getStripeFragments(stripe)) {
+                    cancelOutstanding(fragment);
+                    pickable.remove(fragment);
+                }
+            }
+        }
+        refreshStripe(stripe);
+    }
+
+    /**
+     * Cancels the remaining requests for a chunk. Requests that are already on the wire
+     * can't be aborted, so their responses are discarded when they arrive; their peer's
+     * slot stays taken until then.
+     */
+    private void cancelOutstanding(int chunkId) {
+        List<Request> requests = outstanding.remove(chunkId);
+        if (requests != null) {
+            for (Request request : requests) {
+                request.cancelled = true;
+            }
+            unrequested(chunkId);
+        }
+    }
+
+    /**
+     * Cancels the other piece requests of a chunk once one of its pieces has failed, leaving
+     * the chunk to its whole-chunk requests.
+     */
+    private void abandonPieces(PieceAssembly assembly) {
+        if (assembly.abandoned) {
+            return;
+        }
+        assembly.abandoned = true;
+        for (Request piece : assembly.requests) {
+            piece.cancelled = true;
+        }
+    }
+
+    private void removeOutstanding(Request request) {
+        List<Request> requests = outstanding.get(request.chunkId);
+        if (requests != null && requests.remove(request) && requests.isEmpty()) {
+            outstanding.remove(request.chunkId);
+            unrequested(request.chunkId);
+        }
+    }
+
+    private void unrequested(int chunkId) {
+        int stripe = manifest.getStripe(chunkId);
+        stripeRequested[stripe]--;
+        refreshStripe(stripe);
+        refreshPickable(chunkId);
+    }
+
+    /**
+     * Updates whether a fragment can be picked for a new request: some peer may supply it,
+     * and it is neither done nor requested.
+     */
+    private void refreshPickable(int chunkId) {
+        if (availability[chunkId] > 0 && !isDone(chunkId) && !outstanding.containsKey(chunkId)) {
+            pickable.add(chunkId);
+        } else {
+            pickable.remove(chunkId);
+        }
+    }
+
+    /**
+     * Changes a fragment's availability, which orders the pickable fragments.
+     */
+    private void setAvailability(int chunkId, int value) {
+        pickable.remove(chunkId);
+        availability[chunkId] = value;
+        refreshPickable(chunkId);
+    }
+
+    private void markLacking(PeerState state, int chunkId) {
+        if (!state.dropped && !state.lacks.get(chunkId)) {
+            state.lacks.set(chunkId);
+            setAvailability(chunkId, availability[chunkId] - 1);
+        }
+    }
+
+    private void drop(PeerState state) {
+        for (int chunkId = state.lacks.nextClearBit(0); chunkId < fragmentCount; chunkId = state.lacks.nextClearBit(chunkId + 1)) {
+            setAvailability(chunkId, availability[chunkId] - 1);
+        }
+        state.lacks.set(0, fragmentCount);
+        state.dropped = true;
+        logger.warn("Dropped peer {} from download of {} after {} failures", state.peer, fileHash, state.failures);
+    }
+
+    /**
+     * Creates a sink that caches each chunk that matches the file's manifest.
+     *
+     * @param cacheEngine The cache engine
+     * @param manifest The manifest of the file
+     * @return The sink
+     */
+    public static ChunkSink cacheSink(CacheEngine cacheEngine, FileManifest manifest) {
+        String fileHash = manifest.getFileHash();
+        int totalChunks = manifest.getTotalChunks();
+        return new ChunkSink() {
+            @Override
+            public boolean hasChunk(int chunkId) {
+                return cacheEngine.hasCacheItem(fileHash, chunkId);
+            }
+
+            @Override
+            public boolean accept(int chunkId, PagedChunk data, long latencyMs, int holderCount) {
+                if (!manifest.verifyChunk(chunkId, data, CacheEngine.MAX_CHUNK_SIZE)) {
+                    return false;
+                }
+                // Latency and holder count weight the chunk for cost-aware eviction
+                return cacheEngine.putCacheItem(fileHash, chunkId, data, totalChunks, latencyMs, holderCount);
+            }
+
+            @Override
+            public PagedChunk getChunk(int chunkId) {
+                CacheItem item = cacheEngine.peekCacheItem(fileHash, chunkId);
+                return item != null ? item.getChunk() : null;
+            }
+        };
+    }
+
+    /**
+     * Receives the chunks of a download.
+     */
+    public interface ChunkSink {
+        /**
+         * Checks if the sink already has a chunk, so it needn't be fetched.
+         *
+         * @param chunkId The chunk ID
+         * @return True if the chunk is present
+         */
+        boolean hasChunk(int chunkId);
+
+        /**
+         * Accepts a fetched chunk. Called concurrently from several fetch threads.
+         *
+         * @param chunkId The chunk ID
+         * @param data The chunk data
+         * @param latencyMs How long the fetch took
+         * @param holderCount How many peers are known to hold the chunk
+         * @return True if the chunk was stored; false rejects it, as if the peer lacked it
+         * @throws IOException If the chunk can't be stored
+         */
+        boolean accept(int chunkId, PagedChunk data, long latencyMs, int holderCount) throws IOException;
+
+        /**
+         * Reads back a chunk the sink has, e.g. to rebuild the other chunks of its stripe.
+         *
+         * @param chunkId The chunk ID
+         * @return The chunk data, or null if the sink doesn't have it
+         * @throws IOException If the chunk can't be read
+         */
+        PagedChunk getChunk(int chunkId) throws IOException;
+    }
+
+    /**
+     * Decides when an outstanding request is overdue and should be hedged: once it has been
+     * outstanding longer than a high percentile of the serving peer's recent round trips.
+     */
+    public static class HedgePolicy {
+        private final double percentile;
+        private final long defaultDelayMs;
+        private final long minDelayMs;
+        private final int maxRequestsPerChunk;
+
+        /**
+         * @param percentile The RTT percentile of the serving peer after which a request is overdue
+         * @param defaultDelayMs The delay for peers without RTT samples
+         * @param minDelayMs The lower bound of the delay, so fast peers aren't hedged on jitter
+         * @param maxRequestsPerChunk The maximum concurrent requests per chunk; 1 disables hedging
+         */
+        public HedgePolicy(double percentile, long defaultDelayMs, long minDelayMs, int maxRequestsPerChunk) {
+            this.percentile = percentile;
+            this.defaultDelayMs = defaultDelayMs;
+            this.minDelayMs = minDelayMs;
+            this.maxRequestsPerChunk = Math.max(1, maxRequestsPerChunk);
+        }
+
+        public long getDelayMs(PeerInfo peer) {
+            long rtt = peer.getRttPercentile(percentile);
+            return Math.max(minDelayMs, rtt < 0 ? defaultDelayMs : rtt);
+        }
+
+        public int getMaxRequestsPerChunk() {
+            return maxRequestsPerChunk;
+        }
+    }
+
+    /**
+     * A chunk request to one peer.
+     */
+    private static class Request {
+        final PeerState state;
+        final int chunkId;
+        final long startTime;
+        final boolean hedge;
+        volatile boolean sent; // Went to the peer rather than joining another download's fetch
+        volatile boolean batched; // Went to the peer in a batch request
+        int inFlightAtStart; // Requests in flight to the peer, across downloads, when this one was sent
+        boolean cancelled;
+        PieceAssembly assembly; // Set for a request of a piece of the chunk
+        int pieceOffset;
+        int pieceLength;
+        volatile boolean pieceReceived;
+
+        Request(PeerState state, int chunkId, boolean hedge) {
+            this.state = state;
+            this.chunkId = chunkId;
+            this.hedge = hedge;
+            this.startTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Collects the pieces of a chunk requested from several peers.
+     */
+    private static class PieceAssembly {
+        final int chunkLength;
+        final int pieceLength;
+        final List<Request> requests; // Guarded by the scheduler
+        boolean abandoned; // Guarded by the scheduler
+        private final PagedChunk[] pieces;
+        private int received;
+
+        PieceAssembly(int chunkLength, int pieceLength, int pieceCount) {
+            this.chunkLength = chunkLength;
+            this.pieceLength = pieceLength;
+            this.requests = new ArrayList<>(pieceCount);
+            this.pieces = new PagedChunk[pieceCount];
+        }
+
+        /**
+         * Adds a piece.
+         *
+         * @return The joined chunk once this was the last missing piece, otherwise null
+         */
+        synchronized PagedChunk add(int offset, PagedChunk piece) {
+            int index = offset / pieceLength;
+            if (pieces[index] != null) {
+                return null;
+            }
+            pieces[index] = piece;
+            return ++received == pieces.length ? PagedChunk.concat(Arrays.asList(pieces)) : null;
+        }
+    }
+
+    /**
+     * Scheduling state of one peer within this download.
+     */
+    private static class PeerState {
+        final PeerInfo peer;
+        final BitSet lacks;
+        final BitSet announced; // Chunks the peer sent a HAVE for
+        final BitSet held; // Chunks listed in the peer's bitfield
+        final ConcurrencyLimit limit; // Shared with the other downloads from the peer
+        int inFlight;
+        int depth;
+        int failures;
+        boolean dropped;
+        boolean batching = true; // Cleared if the peer doesn't answer batch requests
+
+        PeerState(PeerInfo peer, int fragmentCount, ConcurrencyLimit limit) {
+            this.peer = peer;
+            this.limit = limit;
+            this.lacks = new BitSet(fragmentCount);
+            this.announced = new BitSet(fragmentCount);
+            this.held = new BitSet(fragmentCount);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.util.SerializationUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Persisted progress of a streaming download, so a restarted node can resume it:
+ * the file's manifest, the destination and a bitmap of the chunks already written.
+ * Stored as JSON in {@code downloads/<fileHash>.json}.
+ */
+public class DownloadState {
+    public static final String DOWNLOADS_DIR = "downloads";
+
+    private FileManifest manifest;
+    private String destination;
+    private long[] completedChunks; // BitSet words
+    private long updatedAt;
+
+    public DownloadState(FileManifest manifest, String destination, BitSet completedChunks) {
+        this.manifest = manifest;
+        this.destination = destination;
+        setCompletedChunks(completedChunks);
+    }
+
+    public FileManifest getManifest() {
+        return manifest;
+    }
+
+    public String getFileHash() {
+        return manifest.getFileHash();
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public BitSet getCompletedChunks() {
+        return completedChunks != null ? BitSet.valueOf(completedChunks) : new BitSet();
+    }
+
+    public void setCompletedChunks(BitSet completedChunks) {
+        this.completedChunks = completedChunks.toLongArray();
+        this.updatedAt = System.currentTimeMillis();
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * Gets the fraction of chunks already written.
+     *
+     * @return The progress between 0 and 1
+     */
+    public double getProgress() {
+        int total = manifest.getTotalChunks();
+        return total == 0 ? 1.0 : (double) getCompletedChunks().cardinality() / total;
+    }
+
+    /**
+     * Saves the state, replacing any earlier state of the same file atomically.
+     *
+     * @throws IOException If the state can't be written
+     */
+    public void save() throws IOException {
+        File file = stateFile(getFileHash());
+        Files.createDirectories(file.getParentFile().toPath());
+        File temp = new File(file.getPath() + ".tmp");
+        SerializationUtil.serializeToFile(this, temp);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the saved state of a file.
+     *
+     * @param fileHash The file hash
+     */
+    public static void delete(String fileHash) {
+        stateFile(fileHash).delete();
+    }
+
+    /**
+     * Loads the saved state of a file.
+     *
+     * @param fileHash The file hash
+     * @return The state, or null if none is saved
+     * @throws IOException If the state can't be read
+     */
+    public static DownloadState load(String fileHash) throws IOException {
+        File file = stateFile(fileHash);
+        return file.exists() ? SerializationUtil.deserializeFromFile(file, DownloadState.class) : null;
+    }
+
+    /**
+     * Loads the saved state of every unfinished download. Unreadable states are skipped.
+     *
+     * @return The states
+     */
+    public static List<DownloadState> loadAll() {
+        List<DownloadState> states = new ArrayList<>();
+        File[] files = new File(DOWNLOADS_DIR).listFiles((dir, name) -> name.endsWith(".json"));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    states.add(SerializationUtil.deserializeFromFile(file, DownloadState.class));
+                } catch (Exception e) {
+                    // A half-written state is replaced on the next save of that download
+                }
+            }
+        }
+        return states;
+    }
+
+    private static File stateFile(String fileHash) {
+        return new File(DOWNLOADS_DIR, fileHash + ".json");
+    }
+}
@@ -0,0 +1,182 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.common.PagedChunk;
+import com.jcachenetdl.util.LogUtil;
+import com.jcachenetdl.util.ReedSolomon;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives the fragments of an erasure-coded download and hands the file's chunks to
+ * another sink, rebuilding the chunks of a stripe that didn't arrive from its parity
+ * fragments.
+ * <p>
+ * Chunks go straight to the target sink. Parity fragments are held in memory until their
+ * stripe is complete or can be rebuilt: as soon as the stripe has as many fragments as it
+ * has chunks, the missing chunks are decoded, checked against the manifest and handed on,
+ * and the stripe's parity fragments are dropped.
+ */
+public class ErasureSink implements DownloadScheduler.ChunkSink {
+    private final FileManifest manifest;
+    private final DownloadScheduler.ChunkSink target;
+    private final ReedSolomon codec;
+    private final Map<Integer, PagedChunk> parity; // Fragments of stripes not complete yet
+    private final Logger logger;
+
+    /**
+     * @param manifest The manifest of the erasure-coded file
+     * @param target The sink for the file's chunks
+     */
+    public ErasureSink(FileManifest manifest, DownloadScheduler.ChunkSink target) {
+        if (!manifest.isErasureCoded()) {
+            throw new IllegalArgumentException("File " + manifest.getFileHash() + " is not erasure-coded");
+        }
+        this.manifest = manifest;
+        this.target = target;
+        this.codec = new ReedSolomon(manifest.getDataShards(), manifest.getParityShards());
+        this.parity = new ConcurrentHashMap<>();
+        this.logger = LogUtil.getLogger(ErasureSink.class);
+    }
+
+    @Override
+    public boolean hasChunk(int chunkId) {
+        return manifest.isParity(chunkId) && parity.containsKey(chunkId) || target.hasChunk(chunkId);
+    }
+
+    @Override
+    public boolean accept(int chunkId, PagedChunk data, long latencyMs, int holderCount) throws IOException {
+        if (!manifest.isParity(chunkId)) {
+            if (!target.accept(chunkId, data, latencyMs, holderCount)) {
+                return false;
+            }
+        } else if (manifest.verifyChunk(chunkId, data, CacheEngine.MAX_CHUNK_SIZE)) {
+            parity.put(chunkId, data);
+        } else {
+            logger.warn("Rejected parity fragment {} of {}: doesn't match the manifest", chunkId, manifest.getFileHash());
+            return false;
+        }
+        decode(manifest.getStripe(chunkId), latencyMs, holderCount);
+        return true;
+    }
+
+    @Override
+    public PagedChunk getChunk(int chunkId) throws IOException {
+        PagedChunk data = manifest.isParity(chunkId) ? parity.get(chunkId) : null;
+        return data != null ? data : target.getChunk(chunkId);
+    }
+
+    /**
+     * Rebuilds every stripe that has enough fragments, e.g. after the locally cached
+     * fragments were handed in.
+     *
+     * @return The number of stripes rebuilt
+     * @throws IOException If a chunk can't be read or stored
+     */
+    public int decodeAll() throws IOException {
+        int decoded = 0;
+        for (int stripe = 0; stripe < manifest.getStripeCount(); stripe++) {
+            if (decode(stripe, 0, 1)) {
+                decoded++;
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Rebuilds the missing chunks of a stripe if it has enough fragments.
+     *
+     * @return True if chunks were rebuilt
+     */
+    private synchronized boolean decode(int stripe, long latencyMs, int holderCount) throws IOException {
+        int[] fragments = manifest.getStripeFragments(stripe);
+        int chunks = manifest.getStripeChunks(stripe);
+        int present = 0;
+        for (int fragment : fragments) {
+            if (hasChunk(fragment)) {
+                present++;
+            }
+        }
+        boolean complete = true;
+        for (int i = 0; i < chunks; i++) {
+            complete &= target.hasChunk(fragments[i]);
+        }
+        if (complete) {
+            release(fragments, chunks);
+            return false;
+        }
+        if (present < chunks) {
+            return false;
+        }
+
+        // Shards are as long as the stripe's first chunk; shorter and absent chunks count as zeros
+        int dataShards = codec.getDataShards();
+        int length = manifest.getFragmentLength(fragments[0], CacheEngine.MAX_CHUNK_SIZE);
+        PagedChunk[] inputs = new PagedChunk[codec.getTotalShards()];
+        boolean[] available = new boolean[inputs.length];
+        for (int i = chunks; i < dataShards; i++) {
+            available[i] = true;
+        }
+        int used = 0; // With the zero shards, as many fragments as the stripe has chunks make dataShards
+        for (int i = 0; i < fragments.length && used < chunks; i++) {
+            int shard = i < chunks ? i : dataShards + i - chunks;
+            inputs[shard] = getChunk(fragments[i]);
+            if (inputs[shard] != null) {
+                available[shard] = true;
+                used++;
+            }
+        }
+        if (used < chunks) {
+            return false; // A fragment went away meanwhile
+        }
+
+        // The code works byte offset by byte offset, so a page at a time keeps every buffer page-sized
+        byte[][] shards = new byte[inputs.length][Math.min(length, PagedChunk.PAGE_SIZE)];
+        List<List<PagedChunk>> pages = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            pages.add(new ArrayList<>());
+        }
+        for (int offset = 0; offset < length; offset += PagedChunk.PAGE_SIZE) {
+            int pageLength = Math.min(PagedChunk.PAGE_SIZE, length - offset);
+            for (int shard = 0; shard < inputs.length; shard++) {
+                if (inputs[shard] != null) {
+                    CacheEngine.copyPage(inputs[shard], offset, shards[shard], pageLength);
+                }
+            }
+            codec.decodeMissingData(shards, available, pageLength);
+            for (int i = 0; i < chunks; i++) {
+                int chunkLength = manifest.getFragmentLength(fragments[i], CacheEngine.MAX_CHUNK_SIZE);
+                if (inputs[i] == null && offset < chunkLength) {
+                    pages.get(i).add(PagedChunk.copyOf(shards[i], 0, Math.min(pageLength, chunkLength - offset)));
+                }
+            }
+        }
+
+        int rebuilt = 0;
+        for (int i = 0; i < chunks; i++) {
+            if (inputs[i] != null || target.hasChunk(fragments[i])) {
+                continue;
+            }
+            PagedChunk data = PagedChunk.concat(pages.get(i));
+            if (!target.accept(fragments[i], data, latencyMs, holderCount)) {
+                logger.error("Rebuilt chunk {} of {} doesn't match the manifest", fragments[i], manifest.getFileHash());
+                return false;
+            }
+            rebuilt++;
+        }
+        release(fragments, chunks);
+        logger.debug("Rebuilt {} chunks of stripe {} of {} from parity", rebuilt, stripe, manifest.getFileHash());
+        return true;
+    }
+
+    private void release(int[] fragments, int chunks) {
+        for (int i = chunks; i < fragments.length; i++) {
+            parity.remove(fragments[i]);
+        }
+    }
+}
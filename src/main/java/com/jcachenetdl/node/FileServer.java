@@ -1,20 +1,44 @@
 package com.jcachenetdl.node;
 
+import com.jcachenetdl.common.BlockSignatures;
 import com.jcachenetdl.common.CacheItem;
+import com.jcachenetdl.common.ChunkKey;
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.common.PackIndex;
+import com.jcachenetdl.common.PagedChunk;
 import com.jcachenetdl.common.PeerInfo;
+import com.jcachenetdl.config.ConfigurationManager;
 import com.jcachenetdl.ledger.ActionType;
 import com.jcachenetdl.ledger.DistributedLedger;
 import com.jcachenetdl.network.PeerDiscovery;
 import com.jcachenetdl.network.PeerHandler;
+import com.jcachenetdl.util.ConcurrencyLimit;
+import com.jcachenetdl.util.DeltaCodec;
+import com.jcachenetdl.util.ExecutorFactory;
+import com.jcachenetdl.util.HashUtil;
 import com.jcachenetdl.util.LogUtil;
+import com.jcachenetdl.util.SingleFlight;
 import org.slf4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.concurrent.*;
 
 /**
@@ -27,6 +51,34 @@ public class FileServer {
     private final PeerHandler peerHandler;
     private final DistributedLedger ledger;
     private final ExecutorService executor;
+    private final ExecutorService downloadExecutor;
+    private final ScheduledExecutorService downloadTimer; // Hedge timers of all downloads
+    private final ExecutorService uploadExecutor;
+    private final long packMaxFileSize;
+    private final long packTargetSize;
+    private final int pipelineDepth;
+    private final int minPipelineDepth;
+    private final int maxPipelineDepth;
+    private final Map<String, ConcurrencyLimit> peerLimits; // In-flight chunk requests per peer, shared by all downloads
+    private final int maxPeerFailures;
+    private final double explorationRate;
+    private final DownloadScheduler.HedgePolicy hedgePolicy;
+    private final long bitfieldTimeoutMs;
+    private final int batchSize;
+    private final int pieceSize;
+    private final boolean streamingEnabled;
+    private final boolean streamCacheChunks;
+    private final int playbackWindowChunks;
+    private final Map<String, StreamingDownload> activeDownloads;
+    private final Set<DownloadScheduler> runningSchedulers;
+    private final SingleFlight<ChunkKey, CacheItem> chunkFetches; // Network fetches of missing chunks, shared by all downloads
+    private final SingleFlight<String, StreamingDownload> downloadStarts; // Streaming fetches being started, by file hash
+    private final ChunkPlacement placement;
+    private final HotChunkReplicator replicator;
+    private final boolean dhtEnabled;
+    private final int dhtMaxProviders;
+    private final boolean deltaEnabled;
+    private final int deltaBlockSize;
     private final Logger logger;
     
     public FileServer(String peerId, CacheEngine cacheEngine, PeerDiscovery peerDiscovery, 
@@ -36,7 +88,48 @@ public class FileServer {
         this.peerDiscovery = peerDiscovery;
         this.peerHandler = peerHandler;
         this.ledger = ledger;
-        this.executor = Executors.newFixedThreadPool(10);
+        // Unbounded; downloads cap their own requests at each peer's limit
+        this.executor = ExecutorFactory.newBlockingExecutor("chunk-fetch", 0);
+        // Plans downloads; the downloads themselves run on the fetch tasks and the timer
+        this.downloadExecutor = ExecutorFactory.newBlockingExecutor("download", 0);
+        this.downloadTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "download-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.uploadExecutor = ExecutorFactory.newBlockingExecutor("upload", 0);
+        ConfigurationManager config = ConfigurationManager.getInstance();
+        this.packMaxFileSize = config.getLong("cache.pack.max.file.kb", 256) * 1024;
+        this.packTargetSize = config.getLong("cache.pack.target.size.mb", 64) * 1024 * 1024;
+        this.pipelineDepth = config.getInt("fetch.pipeline.depth", 8);
+        this.minPipelineDepth = config.getInt("fetch.pipeline.min.depth", 1);
+        this.maxPipelineDepth = config.getInt("fetch.pipeline.max.depth", 64);
+        this.peerLimits = new ConcurrentHashMap<>();
+        this.maxPeerFailures = config.getInt("fetch.peer.max.failures", 3);
+        this.explorationRate = config.getDouble("fetch.peer.exploration", 0.1);
+        this.hedgePolicy = new DownloadScheduler.HedgePolicy(
+                config.getDouble("fetch.hedge.percentile", 0.95),
+                config.getLong("fetch.hedge.default.delay.ms", 2000),
+                config.getLong("fetch.hedge.min.delay.ms", 50),
+                config.getInt("fetch.hedge.max.requests", 2));
+        this.bitfieldTimeoutMs = config.getLong("fetch.bitfield.timeout.ms", 2000);
+        this.batchSize = config.getInt("fetch.batch.max.chunks", 8);
+        this.pieceSize = config.getInt("fetch.piece.kb", 256) * 1024;
+        this.streamingEnabled = config.getBoolean("fetch.stream.enabled", true);
+        this.streamCacheChunks = config.getBoolean("fetch.stream.cache.chunks", true);
+        this.playbackWindowChunks = config.getInt("fetch.playback.window.chunks", 8);
+        this.activeDownloads = new ConcurrentHashMap<>();
+        this.runningSchedulers = ConcurrentHashMap.newKeySet();
+        this.chunkFetches = new SingleFlight<>();
+        this.downloadStarts = new SingleFlight<>();
+        this.placement = new ChunkPlacement(peerId, cacheEngine, peerDiscovery, peerHandler);
+        this.replicator = new HotChunkReplicator(peerId, cacheEngine, ledger, placement);
+        replicator.start();
+        this.dhtEnabled = config.getBoolean("dht.enabled", true);
+        this.dhtMaxProviders = config.getInt("dht.k", 20);
+        cacheEngine.addRemovalListener(this::unprovide);
+        this.deltaEnabled = config.getBoolean("delta.enabled", true);
+        this.deltaBlockSize = config.getInt("delta.block.size.kb", 8) * 1024;
         this.logger = LogUtil.getLogger(FileServer.class);
     }
     
@@ -48,12 +141,129 @@ public class FileServer {
      * @throws IOException If there's an error uploading the file
      */
     public String uploadFile(File file) throws IOException {
+        return uploadFile(file, null);
+    }
+    
+    /**
+     * Uploads a file in the background. See {@link #uploadFile(File)}.
+     * 
+     * @param file The file to upload
+     * @param listener Told about each chunk cached, or null
+     * @return The file hash once uploaded; completes exceptionally if the upload fails
+     */
+    public CompletableFuture<String> uploadFileAsync(File file, TransferListener listener) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return uploadFile(file, listener);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, uploadExecutor);
+    }
+    
+    private String uploadFile(File file, TransferListener listener) throws IOException {
         if (!file.exists() || !file.isFile()) {
             throw new IOException("File does not exist or is not a regular file: " + file.getAbsolutePath());
         }
         
         logger.info("Uploading file: {}", file.getName());
-        return cacheEngine.cacheFile(file);
+        String fileHash = cacheEngine.cacheFile(file, listener);
+        publish(fileHash);
+        return fileHash;
+    }
+    
+    /**
+     * Uploads all files under a directory. Small files are bundled into shared packs,
+     * so thousands of them cost a few chunks, cache files and ledger actions instead of
+     * one of each per file; larger files are uploaded individually.
+     * 
+     * @param directory The directory to upload
+     * @return The hashes of the uploaded packs and individual files, keyed by pack or file name
+     * @throws IOException If there's an error uploading the files
+     */
+    public Map<String, String> uploadDirectory(File directory) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IOException("Not a directory: " + directory.getAbsolutePath());
+        }
+        
+        Path root = directory.toPath();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        
+        Map<String, String> uploaded = new LinkedHashMap<>();
+        Map<String, File> pending = new LinkedHashMap<>();
+        long pendingSize = 0;
+        
+        for (Path path : files) {
+            File file = path.toFile();
+            String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+            
+            if (file.length() > packMaxFileSize) {
+                uploaded.put(name, uploadFile(file));
+                continue;
+            }
+            
+            if (!pending.isEmpty() && pendingSize + file.length() > packTargetSize) {
+                uploaded.put("pack-" + uploaded.size(), uploadPack(pending));
+                pending.clear();
+                pendingSize = 0;
+            }
+            pending.put(name, file);
+            pendingSize += file.length();
+        }
+        
+        if (!pending.isEmpty()) {
+            uploaded.put("pack-" + uploaded.size(), uploadPack(pending));
+        }
+        
+        logger.info("Uploaded directory {}: {} files as {} packs/files", directory.getName(), files.size(), uploaded.size());
+        return uploaded;
+    }
+    
+    /**
+     * Bundles files into a single pack and uploads it.
+     * 
+     * @param members The files to pack, keyed by member name
+     * @return The file hash of the uploaded pack
+     * @throws IOException If there's an error packing or uploading the files
+     */
+    public String uploadPack(Map<String, File> members) throws IOException {
+        File packFile = File.createTempFile("jcachenetdl-pack", ".pack");
+        try {
+            PackIndex index = PackFile.write(members, packFile);
+            String packHash = cacheEngine.cacheFile(packFile);
+            publish(packHash);
+            logger.info("Uploaded pack {} with {} files ({} bytes)", packHash, index.getEntries().size(), index.getDataSize());
+            return packHash;
+        } finally {
+            Files.deleteIfExists(packFile.toPath());
+        }
+    }
+    
+    /**
+     * Fetches a pack from the P2P network and extracts its files.
+     * 
+     * @param packHash The file hash of the pack
+     * @param outputDir The directory to extract into
+     * @return The index of the extracted pack, or null if the pack could not be fetched
+     * @throws IOException If there's an error fetching or extracting the pack
+     */
+    public PackIndex fetchPack(String packHash, File outputDir) throws IOException {
+        File packFile = File.createTempFile("jcachenetdl-pack", ".pack");
+        try {
+            if (!fetchFile(packHash, packFile)) {
+                return null;
+            }
+            PackIndex index = PackFile.extractAll(packFile, outputDir);
+            logger.info("Extracted pack {} with {} files to {}", packHash, index.getEntries().size(), outputDir);
+            return index;
+        } finally {
+            // A partial download into a temporary file can't be resumed
+            DownloadState.delete(packHash);
+            Files.deleteIfExists(packFile.toPath());
+        }
     }
     
     /**
@@ -65,9 +275,68 @@ public class FileServer {
      * @throws IOException If there's an error fetching the file
      */
     public boolean fetchFile(String fileHash, File outputFile) throws IOException {
+        return fetchFile(fileHash, outputFile, null);
+    }
+    
+    /**
+     * Fetches a file from the P2P network, transferring only what it doesn't share with a
+     * base file cached locally, such as its previous version. See {@link #fetchFileDelta}.
+     * 
+     * @param fileHash The hash of the file to fetch
+     * @param outputFile The output file to write to
+     * @param baseHash The hash of the base file, or null to fetch the whole file
+     * @return True if the file was successfully fetched
+     * @throws IOException If there's an error fetching the file
+     */
+    public boolean fetchFile(String fileHash, File outputFile, String baseHash) throws IOException {
         logger.info("Fetching file: {}", fileHash);
         
         // First try to recreate from local cache
+        if (recreateFromCache(fileHash, outputFile)) {
+            return true;
+        }
+        
+        if (baseHash != null && deltaEnabled && !baseHash.equals(fileHash)
+                && fetchFileDelta(fileHash, baseHash, outputFile)) {
+            return true;
+        }
+        
+        // Need to fetch from peers
+        return fetchFileFromPeers(fileHash, outputFile, null);
+    }
+    
+    /**
+     * Fetches a file in the background. See {@link #fetchFile(String, File)}. A thread is
+     * only taken while the download is planned, i.e. while its peers are asked about the
+     * file; the transfer itself holds none, as its requests run as tasks and its scheduler
+     * is driven by their completion, so many fetches can run at once. With streaming
+     * disabled ({@code fetch.stream.enabled}) a thread is held for the whole transfer.
+     * 
+     * @param fileHash The hash of the file to fetch
+     * @param outputFile The output file to write to
+     * @param listener Told about each chunk fetched, or null
+     * @return True once the file was fetched and verified, false if it couldn't be fetched;
+     *         completes exceptionally if the output can't be written
+     */
+    public CompletableFuture<Boolean> fetchFileAsync(String fileHash, File outputFile, TransferListener listener) {
+        return CompletableFuture.supplyAsync(() -> {
+            logger.info("Fetching file: {}", fileHash);
+            try {
+                if (recreateFromCache(fileHash, outputFile)) {
+                    return CompletableFuture.completedFuture(true);
+                }
+                if (streamingEnabled) {
+                    StreamingDownload download = startStreamingFetch(fileHash, outputFile, listener);
+                    return download != null ? download.getCompletion() : CompletableFuture.completedFuture(false);
+                }
+                return CompletableFuture.completedFuture(fetchFileFromPeers(fileHash, outputFile, listener));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, downloadExecutor).thenCompose(fetch -> fetch);
+    }
+    
+    private boolean recreateFromCache(String fileHash, File outputFile) {
         try {
             if (cacheEngine.recreateFile(fileHash, outputFile)) {
                 logger.info("File recreated from local cache: {}", fileHash);
@@ -77,131 +346,714 @@ public class FileServer {
             logger.debug("Could not recreate file from local cache: {}", e.getMessage());
             // Continue to fetch from peers
         }
+        return false;
+    }
+    
+    /**
+     * Fetches a file as an rsync-style delta against a locally cached base file. The base's
+     * block signatures go to a peer holding the whole file, which answers with the runs of
+     * base blocks the file is made of and the literal bytes in between; the file is rebuilt
+     * from those, checked against its hash and cached, so it can be served and be the base
+     * of the next version in turn.
+     * 
+     * @param fileHash The hash of the file to fetch
+     * @param baseHash The hash of the base file
+     * @param outputFile The output file to write to
+     * @return True if the file was rebuilt; false if the base isn't cached, or no peer sent a
+     *         delta that produced the file, e.g. because it would be larger than worth sending
+     * @throws IOException If there's an error reading the base or writing the file
+     */
+    private boolean fetchFileDelta(String fileHash, String baseHash, File outputFile) throws IOException {
+        BlockSignatures signatures;
+        try (InputStream base = cacheEngine.openFile(baseHash)) {
+            if (base == null) {
+                logger.info("Base {} is not cached, fetching {} in full", baseHash, fileHash);
+                return false;
+            }
+            signatures = DeltaCodec.signatures(baseHash, base, deltaBlockSize);
+        }
         
-        // Need to fetch from peers
-        return fetchFileFromPeers(fileHash, outputFile);
+        // Only a peer holding every chunk can encode the file
+        List<PeerInfo> peers = findPeers(fileHash);
+        Map<PeerInfo, PeerHandler.FileInfo> infos = requestFileInfos(fileHash, peers);
+        DeltaCodec.Source source = new CachedFileSource(cacheEngine, baseHash);
+        for (PeerInfo peer : peers) {
+            PeerHandler.FileInfo info = infos.get(peer);
+            if (info == null || info.getManifest() == null
+                    || info.getChunks().nextClearBit(0) < info.getManifest().getTotalChunks()) {
+                continue;
+            }
+            
+            long[] literalBytes = {0};
+            boolean received;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+                received = peerHandler.requestDelta(peer, fileHash, signatures, segment -> {
+                    DeltaCodec.apply(segment, source, out);
+                    if (!segment.isCopy()) {
+                        literalBytes[0] += segment.getLength();
+                    }
+                    return true;
+                });
+            }
+            if (!received) {
+                continue;
+            }
+            if (!fileHash.equals(HashUtil.sha256File(outputFile))) {
+                logger.warn("Delta of {} from {} doesn't rebuild the file", fileHash, peer.getId());
+                continue;
+            }
+            
+            logger.info("Fetched {} as a delta against {} from {}: {} of {} bytes transferred",
+                    fileHash, baseHash, peer.getId(), literalBytes[0], outputFile.length());
+            cacheEngine.cacheFile(outputFile);
+            provide(fileHash);
+            return true;
+        }
+        
+        Files.deleteIfExists(outputFile.toPath());
+        logger.info("No peer sent a delta of {} against {}, fetching it in full", fileHash, baseHash);
+        return false;
     }
     
     /**
-     * Fetches a file from peers in the network.
+     * Starts a streaming fetch: chunks are written straight to their offsets in the output
+     * file as they arrive, and the caller can consume the file's prefix before the download
+     * is done. Chunks already cached locally are copied into the file without a request.
+     * If an earlier download of the file to the same destination was saved, it is resumed
+     * and only the missing chunks are fetched.
      * 
      * @param fileHash The hash of the file to fetch
      * @param outputFile The output file to write to
-     * @return True if the file was successfully fetched
-     * @throws IOException If there's an error fetching the file
+     * @return The running download, or null if no peer has the file
+     * @throws IOException If the output file can't be created, or the file is already
+     *                     being downloaded to another destination
      */
-    private boolean fetchFileFromPeers(String fileHash, File outputFile) throws IOException {
-        List<PeerInfo> activePeers = peerDiscovery.getActivePeers();
-        if (activePeers.isEmpty()) {
-            logger.error("No active peers to fetch file from");
-            return false;
+    public StreamingDownload startStreamingFetch(String fileHash, File outputFile) throws IOException {
+        return startStreamingFetch(fileHash, outputFile, null);
+    }
+    
+    /**
+     * Starts a streaming fetch, telling a listener about each chunk the download completes.
+     * See {@link #startStreamingFetch(String, File)}. The listener hears about every chunk
+     * of a download this call starts, including those found locally; joining a download
+     * that is already running, it hears about the chunks completed from then on.
+     * 
+     * @param fileHash The hash of the file to fetch
+     * @param outputFile The output file to write to
+     * @param listener The listener, or null
+     * @return The running download, or null if no peer has the file
+     * @throws IOException If the output file can't be created, or the file is already
+     *                     being downloaded to another destination
+     */
+    public StreamingDownload startStreamingFetch(String fileHash, File outputFile, TransferListener listener)
+            throws IOException {
+        TransferListener[] pending = {listener}; // Cleared once a start of ours has taken it
+        StreamingDownload download = activeDownloads.get(fileHash);
+        if (download == null) {
+            // Concurrent starts of one file share a single start; other files start in parallel
+            try {
+                download = downloadStarts.execute(fileHash, () -> {
+                    StreamingDownload active = activeDownloads.get(fileHash);
+                    try {
+                        if (active != null) {
+                            return active;
+                        }
+                        TransferListener taken = pending[0];
+                        pending[0] = null;
+                        return startDownload(fileHash, outputFile, taken);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        if (download != null && !download.getOutputFile().getAbsolutePath().equals(outputFile.getAbsolutePath())) {
+            throw new IOException("File " + fileHash + " is already being downloaded to " + download.getOutputFile());
+        }
+        if (download != null && pending[0] != null) {
+            download.addTransferListener(pending[0]); // Joined a running download
         }
+        return download;
+    }
+    
+    /**
+     * Starts a streaming fetch of a file that isn't being downloaded. See {@link #startStreamingFetch}.
+     */
+    private StreamingDownload startDownload(String fileHash, File outputFile, TransferListener listener)
+            throws IOException {
+        String destination = outputFile.getAbsolutePath();
+        List<PeerInfo> activePeers = findPeers(fileHash);
+        DownloadState saved = loadDownloadState(fileHash);
+        StreamingDownload download;
+        Map<PeerInfo, BitSet> peerChunks;
         
-        // First, determine the total number of chunks by fetching chunk 0
-        CacheItem firstChunk = null;
-        for (PeerInfo peer : activePeers) {
-            firstChunk = peerHandler.requestFileChunk(peer, fileHash, 0);
-            if (firstChunk != null) {
-                break;
+        if (saved != null && saved.getDestination().equals(destination)) {
+            download = StreamingDownload.resume(saved, cacheEngine, streamCacheChunks);
+            download.addTransferListener(listener);
+            peerChunks = new HashMap<>();
+            logger.info("Resuming download of {} at {} of {} chunks",
+                    fileHash, download.getCompletedChunks(), download.getTotalChunks());
+        } else {
+            DownloadPlan plan = planDownload(fileHash, activePeers);
+            if (plan == null) {
+                return null;
+            }
+            download = new StreamingDownload(plan.manifest, outputFile, cacheEngine, streamCacheChunks);
+            download.addTransferListener(listener);
+            peerChunks = plan.peerChunks;
+            if (plan.firstChunk != null
+                    && !acceptChunk(download, download, 0, plan.firstChunk.item, plan.firstChunk.latencyMs)) {
+                return null;
             }
         }
         
-        if (firstChunk == null) {
-            logger.error("Failed to fetch first chunk of file: {}", fileHash);
-            return false;
+        int totalChunks = download.getTotalChunks();
+        for (int i = 0; i < totalChunks; i++) {
+            if (!download.hasChunk(i)) {
+                CacheItem cached = cacheEngine.peekCacheItem(fileHash, i);
+                if (cached != null && !acceptChunk(download, download, i, cached, 0)) {
+                    return null;
+                }
+            }
+        }
+        DownloadScheduler.ChunkSink sink = download;
+        if (download.getManifest().isErasureCoded()) {
+            ErasureSink erasureSink = new ErasureSink(download.getManifest(), download);
+            if (!acceptCachedParity(download, erasureSink)) {
+                return null;
+            }
+            sink = erasureSink;
         }
         
-        int totalChunks = firstChunk.getTotalChunks();
-        logger.info("Fetching file with {} chunks", totalChunks);
+        activeDownloads.put(fileHash, download);
+        download.getCompletion().whenComplete((result, error) -> {
+            activeDownloads.remove(fileHash, download);
+            if (Boolean.TRUE.equals(result) && streamCacheChunks) {
+                provide(fileHash);
+            }
+        });
         
-        // Cache the first chunk
-        cacheEngine.putCacheItem(fileHash, 0, firstChunk.getData(), totalChunks);
-        
-        // Create a map to track which peer has which chunk
-        Map<Integer, List<PeerInfo>> chunkPeerMap = new ConcurrentHashMap<>();
-        
-        // Fetch the remaining chunks in parallel
-        List<Future<Boolean>> futures = new ArrayList<>();
-        for (int i = 1; i < totalChunks; i++) {
-            final int chunkId = i;
-            futures.add(executor.submit(() -> {
-                for (PeerInfo peer : activePeers) {
-                    CacheItem chunk = peerHandler.requestFileChunk(peer, fileHash, chunkId);
-                    if (chunk != null) {
-                        cacheEngine.putCacheItem(fileHash, chunkId, chunk.getData(), totalChunks);
-                        
-                        // Track which peer has this chunk
-                        chunkPeerMap.computeIfAbsent(chunkId, k -> new ArrayList<>()).add(peer);
-                        
-                        logger.debug("Fetched chunk {} from {}", chunkId, peer);
-                        return true;
-                    }
+        DownloadScheduler scheduler = newScheduler(download.getManifest(), activePeers, sink);
+        download.setPlaybackListener(chunkId -> scheduler.prioritize(chunkId, playbackWindowChunks));
+        startScheduler(fileHash, activePeers, peerChunks, scheduler)
+                .whenComplete((fetched, error) -> download.finish(Boolean.TRUE.equals(fetched)));
+        return download;
+    }
+    
+    /**
+     * Starts a streaming fetch for a consumer that reads the file in order, such as a media
+     * player. The returned stream blocks only on the next chunk it needs; the chunks in a
+     * window ahead of it are fetched first, in order, and the rest of the file with whatever
+     * capacity is left. See {@link StreamingDownload#newInputStream()}.
+     * 
+     * @param fileHash The hash of the file to fetch
+     * @param outputFile The output file to write to
+     * @return A stream over the file, or null if no peer has the file
+     * @throws IOException If the output file can't be created or opened, or the file is
+     *                     already being downloaded to another destination
+     */
+    public InputStream fetchStream(String fileHash, File outputFile) throws IOException {
+        StreamingDownload download = startStreamingFetch(fileHash, outputFile);
+        return download != null ? download.newInputStream() : null;
+    }
+    
+    /**
+     * Writes a locally available chunk into a download that hasn't started fetching yet.
+     * 
+     * @return False if the chunk was rejected, in which case the download is finished
+     */
+    private boolean acceptChunk(StreamingDownload download, DownloadScheduler.ChunkSink sink, int chunkId,
+                                CacheItem item, long latencyMs) throws IOException {
+        try {
+            if (sink.accept(chunkId, item.getChunk(), latencyMs, 1)) {
+                return true;
+            }
+        } catch (IOException e) {
+            download.finish(false);
+            throw e;
+        }
+        download.finish(false);
+        return false;
+    }
+    
+    /**
+     * Hands the locally cached parity fragments of the stripes an erasure-coded download
+     * still misses chunks of to its sink, which rebuilds the stripes they complete.
+     * 
+     * @return False if a fragment was rejected, in which case the download is finished
+     */
+    private boolean acceptCachedParity(StreamingDownload download, ErasureSink sink) throws IOException {
+        FileManifest manifest = download.getManifest();
+        BitSet cached = cacheEngine.getCachedChunks(manifest.getFileHash());
+        for (int stripe = 0; stripe < manifest.getStripeCount(); stripe++) {
+            int[] fragments = manifest.getStripeFragments(stripe);
+            int chunks = manifest.getStripeChunks(stripe);
+            boolean complete = true;
+            for (int i = 0; i < chunks; i++) {
+                complete &= download.hasChunk(fragments[i]);
+            }
+            for (int i = chunks; i < fragments.length && !complete; i++) {
+                CacheItem item = cached.get(fragments[i]) ? cacheEngine.peekCacheItem(manifest.getFileHash(), fragments[i]) : null;
+                if (item != null && !acceptChunk(download, sink, fragments[i], item, 0)) {
+                    return false;
                 }
-                logger.error("Failed to fetch chunk {}", chunkId);
-                return false;
-            }));
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Resumes saved downloads that aren't running, e.g. after a restart or after their
+     * peers went away. Does nothing while no peer is active.
+     * 
+     * @return The number of downloads resumed
+     */
+    public int resumeDownloads() {
+        if (peerDiscovery.getActivePeerCount() == 0) {
+            return 0;
         }
         
-        // Wait for all chunks to be fetched
-        boolean allChunksFetched = true;
-        for (Future<Boolean> future : futures) {
+        int resumed = 0;
+        for (DownloadState state : DownloadState.loadAll()) {
+            if (activeDownloads.containsKey(state.getFileHash())) {
+                continue;
+            }
             try {
-                allChunksFetched &= future.get();
-            } catch (Exception e) {
-                logger.error("Error fetching chunk", e);
-                allChunksFetched = false;
+                if (startStreamingFetch(state.getFileHash(), new File(state.getDestination())) != null) {
+                    resumed++;
+                }
+            } catch (IOException e) {
+                logger.error("Error resuming download of {}: {}", state.getFileHash(), e.getMessage());
+            }
+        }
+        return resumed;
+    }
+    
+    /**
+     * Gets the progress of all running and saved unfinished downloads.
+     * 
+     * @return The download states
+     */
+    public List<DownloadState> getDownloads() {
+        Map<String, DownloadState> downloads = new LinkedHashMap<>();
+        for (StreamingDownload download : activeDownloads.values()) {
+            downloads.put(download.getFileHash(), download.getState());
+        }
+        for (DownloadState state : DownloadState.loadAll()) {
+            downloads.putIfAbsent(state.getFileHash(), state);
+        }
+        return new ArrayList<>(downloads.values());
+    }
+    
+    /**
+     * Cancels the running downloads of a file. Their pending chunk requests are abandoned;
+     * a streaming download keeps its partial file and saved state, so it can be resumed.
+     * 
+     * @param fileHash The hash of the file
+     * @return The number of downloads cancelled
+     */
+    public int cancelDownload(String fileHash) {
+        int cancelled = 0;
+        for (DownloadScheduler scheduler : runningSchedulers) {
+            if (scheduler.getFileHash().equals(fileHash)) {
+                scheduler.cancel();
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+    
+    private DownloadState loadDownloadState(String fileHash) {
+        try {
+            return DownloadState.load(fileHash);
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable state of download {}: {}", fileHash, e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Fetches a file from peers in the network.
+     * 
+     * @param fileHash The hash of the file to fetch
+     * @param outputFile The output file to write to
+     * @param listener Told about each chunk fetched, or null
+     * @return True if the file was successfully fetched
+     * @throws IOException If there's an error fetching the file
+     */
+    private boolean fetchFileFromPeers(String fileHash, File outputFile, TransferListener listener) throws IOException {
+        if (streamingEnabled) {
+            StreamingDownload download = startStreamingFetch(fileHash, outputFile, listener);
+            try {
+                return download != null && download.awaitCompletion();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
         }
         
-        if (!allChunksFetched) {
-            logger.error("Failed to fetch all chunks of file: {}", fileHash);
+        List<PeerInfo> activePeers = findPeers(fileHash);
+        DownloadPlan plan = planDownload(fileHash, activePeers);
+        if (plan == null) {
             return false;
         }
         
-        // Recreate the file from the fetched chunks
-        return cacheEngine.recreateFile(fileHash, outputFile);
+        int totalChunks = plan.manifest.getTotalChunks();
+        logger.info("Fetching file with {} chunks", totalChunks);
+        
+        // Keep the chunks from being evicted before the file is rebuilt from them
+        cacheEngine.pinFile(fileHash);
+        try {
+            DownloadScheduler.ChunkSink sink = DownloadScheduler.cacheSink(cacheEngine, plan.manifest);
+            if (listener != null) {
+                int cached = cacheEngine.getCachedChunks(fileHash).get(0, totalChunks).cardinality(); // Without parity
+                TransferTracker tracker = new TransferTracker(fileHash, totalChunks, plan.manifest.getFileSize(), cached);
+                tracker.addListener(listener);
+                sink = tracker.track(sink);
+            }
+            if (plan.manifest.isErasureCoded()) {
+                // Parity fragments in the cache already count; rebuild the stripes they complete
+                ErasureSink erasureSink = new ErasureSink(plan.manifest, sink);
+                erasureSink.decodeAll();
+                sink = erasureSink;
+            }
+            
+            // Cache the first chunk
+            if (plan.firstChunk != null && !sink.hasChunk(0)
+                    && !sink.accept(0, plan.firstChunk.item.getChunk(), plan.firstChunk.latencyMs, 1)) {
+                logger.error("First chunk of file {} doesn't match its manifest", fileHash);
+                return false;
+            }
+            
+            // Fetch the remaining chunks from all peers, rarest first
+            DownloadScheduler scheduler = newScheduler(plan.manifest, activePeers, sink);
+            boolean fetched;
+            try {
+                fetched = startScheduler(fileHash, activePeers, plan.peerChunks, scheduler).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                scheduler.cancel();
+                fetched = false;
+            } catch (ExecutionException e) {
+                logger.error("Download of {} failed", fileHash, e.getCause());
+                fetched = false;
+            }
+            if (!fetched) {
+                logger.error("Failed to fetch all chunks of file: {} ({} of {} chunks)",
+                        fileHash, scheduler.getCompletedChunks(), totalChunks);
+                return false;
+            }
+            
+            // Recreate the file from the fetched chunks
+            provide(fileHash);
+            return cacheEngine.recreateFile(fileHash, outputFile);
+        } finally {
+            cacheEngine.unpinFile(fileHash);
+        }
     }
     
     /**
-     * Gets information about a file in the P2P network.
+     * Gets the peers to download a file from: the active peers, best first, followed by
+     * the file's providers found through the DHT that aren't direct peers.
      * 
      * @param fileHash The hash of the file
-     * @return Map containing file information, or null if not found
+     * @return The peers
      */
-    public Map<String, Object> getFileInfo(String fileHash) {
-        // Check for any chunk of this file
-        CacheItem anyChunk = null;
+    private List<PeerInfo> findPeers(String fileHash) {
+        List<PeerInfo> peers = peerDiscovery.getActivePeersByScore(explorationRate);
+        if (!dhtEnabled || !ChunkKey.isValidHash(fileHash)) {
+            return peers;
+        }
+        
+        Set<String> known = peers.stream().map(PeerInfo::getId).collect(Collectors.toSet());
+        for (PeerInfo provider : peerHandler.getDht().findProviders(fileHash, dhtMaxProviders)) {
+            if (known.add(provider.getId())) {
+                peers.add(provider);
+            }
+        }
+        return peers;
+    }
+    
+    /**
+     * Makes an uploaded file findable: pushes its chunks to their home peers and announces
+     * this node as a provider in the DHT.
+     */
+    private void publish(String fileHash) {
+        placement.placeFile(fileHash);
+        provide(fileHash);
+    }
+    
+    private void provide(String fileHash) {
+        if (dhtEnabled) {
+            peerHandler.getDht().provide(fileHash);
+        }
+    }
+    
+    /**
+     * Stops announcing a file once none of its chunks are cached here any more.
+     */
+    private void unprovide(String fileHash) {
+        if (dhtEnabled) {
+            peerHandler.getDht().unprovide(fileHash);
+        }
+    }
+    
+    /**
+     * Learns what is needed to start downloading a file: its manifest, and which chunks each
+     * peer holds. The local manifest is used as is if it is complete and every chunk is
+     * cached; otherwise every peer is asked for the file's info at once. If no peer sends a
+     * manifest, e.g. because they run an older version, chunk 0 is fetched instead, which
+     * tells the total number of chunks but not the file size or chunk digests.
+     * 
+     * @param fileHash The hash of the file
+     * @param peers The peers to ask, best first
+     * @return The plan, or null if neither this node nor any peer knows the file
+     */
+    private DownloadPlan planDownload(String fileHash, List<PeerInfo> peers) {
+        FileManifest local = cacheEngine.getManifest(fileHash);
+        if (local != null && local.isComplete()
+                && cacheEngine.getCachedChunks(fileHash).nextClearBit(0) >= local.getTotalChunks()) {
+            return new DownloadPlan(local, new HashMap<>(), null);
+        }
         
-        // Try all chunks from 0 to a reasonable number
-        for (int i = 0; i < 100; i++) {
-            CacheItem chunk = cacheEngine.getCacheItem(fileHash, i);
-            if (chunk != null) {
-                anyChunk = chunk;
-                break;
+        Map<PeerInfo, PeerHandler.FileInfo> infos = requestFileInfos(fileHash, peers);
+        FileManifest manifest = pickManifest(local, infos.values());
+        if (manifest != null) {
+            // Keep the manifest, so the chunks can be verified when they are served to others
+            cacheEngine.putManifest(manifest);
+            FileManifest recorded = cacheEngine.getManifest(fileHash);
+            if (recorded != null) {
+                manifest = recorded;
             }
+            
+            Map<PeerInfo, BitSet> peerChunks = new HashMap<>();
+            for (Map.Entry<PeerInfo, PeerHandler.FileInfo> entry : infos.entrySet()) {
+                peerChunks.put(entry.getKey(), entry.getValue().getChunks());
+            }
+            logger.info("Planned download of {}: {} chunks, {} bytes, {} of {} peers answered",
+                    fileHash, manifest.getTotalChunks(), manifest.getFileSize(), infos.size(), peers.size());
+            return new DownloadPlan(manifest, peerChunks, null);
+        }
+        
+        FirstChunk first = fetchFirstChunk(fileHash, peers);
+        if (first == null) {
+            return null;
+        }
+        return new DownloadPlan(new FileManifest(fileHash, first.item.getTotalChunks(), -1), new HashMap<>(), first);
+    }
+    
+    /**
+     * Asks every peer for a file's info at once, waiting at most the bitfield timeout.
+     * 
+     * @return The answers, keyed by peer; peers that don't know the file answer with no manifest
+     */
+    private Map<PeerInfo, PeerHandler.FileInfo> requestFileInfos(String fileHash, List<PeerInfo> peers) {
+        Map<PeerInfo, PeerHandler.FileInfo> infos = new ConcurrentHashMap<>();
+        if (peers.isEmpty() || !ChunkKey.isValidHash(fileHash)) {
+            return infos;
         }
         
-        if (anyChunk == null) {
-            // Try to fetch chunk 0 from peers
-            List<PeerInfo> activePeers = peerDiscovery.getActivePeers();
-            for (PeerInfo peer : activePeers) {
-                anyChunk = peerHandler.requestFileChunk(peer, fileHash, 0);
-                if (anyChunk != null) {
-                    break;
+        List<CompletableFuture<Void>> requests = new ArrayList<>(peers.size());
+        for (PeerInfo peer : peers) {
+            requests.add(CompletableFuture.runAsync(() -> {
+                PeerHandler.FileInfo info = peerHandler.requestFileInfo(peer, fileHash);
+                if (info != null) {
+                    infos.put(peer, info);
                 }
+            }, executor));
+        }
+        
+        try {
+            CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]))
+                    .get(bitfieldTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.debug("Not every peer sent the info of {} within {} ms", fileHash, bitfieldTimeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("File info request for {} failed", fileHash, e.getCause());
+        }
+        // Answers arriving after the timeout are left to the bitfield exchange
+        return new HashMap<>(infos);
+    }
+    
+    /**
+     * Picks the most informative manifest: one listing the chunk digests, then one with the
+     * file size. The local manifest wins ties.
+     */
+    private FileManifest pickManifest(FileManifest local, Collection<PeerHandler.FileInfo> infos) {
+        FileManifest best = local;
+        for (PeerHandler.FileInfo info : infos) {
+            FileManifest candidate = info.getManifest();
+            if (candidate != null && manifestScore(candidate) > manifestScore(best)) {
+                best = candidate;
             }
         }
+        return best;
+    }
+    
+    private static int manifestScore(FileManifest manifest) {
+        if (manifest == null) {
+            return -1;
+        }
+        return (manifest.getChunkDigests() != null ? 2 : 0) + (manifest.getFileSize() >= 0 ? 1 : 0);
+    }
+    
+    /**
+     * Gets chunk 0 of a file, which tells the total number of chunks: from the local cache
+     * if present, otherwise from the first peer that has it. Concurrent downloads of the
+     * same file share one fetch.
+     * 
+     * @param fileHash The hash of the file
+     * @param peers The peers to ask, best first
+     * @return The first chunk, or null if no peer has it
+     */
+    private FirstChunk fetchFirstChunk(String fileHash, List<PeerInfo> peers) {
+        CacheItem cached = cacheEngine.peekCacheItem(fileHash, 0);
+        if (cached != null) {
+            return new FirstChunk(cached, 0);
+        }
+        
+        if (peers.isEmpty()) {
+            logger.error("No active peers to fetch file from");
+            return null;
+        }
+        if (!ChunkKey.isValidHash(fileHash)) {
+            logger.error("Invalid file hash: {}", fileHash);
+            return null;
+        }
         
-        if (anyChunk == null) {
+        long start = System.currentTimeMillis();
+        CacheItem item = chunkFetches.execute(ChunkKey.of(fileHash, 0), () -> {
+            // The chunk's home peers are the likeliest to hold it
+            for (PeerInfo peer : placement.orderForLookup(fileHash, 0, peers)) {
+                CacheItem fetched = peerHandler.requestFileChunk(peer, fileHash, 0);
+                if (fetched != null) {
+                    return fetched;
+                }
+            }
+            return null;
+        });
+        if (item == null) {
+            logger.error("Failed to fetch first chunk of file: {}", fileHash);
             return null;
         }
+        return new FirstChunk(item, System.currentTimeMillis() - start);
+    }
+    
+    private DownloadScheduler newScheduler(FileManifest manifest, List<PeerInfo> peers,
+                                           DownloadScheduler.ChunkSink sink) {
+        return new DownloadScheduler(manifest, peers, peerHandler, sink, executor, downloadTimer,
+                this::limitFor, maxPeerFailures, hedgePolicy, chunkFetches, batchSize, pieceSize);
+    }
+    
+    private ConcurrencyLimit limitFor(PeerInfo peer) {
+        return peerLimits.computeIfAbsent(peer.getId(),
+                id -> new ConcurrencyLimit(pipelineDepth, minPipelineDepth, maxPipelineDepth));
+    }
+    
+    /**
+     * Starts a download's scheduler once the peers whose chunks aren't known yet have sent
+     * their bitfields, or the bitfield timeout has passed.
+     * 
+     * @param fileHash The hash of the file
+     * @param peers The peers of the download
+     * @param peerChunks The chunks held by the peers already asked, e.g. while planning
+     * @param scheduler The scheduler
+     * @return Completes with true once all chunks were fetched
+     */
+    private CompletableFuture<Boolean> startScheduler(String fileHash, List<PeerInfo> peers,
+                                                      Map<PeerInfo, BitSet> peerChunks, DownloadScheduler scheduler) {
+        if (scheduler.getRemainingChunks() == 0) {
+            return CompletableFuture.completedFuture(true);
+        }
+        
+        PeerHandler.HaveListener haveListener = scheduler::recordHave;
+        peerHandler.addHaveListener(fileHash, haveListener);
+        runningSchedulers.add(scheduler);
+        peerChunks.forEach(scheduler::setPeerChunks);
+        List<PeerInfo> unknown = peers.stream()
+                .filter(peer -> !peerChunks.containsKey(peer))
+                .collect(Collectors.toList());
+        return exchangeBitfields(fileHash, unknown, scheduler)
+                .thenCompose(exchanged -> scheduler.start())
+                .whenComplete((fetched, error) -> {
+                    runningSchedulers.remove(scheduler);
+                    peerHandler.removeHaveListener(fileHash, haveListener);
+                });
+    }
+    
+    /**
+     * Asks peers for their bitfields of a file, handing each to the scheduler as it arrives.
+     * 
+     * @return Completes once every peer has answered or the bitfield timeout has passed
+     */
+    private CompletableFuture<Void> exchangeBitfields(String fileHash, List<PeerInfo> peers,
+                                                      DownloadScheduler scheduler) {
+        List<CompletableFuture<Void>> requests = new ArrayList<>(peers.size());
+        for (PeerInfo peer : peers) {
+            requests.add(CompletableFuture.runAsync(() -> {
+                BitSet held = peerHandler.requestBitfield(peer, fileHash);
+                if (held != null) {
+                    scheduler.setPeerChunks(peer, held);
+                }
+            }, executor));
+        }
+        
+        CompletableFuture<Void> all = CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]));
+        return all.handle((done, error) -> {
+            if (error != null) {
+                logger.warn("Bitfield exchange for {} failed", fileHash, error);
+            }
+            return (Void) null;
+        }).completeOnTimeout(null, bitfieldTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Gets information about a file in the P2P network. The file's manifest comes from the
+     * local cache, or from the peers if it isn't complete locally, so the size is exact
+     * whenever some node knows it.
+     * 
+     * @param fileHash The hash of the file
+     * @return Map containing file information, or null if not found
+     */
+    public Map<String, Object> getFileInfo(String fileHash) {
+        FileManifest manifest = cacheEngine.getManifest(fileHash);
+        List<PeerInfo> activePeers = null;
+        if (manifest == null || !manifest.isComplete()) {
+            activePeers = findPeers(fileHash);
+            manifest = pickManifest(manifest, requestFileInfos(fileHash, activePeers).values());
+        }
+        
+        long estimatedSize;
+        if (manifest != null) {
+            estimatedSize = manifest.getFileSize() >= 0
+                    ? manifest.getFileSize() : (long) manifest.getTotalChunks() * CacheEngine.MAX_CHUNK_SIZE;
+        } else {
+            // Peers running an older version only tell the chunk count with chunk 0
+            FirstChunk first = fetchFirstChunk(fileHash, activePeers);
+            if (first == null) {
+                return null;
+            }
+            manifest = new FileManifest(fileHash, first.item.getTotalChunks(), -1);
+            estimatedSize = (long) manifest.getTotalChunks() * first.item.getDataSize(); // rough estimate
+        }
         
         // Build file info
         Map<String, Object> info = new HashMap<>();
         info.put("fileHash", fileHash);
-        info.put("totalChunks", anyChunk.getTotalChunks());
-        info.put("estimatedSize", anyChunk.getTotalChunks() * anyChunk.getData().length); // rough estimate
-        info.put("chunksLocally", countLocalChunks(fileHash, anyChunk.getTotalChunks()));
+        info.put("totalChunks", manifest.getTotalChunks());
+        info.put("fileSize", manifest.getFileSize()); // -1 if no node knows it yet
+        info.put("estimatedSize", estimatedSize);
+        info.put("verifiable", manifest.getChunkDigests() != null);
+        info.put("erasureCoded", manifest.isErasureCoded());
+        if (manifest.isErasureCoded()) {
+            info.put("dataShards", manifest.getDataShards());
+            info.put("parityShards", manifest.getParityShards());
+        }
+        info.put("chunksLocally", countLocalChunks(fileHash, manifest.getTotalChunks()));
         
         return info;
     }
@@ -216,17 +1068,92 @@ public class FileServer {
     private int countLocalChunks(String fileHash, int totalChunks) {
         int count = 0;
         for (int i = 0; i < totalChunks; i++) {
-            if (cacheEngine.getCacheItem(fileHash, i) != null) {
+            if (cacheEngine.hasCacheItem(fileHash, i)) {
                 count++;
             }
         }
         return count;
     }
     
+    /**
+     * What a download starts from: the file's manifest, the chunks held by the peers that
+     * were asked, and chunk 0 if it had to be fetched to learn the chunk count.
+     */
+    private static class DownloadPlan {
+        final FileManifest manifest;
+        final Map<PeerInfo, BitSet> peerChunks;
+        final FirstChunk firstChunk;
+        
+        DownloadPlan(FileManifest manifest, Map<PeerInfo, BitSet> peerChunks, FirstChunk firstChunk) {
+            this.manifest = manifest;
+            this.peerChunks = peerChunks;
+            this.firstChunk = firstChunk;
+        }
+    }
+    
+    /**
+     * The first chunk of a file and how long it took to get.
+     */
+    private static class FirstChunk {
+        final CacheItem item;
+        final long latencyMs;
+        
+        FirstChunk(CacheItem item, long latencyMs) {
+            this.item = item;
+            this.latencyMs = latencyMs;
+        }
+    }
+    
+    /**
+     * Reads a cached file's bytes at any offset. Holds on to the last chunk read, as a
+     * delta's copies mostly read on from where the previous one stopped.
+     */
+    private static class CachedFileSource implements DeltaCodec.Source {
+        private final CacheEngine cacheEngine;
+        private final String fileHash;
+        private int chunkId = -1;
+        private PagedChunk chunk;
+        
+        CachedFileSource(CacheEngine cacheEngine, String fileHash) {
+            this.cacheEngine = cacheEngine;
+            this.fileHash = fileHash;
+        }
+        
+        @Override
+        public void read(long position, byte[] dst, int offset, int length) throws IOException {
+            while (length > 0) {
+                int id = (int) (position / CacheEngine.MAX_CHUNK_SIZE);
+                if (id != chunkId) {
+                    CacheItem item = cacheEngine.peekCacheItem(fileHash, id);
+                    if (item == null) {
+                        throw new IOException("Chunk " + id + " of file " + fileHash + " is no longer cached");
+                    }
+                    chunk = item.getChunk();
+                    chunkId = id;
+                }
+                int chunkOffset = (int) (position % CacheEngine.MAX_CHUNK_SIZE);
+                int read = Math.min(length, chunk.length() - chunkOffset);
+                if (read <= 0) {
+                    throw new IOException("Read past the end of file " + fileHash);
+                }
+                chunk.copyTo(chunkOffset, dst, offset, read);
+                position += read;
+                offset += read;
+                length -= read;
+            }
+        }
+    }
+    
     /**
      * Stops the file server.
      */
     public void shutdown() {
+        replicator.shutdown();
+        placement.shutdown();
+        runningSchedulers.forEach(DownloadScheduler::cancel);
+        uploadExecutor.shutdownNow();
+        downloadExecutor.shutdownNow();
+        downloadTimer.shutdownNow();
         executor.shutdownNow();
         logger.info("File server shutdown");
     }
@@ -0,0 +1,191 @@
+package com.jcachenetdl.node;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Greedy-Dual-Size-Frequency eviction policy.
+ * <p>
+ * Each entry gets the priority {@code H = L + frequency * cost / size}, where cost is the
+ * expected time to get the entry back once evicted and L is an inflation value that is
+ * raised to the priority of every evicted entry, so entries that stop being accessed age out.
+ * The entry with the lowest priority is evicted first. Pinned entries are never evicted.
+ *
+ * @param <K> The key type
+ */
+public class GdsfEvictionPolicy<K> {
+    private final Map<K, Entry<K>> entries;
+    private final TreeSet<Entry<K>> queue;
+    private double inflation;
+    private long totalSize;
+    private long sequence;
+
+    public GdsfEvictionPolicy() {
+        this.entries = new HashMap<>();
+        this.queue = new TreeSet<>(Comparator.<Entry<K>>comparingDouble(e -> e.priority)
+                .thenComparingLong(e -> e.sequence));
+    }
+
+    /**
+     * Records a new entry, replacing any existing entry with the same key. A replaced
+     * entry's pin carries over.
+     *
+     * @param key The entry key
+     * @param size The entry size in bytes
+     * @param cost The cost of getting the entry back once evicted
+     */
+    public synchronized void recordInsert(K key, long size, double cost) {
+        Entry<K> entry = entries.remove(key);
+        boolean pinned = false;
+        if (entry != null) {
+            queue.remove(entry);
+            totalSize -= entry.size;
+            pinned = entry.pinned;
+        }
+
+        entry = new Entry<>(key, Math.max(1, size), Math.max(0, cost));
+        entry.frequency = 1;
+        entry.sequence = sequence++;
+        entry.priority = computePriority(entry);
+        entry.pinned = pinned;
+
+        entries.put(key, entry);
+        if (!pinned) {
+            queue.add(entry);
+        }
+        totalSize += entry.size;
+    }
+
+    /**
+     * Records an access to an entry, raising its priority.
+     *
+     * @param key The entry key
+     */
+    public synchronized void recordAccess(K key) {
+        Entry<K> entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+
+        queue.remove(entry);
+        entry.frequency++;
+        entry.sequence = sequence++;
+        entry.priority = computePriority(entry);
+        if (!entry.pinned) {
+            queue.add(entry);
+        }
+    }
+
+    /**
+     * Pins an entry so it isn't evicted until unpinned. It still counts towards the total size.
+     *
+     * @param key The entry key
+     */
+    public synchronized void pin(K key) {
+        Entry<K> entry = entries.get(key);
+        if (entry != null && !entry.pinned) {
+            queue.remove(entry);
+            entry.pinned = true;
+        }
+    }
+
+    /**
+     * Makes a pinned entry evictable again.
+     *
+     * @param key The entry key
+     */
+    public synchronized void unpin(K key) {
+        Entry<K> entry = entries.get(key);
+        if (entry != null && entry.pinned) {
+            entry.pinned = false;
+            queue.add(entry);
+        }
+    }
+
+    /**
+     * Forgets an entry.
+     *
+     * @param key The entry key
+     * @return True if the entry was tracked
+     */
+    public synchronized boolean remove(K key) {
+        Entry<K> entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+
+        queue.remove(entry);
+        totalSize -= entry.size;
+        return true;
+    }
+
+    /**
+     * Removes the entry with the lowest priority and ages the remaining entries.
+     *
+     * @return The key of the evicted entry, or null if every entry is pinned or the policy is empty
+     */
+    public synchronized K evict() {
+        Entry<K> victim = queue.pollFirst();
+        if (victim == null) {
+            return null;
+        }
+
+        entries.remove(victim.key);
+        totalSize -= victim.size;
+        inflation = victim.priority;
+        return victim.key;
+    }
+
+    /**
+     * Checks if an entry is tracked.
+     *
+     * @param key The entry key
+     * @return True if the entry is tracked
+     */
+    public synchronized boolean contains(K key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Gets the total size of all tracked entries.
+     *
+     * @return The total size in bytes
+     */
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Gets the number of tracked entries.
+     *
+     * @return The entry count
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private double computePriority(Entry<K> entry) {
+        return inflation + entry.frequency * entry.cost / entry.size;
+    }
+
+    /**
+     * Bookkeeping for one tracked entry.
+     */
+    private static class Entry<K> {
+        private final K key;
+        private final long size;
+        private final double cost;
+        private long frequency;
+        private double priority;
+        private long sequence;
+        private boolean pinned;
+
+        Entry(K key, long size, double cost) {
+            this.key = key;
+            this.size = size;
+            this.cost = cost;
+        }
+    }
+}
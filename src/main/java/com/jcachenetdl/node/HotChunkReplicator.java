@@ -0,0 +1,213 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.Action;
+import com.jcachenetdl.common.ChunkKey;
+import com.jcachenetdl.common.LedgerEntry;
+import com.jcachenetdl.config.ConfigurationManager;
+import com.jcachenetdl.ledger.ActionType;
+import com.jcachenetdl.ledger.DistributedLedger;
+import com.jcachenetdl.util.LogUtil;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Spreads the load of popular chunks by pushing extra copies of them to more peers before
+ * the few nodes holding them saturate.
+ * <p>
+ * Demand is measured per chunk from this node's cache hits and from the CACHE_HIT actions
+ * of other peers in the ledger, as a score that halves every interval and grows by the hits
+ * seen in it. A chunk held here whose score reaches {@code cache.replication.hits.per.replica}
+ * gets one extra copy per that many hits on top of its home peers, up to
+ * {@code cache.replication.max.replicas}. Extra copies go to the peers that follow the
+ * chunk's home peers on the placement ring, so every holder picks the same peers. Once a
+ * chunk cools down it is forgotten and its extra copies age out of the peers' caches.
+ */
+public class HotChunkReplicator {
+    private static final double DECAY = 0.5; // Score kept per interval
+    private static final double COLD_SCORE = 1.0; // Below this a chunk is forgotten
+
+    private final String peerId;
+    private final CacheEngine cacheEngine;
+    private final DistributedLedger ledger;
+    private final ChunkPlacement placement;
+    private final boolean enabled;
+    private final long intervalMs;
+    private final double hitsPerReplica;
+    private final int maxReplicas;
+    private final int maxPushesPerInterval;
+    private final Map<ChunkKey, LongAdder> hits; // Hits since the last interval
+    private final ScheduledExecutorService scheduler;
+    private final Logger logger;
+
+    // Only touched by the scheduler thread
+    private final Map<ChunkKey, Double> scores;
+    private final Map<ChunkKey, Set<String>> replicatedTo;
+    private String lastBlockHash;
+
+    public HotChunkReplicator(String peerId, CacheEngine cacheEngine, DistributedLedger ledger,
+                              ChunkPlacement placement) {
+        this.peerId = peerId;
+        this.cacheEngine = cacheEngine;
+        this.ledger = ledger;
+        this.placement = placement;
+        ConfigurationManager config = ConfigurationManager.getInstance();
+        this.enabled = config.getBoolean("cache.replication.enabled", true);
+        this.intervalMs = config.getLong("cache.replication.interval.ms", 10000);
+        this.hitsPerReplica = Math.max(1, config.getInt("cache.replication.hits.per.replica", 50));
+        this.maxReplicas = config.getInt("cache.replication.max.replicas", 8);
+        this.maxPushesPerInterval = config.getInt("cache.replication.max.pushes", 32);
+        this.hits = new ConcurrentHashMap<>();
+        this.scores = new HashMap<>();
+        this.replicatedTo = new HashMap<>();
+        this.scheduler = Executors.newScheduledThreadPool(1, runnable -> {
+            Thread thread = new Thread(runnable, "hot-chunk-replicator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.logger = LogUtil.getLogger(HotChunkReplicator.class);
+
+        // Only demand from now on counts
+        LedgerEntry last = ledger.getLastBlock();
+        this.lastBlockHash = last != null ? last.getBlockHash() : null;
+    }
+
+    /**
+     * Starts counting hits and replicating every interval.
+     */
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        cacheEngine.addHitListener(key -> hits.computeIfAbsent(key, k -> new LongAdder()).increment());
+        scheduler.scheduleAtFixedRate(this::replicate, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        logger.info("Hot chunk replication started, one extra copy per {} hits", (long) hitsPerReplica);
+    }
+
+    /**
+     * Updates the demand scores and pushes extra copies of the chunks that need them.
+     */
+    private void replicate() {
+        try {
+            updateScores();
+
+            List<Map.Entry<ChunkKey, Double>> hot = new ArrayList<>();
+            for (Map.Entry<ChunkKey, Double> entry : scores.entrySet()) {
+                if (entry.getValue() >= hitsPerReplica) {
+                    hot.add(entry);
+                }
+            }
+            // Hottest first, so a capped interval serves them before the lukewarm ones
+            hot.sort(Map.Entry.<ChunkKey, Double>comparingByValue().reversed());
+
+            int pushes = 0;
+            for (Map.Entry<ChunkKey, Double> entry : hot) {
+                if (pushes >= maxPushesPerInterval) {
+                    break;
+                }
+                pushes += replicate(entry.getKey(), entry.getValue(), maxPushesPerInterval - pushes);
+            }
+            if (pushes > 0) {
+                logger.info("Pushed {} copies of {} hot chunks", pushes, hot.size());
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error replicating hot chunks", e);
+        }
+    }
+
+    /**
+     * Pushes a hot chunk held here to the peers its demand calls for.
+     *
+     * @return The number of pushes made
+     */
+    private int replicate(ChunkKey key, double score, int budget) {
+        String fileHash = key.getFileHash();
+        int chunkId = key.getChunkId();
+        if (!cacheEngine.hasCacheItem(fileHash, chunkId)) {
+            return 0;
+        }
+
+        int base = placement.getReplicas(fileHash);
+        int wanted = Math.min(Math.max(base, maxReplicas), base + (int) (score / hitsPerReplica));
+        Set<String> done = replicatedTo.computeIfAbsent(key, k -> new HashSet<>());
+        List<String> targets = new ArrayList<>();
+        // The home peers got their copies from placement; only the ones after them are pushed here
+        List<String> peers = placement.getHomes(fileHash, chunkId, wanted);
+        for (String target : peers.subList(Math.min(base, peers.size()), peers.size())) {
+            if (!target.equals(peerId) && !done.contains(target) && targets.size() < budget) {
+                targets.add(target);
+            }
+        }
+        if (targets.isEmpty()) {
+            return 0;
+        }
+
+        placement.pushNow(fileHash, chunkId, targets);
+        done.addAll(targets);
+        logger.debug("Chunk {} of {} is hot ({} hits), wants {} copies", chunkId, fileHash, (long) score, wanted);
+        return targets.size();
+    }
+
+    /**
+     * Decays every score and adds the hits of the last interval: this node's own, and those
+     * recorded by other peers in ledger blocks added since the last interval.
+     */
+    private void updateScores() {
+        Map<ChunkKey, Long> interval = new HashMap<>();
+        for (Iterator<Map.Entry<ChunkKey, LongAdder>> it = hits.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<ChunkKey, LongAdder> entry = it.next();
+            it.remove();
+            interval.merge(entry.getKey(), entry.getValue().sum(), Long::sum);
+        }
+
+        List<LedgerEntry> blocks = ledger.getBlocksSince(lastBlockHash);
+        long oldest = System.currentTimeMillis() - 2 * intervalMs;
+        for (LedgerEntry block : blocks) {
+            for (Action action : block.getActions()) {
+                // Our own hits are already counted; old ones are history, e.g. after a chain resync
+                if (ActionType.CACHE_HIT.getValue().equals(action.getType())
+                        && !peerId.equals(action.getPeerId())
+                        && action.getTimestamp() >= oldest
+                        && ChunkKey.isValidHash(action.getFileHash())) {
+                    interval.merge(ChunkKey.of(action.getFileHash(), action.getChunkId()), 1L, Long::sum);
+                }
+            }
+        }
+        if (!blocks.isEmpty()) {
+            lastBlockHash = blocks.get(blocks.size() - 1).getBlockHash();
+        }
+
+        for (Iterator<Map.Entry<ChunkKey, Double>> it = scores.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<ChunkKey, Double> entry = it.next();
+            double score = entry.getValue() * DECAY + interval.getOrDefault(entry.getKey(), 0L);
+            interval.remove(entry.getKey());
+            if (score < COLD_SCORE) {
+                it.remove();
+                replicatedTo.remove(entry.getKey());
+            } else {
+                entry.setValue(score);
+            }
+        }
+        for (Map.Entry<ChunkKey, Long> entry : interval.entrySet()) {
+            scores.put(entry.getKey(), (double) entry.getValue());
+        }
+    }
+
+    /**
+     * Stops replicating.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,243 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.config.ConfigurationManager;
+import com.jcachenetdl.metrics.MetricsManager;
+import com.jcachenetdl.util.LogUtil;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import org.slf4j.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resizes the CacheEngine memory tier in response to heap pressure.
+ * <p>
+ * After every garbage collection the controller measures how full the old generation
+ * is once garbage has been removed. Above the target occupancy it shrinks the memory
+ * tier by the excess (spilled chunks stay on disk); well below the target it grows the
+ * tier again in small steps. Shrinking fast and growing slowly keeps the cache from
+ * pushing the heap into back-to-back full collections.
+ * <p>
+ * The controller publishes the memory tier's limit and usage and the old generation
+ * occupancy as gauges.
+ */
+public class MemoryPressureController implements NotificationListener {
+    private static final double GROW_HYSTERESIS = 0.10; // Grow only when this far below target
+    private static final double GROW_STEP = 0.25; // Grow by at most a quarter of the limit at a time
+
+    private final MemoryTier memoryTier;
+    private final double targetOccupancy;
+    private final long minLimitBytes;
+    private final long maxLimitBytes;
+    private final List<NotificationEmitter> emitters;
+    private final MetricsManager metrics;
+    private final Logger logger;
+
+    /**
+     * Creates a memory pressure controller configured by {@code cache.memory.heap.target},
+     * {@code cache.memory.min.mb} and {@code cache.memory.max.mb}.
+     *
+     * @param cacheEngine The cache engine whose memory tier is controlled
+     */
+    public MemoryPressureController(CacheEngine cacheEngine) {
+        this(cacheEngine,
+                ConfigurationManager.getInstance().getDouble("cache.memory.heap.target", 0.70),
+                ConfigurationManager.getInstance().getLong("cache.memory.min.mb", 16) * 1024 * 1024,
+                ConfigurationManager.getInstance().getLong("cache.memory.max.mb", 256) * 1024 * 1024);
+    }
+
+    /**
+     * Creates a new memory pressure controller.
+     *
+     * @param memoryTier The memory tier to control, i.e. the cache engine's
+     * @param targetOccupancy The old generation occupancy to stay below (0-1)
+     * @param minLimitBytes The smallest memory tier limit
+     * @param maxLimitBytes The largest memory tier limit
+     */
+    MemoryPressureController(MemoryTier memoryTier, double targetOccupancy,
+                             long minLimitBytes, long maxLimitBytes) {
+        this.memoryTier = memoryTier;
+        this.targetOccupancy = targetOccupancy;
+        this.minLimitBytes = minLimitBytes;
+        this.maxLimitBytes = Math.max(minLimitBytes, maxLimitBytes);
+        this.emitters = new ArrayList<>();
+        this.metrics = MetricsManager.getInstance();
+        this.logger = LogUtil.getLogger(MemoryPressureController.class);
+    }
+
+    /**
+     * Subscribes to GC and memory pool notifications.
+     */
+    public synchronized void start() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                subscribe((NotificationEmitter) gc);
+            }
+        }
+
+        // Also get notified when a collection leaves the old generation above target
+        for (MemoryPoolMXBean pool : getOldGenerationPools()) {
+            long max = pool.getUsage().getMax();
+            if (max > 0) {
+                pool.setCollectionUsageThreshold((long) (max * targetOccupancy));
+            }
+        }
+        if (ManagementFactory.getMemoryMXBean() instanceof NotificationEmitter) {
+            subscribe((NotificationEmitter) ManagementFactory.getMemoryMXBean());
+        }
+
+        logger.info("Memory pressure controller started: target occupancy {}%, memory tier {}-{} MB",
+                Math.round(targetOccupancy * 100), minLimitBytes / (1024 * 1024), maxLimitBytes / (1024 * 1024));
+    }
+
+    /**
+     * Unsubscribes from all notifications.
+     */
+    public synchronized void stop() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                // Already removed
+            }
+        }
+        emitters.clear();
+        logger.info("Memory pressure controller stopped");
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        try {
+            String type = notification.getType();
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(type)) {
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                adjust(measureOldGeneration(info.getGcInfo()));
+            } else if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+                adjust(measureOldGeneration(null));
+            }
+        } catch (Exception e) {
+            logger.error("Error handling memory notification", e);
+        }
+    }
+
+    /**
+     * Adjusts the memory tier limit for the old generation usage after a collection. The
+     * excess and headroom are measured in bytes of the old generation, which is what the
+     * tier's chunks end up filling, rather than of the whole heap.
+     *
+     * @param oldGen The old generation usage after the last collection, or null if unknown
+     */
+    void adjust(MemoryUsage oldGen) {
+        if (oldGen == null || oldGen.getMax() <= 0) {
+            return;
+        }
+
+        long target = (long) (oldGen.getMax() * targetOccupancy);
+        double occupancy = (double) oldGen.getUsed() / oldGen.getMax();
+        long currentLimit = memoryTier.getMemoryLimit();
+        long newLimit = currentLimit;
+
+        if (oldGen.getUsed() > target) {
+            // Shed at least the excess, taken from what the tier actually holds
+            long excess = oldGen.getUsed() - target;
+            long usage = Math.min(currentLimit, memoryTier.getMemoryUsage());
+            newLimit = Math.max(minLimitBytes, usage - excess);
+        } else if (occupancy < targetOccupancy - GROW_HYSTERESIS) {
+            long headroom = target - oldGen.getUsed();
+            long step = Math.min(headroom / 2, Math.max((long) (currentLimit * GROW_STEP), minLimitBytes));
+            newLimit = Math.min(maxLimitBytes, currentLimit + step);
+        }
+
+        if (newLimit != currentLimit) {
+            memoryTier.setMemoryLimit(newLimit);
+            logger.info("Old generation at {}%, memory tier limit {} -> {} MB", Math.round(occupancy * 100),
+                    currentLimit / (1024 * 1024), newLimit / (1024 * 1024));
+        }
+
+        metrics.setGauge("cache.memory.limit", memoryTier.getMemoryLimit());
+        metrics.setGauge("cache.memory.used", memoryTier.getMemoryUsage());
+        metrics.setGauge("memory.old.occupancy.percent", Math.round(occupancy * 100));
+    }
+
+    /**
+     * Measures the old generation after the last collection.
+     *
+     * @param gcInfo The GC info of the collection that just finished, or null to use the pool data
+     * @return The used and maximum bytes, or null if they can't be determined
+     */
+    private MemoryUsage measureOldGeneration(GcInfo gcInfo) {
+        long used = 0;
+        long max = 0;
+
+        for (MemoryPoolMXBean pool : getOldGenerationPools()) {
+            MemoryUsage usage = null;
+            if (gcInfo != null) {
+                Map<String, MemoryUsage> afterGc = gcInfo.getMemoryUsageAfterGc();
+                usage = afterGc.get(pool.getName());
+            }
+            if (usage == null) {
+                usage = pool.getCollectionUsage();
+            }
+            if (usage != null && usage.getMax() > 0) {
+                used += usage.getUsed();
+                max += usage.getMax();
+            }
+        }
+
+        if (max > 0) {
+            return new MemoryUsage(0, used, used, max);
+        }
+
+        // No identifiable old generation (e.g. a single-space collector); fall back to the whole heap
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        return heap.getMax() > 0 ? heap : null;
+    }
+
+    /**
+     * Gets the heap pools that hold long-lived objects, i.e. the ones that report
+     * usage after collection and are not young generation spaces.
+     *
+     * @return The old generation pools
+     */
+    private List<MemoryPoolMXBean> getOldGenerationPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            String name = pool.getName().toLowerCase();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && !name.contains("eden") && !name.contains("survivor")) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private void subscribe(NotificationEmitter emitter) {
+        emitter.addNotificationListener(this, null, null);
+        emitters.add(emitter);
+    }
+
+    /**
+     * The memory tier whose limit is controlled. Implemented by {@link CacheEngine}.
+     */
+    interface MemoryTier {
+        long getMemoryLimit();
+
+        void setMemoryLimit(long limitBytes);
+
+        long getMemoryUsage();
+    }
+}
@@ -0,0 +1,171 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.PackIndex;
+import com.jcachenetdl.util.HashUtil;
+import com.jcachenetdl.util.SerializationUtil;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Reads and writes packs: many small files bundled into one file, which is then
+ * cached and transferred like any other file.
+ * <p>
+ * Layout: 4-byte magic, 4-byte version, 4-byte index length, the JSON {@link PackIndex},
+ * then the member files back to back.
+ */
+public class PackFile {
+    private static final int MAGIC = 0x4A434E50; // "JCNP"
+    private static final int VERSION = 1;
+    private static final int MAX_INDEX_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private PackFile() {
+    }
+
+    /**
+     * Writes a pack.
+     *
+     * @param members The files to pack, keyed by member name
+     * @param packFile The pack file to create
+     * @return The index of the written pack
+     * @throws IOException If there's an error reading a member or writing the pack
+     */
+    public static PackIndex write(Map<String, File> members, File packFile) throws IOException {
+        // Build the index up front; offsets follow from the member sizes
+        PackIndex index = new PackIndex();
+        long offset = 0;
+        for (Map.Entry<String, File> member : members.entrySet()) {
+            File file = member.getValue();
+            long length = file.length();
+            index.addEntry(new PackIndex.Entry(member.getKey(), HashUtil.sha256File(file), offset, length));
+            offset += length;
+        }
+
+        byte[] indexBytes = SerializationUtil.toJson(index).getBytes(StandardCharsets.UTF_8);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(packFile), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(indexBytes.length);
+            out.write(indexBytes);
+
+            for (PackIndex.Entry entry : index.getEntries()) {
+                File file = members.get(entry.getName());
+                try (InputStream in = new FileInputStream(file)) {
+                    long copied = in.transferTo(out);
+                    if (copied != entry.getLength()) {
+                        throw new IOException("File changed while packing: " + file.getAbsolutePath());
+                    }
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Reads the index of a pack.
+     *
+     * @param packFile The pack file
+     * @return The pack index
+     * @throws IOException If the file is not a valid pack
+     */
+    public static PackIndex readIndex(File packFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(packFile)))) {
+            return readHeader(in);
+        }
+    }
+
+    /**
+     * Extracts every member of a pack into a directory, verifying each member's hash.
+     *
+     * @param packFile The pack file
+     * @param outputDir The directory to extract into
+     * @return The index of the extracted pack
+     * @throws IOException If the pack is invalid or a member can't be written
+     */
+    public static PackIndex extractAll(File packFile, File outputDir) throws IOException {
+        Path root = outputDir.toPath().toAbsolutePath().normalize();
+        Files.createDirectories(root);
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(packFile), BUFFER_SIZE))) {
+            PackIndex index = readHeader(in);
+            long position = 0;
+
+            for (PackIndex.Entry entry : index.getEntries()) {
+                if (entry.getOffset() != position) {
+                    throw new IOException("Pack entries out of order at: " + entry.getName());
+                }
+
+                // Reject names that would escape the output directory
+                Path target = root.resolve(entry.getName()).normalize();
+                if (!target.startsWith(root) || target.equals(root)) {
+                    throw new IOException("Invalid pack entry name: " + entry.getName());
+                }
+                Files.createDirectories(target.getParent());
+
+                MessageDigest digest = newSha256();
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target.toFile()))) {
+                    copy(in, out, digest, entry.getLength());
+                }
+                if (!Hex.encodeHexString(digest.digest()).equals(entry.getFileHash())) {
+                    throw new IOException("Hash mismatch for pack entry: " + entry.getName());
+                }
+
+                position += entry.getLength();
+            }
+
+            return index;
+        }
+    }
+
+    private static PackIndex readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a pack file");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported pack version: " + version);
+        }
+        int indexLength = in.readInt();
+        if (indexLength < 0 || indexLength > MAX_INDEX_SIZE) {
+            throw new IOException("Invalid pack index length: " + indexLength);
+        }
+
+        byte[] indexBytes = in.readNBytes(indexLength);
+        if (indexBytes.length != indexLength) {
+            throw new IOException("Truncated pack index");
+        }
+        return SerializationUtil.fromJson(new String(indexBytes, StandardCharsets.UTF_8), PackIndex.class);
+    }
+
+    private static void copy(InputStream in, OutputStream out, MessageDigest digest, long length) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, length))];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Truncated pack data");
+            }
+            out.write(buffer, 0, read);
+            digest.update(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error generating SHA-256 hash", e);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.ChunkKey;
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.util.ConsistentHashRing;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Indexes cached chunks by where they are placed on the consistent-hash ring, so a
+ * membership change only has to look at the chunks in the ring ranges it changed.
+ * <p>
+ * A chunk is placed by its own key, but a fragment of an erasure-coded file by its stripe's,
+ * so one position holds all the cached fragments of a stripe. Positions follow the file's
+ * manifest: when it changes, e.g. once an upload's erasure coding is recorded after its
+ * chunks were cached, the file's chunks are indexed again (see {@link #reindex}).
+ */
+class PlacementIndex {
+    private final int replicas;
+    private final Function<String, FileManifest> manifests;
+
+    // Guarded by this
+    private final TreeMap<Long, Set<ChunkKey>> chunks;
+    private int depth; // Most ring nodes any indexed chunk's homes are taken from
+
+    /**
+     * @param replicas The number of home peers of a chunk that isn't an erasure-coded fragment
+     * @param manifests Looks up the recorded manifest of a file, or null if there is none
+     */
+    PlacementIndex(int replicas, Function<String, FileManifest> manifests) {
+        this.replicas = replicas;
+        this.manifests = manifests;
+        this.chunks = new TreeMap<>();
+        this.depth = replicas;
+    }
+
+    /**
+     * Gets the key that places a chunk on the ring: its stripe's for a fragment of an
+     * erasure-coded file, its own otherwise.
+     */
+    static String placementKey(FileManifest manifest, String fileHash, int chunkId) {
+        if (manifest == null || !manifest.isErasureCoded() || chunkId >= manifest.getFragmentCount()) {
+            return fileHash + ":" + chunkId;
+        }
+        return fileHash + ":stripe:" + manifest.getStripe(chunkId);
+    }
+
+    /**
+     * Indexes a cached chunk where its file's current manifest places it.
+     */
+    synchronized void add(String fileHash, int chunkId) {
+        // Read under the lock, so a reindex for a newer manifest can't be overtaken
+        add(manifests.apply(fileHash), fileHash, chunkId);
+    }
+
+    /**
+     * Removes a chunk from the index.
+     */
+    synchronized void remove(String fileHash, int chunkId) {
+        remove(manifests.apply(fileHash), fileHash, chunkId);
+    }
+
+    /**
+     * Moves a file's chunks from where its previous manifest placed them to where its
+     * current one does.
+     *
+     * @param fileHash The file hash
+     * @param previous The previous manifest, or null if there was none
+     * @param cached The IDs of the file's cached chunks
+     */
+    synchronized void reindex(String fileHash, FileManifest previous, BitSet cached) {
+        FileManifest current = manifests.apply(fileHash);
+        for (int chunkId = cached.nextSetBit(0); chunkId >= 0; chunkId = cached.nextSetBit(chunkId + 1)) {
+            remove(previous, fileHash, chunkId);
+            add(current, fileHash, chunkId);
+        }
+    }
+
+    private void add(FileManifest manifest, String fileHash, int chunkId) {
+        chunks.computeIfAbsent(position(manifest, fileHash, chunkId), position -> new HashSet<>(2))
+                .add(ChunkKey.of(fileHash, chunkId));
+        if (manifest != null && manifest.isErasureCoded() && chunkId < manifest.getFragmentCount()) {
+            depth = Math.max(depth, manifest.getStripeFragments(manifest.getStripe(chunkId)).length);
+        }
+    }
+
+    private void remove(FileManifest manifest, String fileHash, int chunkId) {
+        long position = position(manifest, fileHash, chunkId);
+        Set<ChunkKey> keys = chunks.get(position);
+        if (keys != null && keys.remove(ChunkKey.of(fileHash, chunkId)) && keys.isEmpty()) {
+            chunks.remove(position);
+        }
+    }
+
+    private static long position(FileManifest manifest, String fileHash, int chunkId) {
+        return ConsistentHashRing.position(placementKey(manifest, fileHash, chunkId));
+    }
+
+    /**
+     * Gets the most ring nodes any indexed chunk's homes are taken from. A chunk's homes are
+     * taken from a prefix of that many nodes, so comparing rings to that depth finds every
+     * chunk whose homes changed.
+     *
+     * @return The depth, at least the number of replicas
+     */
+    synchronized int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Gets the chunks placed in the given ranges of ring positions.
+     *
+     * @param ranges The ranges, as returned by {@link ConsistentHashRing#changedRanges}
+     * @return The chunks
+     */
+    synchronized List<ChunkKey> chunksIn(List<long[]> ranges) {
+        List<ChunkKey> found = new ArrayList<>();
+        for (long[] range : ranges) {
+            if (range[0] < range[1]) {
+                collect(chunks.subMap(range[0], false, range[1], true), found);
+            } else {
+                collect(chunks.tailMap(range[0], false), found);
+                collect(chunks.headMap(range[1], true), found);
+            }
+        }
+        return found;
+    }
+
+    private static void collect(Map<Long, Set<ChunkKey>> range, List<ChunkKey> found) {
+        for (Set<ChunkKey> keys : range.values()) {
+            found.addAll(keys);
+        }
+    }
+
+    /**
+     * Gets the number of indexed chunks.
+     *
+     * @return The chunk count
+     */
+    synchronized int size() {
+        int size = 0;
+        for (Set<ChunkKey> keys : chunks.values()) {
+            size += keys.size();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,516 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.common.PagedChunk;
+import com.jcachenetdl.util.HashUtil;
+import com.jcachenetdl.util.LogUtil;
+import org.slf4j.Logger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
+
+/**
+ * A download that writes each chunk straight to its offset in the output file as it arrives,
+ * instead of caching every chunk and reassembling the file afterwards.
+ * <p>
+ * The output file is preallocated to the file size, or to the largest possible size and
+ * truncated once the last chunk's length is known. Chunks are checked against the file's
+ * {@link FileManifest} on arrival (their size, and their digest if the manifest lists it)
+ * and the whole file against its hash at the end. Callers can wait for a contiguous prefix of
+ * the file with {@link #awaitPrefix(long)} and start consuming it before the download is done,
+ * or read it in order with {@link #newInputStream()}, which tells the download's scheduler
+ * which chunks to fetch first.
+ * <p>
+ * Progress is saved as a {@link DownloadState} about once a second, after flushing the chunks
+ * it lists, so a download that fails or is cut short by a restart can be resumed with
+ * {@link #resume(DownloadState, CacheEngine, boolean)}; its partial output file is kept.
+ */
+public class StreamingDownload implements DownloadScheduler.ChunkSink {
+    private static final long STATE_SAVE_INTERVAL_MS = 1000;
+    
+    private final String fileHash;
+    private final int totalChunks;
+    private final FileManifest manifest;
+    private final File outputFile;
+    private final CacheEngine cacheEngine;
+    private final boolean cacheChunks;
+    private final FileChannel channel;
+    private final CompletableFuture<Boolean> completion;
+    private final TransferTracker tracker;
+    private final Logger logger;
+    private volatile IntConsumer playbackListener;
+    private volatile int playbackChunk = -1; // The chunk the furthest stream has reached, -1 if none
+
+    // Guarded by this
+    private final BitSet written;
+    private final BitSet writing; // Chunks claimed by an accept that hasn't returned yet
+    private long fileSize;
+    private boolean finished;
+    private long stateSavedAt;
+
+    /**
+     * Creates the download and preallocates the output file.
+     *
+     * @param manifest The manifest of the file
+     * @param outputFile The output file
+     * @param cacheEngine The cache engine
+     * @param cacheChunks Whether to also cache each chunk, so this node can serve it to peers
+     * @throws IOException If the output file can't be created
+     */
+    public StreamingDownload(FileManifest manifest, File outputFile,
+                             CacheEngine cacheEngine, boolean cacheChunks) throws IOException {
+        this(manifest, outputFile, new BitSet(manifest.getTotalChunks()), cacheEngine, cacheChunks);
+    }
+
+    private StreamingDownload(FileManifest manifest, File outputFile, BitSet written,
+                              CacheEngine cacheEngine, boolean cacheChunks) throws IOException {
+        this.fileHash = manifest.getFileHash();
+        this.totalChunks = manifest.getTotalChunks();
+        this.manifest = manifest;
+        this.outputFile = outputFile;
+        this.cacheEngine = cacheEngine;
+        this.cacheChunks = cacheChunks;
+        this.written = written;
+        this.writing = new BitSet();
+        this.fileSize = manifest.getFileSize();
+        this.completion = new CompletableFuture<>();
+        this.tracker = new TransferTracker(fileHash, totalChunks, fileSize, written.cardinality());
+        this.logger = LogUtil.getLogger(StreamingDownload.class);
+
+        RandomAccessFile file = new RandomAccessFile(outputFile, "rw");
+        file.setLength(fileSize >= 0 ? fileSize : (long) totalChunks * CacheEngine.MAX_CHUNK_SIZE);
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * Resumes a download from its saved state. If the partial output file is gone the
+     * download starts over.
+     *
+     * @param state The saved state
+     * @param cacheEngine The cache engine
+     * @param cacheChunks Whether to also cache each chunk
+     * @return The download, with the chunks already written marked as present
+     * @throws IOException If the output file can't be opened
+     */
+    public static StreamingDownload resume(DownloadState state, CacheEngine cacheEngine,
+                                           boolean cacheChunks) throws IOException {
+        File outputFile = new File(state.getDestination());
+        BitSet written = outputFile.exists() ? state.getCompletedChunks() : new BitSet();
+        return new StreamingDownload(state.getManifest(), outputFile, written, cacheEngine, cacheChunks);
+    }
+
+    @Override
+    public synchronized boolean hasChunk(int chunkId) {
+        return written.get(chunkId);
+    }
+
+    /**
+     * Writes a chunk at its offset in the output file. The chunk is claimed first, so of
+     * concurrent deliveries of the same chunk only one writes and caches it; the others
+     * return true at once.
+     *
+     * @return False if the chunk doesn't match the manifest, or the download is finished
+     */
+    @Override
+    public boolean accept(int chunkId, PagedChunk data, long latencyMs, int holderCount) throws IOException {
+        boolean last = chunkId == totalChunks - 1;
+        int length = data.length();
+        if (!manifest.verifyChunk(chunkId, data, CacheEngine.MAX_CHUNK_SIZE)) {
+            logger.warn("Rejected chunk {} of {}: size {} or digest doesn't match the manifest", chunkId, fileHash, length);
+            return false;
+        }
+
+        synchronized (this) {
+            if (finished) {
+                return false;
+            }
+            if (written.get(chunkId) || writing.get(chunkId)) {
+                return true;
+            }
+            writing.set(chunkId);
+        }
+
+        try {
+            // Positional writes don't share the channel position, so chunks can be written concurrently
+            long offset = (long) chunkId * CacheEngine.MAX_CHUNK_SIZE;
+            data.writeTo(channel, offset);
+
+            if (cacheChunks && !cacheEngine.hasCacheItem(fileHash, chunkId)) {
+                cacheEngine.putCacheItem(fileHash, chunkId, data, totalChunks, latencyMs, holderCount);
+            }
+
+            boolean saveState;
+            synchronized (this) {
+                written.set(chunkId);
+                if (last) {
+                    fileSize = offset + length;
+                }
+                notifyAll();
+
+                long now = System.currentTimeMillis();
+                saveState = now - stateSavedAt >= STATE_SAVE_INTERVAL_MS;
+                if (saveState) {
+                    stateSavedAt = now;
+                }
+            }
+            if (saveState) {
+                saveState();
+            }
+            tracker.chunkDone(length, latencyMs > 0);
+            return true;
+        } finally {
+            synchronized (this) {
+                writing.clear(chunkId); // A failed write leaves the chunk to be fetched again
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads a written chunk back from the output file.
+     */
+    @Override
+    public PagedChunk getChunk(int chunkId) throws IOException {
+        int length;
+        synchronized (this) {
+            if (!written.get(chunkId)) {
+                return null;
+            }
+            length = chunkId < totalChunks - 1 ? CacheEngine.MAX_CHUNK_SIZE
+                    : (int) (fileSize - (long) chunkId * CacheEngine.MAX_CHUNK_SIZE);
+        }
+        try {
+            return PagedChunk.readFrom(channel, (long) chunkId * CacheEngine.MAX_CHUNK_SIZE, length);
+        } catch (EOFException e) {
+            throw new IOException("Chunk " + chunkId + " of " + fileHash + " is cut short in " + outputFile, e);
+        }
+    }
+
+    /**
+     * Saves progress. The bitmap is snapshotted before the flush, so it never lists a chunk
+     * that isn't on disk yet.
+     */
+    private void saveState() {
+        DownloadState state = getState();
+        try {
+            channel.force(false);
+            state.save();
+        } catch (IOException e) {
+            logger.warn("Could not save state of download {}: {}", fileHash, e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a listener told about each chunk written from now on. Chunks copied from the
+     * local cache count as completed but not as transferred.
+     *
+     * @param listener The listener, or null for none
+     */
+    public void addTransferListener(TransferListener listener) {
+        tracker.addListener(listener);
+    }
+
+    /**
+     * Gets the download's progress, with its recent throughput.
+     *
+     * @return The progress
+     */
+    public TransferProgress getProgress() {
+        return tracker.getProgress();
+    }
+
+    /**
+     * Gets a snapshot of the download's progress.
+     *
+     * @return The current state
+     */
+    public synchronized DownloadState getState() {
+        FileManifest snapshot = new FileManifest(fileHash, totalChunks, fileSize, manifest.getChunkDigests(),
+                manifest.getDataShards(), manifest.getParityShards());
+        return new DownloadState(snapshot, outputFile.getAbsolutePath(), (BitSet) written.clone());
+    }
+
+    /**
+     * Finishes the download: truncates the file to its real size, flushes it and verifies its hash.
+     * Called once the scheduler is done, whether or not it fetched every chunk. An incomplete
+     * download keeps its partial file and saved state for a later resume; a corrupt one is deleted.
+     *
+     * @param success Whether every chunk was fetched
+     * @return True if the file is complete and its hash matches
+     */
+    public boolean finish(boolean success) {
+        long size;
+        synchronized (this) {
+            finished = true;
+            awaitWrites();
+            size = fileSize;
+            success &= written.cardinality() == totalChunks;
+        }
+
+        boolean verified = false;
+        try {
+            if (success) {
+                channel.truncate(size);
+                channel.force(false);
+                channel.close();
+
+                // Read back from the page cache right after writing; cheaper than keeping chunks for in-order hashing
+                verified = HashUtil.sha256File(outputFile).equals(fileHash);
+                if (!verified) {
+                    logger.error("Hash mismatch for downloaded file: {}", fileHash);
+                    if (!outputFile.delete()) {
+                        logger.warn("Could not delete corrupt download: {}", outputFile);
+                    }
+                }
+                DownloadState.delete(fileHash);
+            } else {
+                saveState();
+                channel.close();
+                logger.info("Download of {} stopped at {} of {} chunks; it can be resumed",
+                        fileHash, getCompletedChunks(), totalChunks);
+            }
+        } catch (IOException e) {
+            logger.error("Error finishing download of {}", fileHash, e);
+        }
+
+        synchronized (this) {
+            notifyAll();
+        }
+        completion.complete(verified);
+        return verified;
+    }
+
+    /**
+     * Waits for the chunks being written to be done with the channel, so it can be closed.
+     * No new ones start once the download is finished.
+     */
+    private synchronized void awaitWrites() {
+        boolean interrupted = false;
+        while (!writing.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true; // Closing the channel under a write would lose the chunk
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until a prefix of the file is written, or the download ends.
+     *
+     * @param bytes The prefix length to wait for
+     * @return The length of the contiguous prefix that is written, which is less than
+     *         {@code bytes} only if the download ended first
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized long awaitPrefix(long bytes) throws InterruptedException {
+        long available = getContiguousBytes();
+        while (available < bytes && !finished && (fileSize < 0 || available < fileSize)) {
+            wait();
+            available = getContiguousBytes();
+        }
+        return available;
+    }
+
+    /**
+     * Opens a stream that reads the file from start to end while it downloads, blocking only
+     * when it reaches a chunk that hasn't been written yet. Each chunk the stream enters is
+     * reported to the playback listener, which moves the download's priority window along.
+     * The stream ends once the file is read and its hash verified; if the download ends
+     * without a chunk the stream still needs, or the hash doesn't match, reading throws.
+     *
+     * @return The stream
+     * @throws IOException If the output file can't be opened
+     */
+    public InputStream newInputStream() throws IOException {
+        return new PlaybackStream();
+    }
+
+    /**
+     * Sets who is told which chunk the streams from {@link #newInputStream()} have reached,
+     * and tells it at once if a stream has started reading already.
+     *
+     * @param listener Receives chunk IDs
+     */
+    void setPlaybackListener(IntConsumer listener) {
+        playbackListener = listener;
+        int chunkId = playbackChunk;
+        if (chunkId >= 0) {
+            listener.accept(chunkId);
+        }
+    }
+
+    private void reportPlayback(int chunkId) {
+        if (chunkId <= playbackChunk) {
+            return; // Another stream is further along; its window still covers this one
+        }
+        playbackChunk = chunkId;
+        IntConsumer listener = playbackListener;
+        if (listener != null) {
+            listener.accept(chunkId);
+        }
+    }
+
+    /**
+     * Waits until a chunk is written, or the download ends without it.
+     *
+     * @return The offset where the chunk ends, or -1 if the file ends before the chunk
+     * @throws IOException If the download ended without the chunk
+     */
+    private synchronized long awaitChunk(int chunkId) throws IOException {
+        if (chunkId >= totalChunks) {
+            return -1;
+        }
+        try {
+            while (!written.get(chunkId)) {
+                if (finished) {
+                    throw new IOException("Download of " + fileHash + " ended without chunk " + chunkId);
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for chunk " + chunkId + " of " + fileHash);
+        }
+        return chunkId < totalChunks - 1 ? (long) (chunkId + 1) * CacheEngine.MAX_CHUNK_SIZE : fileSize;
+    }
+
+    /**
+     * Gets the length of the file prefix whose chunks have all been written.
+     *
+     * @return The contiguous prefix length in bytes
+     */
+    public synchronized long getContiguousBytes() {
+        int chunks = written.nextClearBit(0);
+        if (chunks >= totalChunks) {
+            return fileSize;
+        }
+        return (long) chunks * CacheEngine.MAX_CHUNK_SIZE;
+    }
+
+    public synchronized int getCompletedChunks() {
+        return written.cardinality();
+    }
+
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    public FileManifest getManifest() {
+        return manifest;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Gets a future that completes with the result of {@link #finish(boolean)}.
+     *
+     * @return The completion future
+     */
+    public CompletableFuture<Boolean> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Reads the output file in order through its own channel, which stays usable after the
+     * download closes its channel.
+     */
+    private class PlaybackStream extends InputStream {
+        private final FileChannel reader;
+        private long position;
+        private boolean verified;
+
+        PlaybackStream() throws IOException {
+            this.reader = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int chunkId = (int) (position / CacheEngine.MAX_CHUNK_SIZE);
+            if (chunkId < totalChunks) {
+                reportPlayback(chunkId);
+            }
+            long end = awaitChunk(chunkId);
+            if (end <= position) {
+                awaitVerified();
+                return -1;
+            }
+
+            int length = (int) Math.min(len, end - position);
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, length);
+            long at = position;
+            while (buffer.hasRemaining()) {
+                int read = reader.read(buffer, at);
+                if (read < 0) {
+                    throw new IOException("Output file of " + fileHash + " is cut short at " + at);
+                }
+                at += read;
+            }
+            position += length;
+            return length;
+        }
+
+        private void awaitVerified() throws IOException {
+            if (verified) {
+                return;
+            }
+            try {
+                verified = awaitCompletion();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + fileHash + " to be verified");
+            }
+            if (!verified) {
+                throw new IOException("Download of " + fileHash + " failed verification");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Waits for the download to finish.
+     *
+     * @return True if the file was fetched and verified
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean awaitCompletion() throws InterruptedException {
+        try {
+            return completion.get();
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+}
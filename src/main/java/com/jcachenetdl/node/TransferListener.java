@@ -0,0 +1,15 @@
+package com.jcachenetdl.node;
+
+/**
+ * Listens for the progress of an upload or download.
+ */
+public interface TransferListener {
+    /**
+     * Called after each chunk the transfer completes. Runs on the thread that completed the
+     * chunk, possibly several at once, so implementations should be thread-safe and return
+     * quickly.
+     *
+     * @param progress The transfer's progress, including the chunk
+     */
+    void onProgress(TransferProgress progress);
+}
@@ -0,0 +1,109 @@
+package com.jcachenetdl.node;
+
+/**
+ * A snapshot of the progress of an upload or download.
+ * <p>
+ * The throughput is an average over the last few seconds, so it follows a transfer that
+ * speeds up or slows down; the estimated time left assumes it holds for the rest of the
+ * transfer. Chunks that were already present, e.g. cached locally or written by an
+ * earlier attempt, count as completed but not as transferred.
+ */
+public class TransferProgress {
+    private final String fileHash;
+    private final int completedChunks;
+    private final int totalChunks;
+    private final long transferredBytes;
+    private final long totalBytes;
+    private final long elapsedMs;
+    private final double bytesPerSecond;
+
+    public TransferProgress(String fileHash, int completedChunks, int totalChunks, long transferredBytes,
+                            long totalBytes, long elapsedMs, double bytesPerSecond) {
+        this.fileHash = fileHash;
+        this.completedChunks = completedChunks;
+        this.totalChunks = totalChunks;
+        this.transferredBytes = transferredBytes;
+        this.totalBytes = totalBytes;
+        this.elapsedMs = elapsedMs;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public int getCompletedChunks() {
+        return completedChunks;
+    }
+
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    /**
+     * Gets the bytes transferred so far by this transfer.
+     *
+     * @return The byte count
+     */
+    public long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return The size in bytes, or -1 if not known
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    /**
+     * Gets the recent throughput.
+     *
+     * @return The bytes per second
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Gets the share of the file's chunks that are complete.
+     *
+     * @return A value between 0 and 1
+     */
+    public double getFraction() {
+        return totalChunks > 0 ? (double) completedChunks / totalChunks : 1;
+    }
+
+    public boolean isComplete() {
+        return completedChunks >= totalChunks;
+    }
+
+    /**
+     * Estimates the time left at the recent throughput.
+     *
+     * @return The estimate in milliseconds, 0 once complete, or -1 while there is no throughput to go by
+     */
+    public long getEtaMs() {
+        int remainingChunks = totalChunks - completedChunks;
+        if (remainingChunks <= 0) {
+            return 0;
+        }
+        if (bytesPerSecond <= 0) {
+            return -1;
+        }
+        double chunkBytes = totalBytes >= 0 ? (double) totalBytes / totalChunks : CacheEngine.MAX_CHUNK_SIZE;
+        return (long) (remainingChunks * chunkBytes / bytesPerSecond * 1000);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TransferProgress{fileHash='%s', chunks=%d/%d, transferred=%d, rate=%.0f B/s, eta=%d ms}",
+                fileHash, completedChunks, totalChunks, transferredBytes, bytesPerSecond, getEtaMs());
+    }
+}
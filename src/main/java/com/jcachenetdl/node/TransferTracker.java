@@ -0,0 +1,131 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.PagedChunk;
+import com.jcachenetdl.util.LogUtil;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Counts the chunks a transfer completes and tells its {@link TransferListener}s.
+ * <p>
+ * The throughput is an exponentially weighted average: each transferred byte counts with
+ * weight {@code exp(-age / RATE_WINDOW_MS)}, so the weighted sum divided by the window is
+ * the recent rate, without keeping a history of samples.
+ */
+class TransferTracker {
+    private static final double RATE_WINDOW_MS = 5000; // Time constant of the throughput average
+    private static final double MIN_RATE_WINDOW_MS = 1000; // Keeps the first chunks from suggesting a huge rate
+
+    private static final Logger logger = LogUtil.getLogger(TransferTracker.class);
+
+    private final String fileHash;
+    private final int totalChunks;
+    private final long totalBytes;
+    private final long startTime;
+    private final List<TransferListener> listeners;
+
+    // Guarded by this
+    private int completedChunks;
+    private long transferredBytes;
+    private double recentBytes; // Transferred bytes weighted by their age
+    private long updatedAt;
+
+    /**
+     * @param fileHash The hash of the file
+     * @param totalChunks The number of chunks of the file
+     * @param totalBytes The size of the file, or -1 if not known
+     * @param completedChunks The chunks already present when the transfer starts
+     */
+    TransferTracker(String fileHash, int totalChunks, long totalBytes, int completedChunks) {
+        this.fileHash = fileHash;
+        this.totalChunks = totalChunks;
+        this.totalBytes = totalBytes;
+        this.completedChunks = completedChunks;
+        this.startTime = System.currentTimeMillis();
+        this.updatedAt = startTime;
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    void addListener(TransferListener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Records a completed chunk and tells the listeners, outside any lock.
+     *
+     * @param bytes The chunk's length
+     * @param transferred Whether the chunk was transferred, rather than found locally
+     */
+    void chunkDone(int bytes, boolean transferred) {
+        TransferProgress progress;
+        synchronized (this) {
+            completedChunks++;
+            if (transferred) {
+                decay(System.currentTimeMillis());
+                recentBytes += bytes;
+                transferredBytes += bytes;
+            }
+            progress = getProgress();
+        }
+        for (TransferListener listener : listeners) {
+            try {
+                listener.onProgress(progress);
+            } catch (RuntimeException e) {
+                logger.warn("Transfer listener failed for {}", fileHash, e);
+            }
+        }
+    }
+
+    synchronized TransferProgress getProgress() {
+        long now = System.currentTimeMillis();
+        decay(now);
+        long elapsed = now - startTime;
+        // Until a few windows have passed, the average covers less than a full window
+        double window = Math.max(MIN_RATE_WINDOW_MS, RATE_WINDOW_MS * (1 - Math.exp(-elapsed / RATE_WINDOW_MS)));
+        return new TransferProgress(fileHash, Math.min(completedChunks, totalChunks), totalChunks,
+                transferredBytes, totalBytes, elapsed, recentBytes / window * 1000);
+    }
+
+    private void decay(long now) {
+        recentBytes *= Math.exp(-(now - updatedAt) / RATE_WINDOW_MS);
+        updatedAt = now;
+    }
+
+    /**
+     * Wraps a sink so the chunks it newly stores count towards this transfer. Chunks stored
+     * without latency count as found locally.
+     *
+     * @param sink The sink the file's chunks go to
+     * @return The tracking sink
+     */
+    DownloadScheduler.ChunkSink track(DownloadScheduler.ChunkSink sink) {
+        return new DownloadScheduler.ChunkSink() {
+            @Override
+            public boolean hasChunk(int chunkId) {
+                return sink.hasChunk(chunkId);
+            }
+
+            @Override
+            public boolean accept(int chunkId, PagedChunk data, long latencyMs, int holderCount) throws IOException {
+                boolean present = sink.hasChunk(chunkId);
+                if (!sink.accept(chunkId, data, latencyMs, holderCount)) {
+                    return false;
+                }
+                if (!present) {
+                    chunkDone(data.length(), latencyMs > 0);
+                }
+                return true;
+            }
+
+            @Override
+            public PagedChunk getChunk(int chunkId) throws IOException {
+                return sink.getChunk(chunkId);
+            }
+        };
+    }
+}
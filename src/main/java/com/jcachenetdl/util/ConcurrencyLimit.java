@@ -0,0 +1,125 @@
+package com.jcachenetdl.util;
+
+/**
+ * An adaptive limit on the requests in flight to one server, in the style of TCP Vegas.
+ * <p>
+ * The lowest latency seen approximates the server's latency without load. Comparing a
+ * sample against it estimates how many requests are queued at the server:
+ * {@code limit * (1 - noLoadRtt / rtt)}. While that queue stays short the limit grows,
+ * quickly at first; once it exceeds a few requests the limit shrinks again, and a failed
+ * request shrinks it right away. The thresholds scale with the logarithm of the limit, so a
+ * large limit isn't cut down by the jitter of its many requests. A server that is never
+ * loaded keeps its limit, since latencies measured while the limit isn't used say nothing
+ * about it. Every so often the no-load latency is measured afresh, so it follows a server
+ * whose latency has changed for good.
+ * <p>
+ * Instances are shared by everything that sends requests to the server, and are thread-safe.
+ */
+public class ConcurrencyLimit {
+    private static final int PROBE_MULTIPLIER = 30; // Samples per unit of limit between no-load probes
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    private long noLoadRttMs; // 0 until the first sample
+    private long samplesSinceProbe;
+
+    /**
+     * @param initialLimit The limit before any sample
+     * @param minLimit The lowest the limit may go
+     * @param maxLimit The highest the limit may go
+     */
+    public ConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limit range: " + minLimit + " to " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Gets the current limit.
+     *
+     * @return The number of requests that may be in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Gets the number of requests in flight.
+     *
+     * @return The requests started and not yet finished
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Records that a request was sent. Doesn't check the limit; callers decide whether to
+     * send by comparing {@link #getInFlight()} with {@link #getLimit()}.
+     *
+     * @return The number of requests in flight, including this one, to pass to {@link #release}
+     */
+    public synchronized int acquire() {
+        return ++inFlight;
+    }
+
+    /**
+     * Records that a request finished without telling anything about the server's load,
+     * e.g. because it never reached the server.
+     */
+    public synchronized void release() {
+        inFlight--;
+    }
+
+    /**
+     * Records that a request finished and adjusts the limit.
+     *
+     * @param rttMs How long the request took
+     * @param inFlightAtStart The requests in flight when it was sent, as returned by {@link #acquire()}
+     * @param failed Whether the request failed in a way that suggests overload, e.g. a timeout
+     */
+    public synchronized void release(long rttMs, int inFlightAtStart, boolean failed) {
+        inFlight--;
+        if (failed) {
+            setLimit(limit - Math.max(1, Math.log10(limit)));
+            return;
+        }
+        rttMs = Math.max(1, rttMs);
+
+        if (++samplesSinceProbe >= PROBE_MULTIPLIER * (long) limit) {
+            samplesSinceProbe = 0;
+            noLoadRttMs = rttMs;
+            return;
+        }
+        if (noLoadRttMs == 0 || rttMs < noLoadRttMs) {
+            noLoadRttMs = rttMs;
+            return;
+        }
+        if (inFlightAtStart * 2 < limit) {
+            return; // The limit wasn't used, so the sample says nothing about it
+        }
+
+        double log = Math.max(1, Math.log10(limit));
+        double queued = Math.ceil(limit * (1 - (double) noLoadRttMs / rttMs));
+        if (queued <= log) {
+            setLimit(limit + 6 * log); // No queue to speak of: grow fast
+        } else if (queued < 3 * log) {
+            setLimit(limit + log);
+        } else if (queued > 6 * log) {
+            setLimit(limit - log);
+        }
+    }
+
+    private void setLimit(double newLimit) {
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConcurrencyLimit{limit=" + (int) limit + ", inFlight=" + inFlight + ", noLoadRttMs=" + noLoadRttMs + '}';
+    }
+}
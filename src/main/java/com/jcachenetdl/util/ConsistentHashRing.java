@@ -0,0 +1,204 @@
+package com.jcachenetdl.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A consistent-hash ring over node IDs. Each node is placed on the ring at several points
+ * (virtual nodes), so keys spread evenly and a node joining or leaving only moves the keys
+ * of the ring ranges next to its points. A key belongs to the distinct nodes found walking
+ * the ring clockwise from the key's position.
+ */
+public class ConsistentHashRing {
+    private final int virtualNodes;
+
+    // Guarded by this
+    private final TreeMap<Long, String> ring;
+    private final Set<String> nodes;
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param virtualNodes The number of points per node on the ring
+     */
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+        this.ring = new TreeMap<>();
+        this.nodes = new HashSet<>();
+    }
+
+    /**
+     * Adds a node to the ring.
+     *
+     * @param nodeId The node ID
+     * @return True if the node was added, false if it was already on the ring
+     */
+    public synchronized boolean addNode(String nodeId) {
+        if (!nodes.add(nodeId)) {
+            return false;
+        }
+        for (int i = 0; i < virtualNodes; i++) {
+            // Two nodes hashing to the same point is practically impossible; keep the first
+            ring.putIfAbsent(position(nodeId + "#" + i), nodeId);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a node from the ring.
+     *
+     * @param nodeId The node ID
+     * @return True if the node was removed, false if it wasn't on the ring
+     */
+    public synchronized boolean removeNode(String nodeId) {
+        if (!nodes.remove(nodeId)) {
+            return false;
+        }
+        ring.values().removeIf(nodeId::equals);
+        return true;
+    }
+
+    /**
+     * Checks if a node is on the ring.
+     *
+     * @param nodeId The node ID
+     * @return True if the node is on the ring
+     */
+    public synchronized boolean containsNode(String nodeId) {
+        return nodes.contains(nodeId);
+    }
+
+    /**
+     * Gets the number of nodes on the ring.
+     *
+     * @return The node count
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Gets the nodes responsible for a key: the first {@code count} distinct nodes clockwise
+     * from the key's position, primary first.
+     *
+     * @param key The key
+     * @param count The number of nodes wanted
+     * @return The nodes, fewer than {@code count} if the ring has fewer
+     */
+    public List<String> getNodes(String key, int count) {
+        return nodesAt(position(key), count);
+    }
+
+    private synchronized List<String> nodesAt(long position, int count) {
+        int wanted = Math.min(count, nodes.size());
+        if (wanted <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<String> owners = new ArrayList<>(wanted);
+        SortedMap<Long, String> tail = ring.tailMap(position);
+        collect(tail, owners, wanted);
+        if (owners.size() < wanted) {
+            // Wrap around past the highest point
+            collect(ring, owners, wanted);
+        }
+        return owners;
+    }
+
+    private static void collect(Map<Long, String> points, List<String> owners, int wanted) {
+        for (String nodeId : points.values()) {
+            if (!owners.contains(nodeId)) {
+                owners.add(nodeId);
+                if (owners.size() == wanted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the ranges of ring positions whose keys have different nodes on another ring, e.g.
+     * the keys that move when nodes join or leave. A key's nodes only depend on the first
+     * point at or after its position, so comparing the rings at each of their points finds
+     * every moved key without looking at the keys themselves.
+     *
+     * @param other The other ring
+     * @param count The number of nodes per key to compare
+     * @return The ranges as {start, end} pairs, start exclusive and end inclusive, in ring
+     *         order. A range whose start isn't below its end wraps around past the highest
+     *         position; one whose start equals its end is the whole ring
+     */
+    public List<long[]> changedRanges(ConsistentHashRing other, int count) {
+        ConsistentHashRing mine = copy();
+        ConsistentHashRing theirs = other.copy();
+        TreeSet<Long> points = new TreeSet<>(mine.ring.keySet());
+        points.addAll(theirs.ring.keySet());
+
+        List<long[]> ranges = new ArrayList<>();
+        if (points.isEmpty()) {
+            return ranges;
+        }
+        long previous = points.last();
+        for (long point : points) {
+            // The keys after the previous point, up to this one, walk each ring from where this point does
+            if (!mine.nodesAt(point, count).equals(theirs.nodesAt(point, count))) {
+                long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                if (last != null && last[1] == previous) {
+                    last[1] = point;
+                } else {
+                    ranges.add(new long[] {previous, point});
+                }
+            }
+            previous = point;
+        }
+
+        // Join the range wrapping around the lowest point with the one ending at the highest
+        if (ranges.size() > 1) {
+            long[] first = ranges.get(0);
+            long[] last = ranges.get(ranges.size() - 1);
+            if (first[0] == points.last() && last[1] == points.last()) {
+                first[0] = last[0];
+                ranges.remove(ranges.size() - 1);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Creates a copy of the ring, e.g. to compare key ownership before and after a change.
+     *
+     * @return The copy
+     */
+    public synchronized ConsistentHashRing copy() {
+        ConsistentHashRing copy = new ConsistentHashRing(virtualNodes);
+        copy.ring.putAll(ring);
+        copy.nodes.addAll(nodes);
+        return copy;
+    }
+
+    /**
+     * Maps a key to its ring position: the first 8 bytes of its SHA-256 digest.
+     *
+     * @param value The key
+     * @return The position
+     */
+    public static long position(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error generating SHA-256 hash", e);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.jcachenetdl.util;
+
+import com.jcachenetdl.common.BlockSignatures;
+import com.jcachenetdl.common.DeltaSegment;
+import com.jcachenetdl.common.PagedChunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * rsync-style delta encoding of a file against another version of it.
+ * <p>
+ * The node holding the base version computes its {@link BlockSignatures}. The node holding
+ * the new version slides a block-sized window over it, one byte at a time, looking the
+ * window's rolling checksum up among the base's blocks; a hit confirmed by the strong
+ * checksum becomes a copy of that block, and the bytes skipped over become literals.
+ * Only the literals carry data, so a version that differs from its base in a few places
+ * costs little more than those places, wherever in the file they are.
+ */
+public final class DeltaCodec {
+    public static final int MAX_LITERAL_LENGTH = PagedChunk.PAGE_SIZE; // Literal segments are split at this length
+
+    private DeltaCodec() {
+    }
+
+    /**
+     * Computes the signatures of a file's blocks.
+     *
+     * @param fileHash The hash of the file
+     * @param in The file's content, read to its end
+     * @param blockSize The block size
+     * @return The signatures
+     * @throws IOException If the content can't be read
+     */
+    public static BlockSignatures signatures(String fileHash, InputStream in, int blockSize) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        MessageDigest sha = newDigest();
+        byte[] block = new byte[blockSize];
+        int[] weak = new int[64];
+        long[] strong = new long[64];
+        int count = 0;
+        long fileSize = 0;
+
+        int read;
+        while ((read = in.readNBytes(block, 0, blockSize)) > 0) {
+            if (count == weak.length) {
+                weak = Arrays.copyOf(weak, count * 2);
+                strong = Arrays.copyOf(strong, count * 2);
+            }
+            weak[count] = RollingChecksum.of(block, 0, read);
+            strong[count] = strongChecksum(sha, block, 0, read);
+            count++;
+            fileSize += read;
+            if (read < blockSize) {
+                break;
+            }
+        }
+        return new BlockSignatures(fileHash, blockSize, fileSize, Arrays.copyOf(weak, count), Arrays.copyOf(strong, count));
+    }
+
+    /**
+     * Describes a file as a delta against a base, passing the segments to a consumer in file
+     * order. Adjacent copies are merged, and literals are split at {@link #MAX_LITERAL_LENGTH}.
+     *
+     * @param in The content of the file to encode, read to its end
+     * @param base The signatures of the base
+     * @param consumer Receives the segments
+     * @return True if the whole file was encoded, false if the consumer stopped it
+     * @throws IOException If the content can't be read or the consumer fails
+     */
+    public static boolean encode(InputStream in, BlockSignatures base, SegmentConsumer consumer) throws IOException {
+        return new Encoder(base, consumer).run(in);
+    }
+
+    /**
+     * Writes a segment of a delta.
+     *
+     * @param segment The segment
+     * @param base Reads the base file's bytes for copies
+     * @param out The output
+     * @throws IOException If the base can't be read or the output written
+     */
+    public static void apply(DeltaSegment segment, Source base, OutputStream out) throws IOException {
+        if (!segment.isCopy()) {
+            out.write(segment.getLiteral());
+            return;
+        }
+        byte[] buffer = new byte[(int) Math.min(segment.getLength(), PagedChunk.PAGE_SIZE)];
+        long position = segment.getBaseOffset();
+        long remaining = segment.getLength();
+        while (remaining > 0) {
+            int length = (int) Math.min(buffer.length, remaining);
+            base.read(position, buffer, 0, length);
+            out.write(buffer, 0, length);
+            position += length;
+            remaining -= length;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error generating SHA-256 hash", e);
+        }
+    }
+
+    private static long strongChecksum(MessageDigest sha, byte[] data, int offset, int length) {
+        sha.update(data, offset, length);
+        return ByteBuffer.wrap(sha.digest()).getLong();
+    }
+
+    /**
+     * Receives the segments of a delta.
+     */
+    public interface SegmentConsumer {
+        /**
+         * @param segment The next segment
+         * @return True to go on encoding, false to stop
+         * @throws IOException If the segment can't be handled
+         */
+        boolean accept(DeltaSegment segment) throws IOException;
+    }
+
+    /**
+     * Random access to the base file's bytes.
+     */
+    public interface Source {
+        /**
+         * Reads bytes of the base file.
+         *
+         * @param position The offset in the base file
+         * @param dst The destination array
+         * @param offset The offset in the destination array
+         * @param length The number of bytes to read, all of which must exist
+         * @throws IOException If the bytes can't be read
+         */
+        void read(long position, byte[] dst, int offset, int length) throws IOException;
+    }
+
+    /**
+     * One encoding run. The buffer holds the pending literal bytes followed by the window
+     * and the bytes read ahead of it; it is compacted when the window reaches its end.
+     */
+    private static class Encoder {
+        private final BlockSignatures base;
+        private final SegmentConsumer consumer;
+        private final int blockSize;
+        private final Map<Integer, int[]> blocksByWeak;
+        private final MessageDigest sha;
+        private final byte[] buffer;
+        private long copyOffset = -1; // Copy not yet passed on, merged with the next one if adjacent
+        private long copyLength;
+        private int nextBlock = -1; // The block after the last match, preferred among equal blocks
+        private boolean stopped;
+
+        Encoder(BlockSignatures base, SegmentConsumer consumer) {
+            this.base = base;
+            this.consumer = consumer;
+            this.blockSize = base.getBlockSize();
+            this.blocksByWeak = new HashMap<>();
+            for (int block = 0; block < base.getBlockCount(); block++) {
+                // Only full blocks can match the window; a short last block is matched at the end
+                if (base.getBlockLength(block) == blockSize) {
+                    int[] blocks = blocksByWeak.get(base.getWeak(block));
+                    blocks = blocks == null ? new int[1] : Arrays.copyOf(blocks, blocks.length + 1);
+                    blocks[blocks.length - 1] = block;
+                    blocksByWeak.put(base.getWeak(block), blocks);
+                }
+            }
+            this.sha = newDigest();
+            this.buffer = new byte[Math.max(4 * blockSize, 4 * MAX_LITERAL_LENGTH)];
+        }
+
+        boolean run(InputStream in) throws IOException {
+            RollingChecksum checksum = new RollingChecksum(blockSize);
+            boolean checksumValid = false;
+            boolean eof = false;
+            int literalStart = 0;
+            int start = 0;
+            int end = 0;
+
+            while (!stopped) {
+                if (!eof && end - start <= blockSize) {
+                    // The window and the byte after it must be buffered to roll
+                    int kept = end - literalStart;
+                    System.arraycopy(buffer, literalStart, buffer, 0, kept);
+                    start -= literalStart;
+                    literalStart = 0;
+                    end = kept;
+                    int read = in.readNBytes(buffer, end, buffer.length - end);
+                    eof = read < buffer.length - end;
+                    end += read;
+                }
+                if (end - start < blockSize) {
+                    break;
+                }
+
+                if (!checksumValid) {
+                    checksum.reset(buffer, start);
+                    checksumValid = true;
+                }
+                int block = findBlock(checksum.getValue(), start);
+                if (block >= 0) {
+                    literal(literalStart, start);
+                    copy((long) block * blockSize, blockSize);
+                    nextBlock = block + 1;
+                    start += blockSize;
+                    literalStart = start;
+                    checksumValid = false;
+                } else if (start + blockSize < end) {
+                    checksum.roll(buffer[start], buffer[start + blockSize]);
+                    start++;
+                    if (start - literalStart >= MAX_LITERAL_LENGTH) {
+                        literal(literalStart, start);
+                        literalStart = start;
+                    }
+                } else {
+                    break; // At the end of the file, with a full unmatched window left
+                }
+            }
+            if (stopped) {
+                return false;
+            }
+
+            // The file may end like the base, whose last block can be shorter than the window
+            int last = base.getBlockCount() - 1;
+            int lastLength = last >= 0 ? base.getBlockLength(last) : 0;
+            if (lastLength > 0 && lastLength < blockSize && end - literalStart >= lastLength
+                    && RollingChecksum.of(buffer, end - lastLength, lastLength) == base.getWeak(last)
+                    && strongChecksum(sha, buffer, end - lastLength, lastLength) == base.getStrong(last)) {
+                literal(literalStart, end - lastLength);
+                copy((long) last * blockSize, lastLength);
+            } else {
+                literal(literalStart, end);
+            }
+            flushCopy();
+            return !stopped;
+        }
+
+        private int findBlock(int weak, int offset) {
+            int[] blocks = blocksByWeak.get(weak);
+            if (blocks == null) {
+                return -1;
+            }
+            long strong = strongChecksum(sha, buffer, offset, blockSize);
+            int found = -1;
+            for (int block : blocks) {
+                if (base.getStrong(block) == strong) {
+                    if (block == nextBlock) {
+                        return block;
+                    }
+                    if (found < 0) {
+                        found = block;
+                    }
+                }
+            }
+            return found;
+        }
+
+        private void copy(long offset, long length) throws IOException {
+            if (copyOffset >= 0 && copyOffset + copyLength == offset) {
+                copyLength += length;
+                return;
+            }
+            flushCopy();
+            copyOffset = offset;
+            copyLength = length;
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyOffset >= 0 && !stopped) {
+                stopped = !consumer.accept(DeltaSegment.copy(copyOffset, copyLength));
+            }
+            copyOffset = -1;
+        }
+
+        private void literal(int from, int to) throws IOException {
+            if (from < to) {
+                flushCopy();
+            }
+            for (int offset = from; offset < to && !stopped; offset += MAX_LITERAL_LENGTH) {
+                int length = Math.min(MAX_LITERAL_LENGTH, to - offset);
+                stopped = !consumer.accept(DeltaSegment.literal(Arrays.copyOfRange(buffer, offset, offset + length)));
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.jcachenetdl.util;
+
+import com.jcachenetdl.config.ConfigurationManager;
+import org.slf4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run blocking network and disk work.
+ * <p>
+ * On JDK 21+ each task gets its own virtual thread, so thousands of chunk fetches and
+ * inbound connections can block on sockets at once without starving a pool. On older
+ * JDKs, or with {@code performance.virtual.threads=false}, the classic thread pools are
+ * used instead. The mode is chosen once, when this class is first used.
+ * <p>
+ * Virtual threads are looked up reflectively so the code still builds for Java 17.
+ * Code that runs on these executors should avoid waiting on monitors for long: until
+ * JDK 24 a virtual thread blocked in {@code Object.wait()} pins its carrier thread.
+ */
+public final class ExecutorFactory {
+    private static final Logger logger = LogUtil.getLogger(ExecutorFactory.class);
+    private static final Method VIRTUAL_EXECUTOR = findVirtualExecutor();
+
+    private ExecutorFactory() {
+    }
+
+    private static Method findVirtualExecutor() {
+        if (!ConfigurationManager.getInstance().getBoolean("performance.virtual.threads", true)) {
+            logger.info("Virtual threads disabled; using thread pools for blocking work");
+            return null;
+        }
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            logger.info("Using virtual threads for blocking work");
+            return method;
+        } catch (NoSuchMethodException e) {
+            logger.info("Virtual threads not available on Java {}; using thread pools for blocking work",
+                    System.getProperty("java.version"));
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether executors run each task on its own virtual thread.
+     *
+     * @return True if virtual threads are in use
+     */
+    public static boolean isVirtualThreadsEnabled() {
+        return VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor for blocking tasks.
+     *
+     * @param name The thread name prefix
+     * @param poolSize The number of threads when falling back to a pool; 0 or less for an unbounded pool
+     * @return A virtual-thread-per-task executor, or a pool of daemon threads
+     */
+    public static ExecutorService newBlockingExecutor(String name, int poolSize) {
+        if (VIRTUAL_EXECUTOR != null) {
+            try {
+                return (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Could not create virtual thread executor for {}: {}", name, e.getMessage());
+            }
+        }
+        ThreadFactory threadFactory = newThreadFactory(name);
+        return poolSize > 0
+                ? Executors.newFixedThreadPool(poolSize, threadFactory)
+                : Executors.newCachedThreadPool(threadFactory);
+    }
+
+    /**
+     * Creates an unbounded pool of platform threads, for tasks that wait on monitors and
+     * so shouldn't run on virtual threads.
+     *
+     * @param name The thread name prefix
+     * @return The executor
+     */
+    public static ExecutorService newPlatformExecutor(String name) {
+        return Executors.newCachedThreadPool(newThreadFactory(name));
+    }
+
+    /**
+     * Creates a single daemon thread that runs tasks one at a time, in submission order.
+     *
+     * @param name The thread name prefix
+     * @return The executor
+     */
+    public static ExecutorService newSerialExecutor(String name) {
+        return Executors.newSingleThreadExecutor(newThreadFactory(name));
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
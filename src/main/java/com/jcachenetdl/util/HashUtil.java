@@ -1,5 +1,7 @@
 package com.jcachenetdl.util;
 
+import com.jcachenetdl.common.PagedChunk;
+
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -46,6 +48,24 @@ public class HashUtil {
         }
     }
     
+    /**
+     * Generates a SHA-256 hash of a paged chunk, page by page.
+     * 
+     * @param chunk The chunk to hash
+     * @return The hex-encoded hash string
+     */
+    public static String sha256(PagedChunk chunk) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (int i = 0; i < chunk.getPageCount(); i++) {
+                digest.update(chunk.getPage(i));
+            }
+            return Hex.encodeHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error generating SHA-256 hash", e);
+        }
+    }
+    
     /**
      * Generates a SHA-256 hash of a file.
      * 
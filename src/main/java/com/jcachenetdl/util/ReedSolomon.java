@@ -0,0 +1,291 @@
+package com.jcachenetdl.util;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8).
+ * <p>
+ * A stripe of {@code dataShards} equally sized shards is extended with {@code parityShards}
+ * parity shards, and any {@code dataShards} of the resulting shards reconstruct all of them.
+ * The encoding matrix is a Vandermonde matrix normalized so its top rows are the identity:
+ * data shards are stored as they are, and every square submatrix stays invertible.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ */
+public class ReedSolomon {
+    public static final int MAX_SHARDS = 256;
+
+    private static final int POLYNOMIAL = 0x11d; // x^8 + x^4 + x^3 + x^2 + 1
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        // Doubled, so a product of two logarithms needs no modulo
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix; // totalShards x dataShards
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Invalid shard counts: " + dataShards + " data, " + parityShards + " parity");
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        int totalShards = dataShards + parityShards;
+        byte[][] vandermonde = new byte[totalShards][dataShards];
+        for (int row = 0; row < totalShards; row++) {
+            for (int col = 0; col < dataShards; col++) {
+                vandermonde[row][col] = power((byte) row, col);
+            }
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    public int getTotalShards() {
+        return dataShards + parityShards;
+    }
+
+    /**
+     * Computes the parity shards of a stripe.
+     *
+     * @param shards The shards: {@code dataShards} data shards, then {@code parityShards}
+     *               parity shards that are overwritten; all at least {@code length} long
+     * @param length The number of bytes to encode per shard
+     */
+    public void encodeParity(byte[][] shards, int length) {
+        checkShards(shards, length);
+        byte[][] parityRows = new byte[parityShards][];
+        byte[][] outputs = new byte[parityShards][];
+        for (int i = 0; i < parityShards; i++) {
+            parityRows[i] = matrix[dataShards + i];
+            outputs[i] = shards[dataShards + i];
+        }
+        byte[][] inputs = new byte[dataShards][];
+        System.arraycopy(shards, 0, inputs, 0, dataShards);
+        codeSomeShards(parityRows, inputs, outputs, length);
+    }
+
+    /**
+     * Reconstructs the missing shards of a stripe from the present ones.
+     *
+     * @param shards The shards, data first; missing ones are overwritten and must be allocated
+     * @param present Which shards hold valid data
+     * @param length The number of bytes per shard
+     * @throws IllegalArgumentException If fewer than {@code dataShards} shards are present
+     */
+    public void decodeMissing(byte[][] shards, boolean[] present, int length) {
+        decodeMissingData(shards, present, length);
+
+        // With the data complete, missing parity is just encoded again
+        int missingParity = 0;
+        byte[][] parityRows = new byte[parityShards][];
+        byte[][] parityOutputs = new byte[parityShards][];
+        for (int i = dataShards; i < shards.length; i++) {
+            if (!present[i]) {
+                parityRows[missingParity] = matrix[i];
+                parityOutputs[missingParity] = shards[i];
+                missingParity++;
+            }
+        }
+        if (missingParity > 0) {
+            byte[][] data = new byte[dataShards][];
+            System.arraycopy(shards, 0, data, 0, dataShards);
+            codeSomeShards(trim(parityRows, missingParity), data, trim(parityOutputs, missingParity), length);
+        }
+    }
+
+    /**
+     * Reconstructs the missing data shards of a stripe from the present shards, leaving
+     * missing parity shards as they are.
+     *
+     * @param shards The shards, data first; missing data shards are overwritten and must be allocated
+     * @param present Which shards hold valid data
+     * @param length The number of bytes per shard
+     * @throws IllegalArgumentException If fewer than {@code dataShards} shards are present
+     */
+    public void decodeMissingData(byte[][] shards, boolean[] present, int length) {
+        checkShards(shards, length);
+        if (present.length != shards.length) {
+            throw new IllegalArgumentException("Expected " + shards.length + " present flags, got " + present.length);
+        }
+
+        int presentCount = 0;
+        boolean dataComplete = true;
+        for (int i = 0; i < present.length; i++) {
+            if (present[i]) {
+                presentCount++;
+            } else if (i < dataShards) {
+                dataComplete = false;
+            }
+        }
+        if (dataComplete) {
+            return;
+        }
+        if (presentCount < dataShards) {
+            throw new IllegalArgumentException("Need " + dataShards + " shards to decode, only " + presentCount + " present");
+        }
+
+        // The rows of the first dataShards present shards map the data to them; inverted, they recover it
+        byte[][] subMatrix = new byte[dataShards][];
+        byte[][] subShards = new byte[dataShards][];
+        for (int i = 0, row = 0; row < dataShards; i++) {
+            if (present[i]) {
+                subMatrix[row] = matrix[i];
+                subShards[row] = shards[i];
+                row++;
+            }
+        }
+        byte[][] decode = invert(subMatrix);
+
+        int missingData = 0;
+        byte[][] dataRows = new byte[dataShards][];
+        byte[][] dataOutputs = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            if (!present[i]) {
+                dataRows[missingData] = decode[i];
+                dataOutputs[missingData] = shards[i];
+                missingData++;
+            }
+        }
+        codeSomeShards(trim(dataRows, missingData), subShards, trim(dataOutputs, missingData), length);
+    }
+
+    private void checkShards(byte[][] shards, int length) {
+        if (shards.length != getTotalShards()) {
+            throw new IllegalArgumentException("Expected " + getTotalShards() + " shards, got " + shards.length);
+        }
+        for (byte[] shard : shards) {
+            if (shard == null || shard.length < length) {
+                throw new IllegalArgumentException("Every shard must hold at least " + length + " bytes");
+            }
+        }
+    }
+
+    private static byte[][] trim(byte[][] rows, int count) {
+        byte[][] trimmed = new byte[count][];
+        System.arraycopy(rows, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * Sets each output to the linear combination of the inputs given by its matrix row.
+     */
+    private static void codeSomeShards(byte[][] rows, byte[][] inputs, byte[][] outputs, int length) {
+        for (int out = 0; out < outputs.length; out++) {
+            byte[] output = outputs[out];
+            byte[] mulRow = MUL[rows[out][0] & 0xff];
+            byte[] input = inputs[0];
+            for (int i = 0; i < length; i++) {
+                output[i] = mulRow[input[i] & 0xff];
+            }
+            for (int in = 1; in < inputs.length; in++) {
+                mulRow = MUL[rows[out][in] & 0xff];
+                input = inputs[in];
+                for (int i = 0; i < length; i++) {
+                    output[i] ^= mulRow[input[i] & 0xff];
+                }
+            }
+        }
+    }
+
+    private static byte power(byte base, int exponent) {
+        if (exponent == 0) {
+            return 1;
+        }
+        if (base == 0) {
+            return 0;
+        }
+        return EXP[(LOG[base & 0xff] * exponent) % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] result = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                byte value = 0;
+                for (int i = 0; i < b.length; i++) {
+                    value ^= MUL[a[r][i] & 0xff][b[i][c] & 0xff];
+                }
+                result[r][c] = value;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Inverts a square matrix by Gauss-Jordan elimination.
+     */
+    private static byte[][] invert(byte[][] matrix) {
+        int size = matrix.length;
+        byte[][] work = new byte[size][size * 2];
+        for (int r = 0; r < size; r++) {
+            System.arraycopy(matrix[r], 0, work[r], 0, size);
+            work[r][size + r] = 1;
+        }
+
+        for (int col = 0; col < size; col++) {
+            int pivot = col;
+            while (pivot < size && work[pivot][col] == 0) {
+                pivot++;
+            }
+            if (pivot == size) {
+                throw new IllegalArgumentException("Matrix is singular");
+            }
+            byte[] swap = work[col];
+            work[col] = work[pivot];
+            work[pivot] = swap;
+
+            byte[] scale = MUL[inverse(work[col][col]) & 0xff];
+            for (int c = 0; c < size * 2; c++) {
+                work[col][c] = scale[work[col][c] & 0xff];
+            }
+            for (int r = 0; r < size; r++) {
+                if (r != col && work[r][col] != 0) {
+                    byte[] factor = MUL[work[r][col] & 0xff];
+                    for (int c = 0; c < size * 2; c++) {
+                        work[r][c] ^= factor[work[col][c] & 0xff];
+                    }
+                }
+            }
+        }
+
+        byte[][] inverse = new byte[size][size];
+        for (int r = 0; r < size; r++) {
+            System.arraycopy(work[r], size, inverse[r], 0, size);
+        }
+        return inverse;
+    }
+
+    private static byte inverse(byte value) {
+        return EXP[255 - LOG[value & 0xff]];
+    }
+}
@@ -0,0 +1,71 @@
+package com.jcachenetdl.util;
+
+/**
+ * The rsync weak checksum of a fixed-size window of bytes, which can be rolled forward one
+ * byte at a time: sliding the window costs a few additions instead of a pass over the window.
+ * <p>
+ * The value combines {@code a}, the sum of the window's bytes, and {@code b}, the sum of
+ * each byte weighted by its distance from the window's end, both modulo 2^16.
+ */
+public class RollingChecksum {
+    private final int windowSize;
+    private int a;
+    private int b;
+
+    /**
+     * @param windowSize The number of bytes in the window
+     */
+    public RollingChecksum(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Computes the checksum of a window from scratch, replacing the current one.
+     *
+     * @param data The source array
+     * @param offset The start of the window
+     */
+    public void reset(byte[] data, int offset) {
+        a = 0;
+        b = 0;
+        for (int i = 0; i < windowSize; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (windowSize - i) * value;
+        }
+        a &= 0xffff;
+        b &= 0xffff;
+    }
+
+    /**
+     * Slides the window one byte forward.
+     *
+     * @param out The byte leaving the window at its start
+     * @param in The byte entering the window at its end
+     */
+    public void roll(byte out, byte in) {
+        a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+        b = (b - windowSize * (out & 0xff) + a) & 0xffff;
+    }
+
+    public int getValue() {
+        return a | (b << 16);
+    }
+
+    /**
+     * Computes the checksum of a block of bytes.
+     *
+     * @param data The source array
+     * @param offset The start of the block
+     * @param length The length of the block
+     * @return The checksum
+     */
+    public static int of(byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum(length);
+        checksum.reset(data, offset);
+        return checksum.getValue();
+    }
+}
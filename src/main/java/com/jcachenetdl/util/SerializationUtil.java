@@ -76,6 +76,19 @@ public class SerializationUtil {
         }
     }
     
+    /**
+     * Serializes an object directly into a stream.
+     *
+     * @param obj The object to serialize
+     * @param out The stream to write to (left open)
+     * @throws IOException If there's an error during serialization
+     */
+    public static void serialize(Object obj, OutputStream out) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(obj);
+        oos.flush();
+    }
+    
     /**
      * Deserializes an object from bytes.
      *
@@ -91,4 +104,18 @@ public class SerializationUtil {
             return (T) ois.readObject();
         }
     }
+    
+    /**
+     * Deserializes an object from a stream.
+     *
+     * @param <T> The type to deserialize to
+     * @param in The stream to read from (left open)
+     * @return The deserialized object
+     * @throws IOException If there's an error during deserialization
+     * @throws ClassNotFoundException If the class of the serialized object cannot be found
+     */
+    public static <T> T deserialize(InputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(in);
+        return (T) ois.readObject();
+    }
 }
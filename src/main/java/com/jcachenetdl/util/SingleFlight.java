@@ -0,0 +1,79 @@
+package com.jcachenetdl.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key: while a call is running, further calls for
+ * its key wait for it and get its result instead of doing the work again. Once the call
+ * finishes the key is released, so results are never cached here.
+ *
+ * @param <K> The key type
+ * @param <V> The result type
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the loader, or waits for the call already running for the key.
+     * If that call throws, every waiter gets the same exception.
+     *
+     * @param key The key
+     * @param loader Computes the result; runs on the calling thread
+     * @return The result of whichever call ran the loader
+     */
+    public V execute(K key, Supplier<V> loader) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = flights.putIfAbsent(key, flight);
+        if (running != null) {
+            return await(running);
+        }
+
+        try {
+            V value = loader.get();
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Checks if a call is running for a key.
+     *
+     * @param key The key
+     * @return True if a call for the key is in flight
+     */
+    public boolean isRunning(K key) {
+        return flights.containsKey(key);
+    }
+
+    /**
+     * Gets the number of keys with a call running.
+     *
+     * @return The number of calls in flight
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    private V await(CompletableFuture<V> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.jcachenetdl.common;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PagedChunkTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWrapSplitsIntoPages() {
+        byte[] data = new byte[PagedChunk.PAGE_SIZE * 3 + 17];
+        new Random(42).nextBytes(data);
+
+        PagedChunk chunk = PagedChunk.wrap(data);
+
+        // No page may exceed the page size
+        assertEquals(4, chunk.getPageCount());
+        for (int i = 0; i < chunk.getPageCount(); i++) {
+            assertTrue(chunk.getPage(i).length <= PagedChunk.PAGE_SIZE);
+        }
+
+        // The composite view should match the original data
+        assertEquals(data.length, chunk.length());
+        assertArrayEquals(data, chunk.toByteArray());
+    }
+
+    @Test
+    public void testReadFromStopsAtMaxLength() throws IOException {
+        byte[] data = new byte[PagedChunk.PAGE_SIZE * 2 + 100];
+        new Random(7).nextBytes(data);
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+
+        // Read two chunks from the same stream
+        PagedChunk first = PagedChunk.readFrom(in, PagedChunk.PAGE_SIZE + 10);
+        PagedChunk second = PagedChunk.readFrom(in, PagedChunk.PAGE_SIZE * 4);
+
+        assertEquals(PagedChunk.PAGE_SIZE + 10, first.length());
+        assertEquals(data.length - first.length(), second.length());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        first.writeTo(out);
+        second.writeTo(out);
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testReadFromChannelPagesTheRegion() throws IOException {
+        byte[] data = new byte[PagedChunk.PAGE_SIZE * 3 + 20];
+        new Random(11).nextBytes(data);
+        File file = folder.newFile("chunks.bin");
+        Files.write(file.toPath(), data);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            PagedChunk chunk = PagedChunk.readFrom(channel, 10, PagedChunk.PAGE_SIZE * 2 + 5);
+            assertEquals(3, chunk.getPageCount());
+            assertArrayEquals(Arrays.copyOfRange(data, 10, 10 + chunk.length()), chunk.toByteArray());
+
+            try {
+                PagedChunk.readFrom(channel, PagedChunk.PAGE_SIZE * 3, 100);
+                fail("Read past the end of the file");
+            } catch (EOFException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testCopyToAcrossPageBoundary() {
+        byte[] data = new byte[PagedChunk.PAGE_SIZE * 2];
+        new Random(1).nextBytes(data);
+        PagedChunk chunk = PagedChunk.wrap(data);
+
+        byte[] region = new byte[100];
+        chunk.copyTo(PagedChunk.PAGE_SIZE - 50, region, 0, region.length);
+
+        for (int i = 0; i < region.length; i++) {
+            assertEquals(data[PagedChunk.PAGE_SIZE - 50 + i], region[i]);
+        }
+    }
+
+    @Test
+    public void testSlicesJoinBackIntoTheChunk() {
+        byte[] data = new byte[PagedChunk.PAGE_SIZE * 5 + 300];
+        new Random(3).nextBytes(data);
+        PagedChunk chunk = PagedChunk.wrap(data);
+
+        // Page-aligned pieces share the chunk's pages
+        PagedChunk first = chunk.slice(0, PagedChunk.PAGE_SIZE * 2);
+        PagedChunk second = chunk.slice(PagedChunk.PAGE_SIZE * 2, data.length - PagedChunk.PAGE_SIZE * 2);
+        assertSame(chunk.getPage(2), second.getPage(0));
+        PagedChunk joined = PagedChunk.concat(Arrays.asList(first, second));
+        assertSame(chunk.getPage(4), joined.getPage(4));
+        assertArrayEquals(data, joined.toByteArray());
+
+        // Unaligned pieces are copied
+        PagedChunk head = chunk.slice(0, 1000);
+        PagedChunk tail = chunk.slice(1000, data.length - 1000);
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, data.length), tail.toByteArray());
+        PagedChunk rejoined = PagedChunk.concat(Arrays.asList(head, tail));
+        assertEquals(6, rejoined.getPageCount());
+        assertArrayEquals(data, rejoined.toByteArray());
+    }
+}
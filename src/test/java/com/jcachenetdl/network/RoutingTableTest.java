@@ -0,0 +1,64 @@
+package com.jcachenetdl.network;
+
+import com.jcachenetdl.common.PeerInfo;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoutingTableTest {
+
+    @Test
+    public void testClosestIsSortedByXorDistance() {
+        RoutingTable table = new RoutingTable("local", 20);
+        for (int i = 0; i < 50; i++) {
+            table.update(new PeerInfo("peer-" + i, "localhost", 9000 + i));
+        }
+
+        byte[] target = RoutingTable.keyId("some-file");
+        List<PeerInfo> closest = table.closest(target, 5);
+        assertEquals(5, closest.size());
+        for (int i = 1; i < closest.size(); i++) {
+            assertTrue(RoutingTable.compareDistance(target,
+                    RoutingTable.nodeId(closest.get(i - 1).getId()),
+                    RoutingTable.nodeId(closest.get(i).getId())) < 0);
+        }
+    }
+
+    @Test
+    public void testFullBucketKeepsActiveContacts() {
+        // With k = 1 the first bucket (IDs differing in the top bit) holds a single contact
+        RoutingTable table = new RoutingTable("local", 1);
+        byte[] localId = table.getLocalId();
+        PeerInfo first = null;
+        PeerInfo second = null;
+        for (int i = 0; second == null; i++) {
+            PeerInfo peer = new PeerInfo("peer-" + i, "localhost", 9000 + i);
+            if (((RoutingTable.nodeId(peer.getId())[0] ^ localId[0]) & 0x80) != 0) {
+                if (first == null) {
+                    first = peer;
+                } else {
+                    second = peer;
+                }
+            }
+        }
+
+        assertTrue(table.update(first));
+        assertFalse(table.update(second));
+
+        // An inactive contact makes room for a new one
+        first.setActive(false);
+        assertTrue(table.update(second));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testIgnoresLocalNode() {
+        RoutingTable table = new RoutingTable("local", 20);
+        assertFalse(table.update(new PeerInfo("local", "localhost", 9000)));
+        assertEquals(0, table.size());
+    }
+}
@@ -0,0 +1,81 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.ChunkKey;
+import com.jcachenetdl.util.HashUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkIndexTest {
+
+    @Test
+    public void testLookupByHexHashAndKey() {
+        ChunkIndex<String> index = new ChunkIndex<>();
+        String fileHash = HashUtil.sha256("file-a");
+        ChunkKey key = ChunkKey.of(fileHash, 3);
+
+        index.put(key, "value");
+
+        // Both lookup forms should find the entry
+        assertEquals("value", index.get(fileHash, 3));
+        assertEquals("value", index.get(key));
+
+        // Other chunks and malformed hashes should not
+        assertNull(index.get(fileHash, 4));
+        assertNull(index.get("not-a-hash", 3));
+        assertEquals(fileHash, key.getFileHash());
+    }
+
+    @Test
+    public void testMatchesHashMapUnderRandomOperations() {
+        ChunkIndex<Integer> index = new ChunkIndex<>(16);
+        Map<ChunkKey, Integer> expected = new HashMap<>();
+        List<ChunkKey> keys = new ArrayList<>();
+        Random random = new Random(1234);
+
+        // A few files with many chunks each, so probe runs get long
+        for (int file = 0; file < 20; file++) {
+            String fileHash = HashUtil.sha256("file-" + file);
+            for (int chunk = 0; chunk < 200; chunk++) {
+                keys.add(ChunkKey.of(fileHash, chunk));
+            }
+        }
+
+        for (int i = 0; i < 50_000; i++) {
+            ChunkKey key = keys.get(random.nextInt(keys.size()));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), index.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), index.put(key, i));
+            }
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (ChunkKey key : keys) {
+            assertEquals(expected.get(key), index.get(key));
+        }
+    }
+
+    @Test
+    public void testConditionalReplaceAndRemove() {
+        ChunkIndex<String> index = new ChunkIndex<>();
+        ChunkKey key = ChunkKey.of(HashUtil.sha256("file-b"), 0);
+        String original = "original";
+        index.put(key, original);
+
+        assertFalse(index.replace(key, "other", "replacement"));
+        assertTrue(index.replace(key, original, "replacement"));
+        assertFalse(index.remove(key, original));
+        assertTrue(index.remove(key, "replacement"));
+        assertEquals(0, index.size());
+    }
+}
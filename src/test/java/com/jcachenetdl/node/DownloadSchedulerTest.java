@@ -0,0 +1,297 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.CacheItem;
+import com.jcachenetdl.common.ChunkKey;
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.common.PagedChunk;
+import com.jcachenetdl.common.PeerInfo;
+import com.jcachenetdl.network.ChunkSource;
+import com.jcachenetdl.network.PeerHandler;
+import com.jcachenetdl.util.ConcurrencyLimit;
+import com.jcachenetdl.util.HashUtil;
+import com.jcachenetdl.util.SingleFlight;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSchedulerTest {
+    private static final String FILE_HASH = HashUtil.sha256("download-scheduler-test");
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private ExecutorService executor;
+    private ScheduledExecutorService timer;
+    private StubSource source;
+    private MemorySink sink;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+        timer = Executors.newSingleThreadScheduledExecutor();
+        source = new StubSource();
+        sink = new MemorySink();
+    }
+
+    @After
+    public void tearDown() {
+        source.slowRelease.countDown();
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void testRequestsRarestChunkFirst() throws Exception {
+        FileManifest manifest = new FileManifest(FILE_HASH, 4, 4 * 1024);
+        PeerInfo common = peer("common");
+        PeerInfo rare = peer("rare");
+        DownloadScheduler scheduler = newScheduler(manifest, Arrays.asList(rare, common), 1, 1, 0);
+
+        // Only the first peer holds chunk 3, so it must ask for that before the shared chunks
+        BitSet commonChunks = new BitSet();
+        commonChunks.set(0, 3);
+        scheduler.setPeerChunks(common, commonChunks);
+
+        assertTrue(scheduler.start().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("rare:3", source.requestsTo("rare").get(0));
+        assertFalse(source.requestsTo("common").contains("common:3"));
+        assertEquals(4, sink.chunks.size());
+    }
+
+    @Test
+    public void testPrioritizedChunksGoFirstInOrder() throws Exception {
+        FileManifest manifest = new FileManifest(FILE_HASH, 10, 10 * 1024);
+        DownloadScheduler scheduler = newScheduler(manifest, Collections.singletonList(peer("a")), 1, 1, 0);
+        scheduler.prioritize(5, 3);
+
+        assertTrue(scheduler.start().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a:5", "a:6", "a:7"), source.requestsTo("a").subList(0, 3));
+        assertEquals(10, sink.chunks.size());
+    }
+
+    @Test
+    public void testBatchesRequestsToOnePeer() throws Exception {
+        FileManifest manifest = new FileManifest(FILE_HASH, 8, 8 * 1024);
+        DownloadScheduler scheduler = newScheduler(manifest, Collections.singletonList(peer("a")), 8, 4, 0);
+
+        assertTrue(scheduler.start().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(4, 4), source.batchSizes);
+        assertTrue(source.requestsTo("a").isEmpty());
+        assertEquals(8, sink.chunks.size());
+    }
+
+    @Test
+    public void testFallsBackToSingleRequestsIfBatchesGoUnanswered() throws Exception {
+        FileManifest manifest = new FileManifest(FILE_HASH, 8, 8 * 1024);
+        source.batching = false;
+        DownloadScheduler scheduler = newScheduler(manifest, Collections.singletonList(peer("a")), 8, 4, 0);
+
+        assertTrue(scheduler.start().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(8, new HashSet<>(source.requestsTo("a")).size());
+        assertEquals(8, sink.chunks.size());
+    }
+
+    @Test
+    public void testHedgesOverdueRequestWithAnotherPeer() throws Exception {
+        FileManifest manifest = new FileManifest(FILE_HASH, 1, 1024);
+        source.slowPeers.add("slow");
+        DownloadScheduler scheduler = newScheduler(manifest, Arrays.asList(peer("slow"), peer("fast")), 1, 1, 0);
+
+        // The slow peer never answers until released, so only a hedge can finish the download
+        assertTrue(scheduler.start().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("slow:0"), source.requestsTo("slow"));
+        assertEquals(Collections.singletonList("fast:0"), source.requestsTo("fast"));
+        assertArrayEquals(chunkData(0, 1024), sink.chunks.get(0).toByteArray());
+    }
+
+    @Test
+    public void testHedgesOverdueRequestWithPiecesFromSeveralPeers() throws Exception {
+        int chunkLength = 4 * PagedChunk.PAGE_SIZE;
+        FileManifest manifest = new FileManifest(FILE_HASH, 1, chunkLength);
+        source.slowPeers.add("slow");
+        source.chunkLength = chunkLength;
+        List<PeerInfo> peers = Arrays.asList(peer("slow"), peer("b"), peer("c"));
+        DownloadScheduler scheduler = newScheduler(manifest, peers, 1, 1, PagedChunk.PAGE_SIZE);
+
+        assertTrue(scheduler.start().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        int half = chunkLength / 2;
+        assertEquals(Collections.singletonList("b:0@0"), source.requestsTo("b"));
+        assertEquals(Collections.singletonList("c:0@" + half), source.requestsTo("c"));
+        assertArrayEquals(chunkData(0, chunkLength), sink.chunks.get(0).toByteArray());
+    }
+
+    @Test
+    public void testFailsWhenNoPeerHoldsAChunk() throws Exception {
+        FileManifest manifest = new FileManifest(FILE_HASH, 3, 3 * 1024);
+        PeerInfo a = peer("a");
+        DownloadScheduler scheduler = newScheduler(manifest, Collections.singletonList(a), 1, 1, 0);
+        BitSet held = new BitSet();
+        held.set(0, 2);
+        scheduler.setPeerChunks(a, held);
+
+        assertFalse(scheduler.start().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, sink.chunks.size());
+        assertFalse(source.requestsTo("a").contains("a:2"));
+    }
+
+    @Test
+    public void testRequestsEveryChunkWhenTiebreaksCollide() throws Exception {
+        FileManifest manifest = new FileManifest(FILE_HASH, 6, 6 * 1024);
+        Random sameRank = new Random() {
+            @Override
+            public int nextInt() {
+                return 7;
+            }
+        };
+        DownloadScheduler scheduler = newScheduler(manifest, Collections.singletonList(peer("a")), 1, 1, 0,
+                sameRank);
+
+        assertTrue(scheduler.start().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(6, new HashSet<>(source.requestsTo("a")).size());
+        assertEquals(6, sink.chunks.size());
+    }
+
+    private DownloadScheduler newScheduler(FileManifest manifest, List<PeerInfo> peers, int peerLimit,
+                                           int batchSize, int pieceSize) {
+        return newScheduler(manifest, peers, peerLimit, batchSize, pieceSize, new Random());
+    }
+
+    private DownloadScheduler newScheduler(FileManifest manifest, List<PeerInfo> peers, int peerLimit,
+                                           int batchSize, int pieceSize, Random random) {
+        Map<PeerInfo, ConcurrencyLimit> limits = new ConcurrentHashMap<>();
+        DownloadScheduler.HedgePolicy hedgePolicy = new DownloadScheduler.HedgePolicy(95, 50, 50, 2);
+        source.totalChunks = manifest.getTotalChunks();
+        return new DownloadScheduler(manifest, peers, source, sink, executor, timer,
+                peer -> limits.computeIfAbsent(peer, p -> new ConcurrencyLimit(peerLimit, peerLimit, peerLimit)),
+                3, hedgePolicy, new SingleFlight<ChunkKey, CacheItem>(), batchSize, pieceSize, random);
+    }
+
+    private static PeerInfo peer(String id) {
+        return new PeerInfo(id, "localhost", 0);
+    }
+
+    private static byte[] chunkData(int chunkId, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (chunkId * 31 + i);
+        }
+        return data;
+    }
+
+    /**
+     * Serves every chunk of the test file at once, except from the slow peers, which don't
+     * answer until released. Records each request, e.g. "a:3", or "a:3@1024" for a piece.
+     */
+    private static class StubSource implements ChunkSource {
+        final Set<String> slowPeers = ConcurrentHashMap.newKeySet();
+        final CountDownLatch slowRelease = new CountDownLatch(1);
+        final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean batching = true;
+        volatile int totalChunks;
+        volatile int chunkLength = 1024;
+
+        @Override
+        public CacheItem requestFileChunk(PeerInfo peer, String fileHash, int chunkId) {
+            requests.add(peer.getId() + ":" + chunkId);
+            if (!awaitTurn(peer)) {
+                return null;
+            }
+            return new CacheItem(fileHash, chunkId, chunkData(chunkId, chunkLength), peer.getId(), totalChunks);
+        }
+
+        @Override
+        public PeerHandler.ChunkPiece requestChunkPiece(PeerInfo peer, String fileHash, int chunkId,
+                                                        int offset, int length) {
+            requests.add(peer.getId() + ":" + chunkId + "@" + offset);
+            if (!awaitTurn(peer)) {
+                return null;
+            }
+            PagedChunk chunk = PagedChunk.wrap(chunkData(chunkId, chunkLength));
+            return new PeerHandler.ChunkPiece(offset, chunk.slice(offset, length), chunkLength, totalChunks);
+        }
+
+        @Override
+        public boolean requestFileChunks(PeerInfo peer, String fileHash, int[] chunkIds,
+                                         PeerHandler.ChunkConsumer consumer) {
+            if (!batching) {
+                return false;
+            }
+            batchSizes.add(chunkIds.length);
+            for (int chunkId : chunkIds) {
+                CacheItem chunk = new CacheItem(fileHash, chunkId, chunkData(chunkId, chunkLength),
+                        peer.getId(), totalChunks);
+                if (!consumer.accept(chunkId, chunk)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        List<String> requestsTo(String peerId) {
+            List<String> matching = new ArrayList<>();
+            synchronized (requests) {
+                for (String request : requests) {
+                    if (request.startsWith(peerId + ":")) {
+                        matching.add(request);
+                    }
+                }
+            }
+            return matching;
+        }
+
+        private boolean awaitTurn(PeerInfo peer) {
+            if (!slowPeers.contains(peer.getId())) {
+                return true;
+            }
+            try {
+                slowRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Keeps the chunks of a download in memory.
+     */
+    private static class MemorySink implements DownloadScheduler.ChunkSink {
+        final Map<Integer, PagedChunk> chunks = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean hasChunk(int chunkId) {
+            return chunks.containsKey(chunkId);
+        }
+
+        @Override
+        public boolean accept(int chunkId, PagedChunk data, long latencyMs, int holderCount) {
+            chunks.put(chunkId, data);
+            return true;
+        }
+
+        @Override
+        public PagedChunk getChunk(int chunkId) {
+            return chunks.get(chunkId);
+        }
+    }
+}
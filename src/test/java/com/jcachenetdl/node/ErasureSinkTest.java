@@ -0,0 +1,87 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.common.PagedChunk;
+import com.jcachenetdl.util.HashUtil;
+import com.jcachenetdl.util.ReedSolomon;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ErasureSinkTest {
+    private static final int CHUNK_SIZE = CacheEngine.MAX_CHUNK_SIZE;
+
+    @Test
+    public void testRebuildsMissingChunksAcrossPages() throws IOException {
+        // Two stripes of two chunks and one parity fragment each; the second stripe has only a short chunk
+        Random random = new Random(42);
+        byte[][] chunks = {new byte[CHUNK_SIZE], new byte[CHUNK_SIZE], new byte[PagedChunk.PAGE_SIZE + 5]};
+        for (byte[] chunk : chunks) {
+            random.nextBytes(chunk);
+        }
+        ReedSolomon codec = new ReedSolomon(2, 1);
+        byte[] firstParity = parity(codec, chunks[0], chunks[1]);
+        byte[] secondParity = parity(codec, chunks[2], new byte[0]);
+
+        List<String> digests = new ArrayList<>();
+        for (byte[] data : new byte[][] {chunks[0], chunks[1], chunks[2], firstParity, secondParity}) {
+            digests.add(HashUtil.sha256(data));
+        }
+        long fileSize = 2L * CHUNK_SIZE + chunks[2].length;
+        FileManifest manifest = new FileManifest(HashUtil.sha256("erasure-sink-test"), 3, fileSize, digests, 2, 1);
+
+        MemorySink target = new MemorySink();
+        ErasureSink sink = new ErasureSink(manifest, target);
+        assertTrue(sink.accept(0, PagedChunk.wrap(chunks[0]), 0, 1));
+        assertFalse(target.hasChunk(1));
+        assertTrue(sink.accept(3, PagedChunk.wrap(firstParity), 0, 1));
+        assertTrue(sink.accept(4, PagedChunk.wrap(secondParity), 0, 1));
+
+        for (int chunkId = 0; chunkId < chunks.length; chunkId++) {
+            assertArrayEquals("chunk " + chunkId, chunks[chunkId], target.getChunk(chunkId).toByteArray());
+        }
+        assertEquals(3, target.chunks.size());
+    }
+
+    /**
+     * Encodes the parity of a stripe of two chunks the way a whole-array encode would,
+     * padding the second chunk with zeros to the first one's length.
+     */
+    private static byte[] parity(ReedSolomon codec, byte[] first, byte[] second) {
+        byte[][] shards = new byte[3][first.length];
+        System.arraycopy(first, 0, shards[0], 0, first.length);
+        System.arraycopy(second, 0, shards[1], 0, second.length);
+        codec.encodeParity(shards, first.length);
+        return shards[2];
+    }
+
+    private static class MemorySink implements DownloadScheduler.ChunkSink {
+        final Map<Integer, PagedChunk> chunks = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean hasChunk(int chunkId) {
+            return chunks.containsKey(chunkId);
+        }
+
+        @Override
+        public boolean accept(int chunkId, PagedChunk data, long latencyMs, int holderCount) {
+            chunks.put(chunkId, data);
+            return true;
+        }
+
+        @Override
+        public PagedChunk getChunk(int chunkId) {
+            return chunks.get(chunkId);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.jcachenetdl.node;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GdsfEvictionPolicyTest {
+
+    @Test
+    public void testEvictsLowestCostPerByteFirst() {
+        GdsfEvictionPolicy<String> policy = new GdsfEvictionPolicy<>();
+
+        policy.recordInsert("cheap", 100, 100);     // 1 per byte
+        policy.recordInsert("costly", 10, 50);      // 5 per byte
+        policy.recordInsert("origin", 100, 60_000); // 600 per byte
+        policy.recordInsert("medium", 10, 20);      // 2 per byte
+
+        assertEquals(220, policy.getTotalSize());
+        assertEquals("cheap", policy.evict());
+        assertEquals("medium", policy.evict());
+        assertEquals("costly", policy.evict());
+        assertEquals("origin", policy.evict());
+        assertNull(policy.evict());
+        assertEquals(0, policy.getTotalSize());
+    }
+
+    @Test
+    public void testAccessesRaisePriority() {
+        GdsfEvictionPolicy<String> policy = new GdsfEvictionPolicy<>();
+        policy.recordInsert("a", 10, 10);
+        policy.recordInsert("b", 10, 15);
+
+        // Two more accesses make a worth 3 per byte, more than b's 1.5
+        policy.recordAccess("a");
+        policy.recordAccess("a");
+
+        assertEquals("b", policy.evict());
+        assertEquals("a", policy.evict());
+    }
+
+    @Test
+    public void testTiesEvictLeastRecentlyUsed() {
+        GdsfEvictionPolicy<String> policy = new GdsfEvictionPolicy<>();
+        policy.recordInsert("first", 10, 10);
+        policy.recordInsert("second", 10, 10);
+
+        assertEquals("first", policy.evict());
+        assertEquals("second", policy.evict());
+    }
+
+    @Test
+    public void testEvictionInflatesLaterEntries() {
+        GdsfEvictionPolicy<String> policy = new GdsfEvictionPolicy<>();
+        policy.recordInsert("old", 1, 10);  // Priority 10
+        policy.recordInsert("low", 1, 1);   // Priority 1
+
+        // Evicting raises the inflation to 1, so a new entry worth 9.5 outranks the old 10
+        assertEquals("low", policy.evict());
+        policy.recordInsert("new", 1, 9.5);
+
+        assertEquals("old", policy.evict());
+        assertEquals("new", policy.evict());
+    }
+
+    @Test
+    public void testPinnedEntriesAreNotEvicted() {
+        GdsfEvictionPolicy<String> policy = new GdsfEvictionPolicy<>();
+        policy.recordInsert("pinned", 10, 1);
+        policy.recordInsert("other", 10, 100);
+        policy.pin("pinned");
+
+        // Accesses and replacement keep the pin
+        policy.recordAccess("pinned");
+        policy.recordInsert("pinned", 20, 1);
+
+        assertEquals("other", policy.evict());
+        assertNull(policy.evict());
+        assertTrue(policy.contains("pinned"));
+        assertEquals(20, policy.getTotalSize());
+
+        policy.unpin("pinned");
+        assertEquals("pinned", policy.evict());
+        assertFalse(policy.contains("pinned"));
+    }
+
+    @Test
+    public void testRemoveForgetsEntry() {
+        GdsfEvictionPolicy<String> policy = new GdsfEvictionPolicy<>();
+        policy.recordInsert("a", 10, 1);
+        policy.recordInsert("b", 10, 1);
+        policy.pin("b");
+
+        assertTrue(policy.remove("a"));
+        assertTrue(policy.remove("b"));
+        assertFalse(policy.remove("a"));
+        assertEquals(0, policy.size());
+        assertEquals(0, policy.getTotalSize());
+        assertNull(policy.evict());
+    }
+}
@@ -0,0 +1,103 @@
+package com.jcachenetdl.node;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.MemoryUsage;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryPressureControllerTest {
+    private static final long MB = 1024 * 1024;
+
+    private FakeTier tier;
+    private MemoryPressureController controller;
+
+    @Before
+    public void setUp() {
+        tier = new FakeTier(256 * MB, 200 * MB);
+        controller = new MemoryPressureController(tier, 0.70, 16 * MB, 512 * MB);
+    }
+
+    @Test
+    public void testShrinksByExcessOfOldGeneration() {
+        // 800 of 1000 MB is 100 MB over the 70% target, shed from the 200 MB the tier holds
+        controller.adjust(oldGen(800 * MB, 1000 * MB));
+        assertEquals(100 * MB, tier.limit);
+
+        // The excess is measured against the old generation, however large the heap is
+        tier = new FakeTier(256 * MB, 200 * MB);
+        controller = new MemoryPressureController(tier, 0.70, 16 * MB, 512 * MB);
+        controller.adjust(oldGen(80 * MB, 100 * MB));
+        assertEquals(190 * MB, tier.limit);
+    }
+
+    @Test
+    public void testShrinksNoFurtherThanMinimum() {
+        controller.adjust(oldGen(990 * MB, 1000 * MB));
+        assertEquals(16 * MB, tier.limit);
+    }
+
+    @Test
+    public void testKeepsLimitNearTarget() {
+        controller.adjust(oldGen(650 * MB, 1000 * MB));
+        assertEquals(256 * MB, tier.limit);
+        controller.adjust(oldGen(700 * MB, 1000 * MB));
+        assertEquals(256 * MB, tier.limit);
+    }
+
+    @Test
+    public void testGrowsGraduallyWellBelowTarget() {
+        // A quarter of the limit at a time, up to the maximum
+        controller.adjust(oldGen(400 * MB, 1000 * MB));
+        assertEquals(320 * MB, tier.limit);
+        controller.adjust(oldGen(400 * MB, 1000 * MB));
+        assertEquals(400 * MB, tier.limit);
+        controller.adjust(oldGen(400 * MB, 1000 * MB));
+        controller.adjust(oldGen(400 * MB, 1000 * MB));
+        assertEquals(512 * MB, tier.limit);
+    }
+
+    @Test
+    public void testGrowsByAtMostHalfTheHeadroom() {
+        // 100 MB old generation at 50%: 20 MB headroom, so 10 MB of growth
+        controller.adjust(oldGen(50 * MB, 100 * MB));
+        assertEquals(266 * MB, tier.limit);
+    }
+
+    @Test
+    public void testIgnoresUnknownUsage() {
+        controller.adjust(null);
+        controller.adjust(new MemoryUsage(0, 900 * MB, 900 * MB, -1));
+        assertEquals(256 * MB, tier.limit);
+    }
+
+    private static MemoryUsage oldGen(long used, long max) {
+        return new MemoryUsage(0, used, used, max);
+    }
+
+    private static class FakeTier implements MemoryPressureController.MemoryTier {
+        long limit;
+        final long usage;
+
+        FakeTier(long limit, long usage) {
+            this.limit = limit;
+            this.usage = usage;
+        }
+
+        @Override
+        public long getMemoryLimit() {
+            return limit;
+        }
+
+        @Override
+        public void setMemoryLimit(long limitBytes) {
+            limit = limitBytes;
+        }
+
+        @Override
+        public long getMemoryUsage() {
+            return usage;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.PackIndex;
+import com.jcachenetdl.util.HashUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PackFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testExtractRestoresEveryMember() throws IOException {
+        byte[] large = new byte[200 * 1024];
+        new Random(42).nextBytes(large);
+        Map<String, File> members = new LinkedHashMap<>();
+        members.put("readme.txt", newFile("readme.txt", "hello pack".getBytes(StandardCharsets.UTF_8)));
+        members.put("docs/large.bin", newFile("large.bin", large));
+        members.put("empty", newFile("empty", new byte[0]));
+
+        File pack = new File(folder.getRoot(), "test.pack");
+        PackIndex written = PackFile.write(members, pack);
+        assertEquals(3, written.getEntries().size());
+        assertEquals(10 + large.length, written.getDataSize());
+        assertEquals(HashUtil.sha256(large), written.getEntry("docs/large.bin").getFileHash());
+        assertEquals(written.getDataSize(), PackFile.readIndex(pack).getDataSize());
+
+        File outputDir = folder.newFolder("out");
+        PackFile.extractAll(pack, outputDir);
+        for (Map.Entry<String, File> member : members.entrySet()) {
+            assertArrayEquals(member.getKey(), Files.readAllBytes(member.getValue().toPath()),
+                    Files.readAllBytes(new File(outputDir, member.getKey()).toPath()));
+        }
+    }
+
+    @Test
+    public void testExtractRejectsCorruptedMember() throws IOException {
+        Map<String, File> members = new LinkedHashMap<>();
+        members.put("a.txt", newFile("a.txt", "first member".getBytes(StandardCharsets.UTF_8)));
+        members.put("b.txt", newFile("b.txt", "second member".getBytes(StandardCharsets.UTF_8)));
+        File pack = new File(folder.getRoot(), "test.pack");
+        PackFile.write(members, pack);
+
+        // The last byte of the pack belongs to the last member
+        try (RandomAccessFile file = new RandomAccessFile(pack, "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        try {
+            PackFile.extractAll(pack, folder.newFolder("out"));
+            fail("Extracted a corrupted member");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("b.txt"));
+        }
+    }
+
+    @Test
+    public void testExtractRejectsNamesOutsideOutputDirectory() throws IOException {
+        Map<String, File> members = new LinkedHashMap<>();
+        members.put("../escaped.txt", newFile("escaped.txt", "outside".getBytes(StandardCharsets.UTF_8)));
+        File pack = new File(folder.getRoot(), "test.pack");
+        PackFile.write(members, pack);
+
+        File outputDir = folder.newFolder("nested", "out");
+        try {
+            PackFile.extractAll(pack, outputDir);
+            fail("Extracted a member outside the output directory");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Invalid pack entry name"));
+        }
+        assertFalse(new File(outputDir.getParentFile(), "escaped.txt").exists());
+    }
+
+    private File newFile(String name, byte[] data) throws IOException {
+        File file = new File(folder.newFolder(), name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
@@ -0,0 +1,99 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.ChunkKey;
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.util.ConsistentHashRing;
+import com.jcachenetdl.util.HashUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlacementIndexTest {
+    private static final String FILE_HASH = HashUtil.sha256("placement-index-test");
+
+    private Map<String, FileManifest> manifests;
+    private PlacementIndex index;
+    private ConsistentHashRing before;
+
+    @Before
+    public void setUp() {
+        manifests = new HashMap<>();
+        index = new PlacementIndex(3, manifests::get);
+        before = new ConsistentHashRing(64);
+        for (int i = 0; i < 6; i++) {
+            before.addNode("peer-" + i);
+        }
+    }
+
+    @Test
+    public void testMovesEveryFragmentOfAStripe() {
+        // One stripe: chunks 0-3, parity fragments 4 and 5
+        FileManifest manifest = erasureCoded();
+        manifests.put(FILE_HASH, manifest);
+        for (int fragment = 0; fragment < 6; fragment++) {
+            index.add(FILE_HASH, fragment);
+        }
+        assertEquals(6, index.size());
+        assertEquals(6, index.getDepth());
+
+        assertMovedChunksFound(manifest, 1);
+    }
+
+    @Test
+    public void testReindexesWhenErasureCodingIsRecorded() {
+        // An upload caches its chunks before the manifest with the erasure coding is recorded
+        FileManifest plain = new FileManifest(FILE_HASH, 4, -1);
+        manifests.put(FILE_HASH, plain);
+        for (int fragment = 0; fragment < 6; fragment++) {
+            index.add(FILE_HASH, fragment);
+        }
+
+        FileManifest manifest = erasureCoded();
+        manifests.put(FILE_HASH, manifest);
+        BitSet cached = new BitSet();
+        cached.set(0, 6);
+        index.reindex(FILE_HASH, plain, cached);
+        assertEquals(6, index.size());
+
+        assertMovedChunksFound(manifest, 1);
+
+        // Removal finds the chunks where they are now placed
+        for (int fragment = 0; fragment < 6; fragment++) {
+            index.remove(FILE_HASH, fragment);
+        }
+        assertEquals(0, index.size());
+    }
+
+    /**
+     * Removes the stripe's first home and checks that every fragment whose home changed is
+     * among the chunks the index finds in the changed ranges.
+     */
+    private void assertMovedChunksFound(FileManifest manifest, int replicas) {
+        String primary = ChunkPlacement.homes(before, manifest, FILE_HASH, 0, replicas).get(0);
+        ConsistentHashRing after = before.copy();
+        after.removeNode(primary);
+
+        List<ChunkKey> found = index.chunksIn(after.changedRanges(before, index.getDepth()));
+        int moved = 0;
+        for (int fragment = 0; fragment < manifest.getFragmentCount(); fragment++) {
+            List<String> oldHomes = ChunkPlacement.homes(before, manifest, FILE_HASH, fragment, replicas);
+            List<String> newHomes = ChunkPlacement.homes(after, manifest, FILE_HASH, fragment, replicas);
+            if (!oldHomes.equals(newHomes)) {
+                assertTrue("fragment " + fragment, found.contains(ChunkKey.of(FILE_HASH, fragment)));
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved >= 2);
+    }
+
+    private static FileManifest erasureCoded() {
+        return new FileManifest(FILE_HASH, 4, 4 * 1024, null, 4, 2);
+    }
+}
@@ -0,0 +1,237 @@
+package com.jcachenetdl.node;
+
+import com.jcachenetdl.common.FileManifest;
+import com.jcachenetdl.common.PagedChunk;
+import com.jcachenetdl.util.HashUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingDownloadTest {
+    private static final int CHUNK_SIZE = CacheEngine.MAX_CHUNK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] data;
+    private FileManifest manifest;
+
+    @Before
+    public void setUp() {
+        // Three chunks, the last one short
+        data = new byte[2 * CHUNK_SIZE + 1000];
+        new Random(42).nextBytes(data);
+        List<String> digests = new ArrayList<>();
+        for (int chunkId = 0; chunkId < 3; chunkId++) {
+            digests.add(HashUtil.sha256(chunk(chunkId)));
+        }
+        manifest = new FileManifest(HashUtil.sha256(data), 3, data.length, digests);
+    }
+
+    @After
+    public void tearDown() {
+        DownloadState.delete(manifest.getFileHash());
+        new File(DownloadState.DOWNLOADS_DIR).delete(); // Only if no other state is in it
+    }
+
+    @Test
+    public void testConcurrentDuplicatesAreWrittenOnce() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 5; round++) {
+                StreamingDownload download = newDownload("out-" + round);
+                AtomicInteger done = new AtomicInteger();
+                download.addTransferListener(progress -> done.incrementAndGet());
+
+                // Every thread delivers chunk 0 at once, as hedged requests to several peers can
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    Callable<Boolean> accept = () -> {
+                        start.await();
+                        return download.accept(0, chunk(0), 10, 1);
+                    };
+                    results.add(executor.submit(accept));
+                }
+                start.countDown();
+                for (Future<Boolean> result : results) {
+                    assertTrue(result.get());
+                }
+                assertEquals("round " + round, 1, done.get());
+                assertEquals(1, download.getProgress().getCompletedChunks());
+
+                assertTrue(download.accept(1, chunk(1), 10, 1));
+                assertTrue(download.accept(2, chunk(2), 10, 1));
+                assertTrue(download.finish(true));
+                assertArrayEquals(data, Files.readAllBytes(download.getOutputFile().toPath()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testResumesFromSavedState() throws Exception {
+        StreamingDownload download = newDownload("out");
+        assertTrue(download.accept(0, chunk(0), 10, 1));
+        assertTrue(download.accept(2, chunk(2), 10, 1));
+        assertFalse(download.finish(false));
+
+        // The state survives a round trip through its file
+        DownloadState state = DownloadState.load(manifest.getFileHash());
+        assertEquals(download.getOutputFile().getAbsolutePath(), state.getDestination());
+        assertEquals(manifest.getChunkDigests(), state.getManifest().getChunkDigests());
+        assertEquals(data.length, state.getManifest().getFileSize());
+
+        StreamingDownload resumed = StreamingDownload.resume(state, null, false);
+        assertTrue(resumed.hasChunk(0));
+        assertFalse(resumed.hasChunk(1));
+        assertTrue(resumed.hasChunk(2));
+        assertEquals(2, resumed.getProgress().getCompletedChunks());
+        assertArrayEquals(chunk(2).toByteArray(), resumed.getChunk(2).toByteArray());
+
+        assertTrue(resumed.accept(1, chunk(1), 10, 1));
+        assertTrue(resumed.finish(true));
+        assertArrayEquals(data, Files.readAllBytes(resumed.getOutputFile().toPath()));
+        assertNull(DownloadState.load(manifest.getFileHash()));
+    }
+
+    @Test
+    public void testStartsOverWithoutOutputFile() throws Exception {
+        StreamingDownload download = newDownload("out");
+        assertTrue(download.accept(0, chunk(0), 10, 1));
+        assertFalse(download.finish(false));
+        assertTrue(download.getOutputFile().delete());
+
+        StreamingDownload resumed = StreamingDownload.resume(DownloadState.load(manifest.getFileHash()), null, false);
+        assertFalse(resumed.hasChunk(0));
+        assertEquals(0, resumed.getProgress().getCompletedChunks());
+        assertEquals(data.length, resumed.getOutputFile().length());
+        resumed.finish(false);
+    }
+
+    @Test
+    public void testSavedStateIsASnapshot() throws Exception {
+        StreamingDownload download = newDownload("out");
+
+        // The first chunk saves the state, listing the chunk it was saved for
+        assertTrue(download.accept(0, chunk(0), 10, 1));
+        assertEquals(bits(0), DownloadState.load(manifest.getFileHash()).getCompletedChunks());
+
+        // Within the save interval the saved state isn't updated, so it only ever lists fewer chunks
+        assertTrue(download.accept(2, chunk(2), 10, 1));
+        DownloadState saved = DownloadState.load(manifest.getFileHash());
+        assertEquals(bits(0), saved.getCompletedChunks());
+        assertEquals(bits(0, 2), download.getState().getCompletedChunks());
+
+        // Neither the saved state nor a snapshot follows the download afterwards
+        DownloadState snapshot = download.getState();
+        assertTrue(download.accept(1, chunk(1), 10, 1));
+        assertEquals(bits(0, 2), snapshot.getCompletedChunks());
+        download.finish(false);
+
+        StreamingDownload resumed = StreamingDownload.resume(saved, null, false);
+        assertFalse(resumed.hasChunk(2));
+        resumed.finish(false);
+    }
+
+    @Test
+    public void testPlaybackReadsInFileOrder() throws Exception {
+        StreamingDownload download = newDownload("out");
+        List<Integer> reported = new CopyOnWriteArrayList<>();
+        download.setPlaybackListener(reported::add);
+        assertTrue(download.accept(2, chunk(2), 10, 1));
+
+        ByteArrayOutputStream played = new ByteArrayOutputStream();
+        AtomicLong read = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread player = new Thread(() -> {
+            try (InputStream in = download.newInputStream()) {
+                byte[] buffer = new byte[PagedChunk.PAGE_SIZE];
+                int n;
+                while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+                    played.write(buffer, 0, n);
+                    read.addAndGet(n);
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        player.start();
+
+        // Chunk 2 is there, but the stream waits for chunk 0
+        awaitBlocked(player, read, 0);
+        assertEquals(Arrays.asList(0), reported);
+
+        assertTrue(download.accept(0, chunk(0), 10, 1));
+        awaitBlocked(player, read, CHUNK_SIZE);
+        assertEquals(Arrays.asList(0, 1), reported);
+
+        // With every chunk written, the stream only ends once the file is verified
+        assertTrue(download.accept(1, chunk(1), 10, 1));
+        awaitBlocked(player, read, data.length);
+        assertEquals(Arrays.asList(0, 1, 2), reported);
+
+        assertTrue(download.finish(true));
+        player.join(5000);
+        assertFalse(player.isAlive());
+        assertNull(failure.get());
+        assertArrayEquals(data, played.toByteArray());
+    }
+
+    /**
+     * Waits until the player has read the given number of bytes and is waiting for more.
+     */
+    private static void awaitBlocked(Thread player, AtomicLong read, long bytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (read.get() != bytes || player.getState() != Thread.State.WAITING) {
+            assertTrue("read " + read.get() + " of " + bytes, read.get() <= bytes);
+            assertTrue("player never blocked at " + bytes, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static BitSet bits(int... chunkIds) {
+        BitSet bits = new BitSet();
+        for (int chunkId : chunkIds) {
+            bits.set(chunkId);
+        }
+        return bits;
+    }
+
+    private StreamingDownload newDownload(String name) throws Exception {
+        return new StreamingDownload(manifest, new File(folder.getRoot(), name), null, false);
+    }
+
+    private PagedChunk chunk(int chunkId) {
+        int offset = chunkId * CHUNK_SIZE;
+        return PagedChunk.copyOf(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+    }
+}
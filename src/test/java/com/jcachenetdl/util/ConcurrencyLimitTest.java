@@ -0,0 +1,65 @@
+package com.jcachenetdl.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimitTest {
+
+    @Test
+    public void testGrowsWhileLatencyIsFlat() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(4, 1, 64);
+        for (int i = 0; i < 20; i++) {
+            limit.release(10, limit.acquire(), false);
+            saturate(limit, 10);
+        }
+        assertEquals(64, limit.getLimit());
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    public void testShrinksWhenLatencyInflates() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(40, 1, 64);
+        limit.release(10, limit.acquire(), false);
+        for (int i = 0; i < 20; i++) {
+            saturate(limit, 100);
+        }
+        assertTrue("limit " + limit.getLimit(), limit.getLimit() < 10);
+    }
+
+    @Test
+    public void testShrinksOnFailure() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(8, 2, 64);
+        limit.release(0, limit.acquire(), true);
+        assertEquals(7, limit.getLimit());
+        for (int i = 0; i < 10; i++) {
+            limit.release(0, limit.acquire(), true);
+        }
+        assertEquals(2, limit.getLimit());
+    }
+
+    @Test
+    public void testIgnoresSamplesWhileUnused() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(16, 1, 64);
+        limit.release(10, limit.acquire(), false);
+        for (int i = 0; i < 20; i++) {
+            limit.release(500, limit.acquire(), false);
+        }
+        assertEquals(16, limit.getLimit());
+    }
+
+    /**
+     * Sends as many requests as the limit allows, all answered after the same latency.
+     */
+    private static void saturate(ConcurrencyLimit limit, long rttMs) {
+        int count = limit.getLimit();
+        int[] inFlightAtStart = new int[count];
+        for (int i = 0; i < count; i++) {
+            inFlightAtStart[i] = limit.acquire();
+        }
+        for (int i = 0; i < count; i++) {
+            limit.release(rttMs, inFlightAtStart[i], false);
+        }
+    }
+}
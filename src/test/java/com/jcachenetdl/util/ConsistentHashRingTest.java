@@ -0,0 +1,111 @@
+package com.jcachenetdl.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void testNodesAreDistinctAndStable() {
+        ConsistentHashRing ring = newRing(5);
+
+        List<String> homes = ring.getNodes("file:0", 3);
+        assertEquals(3, homes.size());
+        assertEquals(3, new HashSet<>(homes).size());
+        assertEquals(homes, ring.getNodes("file:0", 3));
+
+        // Asking for more nodes than the ring has returns them all
+        assertEquals(5, ring.getNodes("file:0", 10).size());
+    }
+
+    @Test
+    public void testJoinOnlyMovesKeysToTheNewNode() {
+        ConsistentHashRing ring = newRing(5);
+        Map<String, String> before = owners(ring);
+
+        ring.addNode("peer-new");
+        Map<String, String> after = owners(ring);
+
+        int moved = 0;
+        for (String key : before.keySet()) {
+            if (!before.get(key).equals(after.get(key))) {
+                assertEquals("peer-new", after.get(key));
+                moved++;
+            }
+        }
+        // About a sixth of the keys should move; none of the others
+        assertTrue("moved " + moved, moved > 0 && moved < before.size() / 3);
+    }
+
+    @Test
+    public void testLeaveRestoresPreviousOwners() {
+        ConsistentHashRing ring = newRing(5);
+        Map<String, String> before = owners(ring);
+
+        ring.addNode("peer-new");
+        ring.removeNode("peer-new");
+
+        assertEquals(before, owners(ring));
+    }
+
+    @Test
+    public void testChangedRangesHoldExactlyTheMovedKeys() {
+        ConsistentHashRing before = newRing(5);
+        ConsistentHashRing after = before.copy();
+        after.addNode("peer-new");
+        after.removeNode("peer-2");
+
+        List<long[]> ranges = after.changedRanges(before, 3);
+        int moved = 0;
+        for (int i = 0; i < 3000; i++) {
+            String key = "file:" + i;
+            boolean changed = !before.getNodes(key, 3).equals(after.getNodes(key, 3));
+            assertEquals(key, changed, inRanges(ConsistentHashRing.position(key), ranges));
+            if (changed) {
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > 0);
+
+        // Nothing moves between equal rings, e.g. after a peer left and came back
+        after.removeNode("peer-new");
+        after.addNode("peer-2");
+        assertTrue(after.changedRanges(before, 3).isEmpty());
+    }
+
+    private static boolean inRanges(long position, List<long[]> ranges) {
+        for (long[] range : ranges) {
+            boolean in = range[0] < range[1]
+                    ? position > range[0] && position <= range[1]
+                    : position > range[0] || position <= range[1];
+            if (in) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ConsistentHashRing newRing(int nodes) {
+        ConsistentHashRing ring = new ConsistentHashRing(64);
+        for (int i = 0; i < nodes; i++) {
+            ring.addNode("peer-" + i);
+        }
+        return ring;
+    }
+
+    private static Map<String, String> owners(ConsistentHashRing ring) {
+        Map<String, String> owners = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            String key = "file:" + i;
+            owners.put(key, ring.getNodes(key, 1).get(0));
+        }
+        return owners;
+    }
+}
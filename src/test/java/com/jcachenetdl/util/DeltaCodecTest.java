@@ -0,0 +1,120 @@
+package com.jcachenetdl.util;
+
+import com.jcachenetdl.common.BlockSignatures;
+import com.jcachenetdl.common.DeltaSegment;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaCodecTest {
+
+    @Test
+    public void testRollingMatchesRecomputedChecksum() {
+        byte[] data = new byte[5000];
+        new Random(5).nextBytes(data);
+        RollingChecksum checksum = new RollingChecksum(700);
+        checksum.reset(data, 0);
+        for (int offset = 1; offset + 700 <= data.length; offset++) {
+            checksum.roll(data[offset - 1], data[offset + 699]);
+            assertEquals("offset " + offset, RollingChecksum.of(data, offset, 700), checksum.getValue());
+        }
+    }
+
+    @Test
+    public void testSmallEditsCostLittle() throws IOException {
+        byte[] base = new byte[300_000];
+        new Random(11).nextBytes(base);
+
+        // Insert a few bytes near the start, overwrite some in the middle, cut some near the end
+        ByteArrayOutputStream edited = new ByteArrayOutputStream();
+        edited.write(base, 0, 1000);
+        edited.write(new byte[] {1, 2, 3, 4, 5, 6, 7});
+        edited.write(base, 1000, 149_000);
+        edited.write(new byte[500], 0, 500);
+        edited.write(base, 150_500, 140_000);
+        edited.write(base, 291_000, 9000);
+        byte[] target = edited.toByteArray();
+
+        List<DeltaSegment> delta = encode(base, target, 4096);
+        assertArrayEquals(target, apply(base, delta));
+        assertTrue("literal bytes: " + literalBytes(delta), literalBytes(delta) < 4 * 4096 + 512);
+    }
+
+    @Test
+    public void testUnrelatedFileIsAllLiterals() throws IOException {
+        byte[] base = new byte[50_000];
+        byte[] target = new byte[70_000];
+        new Random(1).nextBytes(base);
+        new Random(2).nextBytes(target);
+
+        List<DeltaSegment> delta = encode(base, target, 1024);
+        assertArrayEquals(target, apply(base, delta));
+        assertEquals(target.length, literalBytes(delta));
+        for (DeltaSegment segment : delta) {
+            assertTrue(segment.getLength() <= DeltaCodec.MAX_LITERAL_LENGTH);
+        }
+    }
+
+    @Test
+    public void testIdenticalFileIsOneCopy() throws IOException {
+        byte[] base = new byte[10_000]; // Not a multiple of the block size
+        new Random(3).nextBytes(base);
+
+        List<DeltaSegment> delta = encode(base, base.clone(), 1024);
+        assertEquals(1, delta.size());
+        assertTrue(delta.get(0).isCopy());
+        assertEquals(base.length, delta.get(0).getLength());
+        assertArrayEquals(base, apply(base, delta));
+    }
+
+    @Test
+    public void testConsumerCanStopEncoding() throws IOException {
+        byte[] target = new byte[200_000];
+        new Random(4).nextBytes(target);
+        BlockSignatures signatures = DeltaCodec.signatures("base", new ByteArrayInputStream(new byte[0]), 1024);
+
+        List<DeltaSegment> received = new ArrayList<>();
+        boolean complete = DeltaCodec.encode(new ByteArrayInputStream(target), signatures, segment -> {
+            received.add(segment);
+            return received.size() < 2;
+        });
+        assertFalse(complete);
+        assertEquals(2, received.size());
+    }
+
+    private static List<DeltaSegment> encode(byte[] base, byte[] target, int blockSize) throws IOException {
+        BlockSignatures signatures = DeltaCodec.signatures("base", new ByteArrayInputStream(base), blockSize);
+        assertEquals(base.length, signatures.getFileSize());
+        List<DeltaSegment> delta = new ArrayList<>();
+        assertTrue(DeltaCodec.encode(new ByteArrayInputStream(target), signatures, delta::add));
+        return delta;
+    }
+
+    private static byte[] apply(byte[] base, List<DeltaSegment> delta) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeltaCodec.Source source = (position, dst, offset, length) -> {
+            if (position + length > base.length) {
+                throw new IOException("Read past the end of the base");
+            }
+            System.arraycopy(base, (int) position, dst, offset, length);
+        };
+        for (DeltaSegment segment : delta) {
+            DeltaCodec.apply(segment, source, out);
+        }
+        return out.toByteArray();
+    }
+
+    private static long literalBytes(List<DeltaSegment> delta) {
+        return delta.stream().filter(segment -> !segment.isCopy()).mapToLong(DeltaSegment::getLength).sum();
+    }
+}
@@ -1,5 +1,6 @@
 package com.jcachenetdl.util;
 
+import com.jcachenetdl.common.PagedChunk;
 import org.junit.Test;
 
 import java.io.File;
@@ -48,6 +49,17 @@ public class HashUtilTest {
         assertNotEquals(hash, differentHash);
     }
     
+    @Test
+    public void testSha256WithPagedChunk() {
+        // Spans several pages, the last one partial
+        byte[] input = new byte[150 * 1024];
+        new Random().nextBytes(input);
+        PagedChunk chunk = PagedChunk.copyOf(input, 0, input.length);
+        
+        // Hashing page by page gives the hash of the whole content
+        assertEquals(HashUtil.sha256(input), HashUtil.sha256(chunk));
+    }
+    
     @Test
     public void testSha256File() throws IOException {
         // Create a temporary file
@@ -0,0 +1,91 @@
+package com.jcachenetdl.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ReedSolomonTest {
+
+    @Test
+    public void testAnyDataShardsReconstructTheStripe() {
+        ReedSolomon codec = new ReedSolomon(4, 2);
+        byte[][] original = newStripe(codec, 1000, new Random(42));
+        codec.encodeParity(original, 1000);
+
+        // Every way of losing two of the six shards
+        for (int a = 0; a < 6; a++) {
+            for (int b = a + 1; b < 6; b++) {
+                byte[][] shards = copy(original);
+                boolean[] present = {true, true, true, true, true, true};
+                present[a] = false;
+                present[b] = false;
+                shards[a] = new byte[1000];
+                shards[b] = new byte[1000];
+
+                codec.decodeMissing(shards, present, 1000);
+                for (int i = 0; i < 6; i++) {
+                    assertArrayEquals("shard " + i + " after losing " + a + " and " + b, original[i], shards[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDataShardsAreStoredAsIs() {
+        ReedSolomon codec = new ReedSolomon(3, 3);
+        byte[][] shards = newStripe(codec, 64, new Random(7));
+        byte[][] data = copy(shards);
+        codec.encodeParity(shards, 64);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(data[i], shards[i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooFewShardsAreRejected() {
+        ReedSolomon codec = new ReedSolomon(4, 2);
+        byte[][] shards = newStripe(codec, 16, new Random(1));
+        codec.encodeParity(shards, 16);
+        codec.decodeMissing(shards, new boolean[] {true, true, true, false, false, false}, 16);
+    }
+
+    @Test
+    public void testWideStripe() {
+        ReedSolomon codec = new ReedSolomon(200, 56);
+        assertEquals(256, codec.getTotalShards());
+        byte[][] original = newStripe(codec, 32, new Random(3));
+        codec.encodeParity(original, 32);
+
+        byte[][] shards = copy(original);
+        boolean[] present = new boolean[256];
+        for (int i = 0; i < 256; i++) {
+            present[i] = i % 5 != 0; // Loses 52 shards, data and parity
+            if (!present[i]) {
+                shards[i] = new byte[32];
+            }
+        }
+        codec.decodeMissing(shards, present, 32);
+        for (int i = 0; i < 256; i++) {
+            assertArrayEquals(original[i], shards[i]);
+        }
+    }
+
+    private static byte[][] newStripe(ReedSolomon codec, int length, Random random) {
+        byte[][] shards = new byte[codec.getTotalShards()][length];
+        for (int i = 0; i < codec.getDataShards(); i++) {
+            random.nextBytes(shards[i]);
+        }
+        return shards;
+    }
+
+    private static byte[][] copy(byte[][] shards) {
+        byte[][] copy = new byte[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            copy[i] = shards[i].clone();
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,86 @@
+package com.jcachenetdl.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentCallsShareOneLoad() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                results.add(executor.submit(() -> flights.execute("chunk", () -> {
+                    loads.incrementAndGet();
+                    awaitQuietly(release);
+                    return "data";
+                })));
+            }
+
+            // Let every caller reach the flight before the load finishes
+            while (flights.size() == 0 || loads.get() == 0) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(100);
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertEquals("data", result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loads.get());
+            assertEquals(0, flights.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testKeyIsReleasedAfterCall() {
+        SingleFlight<String, Integer> flights = new SingleFlight<>();
+        AtomicInteger loads = new AtomicInteger();
+
+        assertEquals(Integer.valueOf(1), flights.execute("chunk", loads::incrementAndGet));
+        assertEquals(Integer.valueOf(2), flights.execute("chunk", loads::incrementAndGet));
+        assertEquals(0, flights.size());
+    }
+
+    @Test
+    public void testFailureIsReleased() {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+
+        try {
+            flights.execute("chunk", () -> {
+                throw new IllegalStateException("disk error");
+            });
+            fail("Expected the loader's exception");
+        } catch (IllegalStateException e) {
+            assertEquals("disk error", e.getMessage());
+        }
+
+        assertEquals("data", flights.execute("chunk", () -> "data"));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}